@@ -7,11 +7,16 @@ import it.unimore.iot.microfactory.device.simulator.QualitySensor;
 import it.unimore.iot.microfactory.device.simulator.RobotCell;
 import it.unimore.iot.microfactory.domain.StateRepository;
 import it.unimore.iot.microfactory.manager.DataCollectorManager;
+import it.unimore.iot.microfactory.persistence.TelemetryJournal;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 public class App {
 
@@ -27,6 +32,9 @@ public class App {
             // Recupera l'istanza condivisa del repository dello stato della microfabbrica
             StateRepository stateRepository = StateRepository.getInstance();
 
+            // Ricostruisce lo stato dal journal persistente prima di accettare nuova telemetria
+            TelemetryJournal journal = openJournal(stateRepository);
+
             // Avvia il bridge che inoltra i comandi CoAP verso l'infrastruttura MQTT
             commandPublisher = new CommandPublisher();
             commandPublisher.start();
@@ -89,6 +97,16 @@ public class App {
                     logger.error("Error stopping data collector manager", e);
                 }
 
+                // Salva uno snapshot finale e chiude il journal dopo l'arresto dell'ingest
+                if (journal != null) {
+                    try {
+                        journal.snapshot(stateRepository::forEachState);
+                    } catch (IOException e) {
+                        logger.error("Error writing final journal snapshot", e);
+                    }
+                    journal.close();
+                }
+
                 if (finalCommandPublisher != null) {
                     try {
                         finalCommandPublisher.close();
@@ -110,4 +128,31 @@ public class App {
             }
         }
     }
+
+    // Apre il journal della telemetria, ripristina lo stato salvato e lo collega al repository
+    private static TelemetryJournal openJournal(StateRepository stateRepository) {
+        boolean enabled = Boolean.parseBoolean(Optional.ofNullable(System.getenv("JOURNAL_ENABLED")).orElse("true"));
+        if (!enabled) {
+            logger.info("Telemetry journal disabled.");
+            return null;
+        }
+        Path directory = Path.of(Optional.ofNullable(System.getenv("JOURNAL_DIR")).orElse("data/journal"));
+        int segmentMb = Integer.parseInt(Optional.ofNullable(System.getenv("JOURNAL_SEGMENT_MB")).orElse("64"));
+        long snapshotIntervalSec = Long.parseLong(
+                Optional.ofNullable(System.getenv("JOURNAL_SNAPSHOT_INTERVAL_S")).orElse("60"));
+
+        try {
+            TelemetryJournal journal = new TelemetryJournal(directory, segmentMb * 1024 * 1024);
+            long start = System.nanoTime();
+            long records = journal.replay(stateRepository::restore);
+            logger.info("Restored {} journal record(s) from {} in {} ms", records, directory,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            stateRepository.registerJournal(journal);
+            journal.startSnapshots(stateRepository::forEachState, snapshotIntervalSec);
+            return journal;
+        } catch (IOException e) {
+            logger.error("Unable to open telemetry journal in {}. Continuing without persistence.", directory, e);
+            return null;
+        }
+    }
 }
@@ -0,0 +1,166 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import it.unimore.iot.microfactory.codec.BodyCursor;
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.config.CoapConfig;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Risponde alle GET il cui corpo può essere molto grande generando i blocchi Block2 (RFC 7959) su richiesta.
+ * Ogni blocco viene prodotto leggendo il {@link BodyCursor} del trasferimento, senza materializzare il corpo
+ * né affidarlo allo strato blockwise di Californium, che lo terrebbe intero in memoria.
+ * Il cursore resta associato al client (indirizzo, URI e formato) tra un blocco e il successivo; se la
+ * sessione è scaduta o il client chiede un blocco fuori sequenza, si riapre il corpo e si scartano i byte
+ * precedenti. L'ETag identifica la fotografia da cui è generato il corpo, così un client che riparte da una
+ * fotografia diversa se ne accorge confrontandolo. I corpi che stanno in un blocco sono inviati senza Block2.
+ * Ogni richiesta scarta le sessioni scadute, così un trasferimento abbandonato non trattiene la sua fotografia
+ * oltre il timeout della sessione.
+ */
+final class BlockwiseBodyResponder {
+
+    /**
+     * Corpo da inviare e relativo ETag.
+     */
+    record Body(byte[] etag, BodyCursor cursor) {
+    }
+
+    /**
+     * Apre il corpo da una nuova fotografia dello stato.
+     */
+    @FunctionalInterface
+    interface BodySource {
+        Body open() throws IOException;
+    }
+
+    private static final long ETAG_SALT = ThreadLocalRandom.current().nextLong();
+    private static final int DEFAULT_BLOCK_SIZE = 512;
+    private static final int MAX_SESSIONS = 256;
+    private static final long SESSION_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long sessionTimeoutNanos;
+
+    BlockwiseBodyResponder() {
+        this(SESSION_TIMEOUT_NANOS);
+    }
+
+    /**
+     * @param sessionTimeoutNanos Inattività dopo la quale un trasferimento in corso viene dimenticato.
+     */
+    BlockwiseBodyResponder(long sessionTimeoutNanos) {
+        this.sessionTimeoutNanos = sessionTimeoutNanos;
+    }
+
+    /**
+     * Deriva un ETag di 8 byte dall'impronta della fotografia e dal formato, mescolati con il sale di avvio.
+     */
+    static byte[] etag(long fingerprint, int contentFormat) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(ETAG_SALT ^ (fingerprint * 31 + contentFormat)).array();
+    }
+
+    /**
+     * Risponde con il blocco richiesto (o con il primo) del corpo prodotto da {@code source}.
+     * Alla prima richiesta, se porta l'ETag della fotografia corrente, risponde 2.03 Valid senza generare il corpo.
+     */
+    void respond(CoapExchange exchange, int contentFormat, BodySource source) throws IOException {
+        BlockOption requested = exchange.getRequestOptions().getBlock2();
+        int szx = BlockOption.size2Szx(preferredBlockSize(exchange));
+        if (requested != null) {
+            szx = Math.min(szx, requested.getSzx());
+        }
+        int blockSize = BlockOption.szx2Size(szx);
+        int offset = requested != null ? requested.getOffset() : 0;
+        if (offset % blockSize != 0) {
+            exchange.respond(CoAP.ResponseCode.BAD_OPTION, "Blocco non allineato");
+            return;
+        }
+
+        String key = exchange.getSourceSocketAddress() + " " + exchange.advanced().getRequest().getURI() + " " + contentFormat;
+        long now = System.nanoTime();
+        purgeExpired(now);
+        Session session = sessions.remove(key);
+        if (session == null || offset == 0 || session.cursor.position() != offset) {
+            Body body = source.open();
+            if (offset == 0 && exchange.getRequestOptions().containsETag(body.etag())) {
+                exchange.setETag(body.etag());
+                exchange.respond(CoAP.ResponseCode.VALID);
+                return;
+            }
+            if (body.cursor().skip(offset) < offset) {
+                exchange.respond(CoAP.ResponseCode.BAD_OPTION, "Blocco oltre la fine del corpo");
+                return;
+            }
+            session = new Session(body.etag(), body.cursor(), now);
+        }
+
+        byte[] block = new byte[blockSize];
+        int length = 0;
+        int n;
+        while (length < blockSize && (n = session.cursor.read(block, length, blockSize - length)) >= 0) {
+            length += n;
+        }
+        boolean more = session.cursor.hasRemaining();
+
+        Response response = new Response(CoAP.ResponseCode.CONTENT);
+        response.setPayload(length == blockSize ? block : Arrays.copyOf(block, length));
+        response.getOptions().setContentFormat(contentFormat).addETag(session.etag);
+        if (more || offset > 0) {
+            response.getOptions().setBlock2(szx, more, offset / blockSize);
+        }
+        if (more) {
+            session.lastAccess = now;
+            store(key, session);
+        }
+        exchange.respond(response);
+    }
+
+    /**
+     * Restituisce il numero di trasferimenti in corso.
+     */
+    int sessionCount() {
+        return sessions.size();
+    }
+
+    // Scarta le sessioni inattive da più del timeout (al più MAX_SESSIONS, per cui la visita è breve)
+    private void purgeExpired(long now) {
+        if (!sessions.isEmpty()) {
+            sessions.values().removeIf(s -> now - s.lastAccess > sessionTimeoutNanos);
+        }
+    }
+
+    // Conserva la sessione per il prossimo blocco; oltre il limite rinuncia e il blocco successivo riapre il corpo
+    private void store(String key, Session session) {
+        if (sessions.size() < MAX_SESSIONS) {
+            sessions.put(key, session);
+        }
+    }
+
+    private static int preferredBlockSize(CoapExchange exchange) {
+        Endpoint endpoint = exchange.advanced().getEndpoint();
+        return endpoint != null ? endpoint.getConfig().get(CoapConfig.PREFERRED_BLOCK_SIZE) : DEFAULT_BLOCK_SIZE;
+    }
+
+    // Cursore di un trasferimento in corso con l'ETag della fotografia da cui è generato
+    private static final class Session {
+        final byte[] etag;
+        final BodyCursor cursor;
+        long lastAccess;
+
+        Session(byte[] etag, BodyCursor cursor, long now) {
+            this.etag = etag;
+            this.cursor = cursor;
+            this.lastAccess = now;
+        }
+    }
+}
@@ -1,69 +1,137 @@
 package it.unimore.iot.microfactory.adapters.coap;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unimore.iot.microfactory.adapters.coap.StateRepresentationCache.Representation;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.codec.PayloadEncoding;
+import it.unimore.iot.microfactory.codec.TelemetryCodec;
+import it.unimore.iot.microfactory.domain.CellSnapshot;
+import it.unimore.iot.microfactory.domain.BroadcastScope;
+import it.unimore.iot.microfactory.domain.CommandReceipt;
+import it.unimore.iot.microfactory.domain.CommandTracker;
+import it.unimore.iot.microfactory.domain.DeviceEntry;
+import it.unimore.iot.microfactory.domain.DeviceHistory;
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import it.unimore.iot.microfactory.domain.RawTelemetry;
+import it.unimore.iot.microfactory.domain.DeviceLifecycleListener;
+import it.unimore.iot.microfactory.domain.DeviceSelector;
+import it.unimore.iot.microfactory.domain.LatencyHistogram;
 import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.domain.Subscription;
 import it.unimore.iot.microfactory.model.Ack;
 import it.unimore.iot.microfactory.model.Command;
 import it.unimore.iot.microfactory.model.RobotCellStatus;
 import it.unimore.iot.microfactory.util.coap.ContentFormat;
-import it.unimore.iot.microfactory.util.senml.SenML;
-import it.unimore.iot.microfactory.util.senml.SenMLPack;
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.CoapServer;
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.config.CoapConfig;
+import org.eclipse.californium.core.observe.ObserveRelation;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.core.server.resources.Resource;
-import org.eclipse.californium.elements.config.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * Gestisce il server CoAP per la microfactory intelligente.
  * Questo server espone un'API REST-like per monitorare e controllare
  * i dispositivi della fabbrica tramite il protocollo CoAP.
- * L'architettura è basata su risorse CoAP nidificate dinamicamente,
- * che permettono di navigare la gerarchia della fabbrica: /factory/{cellId}/{deviceType}/{deviceId}/...
+ * L'architettura è basata su un albero di risorse CoAP nidificate che permette di navigare
+ * la gerarchia della fabbrica: /factory/{cellId}/{deviceType}/{deviceId}/...
+ * I nodi di cella, tipo e dispositivo sono creati una sola volta, quando lo {@link StateRepository}
+ * vede per la prima volta un dispositivo, e rimossi quando il dispositivo viene eliminato:
+ * le richieste non allocano risorse e i dispositivi reali compaiono in /.well-known/core.
  */
 public class CoapApiServer {
 
     private static final Logger log = LoggerFactory.getLogger(CoapApiServer.class);
     private static final Set<String> SUPPORTED_DEVICE_COMMANDS = Set.of("RESET", "START", "STOP");
     private static final Set<String> SUPPORTED_GLOBAL_COMMANDS = Set.of("RESET", "START", "STOP", "EMERGENCY");
+    private static final ObjectMapper MAPPER = Codecs.MAPPER;
+    private static final long DEFAULT_CHANGES_FLUSH_MS = 100;
     private final CoapServer server;
+    private final ExecutorService handlerExecutor;
+    private Subscription treeSubscription;
 
     /**
-     * Inizializza il server sulla porta CoAP di default (5683).
+     * Inizializza il server sulla porta configurata in {@code COAP.COAP_PORT} (di default 5683),
+     * con le impostazioni dello stack lette da file e ambiente.
      *
      * @param repo Il repository dello stato condiviso per accedere ai dati dei dispositivi.
      */
     public CoapApiServer(StateRepository repo) {
-        this(repo, 5683);
+        this(repo, CoapServerSettings.fromEnvironment());
+    }
+
+    private CoapApiServer(StateRepository repo, CoapServerSettings settings) {
+        this(repo, settings.configuration().get(CoapConfig.COAP_PORT), settings);
     }
 
     /**
-     * Inizializza il server sulla porta specificata.
+     * Inizializza il server sulla porta specificata, con le impostazioni dello stack lette da file e ambiente.
      *
      * @param repo Il repository dello stato condiviso per accedere ai dati dei dispositivi.
      * @param port La porta di ascolto per il server CoAP.
      */
     public CoapApiServer(StateRepository repo, int port) {
-        // Configurazione degli endpoint con parametri di rete ottimizzati per ambienti IoT.
-        Configuration cfg = Configuration.createStandardWithoutFile();
-        this.server = new CoapServer(cfg, port);
-        registerResources(repo);
+        this(repo, port, CoapServerSettings.fromEnvironment());
+    }
+
+    /**
+     * Inizializza il server sulla porta specificata con le impostazioni dello stack indicate.
+     *
+     * @param repo     Il repository dello stato condiviso per accedere ai dati dei dispositivi.
+     * @param port     La porta di ascolto per il server CoAP.
+     * @param settings Configurazione di Californium e modello di esecuzione dei gestori.
+     */
+    public CoapApiServer(StateRepository repo, int port, CoapServerSettings settings) {
+        this.server = new CoapServer(settings.configuration(), port);
+        this.handlerExecutor = settings.execution() == CoapServerSettings.HandlerExecution.POOL
+                ? newHandlerExecutor(settings.handlerThreads(), settings.handlerQueueCapacity())
+                : null;
+        long changesFlushMillis = Optional.ofNullable(System.getenv("CELL_CHANGES_FLUSH_MS"))
+                .map(Long::parseLong)
+                .orElse(DEFAULT_CHANGES_FLUSH_MS);
+        registerResources(repo, changesFlushMillis);
         log.info("Risorse CoAP di primo livello registrate: {}", server.getRoot().getChildren().size());
     }
 
     /**
-     * Registra le risorse CoAP di primo livello sul server.
+     * Registra le risorse CoAP di primo livello sul server e sincronizza l'albero dei dispositivi
+     * con il repository, materializzando subito quelli già noti (ad esempio ripristinati dal journal).
      *
-     * @param repo Il repository dello stato da passare alle risorse.
+     * @param repo               Il repository dello stato da passare alle risorse.
+     * @param changesFlushMillis Intervallo tra due lotti di variazioni delle risorse `changes` delle celle.
      */
-    private void registerResources(StateRepository repo) {
-        server.add(new FactoryResource(repo));
+    private void registerResources(StateRepository repo, long changesFlushMillis) {
+        FactoryResource factory = new FactoryResource(repo, changesFlushMillis, handlerExecutor);
+        server.add(factory);
+        treeSubscription = repo.addDeviceLifecycleListener(factory);
     }
 
     /**
@@ -82,35 +150,80 @@ public class CoapApiServer {
         }
     }
 
+    /**
+     * Restituisce la porta effettiva del primo endpoint, utile quando il server è avviato sulla porta 0.
+     */
+    public int getPort() {
+        return server.getEndpoints().get(0).getAddress().getPort();
+    }
+
     /**
      * Ferma il server CoAP e rilascia le risorse.
      */
     public void stop() {
         log.info("Arresto del server CoAP...");
+        treeSubscription.cancel();
         server.stop();
         server.destroy();
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdown();
+        }
         log.info("Server CoAP arrestato.");
     }
 
+    /**
+     * Crea il pool limitato dei gestori delle richieste. A coda piena la richiesta viene eseguita dal thread
+     * del protocollo che la consegna, rallentando la ricezione invece di scartare messaggi.
+     */
+    private static ExecutorService newHandlerExecutor(int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "coap-handler-" + counter.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
     /**
      * Risorsa radice che rappresenta l'intera fabbrica.
      * Espone l'endpoint `/factory`.
      * GET: Ritorna uno stato generale della fabbrica.
-     * FIGLI DINAMICI: Instrada le richieste per `{cellId}` alla `CellResource` corrispondente.
+     * FIGLI: Una `CellResource` per ogni cella con almeno un dispositivo, mantenuta in sincronia con il repository.
+     * Le celle sconosciute non hanno una risorsa e ricevono 4.04 da Californium.
+     * Se è configurato un pool dei gestori, le richieste e le notifiche di tutto il sottoalbero vengono eseguite su di esso.
      */
-    static class FactoryResource extends CoapResource {
+    static class FactoryResource extends CoapResource implements DeviceLifecycleListener {
         private final StateRepository repo;
+        private final long changesFlushMillis;
+        private final Executor handlerExecutor;
 
         FactoryResource(StateRepository repo) {
+            this(repo, DEFAULT_CHANGES_FLUSH_MS, null);
+        }
+
+        FactoryResource(StateRepository repo, long changesFlushMillis, Executor handlerExecutor) {
             super("factory");
             this.repo = repo;
+            this.changesFlushMillis = changesFlushMillis;
+            this.handlerExecutor = handlerExecutor;
             getAttributes().setTitle("Factory Resource");
             getAttributes().addResourceType("factory");
             getAttributes().addInterfaceDescription("core.ll");
             getAttributes().addContentType(MediaTypeRegistry.APPLICATION_JSON);
 
             // Aggiunge la risorsa per i comandi globali
-            add(new GlobalCommandResource("cmd", repo));
+            add(new BroadcastCommandResource("cmd", BroadcastScope.FACTORY, repo));
+        }
+
+        /**
+         * Le risorse figlie ereditano l'executor dal padre, per cui basta indicarlo sulla radice /factory.
+         */
+        @Override
+        public Executor getExecutor() {
+            return handlerExecutor != null ? handlerExecutor : super.getExecutor();
         }
 
         @Override
@@ -120,61 +233,215 @@ public class CoapApiServer {
         }
 
         /**
-         * Gestisce il routing dinamico per le celle.
-         * Se la risorsa richiesta non è statica (es. 'cmd'), la interpreta come un ID di cella.
+         * Allinea l'albero al repository per il dispositivo appena comparso.
+         * Gli eventi di uno stesso dispositivo possono arrivare in ordine diverso da quello dell'indice
+         * (una DELETE in corsa con la telemetria che lo ricrea): per questo entrambi i callback
+         * ricontrollano il repository sotto il lock dell'albero e l'ultimo eseguito ne fissa lo stato.
+         */
+        @Override
+        public synchronized void onDeviceAdded(DeviceKey key) {
+            reconcile(key);
+        }
+
+        /**
+         * Allinea l'albero al repository per il dispositivo appena rimosso (vedi {@link #onDeviceAdded(DeviceKey)}).
          */
         @Override
-        public Resource getChild(String name) {
-            Resource existing = super.getChild(name);
-            if (existing != null) {
-                return existing;
+        public synchronized void onDeviceRemoved(DeviceKey key) {
+            reconcile(key);
+        }
+
+        // Crea o rimuove i nodi del dispositivo a seconda che sia presente nel repository in questo momento
+        private void reconcile(DeviceKey key) {
+            if (repo.findEntry(key.cell(), key.type(), key.id()) != null) {
+                materialize(key);
+            } else {
+                evict(key);
+            }
+        }
+
+        // Materializza i nodi di cella, tipo e dispositivo mancanti; le chiamate ripetute non hanno effetto
+        private void materialize(DeviceKey key) {
+            Resource cellChild = getChild(key.cell());
+            if (cellChild == null) {
+                cellChild = new CellResource(key.cell(), repo, changesFlushMillis);
+                add(cellChild);
+            } else if (!(cellChild instanceof CellResource)) {
+                log.warn("Cella '{}' in conflitto con una risorsa fissa: dispositivo {} non esposto", key.cell(), key);
+                return;
+            }
+
+            Resource typeChild = cellChild.getChild(key.type());
+            if (typeChild == null) {
+                typeChild = new DeviceTypeResource(key.type(), key.cell(), repo);
+                ((CellResource) cellChild).add(typeChild);
+            } else if (!(typeChild instanceof DeviceTypeResource)) {
+                log.warn("Tipo '{}' in conflitto con una risorsa fissa: dispositivo {} non esposto", key.type(), key);
+                return;
+            }
+
+            Resource deviceChild = typeChild.getChild(key.id());
+            if (deviceChild == null) {
+                ((DeviceTypeResource) typeChild).add(new DeviceIdResource(key.id(), key.cell(), key.type(), repo));
+                log.debug("Risorse CoAP create per il dispositivo {}", key);
+            } else if (!(deviceChild instanceof DeviceIdResource)) {
+                log.warn("Dispositivo '{}' in conflitto con una risorsa fissa: dispositivo {} non esposto", key.id(), key);
+            }
+        }
+
+        // Rimuove il nodo del dispositivo notificando gli osservatori, poi i nodi di tipo e cella rimasti vuoti
+        private void evict(DeviceKey key) {
+            if (!(getChild(key.cell()) instanceof CellResource cell)
+                    || !(cell.getChild(key.type()) instanceof DeviceTypeResource type)
+                    || !(type.getChild(key.id()) instanceof DeviceIdResource device)) {
+                return;
+            }
+            device.evict();
+            // Tipo e cella conservano sempre le risorse fisse: vengono rimossi quando non hanno più figli dinamici
+            if (type.getChildren().stream().noneMatch(DeviceIdResource.class::isInstance)) {
+                type.delete();
+            }
+            if (cell.getChildren().stream().noneMatch(DeviceTypeResource.class::isInstance)) {
+                cell.evict();
             }
-            // Se non è una risorsa fissa, la consideriamo una cella dinamica
-            return new CellResource(name, repo);
+            log.debug("Risorse CoAP rimosse per il dispositivo {}", key);
+        }
+    }
+
+    /**
+     * Dichiara nell'attributo 'ct' i formati in cui sono disponibili gli elenchi di dispositivi.
+     */
+    private static void addDeviceListContentTypes(CoapResource resource) {
+        resource.getAttributes().addContentType(MediaTypeRegistry.APPLICATION_JSON);
+        resource.getAttributes().addContentType(ContentFormat.APPLICATION_CBOR);
+        resource.getAttributes().addContentType(ContentFormat.APPLICATION_SENML_JSON);
+        resource.getAttributes().addContentType(ContentFormat.APPLICATION_SENML_CBOR);
+    }
+
+    /**
+     * Risponde con l'elenco dei dispositivi nel formato indicato dall'opzione Accept (JSON se assente),
+     * generato a blocchi da una fotografia della cella.
+     *
+     * @param type Tipo dei dispositivi, oppure {@code null} per l'intera cella.
+     */
+    private static void respondDeviceList(CoapExchange exchange, BlockwiseBodyResponder responder,
+                                          StateRepository repo, String cellId, String type) {
+        int contentFormat = listContentFormat(exchange);
+        PayloadEncoding encoding = listEncoding(contentFormat);
+        if (encoding == null) {
+            exchange.respond(CoAP.ResponseCode.NOT_ACCEPTABLE);
+            return;
+        }
+        try {
+            responder.respond(exchange, contentFormat, () -> {
+                CellSnapshot snapshot = repo.snapshot(cellId, type);
+                return new BlockwiseBodyResponder.Body(BlockwiseBodyResponder.etag(snapshot.fingerprint(), contentFormat),
+                        repo.openDeviceList(snapshot, encoding));
+            });
+        } catch (Exception e) {
+            log.error("Errore durante l'elenco dei dispositivi {} per la cella {}", type != null ? type : "", cellId, e);
+            exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR, "Errore nell'elenco dispositivi");
+        }
+    }
+
+    // Content format richiesto per un elenco: quello dell'opzione Accept, JSON se assente
+    private static int listContentFormat(CoapExchange exchange) {
+        int accept = exchange.getRequestOptions().getAccept();
+        return accept == -1 ? MediaTypeRegistry.APPLICATION_JSON : accept;
+    }
+
+    // Codifica corrispondente al content format di un elenco, oppure null se il formato non è supportato
+    private static PayloadEncoding listEncoding(int contentFormat) {
+        if (contentFormat == MediaTypeRegistry.APPLICATION_JSON) {
+            return PayloadEncoding.JSON;
+        } else if (contentFormat == ContentFormat.APPLICATION_CBOR) {
+            return PayloadEncoding.CBOR;
+        } else if (contentFormat == ContentFormat.APPLICATION_SENML_JSON) {
+            return PayloadEncoding.SENML_JSON;
+        } else if (contentFormat == ContentFormat.APPLICATION_SENML_CBOR) {
+            return PayloadEncoding.SENML_CBOR;
+        }
+        return null;
+    }
+
+    // Risponde all'esito negativo di una pubblicazione: 5.04 se il broker non ha confermato in tempo, altrimenti 5.03
+    private static void respondPublishFailure(CoapExchange exchange, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof TimeoutException) {
+            exchange.respond(CoAP.ResponseCode.GATEWAY_TIMEOUT, "Il broker MQTT non ha confermato il comando");
+        } else {
+            exchange.respond(CoAP.ResponseCode.SERVICE_UNAVAILABLE, "Impossibile inoltrare il comando al broker MQTT");
+        }
+    }
+
+    // Risponde con l'ack del dispositivo: 2.04 se OK, 4.09 se il dispositivo ha rifiutato il comando, 5.04 se non è arrivato
+    private static void respondDeviceAck(CoapExchange exchange, Ack ack, Throwable error) {
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof TimeoutException) {
+                exchange.respond(CoAP.ResponseCode.GATEWAY_TIMEOUT, "Il dispositivo non ha confermato il comando");
+            } else {
+                exchange.respond(CoAP.ResponseCode.SERVICE_UNAVAILABLE, "Comando non confermato: " + cause.getMessage());
+            }
+            return;
+        }
+        respondAck(exchange, "ERROR".equalsIgnoreCase(ack.getStatus()) ? CoAP.ResponseCode.CONFLICT : CoAP.ResponseCode.CHANGED, ack);
+    }
+
+    private static void respondAck(CoapExchange exchange, CoAP.ResponseCode code, Ack ack) {
+        try {
+            exchange.respond(code, Codecs.ACK_WRITER.writeValueAsString(ack),
+                    MediaTypeRegistry.APPLICATION_JSON);
+        } catch (IOException e) {
+            log.error("Errore nella serializzazione dell'ack {}", ack.getCmdType(), e);
+            exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
         }
     }
 
     /**
      * Risorsa che rappresenta una singola cella produttiva.
      * Espone l'endpoint `/factory/{cellId}`.
-     * FIGLI DINAMICI: Instrada le richieste per `{deviceType}` alla `DeviceTypeResource`.
+     * FIGLI: Le risorse fisse `devices`, `states`, `changes` e `cmd` e una `DeviceTypeResource` per ogni tipo presente nella cella.
      */
     static class CellResource extends CoapResource {
         private final StateRepository repo;
+        private final CellChangesResource changesResource;
 
-        CellResource(String name, StateRepository repo) {
+        CellResource(String name, StateRepository repo, long changesFlushMillis) {
             super(name);
             this.repo = repo;
             getAttributes().setTitle("Cell " + name);
             getAttributes().addResourceType("cell");
             getAttributes().addInterfaceDescription("core.ll");
 
-            // Aggiunge la risorsa fissa 'devices' per elencare i dispositivi della cella
+            // Aggiunge le risorse fisse 'devices' e 'states' per elencare i dispositivi della cella e il loro stato,
+            // 'changes' per osservarne le variazioni con una sola relazione e 'cmd' per i comandi broadcast alla cella
             add(new DevicesResource("devices", name, repo));
+            add(new CellStatesResource("states", name, repo));
+            add(new BroadcastCommandResource("cmd", BroadcastScope.cell(name), repo));
+            this.changesResource = new CellChangesResource("changes", name, repo, changesFlushMillis);
+            add(changesResource);
         }
 
         /**
-         * Gestisce il routing dinamico per i tipi di dispositivo.
+         * Chiude le relazioni Observe sulle variazioni della cella con un 4.04 e stacca la cella dall'albero.
          */
-        @Override
-        public Resource getChild(String name) {
-            Resource child = super.getChild(name);
-            if (child != null) {
-                return child;
-            }
-            // Se non è 'devices', la consideriamo un tipo di dispositivo dinamico
-            return new DeviceTypeResource(name, getName(), repo);
+        void evict() {
+            changesResource.clearAndNotifyObserveRelations(CoAP.ResponseCode.NOT_FOUND);
+            delete();
         }
     }
 
     /**
      * Risorsa per elencare tutti i dispositivi di una cella.
      * Espone l'endpoint `/factory/{cellId}/devices`.
-     * GET: Ritorna la lista in formato JSON di tutti i dispositivi registrati nella cella.
+     * GET: Ritorna la lista di tutti i dispositivi registrati nella cella (JSON o CBOR), oppure un pack SenML con il loro stato.
+     * Le liste grandi sono generate blocco per blocco (Block2) da una fotografia della cella.
      */
     static class DevicesResource extends CoapResource {
         private final StateRepository repo;
         private final String cellId;
+        private final BlockwiseBodyResponder responder = new BlockwiseBodyResponder();
 
         DevicesResource(String name, String cellId, StateRepository repo) {
             super(name);
@@ -183,30 +450,209 @@ public class CoapApiServer {
             getAttributes().setTitle("Device List");
             getAttributes().addResourceType("devices");
             getAttributes().addInterfaceDescription("core.r");
-            getAttributes().addContentType(MediaTypeRegistry.APPLICATION_JSON);
+            addDeviceListContentTypes(this);
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            respondDeviceList(exchange, responder, repo, cellId, null);
+        }
+    }
+
+    /**
+     * Risorsa per leggere in una sola richiesta lo stato di tutti i dispositivi di una cella.
+     * Espone l'endpoint `/factory/{cellId}/states?type=`.
+     * GET: Ritorna lo stato corrente di ogni dispositivo della cella (o del solo tipo indicato) in JSON, CBOR
+     * o come unico pack SenML. La risposta è generata da una sola fotografia del repository, a blocchi (Block2)
+     * quando supera un blocco; i blocchi successivi proseguono dalla stessa fotografia.
+     * L'ETag deriva da chiavi e versioni dei dispositivi: se coincide si risponde 2.03 Valid senza serializzare.
+     */
+    static class CellStatesResource extends CoapResource {
+        private final StateRepository repo;
+        private final String cellId;
+        private final BlockwiseBodyResponder responder = new BlockwiseBodyResponder();
+
+        CellStatesResource(String name, String cellId, StateRepository repo) {
+            super(name);
+            this.repo = repo;
+            this.cellId = cellId;
+            getAttributes().setTitle("States of cell " + cellId);
+            getAttributes().addResourceType("it.unimore.cell.states");
+            getAttributes().addInterfaceDescription("core.b");
+            addDeviceListContentTypes(this);
         }
 
         @Override
         public void handleGET(CoapExchange exchange) {
+            int contentFormat = listContentFormat(exchange);
+            PayloadEncoding encoding = listEncoding(contentFormat);
+            if (encoding == null) {
+                exchange.respond(CoAP.ResponseCode.NOT_ACCEPTABLE);
+                return;
+            }
+            String query = exchange.getQueryParameter("type");
+            String type = query == null || query.isBlank() ? null : query.trim();
+            try {
+                responder.respond(exchange, contentFormat, () -> {
+                    CellSnapshot snapshot = repo.snapshot(cellId, type);
+                    return new BlockwiseBodyResponder.Body(BlockwiseBodyResponder.etag(snapshot.fingerprint(), contentFormat),
+                            repo.openStates(snapshot, encoding));
+                });
+            } catch (Exception e) {
+                log.error("Errore durante la serializzazione degli stati della cella {}", cellId, e);
+                exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR, "Errore nella lettura degli stati");
+            }
+        }
+    }
+
+    /**
+     * Risorsa osservabile con le variazioni di stato di tutti i dispositivi di una cella.
+     * Espone l'endpoint `/factory/{cellId}/changes`.
+     * OBSERVABLE: Gli aggiornamenti della cella vengono raccolti e, ogni {@code flushMillis}, i dispositivi cambiati
+     * dall'ultimo lotto sono notificati insieme con lo stato più recente di ciascuno, così un client segue
+     * l'intera cella con una sola relazione invece di una per dispositivo. Un dispositivo rimosso nell'intervallo
+     * compare nel lotto come {@code "removed": true} senza stato.
+     * Ogni lotto ha un numero di sequenza crescente di uno in uno: un salto indica lotti persi (ad esempio
+     * notifiche sostituite da Californium) e il client si riallinea leggendo `states`.
+     * GET: Ritorna l'ultimo lotto emesso (sequenza 0 e nessuna variazione finché non ne è stato emesso uno),
+     * in JSON, CBOR o come pack SenML; ogni lotto è serializzato una sola volta per formato.
+     * Aggiornamenti e timer sono attivi solo finché la risorsa ha almeno una relazione Observe.
+     */
+    static class CellChangesResource extends CoapResource {
+        // Timer condiviso da tutte le celle: le notifiche vere e proprie restano sull'executor di Californium
+        private static final ScheduledExecutorService FLUSHER = ConditionalObserver.newTimer("coap-cell-changes");
+
+        private final StateRepository repo;
+        private final String cellId;
+        private final long flushMillis;
+        private final Set<DeviceKey> pending = ConcurrentHashMap.newKeySet();
+        private volatile ChangeBatch batch;
+        private Subscription subscription;
+        private ScheduledFuture<?> flushTask;
+
+        CellChangesResource(String name, String cellId, StateRepository repo, long flushMillis) {
+            super(name);
+            this.repo = repo;
+            this.cellId = cellId;
+            this.flushMillis = flushMillis;
+            this.batch = new ChangeBatch(0, repo.snapshot(cellId, List.of()));
+            setObservable(true);
+            setObserveType(CoAP.Type.CON);
+            getAttributes().setObservable();
+            getAttributes().setTitle("Changes of cell " + cellId);
+            getAttributes().addResourceType("it.unimore.cell.changes");
+            getAttributes().addInterfaceDescription("core.s");
+            addDeviceListContentTypes(this);
+        }
+
+        /**
+         * Alla prima relazione Observe inizia a raccogliere gli aggiornamenti della cella e avvia il timer dei lotti.
+         */
+        @Override
+        public void addObserveRelation(ObserveRelation relation) {
+            super.addObserveRelation(relation);
+            synchronized (this) {
+                if (subscription == null) {
+                    subscription = repo.addCellListener(cellId, pending::add);
+                    flushTask = FLUSHER.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        /**
+         * Alla chiusura dell'ultima relazione Observe cancella il listener e ferma il timer.
+         */
+        @Override
+        public void removeObserveRelation(ObserveRelation relation) {
+            super.removeObserveRelation(relation);
+            synchronized (this) {
+                if (getObserverCount() == 0 && subscription != null) {
+                    subscription.cancel();
+                    subscription = null;
+                    flushTask.cancel(false);
+                    flushTask = null;
+                    pending.clear();
+                }
+            }
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            int contentFormat = listContentFormat(exchange);
+            PayloadEncoding encoding = listEncoding(contentFormat);
+            if (encoding == null) {
+                exchange.respond(CoAP.ResponseCode.NOT_ACCEPTABLE);
+                return;
+            }
             try {
-                String json = repo.listDevicesJson(cellId);
-                exchange.respond(CoAP.ResponseCode.CONTENT, json, MediaTypeRegistry.APPLICATION_JSON);
+                exchange.respond(CoAP.ResponseCode.CONTENT, batch.encode(repo, contentFormat, encoding), contentFormat);
             } catch (Exception e) {
-                log.error("Errore durante l'elenco dei dispositivi per la cella {}", cellId, e);
-                exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR, "Errore nell'elenco dispositivi");
+                log.error("Errore durante la serializzazione delle variazioni della cella {}", cellId, e);
+                exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR, "Errore nella lettura delle variazioni");
             }
         }
+
+        // Chiude il lotto con i dispositivi aggiornati dall'ultimo e lo notifica agli osservatori
+        private void flush() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            try {
+                // Lo stato viene letto dopo aver tolto la chiave: un aggiornamento che non la riaggiunge è già visibile
+                List<DeviceKey> keys = new ArrayList<>();
+                for (Iterator<DeviceKey> it = pending.iterator(); it.hasNext(); ) {
+                    keys.add(it.next());
+                    it.remove();
+                }
+                CellSnapshot changes = repo.snapshot(cellId, keys);
+                if (changes.devices().isEmpty()) {
+                    return;
+                }
+                batch = new ChangeBatch(batch.sequence + 1, changes);
+                changed();
+            } catch (RuntimeException e) {
+                log.error("Errore durante la preparazione delle variazioni della cella {}", cellId, e);
+            }
+        }
+    }
+
+    /**
+     * Lotto di variazioni di una cella con la serializzazione per formato, prodotta alla prima richiesta
+     * e condivisa da tutti gli osservatori che ricevono il lotto.
+     */
+    private static final class ChangeBatch {
+        final long sequence;
+        final CellSnapshot changes;
+        private final Map<Integer, byte[]> encoded = new ConcurrentHashMap<>();
+
+        ChangeBatch(long sequence, CellSnapshot changes) {
+            this.sequence = sequence;
+            this.changes = changes;
+        }
+
+        byte[] encode(StateRepository repo, int contentFormat, PayloadEncoding encoding) throws IOException {
+            byte[] payload = encoded.get(contentFormat);
+            if (payload == null) {
+                payload = repo.openChanges(changes, sequence, encoding).readAllBytes();
+                encoded.putIfAbsent(contentFormat, payload);
+            }
+            return payload;
+        }
     }
 
     /**
      * Risorsa che rappresenta una categoria di dispositivi (es. 'robot').
      * Espone l'endpoint `/factory/{cellId}/{deviceType}`.
-     * FIGLI DINAMICI: Instrada le richieste per `{deviceId}` alla `DeviceIdResource`.
+     * GET: Ritorna la lista dei soli dispositivi di questo tipo nella cella (JSON o CBOR), oppure un pack SenML con il loro stato.
+     * Le liste grandi sono generate blocco per blocco (Block2) da una fotografia della cella.
+     * FIGLI: La risorsa fissa `cmd` per i comandi broadcast al tipo e una `DeviceIdResource` per ogni dispositivo
+     * del tipo presente nella cella.
      */
     static class DeviceTypeResource extends CoapResource {
         private final StateRepository repo;
         private final String cellId;
         private final String type;
+        private final BlockwiseBodyResponder responder = new BlockwiseBodyResponder();
 
         DeviceTypeResource(String name, String cellId, StateRepository repo) {
             super(name);
@@ -216,46 +662,136 @@ public class CoapApiServer {
             getAttributes().setTitle("Device Type " + name);
             getAttributes().addResourceType("deviceType");
             getAttributes().addInterfaceDescription("core.ll");
+            addDeviceListContentTypes(this);
+            add(new BroadcastCommandResource("cmd", BroadcastScope.type(cellId, name), repo));
         }
 
-        /**
-         * Gestisce il routing dinamico per gli ID di dispositivo.
-         */
         @Override
-        public Resource getChild(String name) {
-            return new DeviceIdResource(name, cellId, type, repo);
+        public void handleGET(CoapExchange exchange) {
+            respondDeviceList(exchange, responder, repo, cellId, type);
         }
     }
 
     /**
      * Risorsa che rappresenta un singolo dispositivo.
      * Espone l'endpoint `/factory/{cellId}/{deviceType}/{deviceId}`.
-     * Questa risorsa agisce come un contenitore per le sotto-risorse 'state' e 'cmd'.
+     * Questa risorsa agisce come un contenitore per le sotto-risorse 'state', 'cmd' e 'history'.
+     * DELETE: Rimuove dal repository il dispositivo dismesso, e con esso questo ramo dell'albero.
      */
     static class DeviceIdResource extends CoapResource {
+        private final StateRepository repo;
+        private final String cellId;
+        private final String deviceType;
+        private final DeviceStateResource stateResource;
+
         DeviceIdResource(String name, String cellId, String type, StateRepository repo) {
             super(name);
+            this.repo = repo;
+            this.cellId = cellId;
+            this.deviceType = type;
             getAttributes().setTitle("Device " + name);
             getAttributes().addResourceType("it.unimore.device." + type);
             getAttributes().addInterfaceDescription("core.ll");
 
-            DeviceStateResource stateResource = new DeviceStateResource("state", cellId, type, name, repo);
+            this.stateResource = new DeviceStateResource("state", cellId, type, name, repo);
             add(stateResource);
             add(new DeviceCommandResource("cmd", cellId, type, name, repo, stateResource));
+            add(new DeviceHistoryResource("history", cellId, type, name, repo));
+        }
+
+        @Override
+        public void handleDELETE(CoapExchange exchange) {
+            if (repo.remove(cellId, deviceType, getName())) {
+                exchange.respond(CoAP.ResponseCode.DELETED);
+            } else {
+                exchange.respond(CoAP.ResponseCode.NOT_FOUND, "Dispositivo non trovato");
+            }
+        }
+
+        /**
+         * Chiude le relazioni Observe sullo stato con un 4.04 e stacca il ramo dall'albero.
+         */
+        void evict() {
+            stateResource.clearObservers(CoAP.ResponseCode.NOT_FOUND);
+            delete();
+        }
+    }
+
+    /**
+     * Espone lo storico recente della telemetria di un dispositivo.
+     * Espone l'endpoint `.../{deviceId}/history?from=&to=&limit=`.
+     * GET: Ritorna in JSON i campioni con timestamp in [from, to] (millisecondi), limitati ai `limit` più recenti.
+     */
+    static class DeviceHistoryResource extends CoapResource {
+        private final StateRepository repo;
+        private final String cellId;
+        private final String deviceType;
+        private final String deviceId;
+
+        DeviceHistoryResource(String name, String cellId, String type, String id, StateRepository repo) {
+            super(name);
+            this.repo = repo;
+            this.cellId = cellId;
+            this.deviceType = type;
+            this.deviceId = id;
+            getAttributes().setTitle("History of " + id + " (" + type + ")");
+            getAttributes().addResourceType("it.unimore.device.history");
+            getAttributes().addInterfaceDescription("core.s");
+            getAttributes().addContentType(MediaTypeRegistry.APPLICATION_JSON);
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            long from;
+            long to;
+            int limit;
+            try {
+                from = parseLong(exchange.getQueryParameter("from"), 0L);
+                to = parseLong(exchange.getQueryParameter("to"), Long.MAX_VALUE);
+                limit = (int) Math.min(parseLong(exchange.getQueryParameter("limit"), Integer.MAX_VALUE), Integer.MAX_VALUE);
+            } catch (NumberFormatException e) {
+                exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "Parametri from/to/limit non numerici");
+                return;
+            }
+            if (from > to || limit <= 0) {
+                exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "Intervallo from/to o limit non valido");
+                return;
+            }
+
+            String json = repo.getHistoryJson(cellId, deviceType, deviceId, from, to, limit);
+            if (json == null) {
+                exchange.respond(CoAP.ResponseCode.NOT_FOUND, "Dispositivo non trovato");
+                return;
+            }
+            exchange.respond(CoAP.ResponseCode.CONTENT, json, MediaTypeRegistry.APPLICATION_JSON);
+        }
+
+        private static long parseLong(String value, long defaultValue) {
+            return value == null || value.isBlank() ? defaultValue : Long.parseLong(value.trim());
         }
     }
 
     /**
      * Gestisce lo stato real-time dei dispositivi.
      * Espone l'endpoint `.../{deviceId}/state`.
-     * GET: Recupera lo stato attuale del dispositivo. Supporta content negotiation per JSON, SenML+JSON e Text-Plain.
+     * GET: Recupera lo stato attuale del dispositivo. Supporta content negotiation per JSON, CBOR, SenML+JSON, SenML+CBOR e Text-Plain.
      * OBSERVABLE: Supporta la modalità Observe per ricevere notifiche push sui cambiamenti di stato.
+     * Ogni osservatore può limitare le proprie notifiche con gli attributi condizionali
+     * {@code pmin}, {@code pmax}, {@code gt}, {@code lt}, {@code st} e {@code field} (vedi {@link ConditionalObserver}),
+     * valutati separatamente per ciascuna relazione; senza attributi riceve ogni aggiornamento.
+     * Il listener sul repository esiste solo finché la risorsa ha almeno una relazione Observe attiva.
      */
     static class DeviceStateResource extends CoapResource {
         private final StateRepository repo;
         private final String cellId;
         private final String deviceType;
         private final String deviceId;
+        private final StateRepresentationCache representations = new StateRepresentationCache(this::encode);
+        private final Map<ObserveRelation, ConditionalObserver> conditions = new ConcurrentHashMap<>();
+        private final Map<ObserveRelation, Representation> observedFormats = new ConcurrentHashMap<>();
+        // Numero di osservatori per rappresentazione, indicizzato per ordinale
+        private final AtomicIntegerArray observersByFormat = new AtomicIntegerArray(Representation.VALUES.length);
+        private Subscription subscription;
 
         DeviceStateResource(String name, String cellId, String type, String id, StateRepository repo) {
             super(name);
@@ -270,6 +806,8 @@ public class CoapApiServer {
             getAttributes().addContentType(ContentFormat.APPLICATION_SENML_JSON);
             getAttributes().addContentType(ContentFormat.TEXT_PLAIN);
             getAttributes().addContentType(MediaTypeRegistry.APPLICATION_JSON);
+            getAttributes().addContentType(ContentFormat.APPLICATION_CBOR);
+            getAttributes().addContentType(ContentFormat.APPLICATION_SENML_CBOR);
 
             if ("robot".equals(type) || "conveyor".equals(type)) {
                 getAttributes().addResourceType("it.unimore.device.actuator.task");
@@ -280,100 +818,236 @@ public class CoapApiServer {
             }
 
             getAttributes().setTitle("State of " + id + " (" + type + ")");
-            // Aggiunge un listener per notificare i client CoAP quando lo stato cambia
-            repo.addListener(cellId, type, id, newState -> changed());
+        }
+
+        /**
+         * Alla prima relazione Observe registra il listener che notifica i client quando lo stato cambia.
+         */
+        @Override
+        public void addObserveRelation(ObserveRelation relation) {
+            super.addObserveRelation(relation);
+            Object state = currentState();
+            // Gli attributi sono già stati validati da handleGET prima di stabilire la relazione
+            ConditionalObserver.Attributes attributes = ConditionalObserver.parse(
+                    relation.getExchange().getRequest().getOptions().getUriQuery(), DeviceHistory.Kind.of(state));
+            if (attributes != null) {
+                ConditionalObserver observer = new ConditionalObserver(attributes, this::renotify);
+                observer.start(state, System.nanoTime());
+                conditions.put(relation, observer);
+            }
+            Representation format = Representation.forAccept(relation.getExchange().getRequest().getOptions().getAccept());
+            if (format != null && observedFormats.put(relation, format) == null) {
+                observersByFormat.incrementAndGet(format.ordinal());
+            }
+            synchronized (this) {
+                if (subscription == null || !subscription.isActive()) {
+                    subscription = repo.addListener(cellId, deviceType, deviceId, this::stateChanged);
+                }
+            }
+        }
+
+        /**
+         * Alla chiusura dell'ultima relazione Observe cancella il listener, rendendo la risorsa raccoglibile.
+         */
+        @Override
+        public void removeObserveRelation(ObserveRelation relation) {
+            super.removeObserveRelation(relation);
+            ConditionalObserver observer = conditions.remove(relation);
+            if (observer != null) {
+                observer.cancel();
+            }
+            Representation format = observedFormats.remove(relation);
+            if (format != null) {
+                observersByFormat.decrementAndGet(format.ordinal());
+            }
+            synchronized (this) {
+                if (getObserverCount() == 0 && subscription != null) {
+                    subscription.cancel();
+                    subscription = null;
+                }
+            }
         }
 
         /**
          * Processa la richiesta GET per recuperare lo stato del dispositivo.
          * La risposta varia in base all'header 'Accept' della richiesta (content negotiation).
+         * Il payload è servito dalla cache delle rappresentazioni; se la richiesta porta l'ETag
+         * della versione corrente si risponde 2.03 Valid senza payload.
          *
          * @param exchange Il contesto della richiesta CoAP.
          */
         @Override
         public void handleGET(CoapExchange exchange) {
-            repo.get(cellId, deviceType, deviceId).ifPresentOrElse(
-                    state -> {
-                        int accept = exchange.getRequestOptions().getAccept();
-                        if (accept == -1 || accept == MediaTypeRegistry.APPLICATION_JSON) {
-                            handleJsonRequest(exchange, state);
-                        } else if (accept == MediaTypeRegistry.APPLICATION_SENML_JSON) {
-                            handleSenMLRequest(exchange, state);
-                        } else if (accept == MediaTypeRegistry.TEXT_PLAIN) {
-                            handleTextRequest(exchange, state);
-                        } else {
-                            exchange.respond(CoAP.ResponseCode.NOT_ACCEPTABLE);
-                        }
-                    },
-                    () -> exchange.respond(CoAP.ResponseCode.NOT_FOUND, "Dispositivo non trovato")
-            );
-        }
-
-        private void handleJsonRequest(CoapExchange exchange, Object state) {
+            DeviceEntry entry = repo.findEntry(cellId, deviceType, deviceId);
+            if (entry == null || entry.state() == null) {
+                exchange.respond(CoAP.ResponseCode.NOT_FOUND, "Dispositivo non trovato");
+                return;
+            }
+            Representation representation = Representation.forAccept(exchange.getRequestOptions().getAccept());
+            if (representation == null) {
+                exchange.respond(CoAP.ResponseCode.NOT_ACCEPTABLE);
+                return;
+            }
+            // Gli attributi condizionali si validano solo alla registrazione, non a ogni notifica
+            ObserveRelation relation = exchange.advanced().getRelation();
+            if (exchange.getRequestOptions().hasObserve() && (relation == null || !relation.isEstablished())) {
+                try {
+                    ConditionalObserver.parse(exchange.getRequestOptions().getUriQuery(), DeviceHistory.Kind.of(entry.state()));
+                } catch (IllegalArgumentException e) {
+                    exchange.respond(CoAP.ResponseCode.BAD_REQUEST, e.getMessage());
+                    return;
+                }
+            }
             try {
-                String json = new ObjectMapper().writeValueAsString(state);
-                exchange.respond(CoAP.ResponseCode.CONTENT, json, MediaTypeRegistry.APPLICATION_JSON);
+                StateRepresentationCache.Encoded encoded = representations.get(entry, representation);
+                exchange.setETag(encoded.etag());
+                if (exchange.getRequestOptions().containsETag(encoded.etag())) {
+                    exchange.respond(CoAP.ResponseCode.VALID);
+                } else {
+                    exchange.respond(CoAP.ResponseCode.CONTENT, encoded.payload(), representation.contentFormat);
+                }
             } catch (Exception e) {
-                log.error("Errore durante la serializzazione JSON per {}", deviceId, e);
+                log.error("Errore durante la serializzazione {} per {}", representation, deviceId, e);
                 exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
             }
         }
 
-        private void handleTextRequest(CoapExchange exchange, Object state) {
-            String response;
-            if (state instanceof RobotCellStatus s) {
-                response = s.getStatus().toString();
-            } else {
-                response = state.toString();
+        /**
+         * Notifica gli osservatori dopo un aggiornamento dello stato: quelli senza attributi sempre,
+         * gli altri solo se le rispettive condizioni sono soddisfatte.
+         */
+        void stateChanged(Object state) {
+            encodeObservedFormats();
+            if (conditions.isEmpty()) {
+                changed();
+                return;
             }
-            exchange.respond(CoAP.ResponseCode.CONTENT, response, MediaTypeRegistry.TEXT_PLAIN);
+            long now = System.nanoTime();
+            changed(relation -> {
+                ConditionalObserver observer = conditions.get(relation);
+                return observer == null || observer.offer(state, now);
+            });
         }
 
-        private void handleSenMLRequest(CoapExchange exchange, Object state) {
-            try {
-                String baseName = "%s/%s/%s/".formatted(cellId, deviceType, deviceId);
-                SenMLPack pack;
-                if (state instanceof RobotCellStatus s) {
-                    pack = SenML.fromNumeric(baseName, "status",
-                            s.getStatus().ordinal(), "state", s.getTimestamp());
-                } else {
-                    // Fallback per stati non noti
-                    pack = SenML.fromNumeric(baseName, "value",
-                            0, "N/A", System.currentTimeMillis());
+        /**
+         * Codifica la versione corrente dello stato, una volta, in ogni formato richiesto da almeno un osservatore.
+         * Le GET eseguite da Californium per ciascuna relazione trovano così i byte già in cache e li condividono,
+         * invece di correre a serializzare la stessa versione su più thread dell'executor.
+         */
+        private void encodeObservedFormats() {
+            DeviceEntry entry = repo.findEntry(cellId, deviceType, deviceId);
+            if (entry == null || entry.state() == null) {
+                return;
+            }
+            for (int i = 0; i < observersByFormat.length(); i++) {
+                if (observersByFormat.get(i) > 0) {
+                    Representation representation = Representation.VALUES[i];
+                    try {
+                        representations.get(entry, representation);
+                    } catch (Exception e) {
+                        log.error("Errore durante la serializzazione {} per {}", representation, deviceId, e);
+                    }
                 }
-                String json = new ObjectMapper().writeValueAsString(pack);
-                exchange.respond(CoAP.ResponseCode.CONTENT, json, MediaTypeRegistry.APPLICATION_SENML_JSON);
-            } catch (Exception e) {
-                log.error("Errore durante la serializzazione SenML per {}", deviceId, e);
-                exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
             }
         }
+
+        /**
+         * Rivaluta le condizioni sullo stato corrente, ad esempio dopo un comando.
+         */
+        void refresh() {
+            Object state = currentState();
+            if (state != null) {
+                stateChanged(state);
+            }
+        }
+
+        /**
+         * Chiude le relazioni Observe con il codice indicato e ferma i timer delle condizioni.
+         */
+        void clearObservers(CoAP.ResponseCode code) {
+            clearAndNotifyObserveRelations(code);
+            conditions.values().forEach(ConditionalObserver::cancel);
+            conditions.clear();
+        }
+
+        // Notifica differita (pmin) o periodica (pmax) destinata a un solo osservatore
+        private void renotify(ConditionalObserver target, boolean periodic) {
+            Object state = currentState();
+            if (state == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            changed(relation -> conditions.get(relation) == target
+                    && (periodic ? target.offerPeriodic(state, now) : target.offer(state, now)));
+        }
+
+        private Object currentState() {
+            DeviceEntry entry = repo.findEntry(cellId, deviceType, deviceId);
+            return entry != null ? entry.state() : null;
+        }
+
+        /**
+         * Serializza lo stato nella rappresentazione richiesta; invocato dalla cache solo quando la versione cambia.
+         * Per la telemetria passthrough il JSON è il payload MQTT originale e la decodifica avviene solo per gli altri formati.
+         */
+        private byte[] encode(Representation representation, Object stored) throws IOException {
+            if (representation == Representation.JSON && stored instanceof RawTelemetry raw) {
+                return raw.payload();
+            }
+            Object state = RawTelemetry.decoded(stored);
+            return switch (representation) {
+                case JSON -> TelemetryCodec.write(state);
+                case SENML_JSON -> TelemetryCodec.writeSenML(PayloadEncoding.SENML_JSON, senmlBaseName(), state);
+                case CBOR -> TelemetryCodec.isTelemetry(state)
+                        ? TelemetryCodec.write(PayloadEncoding.CBOR, state)
+                        : Codecs.CBOR_MAPPER.writeValueAsBytes(state);
+                case SENML_CBOR -> TelemetryCodec.writeSenML(PayloadEncoding.SENML_CBOR, senmlBaseName(), state);
+                case TEXT_PLAIN -> {
+                    String text = state instanceof RobotCellStatus s ? String.valueOf(s.getStatus()) : state.toString();
+                    yield text.getBytes(StandardCharsets.UTF_8);
+                }
+            };
+        }
+
+        // Nome base dei pack SenML: il percorso del dispositivo sotto /factory
+        private String senmlBaseName() {
+            return cellId + "/" + deviceType + "/" + deviceId + "/";
+        }
     }
 
     /**
-     * Endpoint per inviare comandi globali a tutta la fabbrica.
-     * Espone l'endpoint `/factory/cmd`.
-     * POST: Esegue un comando su tutti i dispositivi (es. RESET, START, STOP).
+     * Endpoint per inviare comandi broadcast a tutti i dispositivi di un ambito con una sola pubblicazione MQTT.
+     * Espone gli endpoint `/factory/cmd` (fabbrica), `/factory/{cellId}/cmd` (cella) e
+     * `/factory/{cellId}/{deviceType}/cmd` (tipo di dispositivo nella cella).
+     * POST: Esegue un comando su tutti i dispositivi dell'ambito (es. RESET, START, STOP). Con `?wait=ack` la
+     * risposta riporta l'esito aggregato degli ack dei dispositivi invece della sola conferma del broker.
      * GET: Restituisce la lista dei comandi supportati.
+     * FIGLI: Per la fabbrica la risorsa `latency` con le latenze dei comandi, per una cella la risorsa `batch`.
      */
-    static class GlobalCommandResource extends CoapResource {
+    static class BroadcastCommandResource extends CoapResource {
         private final StateRepository repo;
-        private final ObjectMapper mapper = new ObjectMapper();
+        private final BroadcastScope scope;
 
-        GlobalCommandResource(String name, StateRepository repo) {
+        BroadcastCommandResource(String name, BroadcastScope scope, StateRepository repo) {
             super(name);
             this.repo = repo;
-            getAttributes().setTitle("Factory Global Command");
+            this.scope = scope;
+            getAttributes().setTitle(scope.cell() == null ? "Factory Global Command" : "Broadcast Command " + scope);
             getAttributes().addResourceType("it.unimore.factory.command");
             getAttributes().addInterfaceDescription("core.a");
             getAttributes().addContentType(MediaTypeRegistry.APPLICATION_JSON);
+            if (scope.cell() == null) {
+                add(new CommandLatencyResource("latency", repo));
+            } else if (scope.type() == null) {
+                add(new CommandBatchResource("batch", scope.cell(), repo));
+            }
         }
 
         @Override
         public void handlePOST(CoapExchange exchange) {
             try {
                 int ct = exchange.getRequestOptions().getContentFormat();
-                log.debug("Ricevuto POST su /factory/cmd con Content-Format: {}", ct);
+                log.debug("Ricevuto POST broadcast su {} con Content-Format: {}", scope, ct);
 
                 if (ct != -1 && ct != MediaTypeRegistry.APPLICATION_JSON) {
                     log.warn("Content-Format non supportato: {} ({})", ct, MediaTypeRegistry.toString(ct));
@@ -396,43 +1070,81 @@ public class CoapApiServer {
                     return;
                 }
 
-                log.info("COAP CMD GLOBALE -> cmd={}", command.getType());
+                log.info("COAP CMD BROADCAST -> scope={}, cmd={}", scope, command.getType());
 
-                boolean forwarded = repo.publishGlobalCommand(command);
-                if (!forwarded) {
-                    exchange.respond(CoAP.ResponseCode.SERVICE_UNAVAILABLE,
-                            "Impossibile inoltrare il comando al broker MQTT");
-                    return;
-                }
+                boolean waitForAck = "ack".equals(exchange.getQueryParameter("wait"));
 
-                Ack ack = new Ack(command.getType(), "ACCEPTED",
-                    "Comando globale inoltrato al broker MQTT", System.currentTimeMillis(),
-                    command.getMsgId());
-                String body = mapper.writeValueAsString(ack);
-                exchange.respond(CoAP.ResponseCode.CHANGED, body, MediaTypeRegistry.APPLICATION_JSON);
+                // La risposta parte al PUBACK del broker senza tenere occupato il thread del gestore
+                CommandReceipt<CommandTracker.BroadcastResult> receipt = repo.publishBroadcastCommand(scope, command);
+                receipt.published().whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        respondPublishFailure(exchange, error);
+                        return;
+                    }
+                    if (!waitForAck) {
+                        Ack ack = new Ack(command.getType(), "ACCEPTED",
+                                "Comando broadcast inoltrato al broker MQTT", System.currentTimeMillis(),
+                                receipt.msgId());
+                        respondAck(exchange, CoAP.ResponseCode.CHANGED, ack);
+                        return;
+                    }
+                    if (!receipt.acknowledged().isDone()) {
+                        exchange.accept();
+                    }
+                    receipt.acknowledged().whenComplete((result, ackError) ->
+                            respondBroadcastResult(exchange, command.getType(), result, ackError));
+                });
             } catch (Exception e) {
-                log.error("Errore durante la gestione di POST /factory/cmd", e);
+                log.error("Errore durante la gestione di POST broadcast su {}", scope, e);
                 exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "Richiesta non valida: " + e.getMessage());
             }
         }
 
+        // Esito aggregato: 2.04 se tutti hanno risposto OK, 4.09 se qualcuno ha rifiutato, 5.04 se mancano ack
+        private void respondBroadcastResult(CoapExchange exchange, String cmdType,
+                                            CommandTracker.BroadcastResult result, Throwable error) {
+            if (error != null) {
+                respondPublishFailure(exchange, error);
+                return;
+            }
+            try {
+                var body = MAPPER.createObjectNode();
+                body.put("cmdType", cmdType);
+                body.put("msgId", result.msgId());
+                body.put("scope", scope.toString());
+                body.put("targets", result.targets());
+                body.put("acknowledged", result.acknowledged());
+                body.put("errors", result.errors());
+                var missing = body.putArray("missing");
+                result.missing().forEach(device -> missing.add(device.path()));
+                body.put("elapsedMs", result.elapsedNanos() / 1_000_000.0);
+                body.put("complete", result.complete());
+                CoAP.ResponseCode code = !result.complete() ? CoAP.ResponseCode.GATEWAY_TIMEOUT
+                        : result.errors() > 0 ? CoAP.ResponseCode.CONFLICT : CoAP.ResponseCode.CHANGED;
+                exchange.respond(code, MAPPER.writeValueAsString(body), MediaTypeRegistry.APPLICATION_JSON);
+            } catch (Exception e) {
+                log.error("Errore nella serializzazione dell'esito broadcast {} su {}", cmdType, scope, e);
+                exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR, "Errore di serializzazione");
+            }
+        }
+
         @Override
         public void handleGET(CoapExchange exchange) {
             try {
-                var body = mapper.createObjectNode();
-                var supported = mapper.createArrayNode();
+                var body = MAPPER.createObjectNode();
+                var supported = MAPPER.createArrayNode();
                 SUPPORTED_GLOBAL_COMMANDS.forEach(supported::add);
                 body.set("supported", supported);
 
-                var example = mapper.createObjectNode();
+                var example = MAPPER.createObjectNode();
                 example.put("type", "RESET");
                 example.put("ts", System.currentTimeMillis());
                 body.set("payloadExample", example);
 
-                exchange.respond(CoAP.ResponseCode.CONTENT, mapper.writeValueAsString(body),
+                exchange.respond(CoAP.ResponseCode.CONTENT, MAPPER.writeValueAsString(body),
                         MediaTypeRegistry.APPLICATION_JSON);
             } catch (Exception e) {
-                log.error("Errore durante la serializzazione della risposta GET /factory/cmd", e);
+                log.error("Errore durante la serializzazione della risposta GET cmd su {}", scope, e);
                 exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR, "Errore di serializzazione");
             }
         }
@@ -442,7 +1154,233 @@ public class CoapApiServer {
             if (payload == null || payload.length == 0) {
                 return null;
             }
-            return mapper.readValue(payload, Command.class);
+            return Codecs.COMMAND_READER.readValue(payload);
+        }
+    }
+
+    /**
+     * Endpoint per inviare in una sola richiesta comandi a molti dispositivi di una cella.
+     * Espone l'endpoint `/factory/{cellId}/cmd/batch`.
+     * POST: Accetta un array di voci `{"type", "id", "command"}` oppure un oggetto `{"selector", "command"}` con un
+     * filtro come `type=conveyor,status=ACTIVE`. Tutte le voci vengono validate prima di pubblicare; i comandi partono
+     * in pipeline sul publisher MQTT e la risposta riporta l'esito di ogni dispositivo (con `?wait=ack` l'ack del
+     * dispositivo). Corpi grandi arrivano con Block1, entro `COAP.MAX_RESOURCE_BODY_SIZE`.
+     */
+    static class CommandBatchResource extends CoapResource {
+        // Il limite dei corpi a blocchi in Californium3.properties è dimensionato per questo numero di voci
+        static final int MAX_ENTRIES = 10_000;
+
+        private final StateRepository repo;
+        private final String cellId;
+
+        CommandBatchResource(String name, String cellId, StateRepository repo) {
+            super(name);
+            this.repo = repo;
+            this.cellId = cellId;
+            getAttributes().setTitle("Batch Command " + cellId);
+            getAttributes().addResourceType("it.unimore.factory.command.batch");
+            getAttributes().addInterfaceDescription("core.a");
+            getAttributes().addContentType(MediaTypeRegistry.APPLICATION_JSON);
+        }
+
+        // Comando destinato a un dispositivo della cella; device è null se il dispositivo non è registrato
+        private record Entry(String type, String id, Command command, DeviceEntry device) {
+        }
+
+        // Esito di una voce: status è ACCEPTED o l'ack del dispositivo, oppure il motivo del fallimento
+        private record Outcome(Entry entry, String msgId, String status, String message) {
+
+            boolean succeeded() {
+                return "ACCEPTED".equals(status) || "OK".equals(status);
+            }
+        }
+
+        @Override
+        public void handlePOST(CoapExchange exchange) {
+            int ct = exchange.getRequestOptions().getContentFormat();
+            if (ct != -1 && ct != MediaTypeRegistry.APPLICATION_JSON) {
+                exchange.respond(CoAP.ResponseCode.NOT_ACCEPTABLE, "Supportato solo application/json");
+                return;
+            }
+            List<Entry> entries;
+            try {
+                byte[] payload = exchange.getRequestPayload();
+                if (payload == null || payload.length == 0) {
+                    throw new IllegalArgumentException("payload mancante");
+                }
+                JsonNode body = MAPPER.readTree(payload);
+                // Un array troppo lungo viene rifiutato prima di validarne le voci
+                entries = body.size() > MAX_ENTRIES ? null : parseEntries(body);
+            } catch (IllegalArgumentException | IOException e) {
+                exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "Richiesta non valida: " + e.getMessage());
+                return;
+            }
+            if (entries == null || entries.size() > MAX_ENTRIES) {
+                exchange.respond(CoAP.ResponseCode.REQUEST_ENTITY_TOO_LARGE,
+                        "Al più " + MAX_ENTRIES + " comandi per richiesta");
+                return;
+            }
+            boolean waitForAck = "ack".equals(exchange.getQueryParameter("wait"));
+            log.info("COAP CMD BATCH -> cell={}, comandi={}, wait={}", cellId, entries.size(), waitForAck);
+
+            // Ogni comando entra subito nella coda del publisher: le pubblicazioni viaggiano in pipeline
+            List<CompletableFuture<Outcome>> outcomes = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                outcomes.add(submit(entry, waitForAck));
+            }
+            CompletableFuture<Void> all = CompletableFuture.allOf(outcomes.toArray(new CompletableFuture<?>[0]));
+            if (!all.isDone()) {
+                exchange.accept();
+            }
+            all.whenComplete((ignored, error) -> respondOutcomes(exchange, outcomes.stream().map(CompletableFuture::join).toList()));
+        }
+
+        private CompletableFuture<Outcome> submit(Entry entry, boolean waitForAck) {
+            if (entry.device() == null) {
+                return CompletableFuture.completedFuture(new Outcome(entry, null, "NOT_FOUND", "Dispositivo non registrato"));
+            }
+            CommandReceipt<Ack> receipt = repo.publishCommand(cellId, entry.type(), entry.id(), entry.command());
+            return receipt.published().thenCompose(ignored -> waitForAck
+                            ? receipt.acknowledged().thenApply(ack -> new Outcome(entry, receipt.msgId(), ack.getStatus(), ack.getMessage()))
+                            : CompletableFuture.completedFuture(new Outcome(entry, receipt.msgId(), "ACCEPTED", null)))
+                    .exceptionally(error -> failure(entry, receipt.msgId(), error));
+        }
+
+        // Esito di un comando non pubblicato o senza ack, con gli stessi motivi dei singoli comandi
+        private static Outcome failure(Entry entry, String msgId, Throwable error) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof TimeoutException) {
+                return new Outcome(entry, msgId, "TIMEOUT", cause.getMessage());
+            } else if (cause instanceof RejectedExecutionException) {
+                return new Outcome(entry, msgId, "REJECTED", cause.getMessage());
+            }
+            return new Outcome(entry, msgId, "UNAVAILABLE", cause.getMessage());
+        }
+
+        // Voci della richiesta: array di comandi per dispositivo oppure filtro con un unico comando
+        private List<Entry> parseEntries(JsonNode body) throws IOException {
+            List<Entry> entries = new ArrayList<>();
+            if (body.isArray()) {
+                for (JsonNode node : body) {
+                    String type = node.path("type").asText(null);
+                    String id = node.path("id").asText(null);
+                    if (type == null || id == null) {
+                        throw new IllegalArgumentException("ogni voce richiede 'type' e 'id'");
+                    }
+                    entries.add(new Entry(type, id, readCommand(node.get("command")), repo.findEntry(cellId, type, id)));
+                }
+            } else if (body.hasNonNull("selector")) {
+                DeviceSelector selector = DeviceSelector.parse(body.get("selector").asText());
+                Command command = readCommand(body.get("command"));
+                for (DeviceKey key : repo.select(cellId, selector)) {
+                    // Ogni dispositivo riceve la propria copia del comando con un msgId generato dal server
+                    entries.add(new Entry(key.type(), key.id(), new Command(command.getType(), command.getTs()),
+                            repo.findEntry(cellId, key.type(), key.id())));
+                }
+            } else {
+                throw new IllegalArgumentException("atteso un array di comandi o un oggetto con 'selector' e 'command'");
+            }
+            return entries;
+        }
+
+        private static Command readCommand(JsonNode node) throws IOException {
+            Command command = node != null && node.isObject() ? Codecs.COMMAND_READER.readValue(node) : null;
+            if (command == null || command.getType() == null || command.getType().isBlank()) {
+                throw new IllegalArgumentException("campo 'command.type' mancante");
+            }
+            command.setType(command.getType().trim().toUpperCase());
+            if (!SUPPORTED_DEVICE_COMMANDS.contains(command.getType())) {
+                throw new IllegalArgumentException("comando non supportato: " + command.getType()
+                        + ". Valori ammessi: " + SUPPORTED_DEVICE_COMMANDS);
+            }
+            return command;
+        }
+
+        // Risposta aggregata: 2.04 se tutti i comandi sono andati a buon fine, altrimenti 4.09 con l'esito di ciascuno
+        private void respondOutcomes(CoapExchange exchange, List<Outcome> outcomes) {
+            long succeeded = outcomes.stream().filter(Outcome::succeeded).count();
+            try {
+                var body = MAPPER.createObjectNode();
+                body.put("cell", cellId);
+                body.put("requested", outcomes.size());
+                body.put("succeeded", succeeded);
+                body.put("failed", outcomes.size() - succeeded);
+                var results = body.putArray("results");
+                for (Outcome outcome : outcomes) {
+                    var node = results.addObject();
+                    node.put("type", outcome.entry().type());
+                    node.put("id", outcome.entry().id());
+                    node.put("cmdType", outcome.entry().command().getType());
+                    if (outcome.msgId() != null) {
+                        node.put("msgId", outcome.msgId());
+                    }
+                    node.put("status", outcome.status());
+                    if (outcome.message() != null && !outcome.message().isEmpty()) {
+                        node.put("message", outcome.message());
+                    }
+                }
+                exchange.respond(succeeded == outcomes.size() ? CoAP.ResponseCode.CHANGED : CoAP.ResponseCode.CONFLICT,
+                        MAPPER.writeValueAsBytes(body), MediaTypeRegistry.APPLICATION_JSON);
+            } catch (IOException e) {
+                log.error("Errore nella serializzazione dell'esito del batch per la cella {}", cellId, e);
+                exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR, "Errore di serializzazione");
+            }
+        }
+    }
+
+    /**
+     * Latenza dei comandi misurata dall'invio all'ack del dispositivo.
+     * Espone l'endpoint `/factory/cmd/latency`.
+     * GET: contatori del tracker e, per tipo di dispositivo, percentili della latenza in millisecondi,
+     * ack con esito ERROR e comandi scaduti senza ack; in `broadcast` il tempo fino all'ultimo ack dei broadcast completati.
+     */
+    static class CommandLatencyResource extends CoapResource {
+        private final StateRepository repo;
+
+        CommandLatencyResource(String name, StateRepository repo) {
+            super(name);
+            this.repo = repo;
+            getAttributes().setTitle("Command Latency");
+            getAttributes().addResourceType("it.unimore.factory.command.latency");
+            getAttributes().addInterfaceDescription("core.s");
+            getAttributes().addContentType(MediaTypeRegistry.APPLICATION_JSON);
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            try {
+                CommandTracker.Stats stats = repo.commandStats();
+                var body = MAPPER.createObjectNode();
+                body.put("pending", stats.pending());
+                body.put("acknowledged", stats.acknowledged());
+                body.put("timedOut", stats.timedOut());
+                body.put("unmatched", stats.unmatched());
+                var types = body.putObject("types");
+                stats.latency().forEach((type, typeStats) -> {
+                    LatencyHistogram.Snapshot latency = typeStats.latency();
+                    var node = types.putObject(type);
+                    node.put("count", latency.count());
+                    node.put("errors", typeStats.errors());
+                    node.put("timeouts", typeStats.timeouts());
+                    node.put("meanMs", latency.mean() / 1000.0);
+                    node.put("p50Ms", latency.p50() / 1000.0);
+                    node.put("p90Ms", latency.p90() / 1000.0);
+                    node.put("p99Ms", latency.p99() / 1000.0);
+                    node.put("p999Ms", latency.p999() / 1000.0);
+                    node.put("maxMs", latency.max() / 1000.0);
+                });
+                LatencyHistogram.Snapshot broadcast = stats.broadcast();
+                var completion = body.putObject("broadcast");
+                completion.put("count", broadcast.count());
+                completion.put("p50Ms", broadcast.p50() / 1000.0);
+                completion.put("p99Ms", broadcast.p99() / 1000.0);
+                completion.put("maxMs", broadcast.max() / 1000.0);
+                exchange.respond(CoAP.ResponseCode.CONTENT, MAPPER.writeValueAsString(body),
+                        MediaTypeRegistry.APPLICATION_JSON);
+            } catch (Exception e) {
+                log.error("Errore durante la serializzazione della risposta GET /factory/cmd/latency", e);
+                exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR, "Errore di serializzazione");
+            }
         }
     }
 
@@ -458,7 +1396,6 @@ public class CoapApiServer {
         private final String deviceType;
         private final String deviceId;
         private final DeviceStateResource stateResource;
-        private final ObjectMapper mapper = new ObjectMapper();
 
         DeviceCommandResource(String name, String cellId, String type, String id,
                               StateRepository repo, DeviceStateResource stateResource) {
@@ -503,23 +1440,33 @@ public class CoapApiServer {
 
                 log.info("COAP CMD -> cell={}, type={}, id={}, cmd={}", cellId, deviceType, deviceId, command.getType());
 
-                // Pubblica il comando per il dispositivo specifico
-                boolean forwarded = repo.publishCommand(cellId, deviceType, deviceId, command);
-                if (!forwarded) {
-                    exchange.respond(CoAP.ResponseCode.SERVICE_UNAVAILABLE,
-                            "Impossibile inoltrare il comando al broker MQTT");
-                    return;
-                }
-
-                // Notifica un cambiamento di stato per aggiornare i client in observe
-                if (stateResource != null) {
-                    stateResource.changed();
-                }
+                // Con ?wait=ack la risposta riporta l'ack del dispositivo invece della sola conferma del broker
+                boolean waitForAck = "ack".equals(exchange.getQueryParameter("wait"));
 
-                Ack ack = new Ack(command.getType(), "ACCEPTED",
-                        "Comando inoltrato al broker MQTT", System.currentTimeMillis());
-                String body = mapper.writeValueAsString(ack);
-                exchange.respond(CoAP.ResponseCode.CHANGED, body, MediaTypeRegistry.APPLICATION_JSON);
+                // Pubblica il comando per il dispositivo specifico
+                CommandReceipt<Ack> receipt = repo.publishCommand(cellId, deviceType, deviceId, command);
+                receipt.published().whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        respondPublishFailure(exchange, error);
+                        return;
+                    }
+                    // Notifica un cambiamento di stato ai client in observe, rispettando le loro condizioni
+                    if (stateResource != null) {
+                        stateResource.refresh();
+                    }
+                    if (!waitForAck) {
+                        Ack ack = new Ack(command.getType(), "ACCEPTED",
+                                "Comando inoltrato al broker MQTT", System.currentTimeMillis(), receipt.msgId());
+                        respondAck(exchange, CoAP.ResponseCode.CHANGED, ack);
+                        return;
+                    }
+                    // L'ack del dispositivo può arrivare oltre l'ACK_TIMEOUT del client: risposta separata
+                    // per evitare le ritrasmissioni della richiesta
+                    if (!receipt.acknowledged().isDone()) {
+                        exchange.accept();
+                    }
+                    receipt.acknowledged().whenComplete((ack, ackError) -> respondDeviceAck(exchange, ack, ackError));
+                });
             } catch (Exception e) {
                 log.error("Errore durante la gestione di POST /cmd per {}", deviceId, e);
                 exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "Richiesta non valida: " + e.getMessage());
@@ -529,17 +1476,17 @@ public class CoapApiServer {
         @Override
         public void handleGET(CoapExchange exchange) {
             try {
-                var body = mapper.createObjectNode();
-                var supported = mapper.createArrayNode();
+                var body = MAPPER.createObjectNode();
+                var supported = MAPPER.createArrayNode();
                 SUPPORTED_DEVICE_COMMANDS.forEach(supported::add);
                 body.set("supported", supported);
 
-                var example = mapper.createObjectNode();
+                var example = MAPPER.createObjectNode();
                 example.put("type", "START");
                 example.put("ts", System.currentTimeMillis());
                 body.set("payloadExample", example);
 
-                exchange.respond(CoAP.ResponseCode.CONTENT, mapper.writeValueAsString(body),
+                exchange.respond(CoAP.ResponseCode.CONTENT, MAPPER.writeValueAsString(body),
                         MediaTypeRegistry.APPLICATION_JSON);
             } catch (Exception e) {
                 log.error("Errore durante la serializzazione della risposta GET /cmd per {}", deviceId, e);
@@ -552,7 +1499,7 @@ public class CoapApiServer {
             if (payload == null || payload.length == 0) {
                 return null;
             }
-            return mapper.readValue(payload, Command.class);
+            return Codecs.COMMAND_READER.readValue(payload);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import it.unimore.iot.microfactory.util.EnvSettings;
+import org.eclipse.californium.core.config.CoapConfig;
+import org.eclipse.californium.elements.config.Configuration;
+import org.eclipse.californium.elements.config.DocumentedDefinition;
+import org.eclipse.californium.elements.config.UdpConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Impostazioni dello stack CoAP: la configurazione di Californium e il modello di esecuzione dei gestori delle risorse.
+ * La configurazione parte dai default di Californium, applica il file di proprietà (chiavi Californium 3 come
+ * {@code UDP.RECEIVER_THREAD_COUNT} o {@code COAP.MAX_ACTIVE_PEERS}) e infine le variabili d'ambiente {@code COAP_*},
+ * che hanno la precedenza sul file.
+ *
+ * @param configuration        Configurazione di endpoint e stack di Californium.
+ * @param execution            Thread su cui girano i gestori delle richieste.
+ * @param handlerThreads       Thread del pool dei gestori ({@link HandlerExecution#POOL}).
+ * @param handlerQueueCapacity Richieste in attesa nel pool prima che il thread del protocollo le esegua direttamente.
+ */
+public record CoapServerSettings(Configuration configuration, HandlerExecution execution,
+                                 int handlerThreads, int handlerQueueCapacity) {
+
+    private static final Logger log = LoggerFactory.getLogger(CoapServerSettings.class);
+    private static final String CONFIG_RESOURCE = "Californium3.properties";
+    private static final int DEFAULT_HANDLER_QUEUE_CAPACITY = 1_024;
+
+    // Variabili d'ambiente che sovrascrivono le chiavi corrispondenti della configurazione di Californium
+    private static final Map<String, DocumentedDefinition<?>> ENV_OVERRIDES = new LinkedHashMap<>();
+
+    static {
+        CoapConfig.register();
+        UdpConfig.register();
+        ENV_OVERRIDES.put("COAP_PROTOCOL_THREADS", CoapConfig.PROTOCOL_STAGE_THREAD_COUNT);
+        ENV_OVERRIDES.put("COAP_RECEIVER_THREADS", UdpConfig.UDP_RECEIVER_THREAD_COUNT);
+        ENV_OVERRIDES.put("COAP_SENDER_THREADS", UdpConfig.UDP_SENDER_THREAD_COUNT);
+        ENV_OVERRIDES.put("COAP_MAX_ACTIVE_PEERS", CoapConfig.MAX_ACTIVE_PEERS);
+        ENV_OVERRIDES.put("COAP_DEDUPLICATOR", CoapConfig.DEDUPLICATOR);
+        ENV_OVERRIDES.put("COAP_EXCHANGE_LIFETIME", CoapConfig.EXCHANGE_LIFETIME);
+        ENV_OVERRIDES.put("COAP_MARK_AND_SWEEP_INTERVAL", CoapConfig.MARK_AND_SWEEP_INTERVAL);
+        ENV_OVERRIDES.put("COAP_MAX_RESOURCE_BODY_SIZE", CoapConfig.MAX_RESOURCE_BODY_SIZE);
+    }
+
+    /**
+     * Thread su cui Californium esegue i gestori delle risorse.
+     */
+    public enum HandlerExecution {
+        /** Sui thread dello stadio di protocollo: un gestore che si blocca ferma lo scambio di messaggi. */
+        PROTOCOL,
+        /** Su un pool dedicato e limitato; a coda piena il thread del protocollo esegue la richiesta (backpressure). */
+        POOL
+    }
+
+    public CoapServerSettings {
+        if (execution == HandlerExecution.POOL && (handlerThreads <= 0 || handlerQueueCapacity <= 0)) {
+            throw new IllegalArgumentException("handlerThreads and handlerQueueCapacity must be positive");
+        }
+    }
+
+    /**
+     * Impostazioni con i default di Californium e il modello di esecuzione indicato, utili per test e benchmark.
+     */
+    public static CoapServerSettings defaults(HandlerExecution execution) {
+        return new CoapServerSettings(Configuration.createStandardWithoutFile(), execution,
+                defaultHandlerThreads(), DEFAULT_HANDLER_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Legge le impostazioni dal file indicato da {@code COAP_CONFIG_FILE} (altrimenti {@code Californium3.properties}
+     * nella directory di lavoro o nel classpath) e dalle variabili d'ambiente.
+     */
+    public static CoapServerSettings fromEnvironment() {
+        Configuration configuration = Configuration.createStandardWithoutFile();
+        loadFile(configuration, Optional.ofNullable(System.getenv("COAP_CONFIG_FILE")).orElse(CONFIG_RESOURCE));
+        ENV_OVERRIDES.forEach((name, definition) ->
+                Optional.ofNullable(System.getenv(name)).ifPresent(value -> configuration.setFromText(definition, value.trim())));
+
+        HandlerExecution execution = Optional.ofNullable(System.getenv("COAP_HANDLER_EXECUTION"))
+                .map(value -> HandlerExecution.valueOf(value.trim().toUpperCase(Locale.ROOT)))
+                .orElse(HandlerExecution.POOL);
+        int threads = EnvSettings.intValue("COAP_HANDLER_THREADS", defaultHandlerThreads(), 1);
+        int queueCapacity = EnvSettings.intValue("COAP_HANDLER_QUEUE_CAPACITY", DEFAULT_HANDLER_QUEUE_CAPACITY, 1);
+        log.info("Stack CoAP: gestori {} ({} thread), ricezione {} / invio {} / protocollo {} thread, {} peer attivi, deduplicatore {}",
+                execution, threads, configuration.get(UdpConfig.UDP_RECEIVER_THREAD_COUNT),
+                configuration.get(UdpConfig.UDP_SENDER_THREAD_COUNT), configuration.get(CoapConfig.PROTOCOL_STAGE_THREAD_COUNT),
+                configuration.get(CoapConfig.MAX_ACTIVE_PEERS), configuration.get(CoapConfig.DEDUPLICATOR));
+        return new CoapServerSettings(configuration, execution, threads, queueCapacity);
+    }
+
+    // Applica il file di proprietà se esiste come file, altrimenti la risorsa omonima del classpath
+    private static void loadFile(Configuration configuration, String path) {
+        File file = new File(path);
+        if (file.isFile()) {
+            configuration.load(file);
+            log.info("Configurazione Californium caricata da {}", file.getAbsolutePath());
+            return;
+        }
+        try (InputStream in = CoapServerSettings.class.getClassLoader().getResourceAsStream(path)) {
+            if (in == null) {
+                log.warn("File di configurazione Californium '{}' non trovato: uso i valori di default", path);
+                return;
+            }
+            configuration.load(in);
+            log.info("Configurazione Californium caricata dal classpath ({})", path);
+        } catch (IOException e) {
+            log.warn("Impossibile leggere la configurazione Californium '{}': uso i valori di default", path, e);
+        }
+    }
+
+    // I comandi si bloccano sulla pubblicazione MQTT: il pool deve superare i comandi concorrenti perché le letture
+    // trovino sempre un thread libero, per cui è ben più ampio del numero di CPU
+    private static int defaultHandlerThreads() {
+        return Math.max(64, 8 * Runtime.getRuntime().availableProcessors());
+    }
+}
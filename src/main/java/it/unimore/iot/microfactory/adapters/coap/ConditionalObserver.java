@@ -0,0 +1,331 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import it.unimore.iot.microfactory.domain.DeviceHistory;
+import it.unimore.iot.microfactory.domain.RawTelemetry;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Condizioni di notifica di un singolo osservatore dello stato, ricavate dagli attributi CoRE
+ * passati come query nella richiesta Observe ({@code ?pmin=&pmax=&gt=&lt=&st=&field=}).
+ * <ul>
+ *   <li>{@code pmin}/{@code pmax}: intervallo minimo e massimo tra due notifiche, in secondi. Un cambiamento
+ *   che arriva prima di {@code pmin} viene notificato allo scadere di {@code pmin} se la condizione vale ancora;
+ *   allo scadere di {@code pmax} si notifica comunque lo stato corrente.</li>
+ *   <li>{@code st}: notifica quando il campo si discosta di almeno {@code st} dall'ultimo valore notificato.</li>
+ *   <li>{@code gt}/{@code lt}: notifica quando il campo attraversa la soglia, in entrambe le direzioni.</li>
+ *   <li>{@code field}: campo su cui valutare le condizioni; senza {@code st}/{@code gt}/{@code lt} si notifica
+ *   a ogni cambiamento del suo valore (ad esempio {@code field=status} per i soli cambi di stato del robot).</li>
+ * </ul>
+ * Senza condizioni sul valore ogni aggiornamento è idoneo e valgono solo i limiti di frequenza.
+ * Lo stato dell'osservatore (ultimo valore e istante notificati, timer) è protetto dal monitor dell'istanza.
+ */
+final class ConditionalObserver {
+
+    /**
+     * Campi su cui si possono esprimere condizioni, con il tipo di telemetria a cui appartengono.
+     * Stati ed enumerazioni sono confrontati come numeri (ordinale, 0/1).
+     */
+    enum Field {
+        STATUS("status", DeviceHistory.Kind.ROBOT),
+        PROCESSING_TIME("processingTime", DeviceHistory.Kind.ROBOT),
+        ACTIVE("active", DeviceHistory.Kind.CONVEYOR),
+        SPEED("speed", DeviceHistory.Kind.CONVEYOR),
+        TOTAL_PROCESSED("totalProcessed", DeviceHistory.Kind.QUALITY),
+        GOOD_COUNT("goodCount", DeviceHistory.Kind.QUALITY),
+        BAD_COUNT("badCount", DeviceHistory.Kind.QUALITY);
+
+        private static final Field[] VALUES = values();
+
+        final String name;
+        final DeviceHistory.Kind kind;
+
+        Field(String name, DeviceHistory.Kind kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+
+        // Campo numerico usato da st/gt/lt quando la richiesta non ne indica uno
+        static Field defaultFor(DeviceHistory.Kind kind) {
+            return switch (kind) {
+                case ROBOT -> PROCESSING_TIME;
+                case CONVEYOR -> SPEED;
+                case QUALITY -> TOTAL_PROCESSED;
+            };
+        }
+
+        static Field of(String name, DeviceHistory.Kind kind) {
+            for (Field field : VALUES) {
+                if (field.kind == kind && field.name.equals(name)) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException("Campo '" + name + "' non disponibile per " + kind);
+        }
+
+        /**
+         * Valore del campo nello stato, senza decodificare la telemetria passthrough; NaN se lo stato è di altro tipo.
+         */
+        double valueOf(Object state) {
+            if (state instanceof RawTelemetry raw) {
+                if (raw.kind() != kind) {
+                    return Double.NaN;
+                }
+                return switch (this) {
+                    case STATUS -> ordinal(raw.status());
+                    case PROCESSING_TIME -> raw.processingTime();
+                    case ACTIVE -> raw.active() ? 1 : 0;
+                    case SPEED -> raw.speed();
+                    case TOTAL_PROCESSED -> raw.totalProcessed();
+                    case GOOD_COUNT -> raw.goodCount();
+                    case BAD_COUNT -> raw.badCount();
+                };
+            }
+            if (state instanceof RobotCellStatus s && kind == DeviceHistory.Kind.ROBOT) {
+                return this == STATUS ? ordinal(s.getStatus()) : s.getProcessingTime();
+            } else if (state instanceof ConveyorBeltStatus s && kind == DeviceHistory.Kind.CONVEYOR) {
+                return this == ACTIVE ? (s.isActive() ? 1 : 0) : s.getSpeed();
+            } else if (state instanceof QualitySensorData s && kind == DeviceHistory.Kind.QUALITY) {
+                return switch (this) {
+                    case GOOD_COUNT -> s.getGoodCount();
+                    case BAD_COUNT -> s.getBadCount();
+                    default -> s.getTotalProcessed();
+                };
+            }
+            return Double.NaN;
+        }
+
+        private static double ordinal(RobotCellStatusEnum status) {
+            return status != null ? status.ordinal() : -1;
+        }
+    }
+
+    /**
+     * Attributi di notifica richiesti dall'osservatore; i valori assenti sono NaN (soglie) o 0 (periodi).
+     */
+    record Attributes(long pminNanos, long pmaxNanos, double gt, double lt, double st, Field field) {
+
+        /**
+         * Indica se la notifica dipende dal valore di un campo e non solo dalla frequenza.
+         */
+        boolean hasValueCondition() {
+            return field != null;
+        }
+    }
+
+    /**
+     * Invia allo stesso osservatore una notifica differita (pmin) o periodica (pmax, {@code force}).
+     */
+    @FunctionalInterface
+    interface Notifier {
+        void renotify(ConditionalObserver observer, boolean force);
+    }
+
+    // Timer condiviso da tutte le risorse: le notifiche vere e proprie restano sull'executor di Californium
+    private static final ScheduledThreadPoolExecutor TIMERS = newTimer("coap-observe-timers");
+
+    private final Attributes attributes;
+    private final Notifier notifier;
+    private double lastValue = Double.NaN;
+    private long lastNotified;
+    private ScheduledFuture<?> deferred;
+    private ScheduledFuture<?> periodic;
+    private boolean cancelled;
+
+    ConditionalObserver(Attributes attributes, Notifier notifier) {
+        this.attributes = attributes;
+        this.notifier = notifier;
+    }
+
+    /**
+     * Legge gli attributi dalla query della richiesta Observe; gli altri parametri vengono ignorati.
+     *
+     * @param kind Tipo della telemetria del dispositivo, per risolvere il campo.
+     * @return Gli attributi oppure {@code null} se la richiesta non ne contiene (osservatore incondizionato).
+     * @throws IllegalArgumentException Se un attributo non è valido.
+     */
+    static Attributes parse(List<String> query, DeviceHistory.Kind kind) {
+        double pmin = Double.NaN;
+        double pmax = Double.NaN;
+        double gt = Double.NaN;
+        double lt = Double.NaN;
+        double st = Double.NaN;
+        String fieldName = null;
+        for (String parameter : query) {
+            int eq = parameter.indexOf('=');
+            String name = eq < 0 ? parameter : parameter.substring(0, eq);
+            String value = eq < 0 ? "" : parameter.substring(eq + 1);
+            switch (name) {
+                case "pmin" -> pmin = number(name, value);
+                case "pmax" -> pmax = number(name, value);
+                case "gt" -> gt = number(name, value);
+                case "lt" -> lt = number(name, value);
+                case "st" -> st = number(name, value);
+                case "field" -> fieldName = value;
+                default -> {
+                }
+            }
+        }
+        boolean threshold = !Double.isNaN(gt) || !Double.isNaN(lt) || !Double.isNaN(st);
+        if (Double.isNaN(pmin) && Double.isNaN(pmax) && !threshold && fieldName == null) {
+            return null;
+        }
+        if (pmin < 0 || pmax <= 0 || (!Double.isNaN(pmin) && pmax < pmin)) {
+            throw new IllegalArgumentException("pmin/pmax non validi: servono 0 <= pmin <= pmax e pmax > 0");
+        }
+        if (st <= 0) {
+            throw new IllegalArgumentException("st deve essere positivo");
+        }
+        Field field = null;
+        if (fieldName != null || threshold) {
+            if (kind == null) {
+                throw new IllegalArgumentException("Condizioni sul valore non disponibili per questo dispositivo");
+            }
+            field = fieldName != null ? Field.of(fieldName, kind) : Field.defaultFor(kind);
+        }
+        return new Attributes(nanos(pmin), nanos(pmax), gt, lt, st, field);
+    }
+
+    Attributes attributes() {
+        return attributes;
+    }
+
+    /**
+     * Registra lo stato inviato con la risposta di registrazione come base per le condizioni successive.
+     */
+    synchronized void start(Object state, long now) {
+        markNotified(state, now);
+    }
+
+    /**
+     * Valuta un aggiornamento dello stato.
+     *
+     * @return {@code true} se l'osservatore va notificato ora; in tal caso il valore diventa il nuovo riferimento.
+     */
+    synchronized boolean offer(Object state, long now) {
+        if (cancelled || !qualifies(state)) {
+            return false;
+        }
+        long wait = lastNotified + attributes.pminNanos - now;
+        if (wait > 0) {
+            if (deferred == null) {
+                deferred = TIMERS.schedule(this::deferredExpired, wait, TimeUnit.NANOSECONDS);
+            }
+            return false;
+        }
+        markNotified(state, now);
+        return true;
+    }
+
+    /**
+     * Notifica periodica allo scadere di pmax, indipendente dalle condizioni sul valore.
+     *
+     * @return {@code true} se nel frattempo non è partita nessun'altra notifica.
+     */
+    synchronized boolean offerPeriodic(Object state, long now) {
+        if (cancelled || now - lastNotified < attributes.pmaxNanos) {
+            return false;
+        }
+        markNotified(state, now);
+        return true;
+    }
+
+    /**
+     * Ferma i timer dell'osservatore quando la relazione Observe termina.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        cancelTimer(deferred);
+        cancelTimer(periodic);
+        deferred = null;
+        periodic = null;
+    }
+
+    // Verifica le condizioni sul valore rispetto all'ultimo valore notificato
+    private boolean qualifies(Object state) {
+        if (!attributes.hasValueCondition()) {
+            return true;
+        }
+        double value = attributes.field.valueOf(state);
+        if (Double.isNaN(value)) {
+            return false;
+        }
+        if (Double.isNaN(lastValue)) {
+            return true;
+        }
+        boolean threshold = !Double.isNaN(attributes.gt) || !Double.isNaN(attributes.lt) || !Double.isNaN(attributes.st);
+        if (!threshold) {
+            return value != lastValue;
+        }
+        return (!Double.isNaN(attributes.st) && Math.abs(value - lastValue) >= attributes.st)
+                || (!Double.isNaN(attributes.gt) && (value > attributes.gt) != (lastValue > attributes.gt))
+                || (!Double.isNaN(attributes.lt) && (value < attributes.lt) != (lastValue < attributes.lt));
+    }
+
+    private void markNotified(Object state, long now) {
+        lastValue = attributes.hasValueCondition() ? attributes.field.valueOf(state) : Double.NaN;
+        lastNotified = now;
+        cancelTimer(deferred);
+        deferred = null;
+        if (attributes.pmaxNanos > 0) {
+            cancelTimer(periodic);
+            periodic = TIMERS.schedule(() -> notifier.renotify(this, true), attributes.pmaxNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Allo scadere di pmin rivaluta le condizioni sullo stato corrente
+    private void deferredExpired() {
+        synchronized (this) {
+            deferred = null;
+            if (cancelled) {
+                return;
+            }
+        }
+        notifier.renotify(this, false);
+    }
+
+    /**
+     * Timer a thread singolo che toglie subito dalla coda i task cancellati. Ogni notifica riprogramma pmax:
+     * senza questa politica i timer cancellati resterebbero in coda fino alla scadenza, per cui con pmax
+     * lunghi e notifiche frequenti la coda crescerebbe senza limite.
+     */
+    static ScheduledThreadPoolExecutor newTimer(String name) {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    // Timer pmin/pmax in coda su tutti gli osservatori
+    static int pendingTimers() {
+        return TIMERS.getQueue().size();
+    }
+
+    private static void cancelTimer(ScheduledFuture<?> timer) {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    private static double number(String name, String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Attributo " + name + " non numerico: '" + value + "'");
+        }
+    }
+
+    private static long nanos(double seconds) {
+        return Double.isNaN(seconds) ? 0 : (long) (seconds * 1_000_000_000L);
+    }
+}
@@ -0,0 +1,129 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import it.unimore.iot.microfactory.domain.DeviceEntry;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache delle rappresentazioni codificate dello stato di un singolo dispositivo.
+ * Ogni rappresentazione viene serializzata al più una volta per versione dello stato
+ * ({@link DeviceEntry#version()}): GET ripetute e notifiche Observe riusano gli stessi byte
+ * finché un nuovo {@code upsert} non fa avanzare la versione, invalidando la cache.
+ * L'ETag di ogni rappresentazione deriva dalla versione e dal formato, mescolati con il
+ * contatore di creazione dell'entry ({@link DeviceEntry#incarnation()}), così che un dispositivo
+ * rimosso e ricreato non riproponga i tag della vita precedente, e con un valore casuale scelto
+ * all'avvio così che i tag non si ripetano dopo un riavvio.
+ */
+final class StateRepresentationCache {
+
+    /**
+     * Formati in cui lo stato può essere restituito.
+     */
+    enum Representation {
+        JSON(MediaTypeRegistry.APPLICATION_JSON),
+        SENML_JSON(MediaTypeRegistry.APPLICATION_SENML_JSON),
+        TEXT_PLAIN(MediaTypeRegistry.TEXT_PLAIN),
+        CBOR(MediaTypeRegistry.APPLICATION_CBOR),
+        SENML_CBOR(MediaTypeRegistry.APPLICATION_SENML_CBOR);
+
+        static final Representation[] VALUES = values();
+
+        final int contentFormat;
+
+        Representation(int contentFormat) {
+            this.contentFormat = contentFormat;
+        }
+
+        /**
+         * Sceglie la rappresentazione per l'opzione Accept (-1 se assente, che equivale a JSON).
+         *
+         * @return La rappresentazione oppure {@code null} se il formato non è supportato.
+         */
+        static Representation forAccept(int accept) {
+            if (accept == -1) {
+                return JSON;
+            }
+            for (Representation r : VALUES) {
+                if (r.contentFormat == accept) {
+                    return r;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Serializza lo stato nella rappresentazione richiesta.
+     */
+    @FunctionalInterface
+    interface Encoder {
+        byte[] encode(Representation representation, Object state) throws IOException;
+    }
+
+    /**
+     * Payload codificato e relativo ETag.
+     */
+    record Encoded(byte[] payload, byte[] etag) {
+    }
+
+    private static final long ETAG_SALT = ThreadLocalRandom.current().nextLong();
+
+    private final Encoder encoder;
+    private volatile Generation current;
+
+    StateRepresentationCache(Encoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Restituisce la rappresentazione dello stato corrente del dispositivo, codificandola solo
+     * se la versione è cambiata dall'ultima richiesta nello stesso formato.
+     */
+    Encoded get(DeviceEntry entry, Representation representation) throws IOException {
+        long version = entry.version();
+        Generation g = current;
+        // Una lettura concorrente con versione più vecchia riusa la generazione più recente già in cache
+        if (g == null || g.incarnation != entry.incarnation() || g.version < version) {
+            g = new Generation(entry.incarnation(), version, entry.state());
+            current = g;
+        }
+        Encoded encoded = g.encoded.get(representation.ordinal());
+        if (encoded == null) {
+            encoded = new Encoded(encoder.encode(representation, g.state), etag(g.incarnation, g.version, representation));
+            // In caso di corsa più thread producono byte equivalenti: vince l'ultimo
+            g.encoded.set(representation.ordinal(), encoded);
+        }
+        return encoded;
+    }
+
+    // ETag di 8 byte: versione e formato mescolati con l'incarnazione dell'entry e il sale di avvio
+    private static byte[] etag(long incarnation, long version, Representation representation) {
+        long value = mix(ETAG_SALT + incarnation * 0x9E3779B97F4A7C15L) ^ ((version << 4) | representation.ordinal());
+        return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+    }
+
+    // Finalizzatore di SplitMix64: incarnazioni vicine producono basi lontane tra loro
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // Stato di una specifica versione con le rappresentazioni codificate finora
+    private static final class Generation {
+        final long incarnation;
+        final long version;
+        final Object state;
+        final AtomicReferenceArray<Encoded> encoded = new AtomicReferenceArray<>(Representation.VALUES.length);
+
+        Generation(long incarnation, long version, Object state) {
+            this.incarnation = incarnation;
+            this.version = version;
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package it.unimore.iot.microfactory.codec;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Corpo di una risposta generato su richiesta, un elemento alla volta, invece di essere materializzato
+ * per intero.
+ * Le sottoclassi scrivono sul {@link JsonGenerator} (JSON o CBOR) un elemento per chiamata di
+ * {@link #writeNext(JsonGenerator)}; i byte prodotti vengono accumulati in un piccolo buffer e consegnati
+ * con {@link #read(byte[], int, int)}, per cui la memoria occupata dipende dalla dimensione del blocco
+ * letto e del singolo elemento, non da quella del corpo intero.
+ * Un cursore non è thread-safe e va letto da un solo thread alla volta.
+ */
+public abstract class BodyCursor {
+
+    private final Chunk chunk = new Chunk();
+    private JsonGenerator gen;
+    private boolean done;
+    private long position;
+
+    /**
+     * Scrive il prossimo elemento del corpo; alla prima chiamata scrive anche l'apertura del documento.
+     *
+     * @return {@code false} se il corpo è completo (chiusure comprese) e non ci sono altri elementi.
+     */
+    protected abstract boolean writeNext(JsonGenerator gen) throws IOException;
+
+    /**
+     * Generatore su cui scrivere il corpo, creato alla prima lettura.
+     */
+    protected abstract JsonGenerator createGenerator(OutputStream out) throws IOException;
+
+    /**
+     * Copia in {@code target} fino a {@code length} byte del corpo, generando gli elementi necessari.
+     *
+     * @return Il numero di byte copiati, oppure -1 se il corpo è terminato.
+     */
+    public int read(byte[] target, int offset, int length) throws IOException {
+        fill(length);
+        if (chunk.size() == 0) {
+            return -1;
+        }
+        int n = chunk.take(target, offset, length);
+        position += n;
+        return n;
+    }
+
+    /**
+     * Scarta i prossimi {@code count} byte del corpo, ad esempio per riprendere un trasferimento
+     * a partire da un blocco intermedio.
+     *
+     * @return Il numero di byte effettivamente scartati, minore di {@code count} se il corpo termina prima.
+     */
+    public long skip(long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            int step = (int) Math.min(count - skipped, 4096);
+            fill(step);
+            if (chunk.size() == 0) {
+                break;
+            }
+            int n = chunk.drop(step);
+            skipped += n;
+            position += n;
+        }
+        return skipped;
+    }
+
+    /**
+     * Indica se restano byte da leggere, generando se necessario il prossimo elemento.
+     */
+    public boolean hasRemaining() throws IOException {
+        fill(1);
+        return chunk.size() > 0;
+    }
+
+    /**
+     * Numero di byte già consegnati o scartati.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Massimo numero di byte rimasti in attesa nel buffer del cursore: misura la memoria
+     * effettivamente trattenuta dalla generazione.
+     */
+    public int highWaterMark() {
+        return chunk.highWaterMark;
+    }
+
+    /**
+     * Legge tutto il corpo rimanente in un array, per le risposte piccole o i client che lo vogliono intero.
+     */
+    public byte[] readAllBytes() throws IOException {
+        byte[] result = new byte[256];
+        int size = 0;
+        int n;
+        while ((n = read(result, size, result.length - size)) >= 0) {
+            size += n;
+            if (size == result.length) {
+                result = Arrays.copyOf(result, result.length * 2);
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    // Genera elementi finché il buffer non contiene almeno 'wanted' byte o il corpo non è terminato
+    private void fill(int wanted) throws IOException {
+        if (gen == null && !done) {
+            gen = createGenerator(chunk);
+        }
+        while (chunk.size() < wanted && !done) {
+            done = !writeNext(gen);
+            if (done) {
+                gen.close();
+            } else {
+                gen.flush();
+            }
+        }
+    }
+
+    // Buffer FIFO che riceve i byte dal generatore e li restituisce dal fondo, compattandosi quando serve
+    private static final class Chunk extends OutputStream {
+        private byte[] buf = new byte[512];
+        private int start;
+        private int end;
+        private int highWaterMark;
+
+        int size() {
+            return end - start;
+        }
+
+        int take(byte[] target, int offset, int length) {
+            int n = Math.min(length, size());
+            System.arraycopy(buf, start, target, offset, n);
+            start += n;
+            return n;
+        }
+
+        int drop(int length) {
+            int n = Math.min(length, size());
+            start += n;
+            return n;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            buf[end++] = (byte) b;
+            highWaterMark = Math.max(highWaterMark, size());
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, buf, end, len);
+            end += len;
+            highWaterMark = Math.max(highWaterMark, size());
+        }
+
+        private void ensureCapacity(int extra) {
+            if (end + extra <= buf.length) {
+                return;
+            }
+            int size = size();
+            if (size + extra <= buf.length) {
+                System.arraycopy(buf, start, buf, 0, size);
+            } else {
+                buf = Arrays.copyOfRange(buf, start, start + Math.max(buf.length * 2, size + extra));
+            }
+            start = 0;
+            end = size;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package it.unimore.iot.microfactory.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import it.unimore.iot.microfactory.model.Ack;
+import it.unimore.iot.microfactory.model.Command;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+
+/**
+ * Punto unico di accesso a Jackson per tutto il progetto.
+ * L'{@link ObjectMapper} condiviso e i reader/writer precompilati per i modelli sono thread-safe
+ * e vanno riusati invece di creare un mapper per dispositivo, risorsa o richiesta.
+ * Il mapper condiviso non deve essere riconfigurato dopo l'avvio.
+ * Per la telemetria sul percorso caldo preferire {@link TelemetryCodec}.
+ */
+public final class Codecs {
+
+    public static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Factory CBOR condivisa; i double rappresentabili senza perdita vengono scritti in 32 bit.
+     */
+    public static final CBORFactory CBOR_FACTORY = CBORFactory.builder()
+            .enable(CBORGenerator.Feature.WRITE_MINIMAL_DOUBLES)
+            .build();
+    public static final ObjectMapper CBOR_MAPPER = new ObjectMapper(CBOR_FACTORY);
+
+    public static final ObjectReader ROBOT_STATUS_READER = MAPPER.readerFor(RobotCellStatus.class);
+    public static final ObjectWriter ROBOT_STATUS_WRITER = MAPPER.writerFor(RobotCellStatus.class);
+    public static final ObjectReader CONVEYOR_STATUS_READER = MAPPER.readerFor(ConveyorBeltStatus.class);
+    public static final ObjectWriter CONVEYOR_STATUS_WRITER = MAPPER.writerFor(ConveyorBeltStatus.class);
+    public static final ObjectReader QUALITY_DATA_READER = MAPPER.readerFor(QualitySensorData.class);
+    public static final ObjectWriter QUALITY_DATA_WRITER = MAPPER.writerFor(QualitySensorData.class);
+    public static final ObjectReader COMMAND_READER = MAPPER.readerFor(Command.class);
+    public static final ObjectWriter COMMAND_WRITER = MAPPER.writerFor(Command.class);
+    public static final ObjectReader ACK_READER = MAPPER.readerFor(Ack.class);
+    public static final ObjectWriter ACK_WRITER = MAPPER.writerFor(Ack.class);
+
+    private Codecs() {
+    }
+}
@@ -0,0 +1,80 @@
+package it.unimore.iot.microfactory.codec;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Codifiche ammesse per la telemetria pubblicata sui topic {@code mf/{cell}/{type}/{id}/status}.
+ * Il formato di un payload ricevuto si riconosce dal primo byte, per cui dispositivi con
+ * codifiche diverse possono convivere nella stessa flotta.
+ */
+public enum PayloadEncoding {
+    /** Oggetto JSON con gli stessi campi del modello. */
+    JSON,
+    /** Oggetto CBOR (RFC 8949) con gli stessi campi del modello. */
+    CBOR,
+    /** Pack SenML JSON (RFC 8428), con un record per grandezza. */
+    SENML_JSON,
+    /** Pack SenML in CBOR (RFC 8428), con etichette intere e un record per grandezza. */
+    SENML_CBOR;
+
+    // Tag CBOR 55799 (self-describe) che può precedere il dato
+    private static final int SELF_DESCRIBE_TAG_LENGTH = 3;
+
+    /**
+     * Converte il valore di configurazione ({@code json}, {@code cbor}, {@code senml-json}, {@code senml-cbor}).
+     */
+    public static PayloadEncoding parse(String value) {
+        return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Indica se la codifica è un pack SenML.
+     */
+    public boolean isSenML() {
+        return this == SENML_JSON || this == SENML_CBOR;
+    }
+
+    /**
+     * Indica se la codifica è binaria (CBOR).
+     */
+    public boolean isCbor() {
+        return this == CBOR || this == SENML_CBOR;
+    }
+
+    /**
+     * Riconosce la codifica dal primo byte significativo: '{' per JSON, '[' per SenML JSON,
+     * una mappa CBOR (major type 5) per CBOR e un array CBOR (major type 4) per SenML-CBOR.
+     *
+     * @throws IOException Se il payload è vuoto o non corrisponde a nessuna codifica.
+     */
+    public static PayloadEncoding detect(byte[] payload) throws IOException {
+        int i = 0;
+        while (i < payload.length && isJsonWhitespace(payload[i])) {
+            i++;
+        }
+        if (i < payload.length && payload[i] == '{') {
+            return JSON;
+        } else if (i < payload.length && payload[i] == '[') {
+            return SENML_JSON;
+        }
+        i = 0;
+        if (payload.length > SELF_DESCRIBE_TAG_LENGTH
+                && (payload[0] & 0xFF) == 0xD9 && (payload[1] & 0xFF) == 0xD9 && (payload[2] & 0xFF) == 0xF7) {
+            i = SELF_DESCRIBE_TAG_LENGTH;
+        }
+        if (i < payload.length) {
+            int majorType = (payload[i] & 0xFF) >>> 5;
+            if (majorType == 5) {
+                return CBOR;
+            } else if (majorType == 4) {
+                return SENML_CBOR;
+            }
+        }
+        throw new IOException("Unrecognized telemetry payload encoding");
+    }
+
+    private static boolean isJsonWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
@@ -0,0 +1,180 @@
+package it.unimore.iot.microfactory.codec;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.util.senml.SenMLEncoder;
+
+import java.io.IOException;
+
+/**
+ * Rappresentazione SenML (RFC 8428) della telemetria, in JSON o in CBOR.
+ * Ogni campo del modello diventa un record con il proprio nome: lo stato del robot come {@code vs},
+ * {@code active} come {@code vb} e le grandezze numeriche come {@code v} (con l'unità dove esiste
+ * un'unità SenML registrata). La scrittura passa per {@link SenMLEncoder}, che comprime nome e tempo base.
+ * In lettura sono accettate sia le etichette testuali sia quelle intere; il nome completo
+ * (base + record) viene spezzato sull'ultima '/', così sono accettati anche pack che non usano
+ * il nome base, e i record con nomi sconosciuti vengono ignorati.
+ */
+final class SenMLCodec {
+
+    private SenMLCodec() {
+    }
+
+    /**
+     * Scrive il pack con i soli record del dispositivo.
+     *
+     * @param baseName Nome base (terminato da '/'), oppure {@code null} per ometterlo.
+     */
+    static void writePack(JsonGenerator gen, String baseName, Object state) throws IOException {
+        SenMLEncoder encoder = new SenMLEncoder(gen);
+        encoder.startPack(state instanceof QualitySensorData ? 3 : 2);
+        writeRecords(encoder, baseName, state);
+        encoder.endPack();
+    }
+
+    /**
+     * Scrive i record del dispositivo senza aprire il pack, per comporre pack di più dispositivi.
+     *
+     * @param baseName Nome base (terminato da '/'), oppure {@code null} per ometterlo.
+     * @throws IllegalArgumentException Se l'oggetto non è un modello di telemetria.
+     */
+    static void writeRecords(SenMLEncoder encoder, String baseName, Object state) throws IOException {
+        encoder.baseName(baseName);
+        if (state instanceof RobotCellStatus status) {
+            long ts = status.getTimestamp();
+            encoder.string("status", status.getStatus() != null ? status.getStatus().name() : null, ts);
+            encoder.numeric("processingTime", "s", status.getProcessingTime(), ts);
+        } else if (state instanceof ConveyorBeltStatus status) {
+            long ts = status.getTimestamp();
+            encoder.bool("active", status.isActive(), ts);
+            encoder.numeric("speed", "1/min", status.getSpeed(), ts);
+        } else if (state instanceof QualitySensorData data) {
+            long ts = data.getTimestamp();
+            encoder.numeric("totalProcessed", null, data.getTotalProcessed(), ts);
+            encoder.numeric("goodCount", null, data.getGoodCount(), ts);
+            encoder.numeric("badCount", null, data.getBadCount(), ts);
+        } else {
+            throw new IllegalArgumentException("Not a telemetry model: " + state.getClass().getName());
+        }
+    }
+
+    static RobotCellStatus readRobotStatus(JsonParser parser) throws IOException {
+        RobotCellStatus status = new RobotCellStatus();
+        readPack(parser, (deviceId, timestamp, field, record) -> {
+            status.setDeviceId(deviceId);
+            status.setTimestamp(timestamp);
+            switch (field) {
+                case "status" -> status.setStatus(TelemetryCodec.readRobotStatusEnum(record.stringValue));
+                case "processingTime" -> status.setProcessingTime(record.value);
+                default -> {
+                }
+            }
+        });
+        return status;
+    }
+
+    static ConveyorBeltStatus readConveyorStatus(JsonParser parser) throws IOException {
+        ConveyorBeltStatus status = new ConveyorBeltStatus();
+        readPack(parser, (deviceId, timestamp, field, record) -> {
+            status.setDeviceId(deviceId);
+            status.setTimestamp(timestamp);
+            switch (field) {
+                case "active" -> status.setActive(record.booleanValue);
+                case "speed" -> status.setSpeed(record.value);
+                default -> {
+                }
+            }
+        });
+        return status;
+    }
+
+    static QualitySensorData readQualityData(JsonParser parser) throws IOException {
+        QualitySensorData data = new QualitySensorData();
+        readPack(parser, (deviceId, timestamp, field, record) -> {
+            data.setDeviceId(deviceId);
+            data.setTimestamp(timestamp);
+            switch (field) {
+                case "totalProcessed" -> data.setTotalProcessed((int) Math.round(record.value));
+                case "goodCount" -> data.setGoodCount((int) Math.round(record.value));
+                case "badCount" -> data.setBadCount((int) Math.round(record.value));
+                default -> {
+                }
+            }
+        });
+        return data;
+    }
+
+    // Percorre il pack risolvendo nome e tempo base di ogni record e consegnando i campi al consumer
+    private static void readPack(JsonParser parser, RecordConsumer consumer) throws IOException {
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            throw new IOException("SenML payload is not an array");
+        }
+        String baseName = "";
+        double baseTime = 0;
+        String devicePrefix = "";
+        String deviceId = null;
+        Record record = new Record();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            record.reset();
+            String field;
+            while ((field = parser.nextFieldName()) != null) {
+                JsonToken value = parser.nextToken();
+                // Etichette testuali (SenML JSON) e intere (SenML-CBOR, RFC 8428 tabella 4)
+                switch (field) {
+                    case "bn", "-2" -> baseName = parser.getValueAsString("");
+                    case "bt", "-3" -> baseTime = parser.getValueAsDouble();
+                    case "n", "0" -> record.name = parser.getValueAsString();
+                    case "v", "2" -> record.value = parser.getValueAsDouble();
+                    case "vs", "3" -> record.stringValue = value == JsonToken.VALUE_NULL ? null : parser.getText();
+                    case "vb", "4" -> record.booleanValue = parser.getValueAsBoolean();
+                    case "t", "6" -> record.time = parser.getValueAsDouble();
+                    default -> parser.skipChildren();
+                }
+            }
+            String name = record.name != null ? record.name : "";
+            String prefix = baseName;
+            // Caso comune: il nome del record è il solo campo e il dispositivo sta nel nome base
+            if (name.indexOf('/') >= 0 || !baseName.endsWith("/")) {
+                String fullName = baseName + name;
+                int slash = fullName.lastIndexOf('/');
+                prefix = fullName.substring(0, slash + 1);
+                name = fullName.substring(slash + 1);
+            }
+            if (!prefix.equals(devicePrefix)) {
+                devicePrefix = prefix;
+                deviceId = prefix.length() > 1 ? prefix.substring(0, prefix.length() - 1) : null;
+            }
+            long timestamp = Math.round((baseTime + record.time) * 1000.0);
+            consumer.accept(deviceId, timestamp, name, record);
+        }
+        if (parser.currentToken() != JsonToken.END_ARRAY) {
+            throw new IOException("SenML record is not an object");
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordConsumer {
+        void accept(String deviceId, long timestamp, String field, Record record) throws IOException;
+    }
+
+    // Valori del record corrente, riutilizzato per tutto il pack
+    private static final class Record {
+        String name;
+        double value;
+        String stringValue;
+        boolean booleanValue;
+        double time;
+
+        void reset() {
+            name = null;
+            value = 0;
+            stringValue = null;
+            booleanValue = false;
+            time = 0;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package it.unimore.iot.microfactory.codec;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import it.unimore.iot.microfactory.util.senml.SenMLEncoder;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Codifiche e decodifiche scritte a mano per i tre modelli di telemetria, in tutte le
+ * {@link PayloadEncoding} ammesse.
+ * Le letture usano direttamente il {@link JsonParser} in streaming, senza introspezione né
+ * deserializzatori generici; le scritture usano il {@link JsonGenerator} su un buffer per thread
+ * riutilizzato, per cui l'unica allocazione è l'array restituito.
+ * Il JSON prodotto è identico, anche nell'ordine dei campi, a quello del mapper condiviso; il CBOR
+ * ha gli stessi campi ma mappe a lunghezza definita. In lettura i campi sconosciuti vengono ignorati.
+ */
+public final class TelemetryCodec {
+
+    private static final JsonFactory JSON_FACTORY = Codecs.MAPPER.getFactory();
+    private static final RobotCellStatusEnum[] ROBOT_STATUSES = RobotCellStatusEnum.values();
+    private static final ThreadLocal<ByteArrayBuilder> BUFFERS = ThreadLocal.withInitial(() -> new ByteArrayBuilder(256));
+
+    private TelemetryCodec() {
+    }
+
+    /**
+     * Indica se l'oggetto è uno dei modelli di telemetria gestiti dal codec.
+     */
+    public static boolean isTelemetry(Object state) {
+        return state instanceof RobotCellStatus || state instanceof ConveyorBeltStatus
+                || state instanceof QualitySensorData;
+    }
+
+    public static RobotCellStatus readRobotStatus(byte[] payload) throws IOException {
+        return read(PayloadEncoding.JSON, RobotCellStatus.class, payload);
+    }
+
+    public static ConveyorBeltStatus readConveyorStatus(byte[] payload) throws IOException {
+        return read(PayloadEncoding.JSON, ConveyorBeltStatus.class, payload);
+    }
+
+    public static QualitySensorData readQualityData(byte[] payload) throws IOException {
+        return read(PayloadEncoding.JSON, QualitySensorData.class, payload);
+    }
+
+    /**
+     * Decodifica il payload nel modello richiesto.
+     *
+     * @param model Una tra {@link RobotCellStatus}, {@link ConveyorBeltStatus} e {@link QualitySensorData}.
+     * @throws IOException Se il payload non è valido per la codifica indicata.
+     */
+    public static <T> T read(PayloadEncoding encoding, Class<T> model, byte[] payload) throws IOException {
+        try (JsonParser parser = factory(encoding).createParser(payload)) {
+            Object result;
+            if (encoding.isSenML()) {
+                result = switch (modelIndex(model)) {
+                    case 0 -> SenMLCodec.readRobotStatus(parser);
+                    case 1 -> SenMLCodec.readConveyorStatus(parser);
+                    default -> SenMLCodec.readQualityData(parser);
+                };
+            } else {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Telemetry payload is not a " + encoding + " object");
+                }
+                result = switch (modelIndex(model)) {
+                    case 0 -> readRobotStatus(parser);
+                    case 1 -> readConveyorStatus(parser);
+                    default -> readQualityData(parser);
+                };
+            }
+            return model.cast(result);
+        }
+    }
+
+    /**
+     * Converte lo stato testuale del robot nell'enum.
+     *
+     * @return L'enum corrispondente oppure {@code null} se il valore è null.
+     * @throws IOException Se il valore non corrisponde a nessuno stato noto.
+     */
+    public static RobotCellStatusEnum readRobotStatusEnum(String text) throws IOException {
+        if (text == null) {
+            return null;
+        }
+        for (RobotCellStatusEnum candidate : ROBOT_STATUSES) {
+            if (candidate.name().equals(text)) {
+                return candidate;
+            }
+        }
+        throw new IOException("Unknown robot status '" + text + "'");
+    }
+
+    /**
+     * Serializza in JSON la telemetria usando i percorsi dedicati; per gli altri oggetti
+     * ricade sul mapper condiviso.
+     */
+    public static byte[] write(Object state) throws IOException {
+        if (isTelemetry(state)) {
+            return write(PayloadEncoding.JSON, state);
+        }
+        return Codecs.MAPPER.writeValueAsBytes(state);
+    }
+
+    /**
+     * Serializza la telemetria nella codifica richiesta.
+     *
+     * @throws IllegalArgumentException Se l'oggetto non è un modello di telemetria.
+     */
+    public static byte[] write(PayloadEncoding encoding, Object state) throws IOException {
+        ByteArrayBuilder buffer = buffer();
+        try (JsonGenerator gen = factory(encoding).createGenerator(buffer)) {
+            if (encoding.isSenML()) {
+                String deviceId = deviceIdOf(state);
+                SenMLCodec.writePack(gen, deviceId != null ? deviceId + "/" : null, state);
+            } else {
+                writeModel(gen, state);
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Scrive lo stato come oggetto sul generatore indicato (JSON o CBOR), per annidarlo in un documento più ampio.
+     * La telemetria usa i percorsi dedicati; gli altri oggetti ricadono sul mapper condiviso.
+     */
+    public static void write(JsonGenerator gen, Object state) throws IOException {
+        if (isTelemetry(state)) {
+            writeModel(gen, state);
+        } else {
+            Codecs.MAPPER.writeValue(gen, state);
+        }
+    }
+
+    /**
+     * Serializza la telemetria come pack SenML con il nome base indicato (es. il percorso CoAP del dispositivo).
+     *
+     * @param encoding {@link PayloadEncoding#SENML_JSON} o {@link PayloadEncoding#SENML_CBOR}.
+     */
+    public static byte[] writeSenML(PayloadEncoding encoding, String baseName, Object state) throws IOException {
+        ByteArrayBuilder buffer = buffer();
+        try (JsonGenerator gen = factory(requireSenML(encoding)).createGenerator(buffer)) {
+            SenMLCodec.writePack(gen, baseName, state);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Serializza più dispositivi in un unico pack SenML, nell'ordine di iterazione della mappa.
+     * Il tempo base è quello del primo dispositivo e gli altri portano il tempo relativo.
+     *
+     * @param encoding         {@link PayloadEncoding#SENML_JSON} o {@link PayloadEncoding#SENML_CBOR}.
+     * @param statesByBaseName Stato di telemetria di ciascun dispositivo, indicizzato per nome base.
+     */
+    public static byte[] writeSenMLPack(PayloadEncoding encoding, Map<String, Object> statesByBaseName) throws IOException {
+        ByteArrayBuilder buffer = buffer();
+        try (JsonGenerator gen = factory(requireSenML(encoding)).createGenerator(buffer)) {
+            SenMLEncoder encoder = new SenMLEncoder(gen);
+            encoder.startPack();
+            for (Map.Entry<String, Object> device : statesByBaseName.entrySet()) {
+                SenMLCodec.writeRecords(encoder, device.getKey(), device.getValue());
+            }
+            encoder.endPack();
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Scrive i record SenML del dispositivo su un pack già aperto, per comporre pack in streaming.
+     *
+     * @param baseName Nome base (terminato da '/'), oppure {@code null} per ometterlo.
+     */
+    public static void writeSenMLRecords(SenMLEncoder encoder, String baseName, Object state) throws IOException {
+        SenMLCodec.writeRecords(encoder, baseName, state);
+    }
+
+    public static byte[] writeRobotStatus(RobotCellStatus status) throws IOException {
+        return write(PayloadEncoding.JSON, status);
+    }
+
+    public static byte[] writeConveyorStatus(ConveyorBeltStatus status) throws IOException {
+        return write(PayloadEncoding.JSON, status);
+    }
+
+    public static byte[] writeQualityData(QualitySensorData data) throws IOException {
+        return write(PayloadEncoding.JSON, data);
+    }
+
+    private static RobotCellStatus readRobotStatus(JsonParser parser) throws IOException {
+        RobotCellStatus status = new RobotCellStatus();
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "deviceId" -> status.setDeviceId(parser.getValueAsString());
+                case "timestamp" -> status.setTimestamp(parser.getValueAsLong());
+                case "status" -> status.setStatus(readRobotStatusEnum(value == JsonToken.VALUE_NULL ? null : parser.getText()));
+                case "processingTime" -> status.setProcessingTime(parser.getValueAsDouble());
+                default -> parser.skipChildren();
+            }
+        }
+        return status;
+    }
+
+    private static ConveyorBeltStatus readConveyorStatus(JsonParser parser) throws IOException {
+        ConveyorBeltStatus status = new ConveyorBeltStatus();
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            parser.nextToken();
+            switch (field) {
+                case "deviceId" -> status.setDeviceId(parser.getValueAsString());
+                case "timestamp" -> status.setTimestamp(parser.getValueAsLong());
+                case "active" -> status.setActive(parser.getValueAsBoolean());
+                case "speed" -> status.setSpeed(parser.getValueAsDouble());
+                default -> parser.skipChildren();
+            }
+        }
+        return status;
+    }
+
+    private static QualitySensorData readQualityData(JsonParser parser) throws IOException {
+        QualitySensorData data = new QualitySensorData();
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            parser.nextToken();
+            switch (field) {
+                case "deviceId" -> data.setDeviceId(parser.getValueAsString());
+                case "timestamp" -> data.setTimestamp(parser.getValueAsLong());
+                case "totalProcessed" -> data.setTotalProcessed(parser.getValueAsInt());
+                case "goodCount" -> data.setGoodCount(parser.getValueAsInt());
+                case "badCount" -> data.setBadCount(parser.getValueAsInt());
+                default -> parser.skipChildren();
+            }
+        }
+        return data;
+    }
+
+    private static void writeRobotStatus(JsonGenerator gen, RobotCellStatus status) throws IOException {
+        gen.writeStartObject(status, 4);
+        gen.writeStringField("deviceId", status.getDeviceId());
+        gen.writeNumberField("timestamp", status.getTimestamp());
+        gen.writeStringField("status", status.getStatus() != null ? status.getStatus().name() : null);
+        gen.writeNumberField("processingTime", status.getProcessingTime());
+        gen.writeEndObject();
+    }
+
+    private static void writeConveyorStatus(JsonGenerator gen, ConveyorBeltStatus status) throws IOException {
+        gen.writeStartObject(status, 4);
+        gen.writeStringField("deviceId", status.getDeviceId());
+        gen.writeNumberField("timestamp", status.getTimestamp());
+        gen.writeBooleanField("active", status.isActive());
+        gen.writeNumberField("speed", status.getSpeed());
+        gen.writeEndObject();
+    }
+
+    private static void writeQualityData(JsonGenerator gen, QualitySensorData data) throws IOException {
+        gen.writeStartObject(data, 5);
+        gen.writeStringField("deviceId", data.getDeviceId());
+        gen.writeNumberField("timestamp", data.getTimestamp());
+        gen.writeNumberField("totalProcessed", data.getTotalProcessed());
+        gen.writeNumberField("goodCount", data.getGoodCount());
+        gen.writeNumberField("badCount", data.getBadCount());
+        gen.writeEndObject();
+    }
+
+    private static void writeModel(JsonGenerator gen, Object state) throws IOException {
+        if (state instanceof RobotCellStatus s) {
+            writeRobotStatus(gen, s);
+        } else if (state instanceof ConveyorBeltStatus s) {
+            writeConveyorStatus(gen, s);
+        } else if (state instanceof QualitySensorData s) {
+            writeQualityData(gen, s);
+        } else {
+            throw new IllegalArgumentException("Not a telemetry model: " + state.getClass().getName());
+        }
+    }
+
+    private static String deviceIdOf(Object state) {
+        if (state instanceof RobotCellStatus s) {
+            return s.getDeviceId();
+        } else if (state instanceof ConveyorBeltStatus s) {
+            return s.getDeviceId();
+        } else if (state instanceof QualitySensorData s) {
+            return s.getDeviceId();
+        }
+        return null;
+    }
+
+    // Buffer del thread corrente, svuotato prima di ogni scrittura
+    private static ByteArrayBuilder buffer() {
+        ByteArrayBuilder buffer = BUFFERS.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    private static JsonFactory factory(PayloadEncoding encoding) {
+        return encoding.isCbor() ? Codecs.CBOR_FACTORY : JSON_FACTORY;
+    }
+
+    private static PayloadEncoding requireSenML(PayloadEncoding encoding) {
+        if (!encoding.isSenML()) {
+            throw new IllegalArgumentException("Not a SenML encoding: " + encoding);
+        }
+        return encoding;
+    }
+
+    // Indice del modello di telemetria, per scegliere il percorso di lettura senza riflessione
+    private static int modelIndex(Class<?> model) {
+        if (model == RobotCellStatus.class) {
+            return 0;
+        } else if (model == ConveyorBeltStatus.class) {
+            return 1;
+        } else if (model == QualitySensorData.class) {
+            return 2;
+        }
+        throw new IllegalArgumentException("Not a telemetry model: " + model.getName());
+    }
+}
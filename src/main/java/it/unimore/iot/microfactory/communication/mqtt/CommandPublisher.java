@@ -1,108 +1,406 @@
 package it.unimore.iot.microfactory.communication.mqtt;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.domain.BroadcastScope;
+import it.unimore.iot.microfactory.domain.DeviceKey;
 import it.unimore.iot.microfactory.model.Command;
-import org.eclipse.paho.client.mqttv3.IMqttClient;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import it.unimore.iot.microfactory.util.EnvSettings;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * Pubblica sul broker MQTT i comandi ricevuti via API CoAP rendendoli disponibili
  * ai dispositivi simulati della microfabbrica.
+ * Le pubblicazioni QoS 1 sono asincrone e in pipeline: fino a {@code maxInFlight} comandi attendono il PUBACK
+ * contemporaneamente, gli altri restano in una coda limitata e partono appena si libera un posto nella finestra.
+ * Ogni comando restituisce un {@link CompletableFuture} completato al PUBACK, oppure in errore se il broker
+ * non è raggiungibile, la coda è piena o il PUBACK non arriva entro il timeout; nessun chiamante resta bloccato.
+ * I topic dei dispositivi sono memorizzati in una cache limitata indicizzata per {@link DeviceKey}.
+ * Un comando broadcast è una sola pubblicazione sul topic del suo {@link BroadcastScope} (vedi {@link CommandTopics}).
+ * I comandi di sicurezza ({@code EMERGENCY} per default) viaggiano su una corsia prioritaria con una propria
+ * connessione, finestra e coda: non attendono mai dietro ai comandi ordinari accodati o in volo, né sulla coda
+ * del publisher né sulla connessione TCP verso il broker, e non vengono rifiutati quando la coda ordinaria è piena.
  */
 public class CommandPublisher implements AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(CommandPublisher.class);
     private static final String CLIENT_ID_PREFIX = "command-publisher-";
-    private static final String GLOBAL_COMMAND_TOPIC = "mf/broadcast/cmd";
+    private static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    private static final int DEFAULT_MAX_QUEUED = 10_000;
+    private static final long DEFAULT_TIMEOUT_MS = 10_000;
+    private static final int MAX_CACHED_TOPICS = 65_536;
+    /** Comandi che per default viaggiano sulla corsia prioritaria. */
+    public static final Set<String> DEFAULT_PRIORITY_COMMANDS = Set.of("EMERGENCY");
+    // I comandi di sicurezza sono rari: una finestra piccola basta e non toglie risorse al broker
+    private static final int PRIORITY_MAX_IN_FLIGHT = 16;
+    private static final int PRIORITY_MAX_QUEUED = 1_000;
 
-    private final ObjectMapper mapper = new ObjectMapper();
-    private final IMqttClient client;
     private final String brokerUrl;
-    private boolean connected;
+    private final long timeoutMillis;
+    private final Set<String> priorityCommands;
+    private final Lane routine;
+    private final Lane priority;
+    private final Map<DeviceKey, String> topics = new ConcurrentHashMap<>();
+    private volatile boolean closed;
 
     // Costruttore che crea il client MQTT utilizzando la configurazione dell'ambiente
     public CommandPublisher() throws MqttException {
-        this.brokerUrl = Optional.ofNullable(System.getenv("MQTT_BROKER_URL"))
-                .orElse("tcp://localhost:1883");
-        String clientId = CLIENT_ID_PREFIX + UUID.randomUUID();
-        this.client = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
+        this(Optional.ofNullable(System.getenv("MQTT_BROKER_URL")).orElse("tcp://localhost:1883"),
+                EnvSettings.intValue("MQTT_COMMAND_MAX_INFLIGHT", DEFAULT_MAX_IN_FLIGHT, 1),
+                EnvSettings.intValue("MQTT_COMMAND_MAX_QUEUED", DEFAULT_MAX_QUEUED, 1),
+                EnvSettings.longValue("MQTT_COMMAND_TIMEOUT_MS", DEFAULT_TIMEOUT_MS, 1),
+                Optional.ofNullable(System.getenv("MQTT_PRIORITY_COMMANDS"))
+                        .map(CommandPublisher::parseCommandTypes)
+                        .orElse(DEFAULT_PRIORITY_COMMANDS));
     }
 
     /**
-     * Stabilisce la connessione del client MQTT interno se non è già attiva.
+     * Crea un publisher con la corsia prioritaria per i comandi {@link #DEFAULT_PRIORITY_COMMANDS}.
+     *
+     * @see #CommandPublisher(String, int, int, long, Set)
      */
-    public synchronized void start() throws MqttException {
-        if (connected) {
-            return;
-        }
-        MqttConnectOptions options = new MqttConnectOptions();
-        options.setAutomaticReconnect(true);
-        options.setCleanSession(true);
-        options.setConnectionTimeout(10);
-
-        Optional.ofNullable(System.getenv("MQTT_USERNAME")).ifPresent(options::setUserName);
-        Optional.ofNullable(System.getenv("MQTT_PASSWORD"))
-                .map(String::toCharArray)
-                .ifPresent(options::setPassword);
-
-        client.connect(options);
-        connected = true;
-        logger.info("CommandPublisher connected to MQTT broker {}", brokerUrl);
+    public CommandPublisher(String brokerUrl, int maxInFlight, int maxQueued, long timeoutMillis) throws MqttException {
+        this(brokerUrl, maxInFlight, maxQueued, timeoutMillis, DEFAULT_PRIORITY_COMMANDS);
+    }
+
+    /**
+     * @param brokerUrl        URL del broker MQTT.
+     * @param maxInFlight      Comandi ordinari che possono attendere il PUBACK contemporaneamente.
+     * @param maxQueued        Comandi ordinari in attesa di un posto nella finestra prima di rifiutarne di nuovi.
+     * @param timeoutMillis    Tempo massimo tra l'invio del comando e il PUBACK del broker.
+     * @param priorityCommands Tipi di comando pubblicati sulla corsia prioritaria; con un insieme vuoto
+     *                         tutti i comandi condividono la corsia ordinaria e non si apre la seconda connessione.
+     */
+    public CommandPublisher(String brokerUrl, int maxInFlight, int maxQueued, long timeoutMillis,
+                            Set<String> priorityCommands) throws MqttException {
+        if (maxInFlight <= 0 || maxQueued <= 0 || timeoutMillis <= 0) {
+            throw new IllegalArgumentException("maxInFlight, maxQueued and timeoutMillis must be positive");
+        }
+        this.brokerUrl = brokerUrl;
+        this.timeoutMillis = timeoutMillis;
+        this.priorityCommands = Set.copyOf(priorityCommands);
+        this.routine = new Lane("routine", CLIENT_ID_PREFIX, maxInFlight, maxQueued);
+        this.priority = this.priorityCommands.isEmpty()
+                ? routine
+                : new Lane("priority", CLIENT_ID_PREFIX + "priority-", PRIORITY_MAX_IN_FLIGHT, PRIORITY_MAX_QUEUED);
+    }
+
+    /**
+     * Stabilisce le connessioni dei client MQTT interni se non sono già attive, attendendone l'esito.
+     * Dopo la prima connessione i client si riconnettono da soli; i comandi accodati nel frattempo
+     * partono alla riconnessione.
+     */
+    public void start() throws MqttException {
+        IMqttToken routineToken = routine.connect();
+        IMqttToken priorityToken = priority != routine ? priority.connect() : null;
+        if (routineToken != null) {
+            routineToken.waitForCompletion();
+        }
+        if (priorityToken != null) {
+            priorityToken.waitForCompletion();
+        }
     }
 
     /**
      * Pubblica un comando indirizzato a un dispositivo specifico della cella.
+     *
+     * @return Il future completato al PUBACK del broker.
      */
-    public synchronized void publishDeviceCommand(String cellId, String deviceType, String deviceId, Command command)
-            throws MqttException {
-        ensureConnected();
-        String topic = String.format("mf/%s/%s/%s/cmd", cellId, deviceType, deviceId);
-        publish(topic, command);
+    public CompletableFuture<Void> publishDeviceCommand(DeviceKey device, Command command) {
+        return submit(topicFor(device), command);
     }
 
     /**
      * Pubblica un comando broadcast destinato a tutti i dispositivi della fabbrica.
+     *
+     * @return Il future completato al PUBACK del broker.
      */
-    public synchronized void publishGlobalCommand(Command command) throws MqttException {
-        ensureConnected();
-        publish(GLOBAL_COMMAND_TOPIC, command);
+    public CompletableFuture<Void> publishGlobalCommand(Command command) {
+        return publishBroadcastCommand(BroadcastScope.FACTORY, command);
     }
 
-    // Serializza e invia il comando sul topic scelto gestendo eventuali errori di pubblicazione
-    private void publish(String topic, Command command) throws MqttException {
-        try {
-            byte[] payload = mapper.writeValueAsBytes(command);
-            client.publish(topic, payload, 1, false);
-            logger.info("Published command {} to {}", command.getType(), topic);
-        } catch (Exception e) {
-            if (e instanceof MqttException mqttException) {
-                throw mqttException;
+    /**
+     * Pubblica un comando broadcast con un'unica pubblicazione sul topic dell'ambito; il broker lo consegna a
+     * tutti i dispositivi che lo sottoscrivono.
+     *
+     * @return Il future completato al PUBACK del broker.
+     */
+    public CompletableFuture<Void> publishBroadcastCommand(BroadcastScope scope, Command command) {
+        return submit(CommandTopics.broadcast(scope), command);
+    }
+
+    /**
+     * Indica se i comandi del tipo indicato viaggiano sulla corsia prioritaria.
+     */
+    public boolean isPriority(String commandType) {
+        return priorityCommands.contains(commandType);
+    }
+
+    /**
+     * Restituisce il numero di comandi in attesa del PUBACK, su entrambe le corsie.
+     */
+    public int inFlight() {
+        return priority == routine ? routine.inFlight() : routine.inFlight() + priority.inFlight();
+    }
+
+    // Elenco di tipi di comando separati da virgole, come nella variabile MQTT_PRIORITY_COMMANDS
+    static Set<String> parseCommandTypes(String text) {
+        return Arrays.stream(text.split(","))
+                .map(String::trim)
+                .filter(type -> !type.isEmpty())
+                .map(type -> type.toUpperCase(Locale.ROOT))
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    // Topic dei comandi del dispositivo dalla cache; oltre la capacità rimuove una voce arbitraria
+    private String topicFor(DeviceKey device) {
+        String topic = topics.get(device);
+        if (topic != null) {
+            return topic;
+        }
+        if (topics.size() >= MAX_CACHED_TOPICS) {
+            Iterator<DeviceKey> victim = topics.keySet().iterator();
+            if (victim.hasNext()) {
+                victim.next();
+                victim.remove();
             }
-            throw new MqttException(e);
         }
+        topic = CommandTopics.device(device.cell(), device.type(), device.id());
+        topics.put(device, topic);
+        return topic;
     }
 
-    // Garantisce che la connessione MQTT sia attiva prima di inviare il comando richiesto
-    private void ensureConnected() throws MqttException {
-        if (!connected || !client.isConnected()) {
-            start();
+    // Serializza il comando e lo accoda sulla corsia del suo tipo
+    private CompletableFuture<Void> submit(String topic, Command command) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("CommandPublisher chiuso"));
+        }
+        byte[] payload;
+        try {
+            payload = Codecs.COMMAND_WRITER.writeValueAsBytes(command);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
         }
+        Lane lane = isPriority(command.getType()) ? priority : routine;
+        return lane.submit(new PendingCommand(topic, payload, command.getType(), new CompletableFuture<>()))
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
     }
 
     @Override
-    public synchronized void close() throws MqttException {
-        if (client.isConnected()) {
-            client.disconnect();
-            logger.info("CommandPublisher disconnected from MQTT broker {}", brokerUrl);
+    public void close() throws MqttException {
+        closed = true;
+        IllegalStateException cause = new IllegalStateException("CommandPublisher chiuso");
+        routine.failQueued(cause);
+        priority.failQueued(cause);
+        // Chiude per ultima la corsia prioritaria, così un'emergenza in volo ha tutto il timeout per il PUBACK
+        routine.disconnect();
+        if (priority != routine) {
+            priority.disconnect();
         }
-        connected = false;
+    }
+
+    /**
+     * Connessione MQTT con la propria finestra di pubblicazione e la propria coda limitata. Le due corsie non
+     * condividono nulla: un comando prioritario non attende i PUBACK né i comandi in coda di quella ordinaria.
+     */
+    private final class Lane {
+
+        private final String name;
+        private final IMqttAsyncClient client;
+        private final int maxInFlight;
+        private final int maxQueued;
+        private final Semaphore window;
+        private final Queue<PendingCommand> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        Lane(String name, String clientIdPrefix, int maxInFlight, int maxQueued) throws MqttException {
+            this.name = name;
+            this.maxInFlight = maxInFlight;
+            this.maxQueued = maxQueued;
+            this.window = new Semaphore(maxInFlight);
+            this.client = new MqttAsyncClient(brokerUrl, clientIdPrefix + UUID.randomUUID(), new MemoryPersistence());
+            this.client.setCallback(new MqttCallbackExtended() {
+                @Override
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    logger.info("CommandPublisher {} lane {} to MQTT broker {}", name,
+                            reconnect ? "reconnected" : "connected", serverURI);
+                    drain();
+                }
+
+                @Override
+                public void connectionLost(Throwable cause) {
+                    logger.warn("CommandPublisher {} lane lost connection to MQTT broker {}", name, brokerUrl, cause);
+                }
+
+                @Override
+                public void messageArrived(String topic, MqttMessage message) {
+                }
+
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                }
+            });
+        }
+
+        int inFlight() {
+            return maxInFlight - window.availablePermits();
+        }
+
+        // Accoda il comando; parte subito se la finestra ha posto e il client è connesso
+        CompletableFuture<Void> submit(PendingCommand command) {
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                return CompletableFuture.failedFuture(new RejectedExecutionException(
+                        "Coda dei comandi MQTT " + name + " piena (" + maxQueued + ")"));
+            }
+            queue.add(command);
+            if (!client.isConnected()) {
+                try {
+                    connect();
+                } catch (MqttException e) {
+                    failQueued(e);
+                }
+            }
+            drain();
+            return command.future;
+        }
+
+        /**
+         * Invia i comandi accodati finché la finestra ha posto. Viene chiamato dopo ogni accodamento, ogni PUBACK
+         * e ogni (ri)connessione, per cui un comando non resta in coda mentre la finestra è libera.
+         */
+        private void drain() {
+            while (client.isConnected() && !queue.isEmpty() && window.tryAcquire()) {
+                PendingCommand command = queue.poll();
+                if (command == null) {
+                    window.release();
+                    return;
+                }
+                queued.decrementAndGet();
+                // Comando già scaduto mentre era in coda: il chiamante ha ricevuto l'errore, non va più inviato
+                if (command.future.isDone()) {
+                    window.release();
+                    continue;
+                }
+                send(command);
+            }
+        }
+
+        private void send(PendingCommand command) {
+            try {
+                client.publish(command.topic, command.payload, 1, false, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        window.release();
+                        command.future.complete(null);
+                        logger.debug("Published command {} to {}", command.type, command.topic);
+                        drain();
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable exception) {
+                        window.release();
+                        command.future.completeExceptionally(exception);
+                        logger.warn("Error publishing command {} to {}", command.type, command.topic, exception);
+                        drain();
+                    }
+                });
+            } catch (MqttException e) {
+                window.release();
+                command.future.completeExceptionally(e);
+                logger.warn("Error publishing command {} to {}", command.type, command.topic, e);
+            }
+        }
+
+        /**
+         * Avvia la prima connessione se non è già stata avviata.
+         *
+         * @return Il token della connessione avviata, oppure {@code null} se era già in corso o stabilita.
+         */
+        IMqttToken connect() throws MqttException {
+            if (!started.compareAndSet(false, true)) {
+                return null;
+            }
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setAutomaticReconnect(true);
+            options.setCleanSession(true);
+            options.setConnectionTimeout(10);
+            options.setMaxInflight(maxInFlight);
+
+            Optional.ofNullable(System.getenv("MQTT_USERNAME")).ifPresent(options::setUserName);
+            Optional.ofNullable(System.getenv("MQTT_PASSWORD"))
+                    .map(String::toCharArray)
+                    .ifPresent(options::setPassword);
+
+            try {
+                return client.connect(options, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        drain();
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable exception) {
+                        // La prossima pubblicazione ritenta la connessione; i comandi in attesa falliscono subito
+                        started.set(false);
+                        logger.error("CommandPublisher {} lane cannot connect to MQTT broker {}", name, brokerUrl, exception);
+                        failQueued(exception);
+                    }
+                });
+            } catch (MqttException e) {
+                started.set(false);
+                throw e;
+            }
+        }
+
+        // Completa con errore tutti i comandi ancora in coda
+        void failQueued(Throwable cause) {
+            PendingCommand command;
+            while ((command = queue.poll()) != null) {
+                queued.decrementAndGet();
+                command.future.completeExceptionally(cause);
+            }
+        }
+
+        void disconnect() throws MqttException {
+            if (client.isConnected()) {
+                // Attende i PUBACK dei comandi in volo al più per il timeout, poi chiude comunque la connessione
+                client.disconnect(timeoutMillis).waitForCompletion();
+                logger.info("CommandPublisher {} lane disconnected from MQTT broker {}", name, brokerUrl);
+            }
+        }
+    }
+
+    // Comando serializzato in attesa di un posto nella finestra di pubblicazione
+    private record PendingCommand(String topic, byte[] payload, String type, CompletableFuture<Void> future) {
     }
 }
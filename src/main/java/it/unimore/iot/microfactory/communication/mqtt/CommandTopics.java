@@ -0,0 +1,58 @@
+package it.unimore.iot.microfactory.communication.mqtt;
+
+import it.unimore.iot.microfactory.domain.BroadcastScope;
+
+/**
+ * Topic MQTT dei comandi, condivisi tra il publisher lato server e i dispositivi che li sottoscrivono.
+ * Un dispositivo riceve i comandi su {@code mf/{cell}/{type}/{id}/cmd} e i broadcast su
+ * {@code mf/broadcast/cmd} (fabbrica), {@code mf/{cell}/broadcast/cmd} (cella) e
+ * {@code mf/{cell}/{type}/broadcast/cmd} (tipo).
+ */
+public final class CommandTopics {
+
+    private static final String PREFIX = "mf/";
+    private static final String BROADCAST_LEVEL = "broadcast";
+    private static final String SUFFIX = "/" + TopicResolver.Suffix.CMD.level();
+    private static final String FACTORY_BROADCAST = PREFIX + BROADCAST_LEVEL + SUFFIX;
+
+    private CommandTopics() {
+    }
+
+    /**
+     * Topic dei comandi indirizzati a un singolo dispositivo.
+     */
+    public static String device(String cell, String type, String id) {
+        return PREFIX + cell + "/" + type + "/" + id + SUFFIX;
+    }
+
+    /**
+     * Topic dei comandi broadcast destinati a tutti i dispositivi della fabbrica.
+     */
+    public static String factoryBroadcast() {
+        return FACTORY_BROADCAST;
+    }
+
+    /**
+     * Topic dei comandi broadcast destinati a tutti i dispositivi della cella.
+     */
+    public static String cellBroadcast(String cell) {
+        return PREFIX + cell + "/" + BROADCAST_LEVEL + SUFFIX;
+    }
+
+    /**
+     * Topic dei comandi broadcast destinati ai dispositivi di un tipo all'interno della cella.
+     */
+    public static String typeBroadcast(String cell, String type) {
+        return PREFIX + cell + "/" + type + "/" + BROADCAST_LEVEL + SUFFIX;
+    }
+
+    /**
+     * Topic dei comandi broadcast dell'ambito indicato.
+     */
+    public static String broadcast(BroadcastScope scope) {
+        if (scope.cell() == null) {
+            return FACTORY_BROADCAST;
+        }
+        return scope.type() == null ? cellBroadcast(scope.cell()) : typeBroadcast(scope.cell(), scope.type());
+    }
+}
@@ -1,7 +1,7 @@
 package it.unimore.iot.microfactory.communication.mqtt;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unimore.iot.microfactory.codec.PayloadEncoding;
+import it.unimore.iot.microfactory.codec.TelemetryCodec;
 import org.eclipse.paho.client.mqttv3.IMqttClient;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
@@ -11,6 +11,7 @@ import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
@@ -27,7 +28,11 @@ public class MqttClientManager {
     private final String deviceId;
 
     private final IMqttClient mqttClient;
-    private final ObjectMapper objectMapper;
+
+    // Codifica della telemetria; info, ack e LWT restano in JSON
+    private final PayloadEncoding telemetryEncoding = Optional.ofNullable(System.getenv("MQTT_PAYLOAD_ENCODING"))
+            .map(PayloadEncoding::parse)
+            .orElse(PayloadEncoding.JSON);
 
     // Costruttore che prepara il client MQTT e definisce identificativi per topic e clientId
     public MqttClientManager(String cellId, String deviceType, String deviceId) throws MqttException {
@@ -42,7 +47,6 @@ public class MqttClientManager {
         String clientId = String.format("%s-%s-%s-%s", CLIENT_ID_PREFIX, cellId, deviceType, UUID.randomUUID());
         MqttClientPersistence persistence = new MemoryPersistence();
         this.mqttClient = new MqttClient(brokerUrl, clientId, persistence);
-        this.objectMapper = new ObjectMapper();
     }
 
     // Apre la connessione al broker configurando credenziali, LWT e messaggio informativo retained
@@ -94,7 +98,7 @@ public class MqttClientManager {
         }
     }
 
-    // Pubblica un messaggio QoS1 non retained sul topic specificato serializzando l'oggetto in JSON
+    // Pubblica un messaggio QoS1 non retained sul topic specificato serializzando l'oggetto (JSON, o la codifica configurata per la telemetria)
     public <T> void publish(String topic, T payload) {
         try {
             if (this.mqttClient.isConnected()) {
@@ -134,11 +138,13 @@ public class MqttClientManager {
         }
     }
 
-    // Serializza un payload generico in JSON, restituendo i byte da inviare su MQTT
+    // Serializza la telemetria nella codifica configurata e gli altri payload in JSON, restituendo i byte da inviare su MQTT
     private <T> Optional<byte[]> serializePayload(T payload) {
         try {
-            return Optional.of(objectMapper.writeValueAsBytes(payload));
-        } catch (JsonProcessingException e) {
+            return Optional.of(TelemetryCodec.isTelemetry(payload)
+                    ? TelemetryCodec.write(telemetryEncoding, payload)
+                    : TelemetryCodec.write(payload));
+        } catch (IOException e) {
             logger.error("Error serializing payload", e);
             return Optional.empty();
         }
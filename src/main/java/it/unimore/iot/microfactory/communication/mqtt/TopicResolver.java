@@ -0,0 +1,146 @@
+package it.unimore.iot.microfactory.communication.mqtt;
+
+import it.unimore.iot.microfactory.domain.DeviceKey;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Risolve i topic MQTT dei dispositivi ({@code mf/{cell}/{type}/{id}/{suffix}}) nella
+ * {@link DeviceKey} e nel suffisso corrispondenti.
+ * I topic già visti sono serviti da una cache limitata senza allocare; quelli nuovi vengono
+ * analizzati da uno scanner scritto a mano che crea solo le tre stringhe di cella, tipo e id.
+ * Superata la capacità, la cache rimuove una voce arbitraria per ogni nuovo inserimento.
+ * I topic non validi non vengono memorizzati.
+ */
+public final class TopicResolver {
+
+    private static final String PREFIX = "mf/";
+
+    /**
+     * Ultimo livello del topic, che identifica il tipo di messaggio.
+     */
+    public enum Suffix {
+        STATUS("status"),
+        INFO("info"),
+        LWT("lwt"),
+        ACK("ack"),
+        CMD("cmd");
+
+        private static final Suffix[] VALUES = values();
+
+        private final String level;
+
+        Suffix(String level) {
+            this.level = level;
+        }
+
+        public String level() {
+            return level;
+        }
+
+        // Riconosce il suffisso che occupa il topic da offset alla fine, senza creare sottostringhe
+        static Suffix match(String topic, int offset) {
+            int length = topic.length() - offset;
+            for (Suffix suffix : VALUES) {
+                if (suffix.level.length() == length && topic.startsWith(suffix.level, offset)) {
+                    return suffix;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Topic risolto: dispositivo mittente e tipo di messaggio.
+     */
+    public record Topic(DeviceKey device, Suffix suffix) {
+    }
+
+    private final int maxEntries;
+    private final Map<String, Topic> cache = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxEntries Numero massimo di topic memorizzati.
+     */
+    public TopicResolver(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Risolve il topic usando la cache o, per i topic nuovi, lo scanner.
+     *
+     * @return Il topic risolto oppure {@code null} se non rispetta il formato atteso.
+     */
+    public Topic resolve(String topic) {
+        Topic resolved = cache.get(topic);
+        if (resolved != null) {
+            return resolved;
+        }
+        resolved = parse(topic);
+        if (resolved != null) {
+            if (cache.size() >= maxEntries) {
+                evictOne();
+            }
+            cache.put(topic, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Numero di topic attualmente memorizzati.
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Analizza il topic senza usare la cache.
+     *
+     * @return Il topic risolto oppure {@code null} se non rispetta il formato atteso.
+     */
+    static Topic parse(String topic) {
+        if (!topic.startsWith(PREFIX)) {
+            return null;
+        }
+        int cellStart = PREFIX.length();
+        int typeStart = nextLevel(topic, cellStart);
+        int idStart = nextLevel(topic, typeStart);
+        int suffixStart = nextLevel(topic, idStart);
+        if (suffixStart < 0) {
+            return null;
+        }
+        // Il suffisso è l'ultimo livello: un'ulteriore '/' non corrisponde a nessun valore ammesso
+        Suffix suffix = Suffix.match(topic, suffixStart);
+        if (suffix == null) {
+            return null;
+        }
+        DeviceKey key = DeviceKey.of(
+                topic.substring(cellStart, typeStart - 1),
+                topic.substring(typeStart, idStart - 1),
+                topic.substring(idStart, suffixStart - 1));
+        return new Topic(key, suffix);
+    }
+
+    // Restituisce l'inizio del livello successivo a quello che parte da start, oppure -1 se il livello è vuoto o l'ultimo
+    private static int nextLevel(String topic, int start) {
+        if (start < 0) {
+            return -1;
+        }
+        int slash = topic.indexOf('/', start);
+        return slash > start ? slash + 1 : -1;
+    }
+
+    // Rimuove una voce qualsiasi per mantenere la cache entro la capacità
+    private void evictOne() {
+        Iterator<String> it = cache.keySet().iterator();
+        if (it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -1,14 +1,16 @@
 package it.unimore.iot.microfactory.device.simulator;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unimore.iot.microfactory.codec.Codecs;
 import it.unimore.iot.microfactory.model.Ack;
 import it.unimore.iot.microfactory.model.Command;
 import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Random;
 
 // Simulatore del nastro trasportatore che invia telemetria periodica e riceve comandi MQTT
@@ -22,21 +24,18 @@ public class ConveyorBelt extends SimulatedDevice {
     private static final int TELEMETRY_PUBLISH_INTERVAL_MS = 5000;
 
     private final Random random = new Random();
-    private final ObjectMapper objectMapper = new ObjectMapper();
 
     // Stato
     private volatile boolean active = false;
 
     // Topic
     private final String statusTopic;
-    private final String cmdTopic;
     private final String ackTopic;
 
-    // Costruttore che inizializza i topic di stato, comando e ACK del nastro
+    // Costruttore che inizializza i topic di stato e ACK del nastro
     public ConveyorBelt(String cellId, String deviceType, String deviceId) {
         super(cellId, deviceType, deviceId);
         this.statusTopic = String.format("mf/%s/%s/%s/status", cellId, deviceType, deviceId);
-        this.cmdTopic    = String.format("mf/%s/%s/%s/cmd",    cellId, deviceType, deviceId);
         this.ackTopic    = String.format("mf/%s/%s/%s/ack",    cellId, deviceType, deviceId);
     }
 
@@ -52,20 +51,25 @@ public class ConveyorBelt extends SimulatedDevice {
         }
     }
 
-    // Sottoscrive il topic dei comandi per aggiornare lo stato ON/OFF del dispositivo
+    // Sottoscrive il topic dei comandi e quelli broadcast per aggiornare lo stato ON/OFF del dispositivo
     private void subscribeToCommands() {
+        String[] topics = commandTopics();
+        int[] qos = new int[topics.length];
+        IMqttMessageListener[] handlers = new IMqttMessageListener[topics.length];
+        Arrays.fill(qos, 1);
+        Arrays.fill(handlers, (IMqttMessageListener) this::handleCommandMessage);
         try {
-            mqttClientManager.getClient().subscribe(cmdTopic, 1, this::handleCommandMessage);
-            logger.info("Subscribed to command topic: {}", cmdTopic);
+            mqttClientManager.getClient().subscribe(topics, qos, handlers);
+            logger.info("Subscribed to command topics: {}", Arrays.toString(topics));
         } catch (MqttException e) {
-            logger.error("Failed to subscribe to command topic {}", cmdTopic, e);
+            logger.error("Failed to subscribe to command topics {}", Arrays.toString(topics), e);
         }
     }
 
     // Converte il payload MQTT in un oggetto Command e lo inoltra alla logica specifica
     private void handleCommandMessage(String topic, MqttMessage message) {
         try {
-            Command cmd = objectMapper.readValue(message.getPayload(), Command.class);
+            Command cmd = Codecs.COMMAND_READER.readValue(message.getPayload());
             logger.info("Received command: {} on topic {}", cmd.getType(), topic);
             handleCommand(cmd);
         } catch (Exception e) {
@@ -102,6 +106,11 @@ public class ConveyorBelt extends SimulatedDevice {
                 }
                 break;
 
+            case "EMERGENCY":
+                this.active = false;
+                logger.warn("Conveyor belt {} stopped by EMERGENCY command", deviceId);
+                break;
+
             case "RESET":
                 // Nessuna logica speciale: solo ACK positivo
                 break;
@@ -1,14 +1,17 @@
 package it.unimore.iot.microfactory.device.simulator;
 
+import it.unimore.iot.microfactory.codec.Codecs;
 import it.unimore.iot.microfactory.model.Ack;
 import it.unimore.iot.microfactory.model.Command;
 import it.unimore.iot.microfactory.model.RobotCellStatus;
 import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Random;
 
 // Simulatore di cella robotica che alterna stati operativi e gestisce comandi MQTT
@@ -24,14 +27,12 @@ public class RobotCell extends SimulatedDevice {
     private RobotCellStatusEnum currentState = RobotCellStatusEnum.IDLE;
 
     private final String statusTopic;
-    private final String cmdTopic;
     private final String ackTopic;
 
     // Costruttore che imposta i topic MQTT specifici della cella robotica
     public RobotCell(String cellId, String deviceType, String deviceId) {
         super(cellId, deviceType, deviceId);
         this.statusTopic = String.format("mf/%s/%s/%s/status", cellId, deviceType, deviceId);
-        this.cmdTopic = String.format("mf/%s/%s/%s/cmd", cellId, deviceType, deviceId);
         this.ackTopic = String.format("mf/%s/%s/%s/ack", cellId, deviceType, deviceId);
     }
 
@@ -52,6 +53,9 @@ public class RobotCell extends SimulatedDevice {
                 case ALARM:
                     handleAlarmState();
                     break;
+                case EMERGENCY_STOP:
+                    handleEmergencyStopState();
+                    break;
             }
             Thread.sleep(100); // Piccolo ritardo per evitare un loop troppo aggressivo
         }
@@ -93,20 +97,34 @@ public class RobotCell extends SimulatedDevice {
         }
     }
 
-    // Sottoscrive il topic dei comandi per ricevere i messaggi di controllo via MQTT
+    // Mantiene il robot fermo dopo un EMERGENCY finché un operatore non invia RESET
+    private void handleEmergencyStopState() throws InterruptedException {
+        publishStatus(0);
+        logger.error("Robot {} is in EMERGENCY_STOP state. Waiting for operator RESET command...", deviceId);
+        while (running && this.currentState == RobotCellStatusEnum.EMERGENCY_STOP) {
+            Thread.sleep(1000);
+        }
+    }
+
+    // Sottoscrive il topic dei comandi e quelli broadcast per ricevere i messaggi di controllo via MQTT
     private void subscribeToCommands() {
+        String[] topics = commandTopics();
+        int[] qos = new int[topics.length];
+        IMqttMessageListener[] handlers = new IMqttMessageListener[topics.length];
+        Arrays.fill(qos, 1);
+        Arrays.fill(handlers, (IMqttMessageListener) this::handleCommandMessage);
         try {
-            mqttClientManager.getClient().subscribe(cmdTopic, 1, this::handleCommandMessage);
-            logger.info("Subscribed to command topic: {}", cmdTopic);
+            mqttClientManager.getClient().subscribe(topics, qos, handlers);
+            logger.info("Subscribed to command topics: {}", Arrays.toString(topics));
         } catch (MqttException e) {
-            logger.error("Failed to subscribe to command topic {}", cmdTopic, e);
+            logger.error("Failed to subscribe to command topics {}", Arrays.toString(topics), e);
         }
     }
 
     // Decodifica il comando ricevuto dal topic MQTT e lo inoltra alla logica di gestione
     private void handleCommandMessage(String topic, MqttMessage message) {
         try {
-            Command cmd = objectMapper.readValue(message.getPayload(), Command.class);
+            Command cmd = Codecs.COMMAND_READER.readValue(message.getPayload());
             logger.info("Received command: {} on topic {}", cmd.getType(), topic);
             handleCommand(cmd);
         } catch (Exception e) {
@@ -131,13 +149,18 @@ public class RobotCell extends SimulatedDevice {
             case "STOP":
                 this.currentState = RobotCellStatusEnum.IDLE;
                 break;
+            case "EMERGENCY":
+                // Arresto di sicurezza: stato distinto da ALARM, che l'auto reset del collector non sblocca
+                this.currentState = RobotCellStatusEnum.EMERGENCY_STOP;
+                logger.warn("Robot {} stopped by EMERGENCY command, state changed to EMERGENCY_STOP", deviceId);
+                break;
             case "RESET":
-                if (currentState == RobotCellStatusEnum.ALARM) {
+                if (currentState == RobotCellStatusEnum.ALARM || currentState == RobotCellStatusEnum.EMERGENCY_STOP) {
+                    logger.info("Robot {} reset from {} state.", deviceId, currentState);
                     this.currentState = RobotCellStatusEnum.IDLE;
-                    logger.info("Robot {} reset from ALARM state.", deviceId);
                 } else {
                     status = "ERROR";
-                    message = "Cannot reset, not in ALARM state.";
+                    message = "Cannot reset, not in ALARM or EMERGENCY_STOP state.";
                 }
                 break;
             default:
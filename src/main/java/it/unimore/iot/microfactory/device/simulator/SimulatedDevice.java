@@ -1,6 +1,6 @@
 package it.unimore.iot.microfactory.device.simulator;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unimore.iot.microfactory.communication.mqtt.CommandTopics;
 import it.unimore.iot.microfactory.communication.mqtt.MqttClientManager;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
@@ -15,7 +15,6 @@ public abstract class SimulatedDevice implements Runnable {
     protected final String deviceType;
     protected final String deviceId;
     protected final MqttClientManager mqttClientManager;
-    protected final ObjectMapper objectMapper = new ObjectMapper();
     protected volatile boolean running = true;
 
     // Costruttore condiviso che inizializza l'identità del dispositivo e il relativo client MQTT
@@ -61,6 +60,19 @@ public abstract class SimulatedDevice implements Runnable {
         logger.info("Shutdown requested for device {}.", deviceId);
     }
 
+    /**
+     * Topic dei comandi sottoscritti dal dispositivo: il proprio {@code mf/{cell}/{type}/{id}/cmd} e i tre topic
+     * broadcast di fabbrica, cella e tipo, in modo che un comando broadcast sia una sola pubblicazione del server.
+     */
+    protected String[] commandTopics() {
+        return new String[]{
+                CommandTopics.device(cellId, deviceType, deviceId),
+                CommandTopics.factoryBroadcast(),
+                CommandTopics.cellBroadcast(cellId),
+                CommandTopics.typeBroadcast(cellId, deviceType)
+        };
+    }
+
     /**
      * Logica principale di simulazione del device.
      * Questo metodo è chiamato dopo la connessione MQTT.
@@ -0,0 +1,41 @@
+package it.unimore.iot.microfactory.domain;
+
+import java.util.Objects;
+
+/**
+ * Insieme di dispositivi raggiunto da un comando broadcast: l'intera fabbrica, una cella o un tipo di dispositivo
+ * in una cella. Ogni ambito corrisponde a un unico topic MQTT sottoscritto da tutti i dispositivi che include.
+ *
+ * @param cell Cella dell'ambito, oppure {@code null} per l'intera fabbrica.
+ * @param type Tipo di dispositivo nella cella, oppure {@code null} per tutti i tipi.
+ */
+public record BroadcastScope(String cell, String type) {
+
+    public static final BroadcastScope FACTORY = new BroadcastScope(null, null);
+
+    public BroadcastScope {
+        if (cell == null && type != null) {
+            throw new IllegalArgumentException("a type scope requires a cell");
+        }
+    }
+
+    public static BroadcastScope cell(String cell) {
+        return new BroadcastScope(Objects.requireNonNull(cell), null);
+    }
+
+    public static BroadcastScope type(String cell, String type) {
+        return new BroadcastScope(Objects.requireNonNull(cell), Objects.requireNonNull(type));
+    }
+
+    public boolean includes(DeviceKey device) {
+        return (cell == null || cell.equals(device.cell())) && (type == null || type.equals(device.type()));
+    }
+
+    @Override
+    public String toString() {
+        if (cell == null) {
+            return "factory";
+        }
+        return type == null ? cell : cell + "/" + type;
+    }
+}
@@ -0,0 +1,68 @@
+package it.unimore.iot.microfactory.domain;
+
+import java.util.List;
+
+/**
+ * Fotografia dello stato dei dispositivi di una cella (o di un solo tipo nella cella).
+ * Per ogni dispositivo conserva la coppia versione/stato letta atomicamente, per cui l'intera
+ * risposta viene serializzata da un'unica vista anche se la telemetria continua ad arrivare.
+ * I dispositivi ancora privi di telemetria non compaiono.
+ */
+public final class CellSnapshot {
+
+    /**
+     * Stato di un dispositivo al momento della fotografia.
+     * Lo stato può essere {@link RawTelemetry} se il dispositivo è in modalità passthrough; è {@code null} solo
+     * nei lotti di variazioni, per un dispositivo rimosso dopo l'ultimo lotto.
+     */
+    public record Device(DeviceKey key, long version, Object state) {
+
+        static Device removed(DeviceKey key) {
+            return new Device(key, 0, null);
+        }
+
+        public boolean isRemoved() {
+            return state == null;
+        }
+    }
+
+    private final String cell;
+    private final String type;
+    private final List<Device> devices;
+    private final long fingerprint;
+
+    CellSnapshot(String cell, String type, List<Device> devices) {
+        this.cell = cell;
+        this.type = type;
+        this.devices = List.copyOf(devices);
+        long hash = 17;
+        for (Device device : this.devices) {
+            hash = 31 * hash + device.key().hashCode();
+            hash = 31 * hash + device.version();
+        }
+        this.fingerprint = hash;
+    }
+
+    public String cell() {
+        return cell;
+    }
+
+    /**
+     * Tipo a cui è limitata la fotografia, oppure {@code null} per l'intera cella.
+     */
+    public String type() {
+        return type;
+    }
+
+    public List<Device> devices() {
+        return devices;
+    }
+
+    /**
+     * Impronta di chiavi e versioni dei dispositivi: cambia quando un dispositivo viene aggiornato,
+     * aggiunto o rimosso, e si può usare per derivare un ETag senza serializzare la risposta.
+     */
+    public long fingerprint() {
+        return fingerprint;
+    }
+}
@@ -0,0 +1,150 @@
+package it.unimore.iot.microfactory.domain;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import it.unimore.iot.microfactory.codec.BodyCursor;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.codec.PayloadEncoding;
+import it.unimore.iot.microfactory.codec.TelemetryCodec;
+import it.unimore.iot.microfactory.util.senml.SenMLEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Serializza una {@link CellSnapshot} un dispositivo alla volta.
+ * In JSON e CBOR produce {@code {"cell", "type"?, "<layout>": [...]}}, con un elemento per dispositivo;
+ * in SenML un unico pack con nome base {@code {cell}/{type}/{id}/} per ciascun dispositivo.
+ * Nel layout {@link Layout#CHANGES} il numero di sequenza del lotto è il campo {@code seq} dell'oggetto
+ * o, in SenML, il primo record del pack con nome {@code {cell}/seq}; i dispositivi rimossi sono elementi con
+ * {@code "removed": true} senza stato o, in SenML, il record booleano {@code {cell}/{type}/{id}/removed}.
+ */
+final class CellSnapshotCursor extends BodyCursor {
+
+    /**
+     * Contenuto degli elementi dell'array nelle codifiche a oggetti.
+     */
+    enum Layout {
+        /** Solo tipo e id del dispositivo. */
+        DEVICES("devices"),
+        /** Tipo, id e stato corrente del dispositivo. */
+        STATES("states"),
+        /** Come {@link #STATES}, per un lotto di variazioni preceduto dal numero di sequenza. */
+        CHANGES("changes");
+
+        private final String field;
+
+        Layout(String field) {
+            this.field = field;
+        }
+    }
+
+    private final CellSnapshot snapshot;
+    private final PayloadEncoding encoding;
+    private final Layout layout;
+    private final long sequence;
+    private SenMLEncoder senml;
+    // Prossimo dispositivo da scrivere; -1 finché non è stata scritta l'apertura del documento
+    private int next = -1;
+
+    CellSnapshotCursor(CellSnapshot snapshot, PayloadEncoding encoding, Layout layout) {
+        this(snapshot, encoding, layout, 0);
+    }
+
+    CellSnapshotCursor(CellSnapshot snapshot, PayloadEncoding encoding, Layout layout, long sequence) {
+        this.snapshot = snapshot;
+        this.encoding = encoding;
+        this.layout = layout;
+        this.sequence = sequence;
+    }
+
+    @Override
+    protected JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return (encoding.isCbor() ? Codecs.CBOR_FACTORY : Codecs.MAPPER.getFactory()).createGenerator(out);
+    }
+
+    @Override
+    protected boolean writeNext(JsonGenerator gen) throws IOException {
+        List<CellSnapshot.Device> devices = snapshot.devices();
+        if (next < 0) {
+            writeHeader(gen);
+            next = 0;
+            return true;
+        }
+        if (next == devices.size()) {
+            writeFooter(gen);
+            return false;
+        }
+        writeDevice(gen, devices.get(next++));
+        return true;
+    }
+
+    private void writeHeader(JsonGenerator gen) throws IOException {
+        if (encoding.isSenML()) {
+            senml = new SenMLEncoder(gen);
+            senml.startPack();
+            if (layout == Layout.CHANGES) {
+                senml.baseName(snapshot.cell() + "/");
+                senml.numeric("seq", null, sequence, System.currentTimeMillis());
+            }
+            return;
+        }
+        gen.writeStartObject();
+        gen.writeStringField("cell", snapshot.cell());
+        if (snapshot.type() != null) {
+            gen.writeStringField("type", snapshot.type());
+        }
+        if (layout == Layout.CHANGES) {
+            gen.writeNumberField("seq", sequence);
+        }
+        gen.writeArrayFieldStart(layout.field);
+    }
+
+    private void writeDevice(JsonGenerator gen, CellSnapshot.Device device) throws IOException {
+        if (device.isRemoved()) {
+            writeRemoved(gen, device.key());
+            return;
+        }
+        if (encoding.isSenML()) {
+            TelemetryCodec.writeSenMLRecords(senml, device.key().path() + "/", RawTelemetry.decoded(device.state()));
+            return;
+        }
+        gen.writeStartObject();
+        gen.writeStringField("type", device.key().type());
+        gen.writeStringField("id", device.key().id());
+        if (layout != Layout.DEVICES) {
+            gen.writeFieldName("state");
+            // La telemetria passthrough è già JSON e viene copiata senza ricodifica
+            if (encoding == PayloadEncoding.JSON && device.state() instanceof RawTelemetry raw) {
+                gen.writeRawValue(new String(raw.payload(), StandardCharsets.UTF_8));
+            } else {
+                TelemetryCodec.write(gen, RawTelemetry.decoded(device.state()));
+            }
+        }
+        gen.writeEndObject();
+    }
+
+    // Segnaposto di un dispositivo rimosso dopo il lotto precedente: chiave senza stato
+    private void writeRemoved(JsonGenerator gen, DeviceKey key) throws IOException {
+        if (encoding.isSenML()) {
+            senml.baseName(key.path() + "/");
+            senml.bool("removed", true, System.currentTimeMillis());
+            return;
+        }
+        gen.writeStartObject();
+        gen.writeStringField("type", key.type());
+        gen.writeStringField("id", key.id());
+        gen.writeBooleanField("removed", true);
+        gen.writeEndObject();
+    }
+
+    private void writeFooter(JsonGenerator gen) throws IOException {
+        if (encoding.isSenML()) {
+            senml.endPack();
+            return;
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,20 @@
+package it.unimore.iot.microfactory.domain;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Esito di un comando inviato ai dispositivi, nelle due fasi osservabili dal server.
+ *
+ * @param msgId        Identificativo del comando, riportato dai dispositivi nei loro ack.
+ * @param published    Completato quando il broker MQTT conferma la pubblicazione del comando.
+ * @param acknowledged Completato con l'ack del dispositivo (o con l'esito aggregato di un broadcast),
+ *                     oppure in errore alla scadenza o se il comando non è partito.
+ * @param <T>          Tipo dell'esito: {@link it.unimore.iot.microfactory.model.Ack} per un singolo dispositivo,
+ *                     {@link CommandTracker.BroadcastResult} per un broadcast.
+ */
+public record CommandReceipt<T>(String msgId, CompletableFuture<Void> published, CompletableFuture<T> acknowledged) {
+
+    static <T> CommandReceipt<T> failed(String msgId, Throwable cause) {
+        return new CommandReceipt<>(msgId, CompletableFuture.failedFuture(cause), CompletableFuture.failedFuture(cause));
+    }
+}
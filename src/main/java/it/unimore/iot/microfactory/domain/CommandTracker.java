@@ -0,0 +1,342 @@
+package it.unimore.iot.microfactory.domain;
+
+import it.unimore.iot.microfactory.model.Ack;
+import it.unimore.iot.microfactory.model.Command;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Correla i comandi inviati ai dispositivi con gli {@link Ack} che questi pubblicano, usando il {@code msgId}.
+ * I comandi in attesa sono in una tabella indicizzata per {@code msgId}; le scadenze sono gestite da una
+ * timer wheel a bucket con un unico thread che avanza di un tick alla volta, per cui registrare o risolvere
+ * un comando costa O(1) indipendentemente da quanti sono in attesa. La scadenza ha la granularità del tick.
+ * Un comando broadcast attende l'ack di ogni dispositivo dell'ambito e si completa con un esito aggregato
+ * quando sono arrivati tutti, oppure alla scadenza con l'elenco dei dispositivi mancanti.
+ * Per ogni tipo di dispositivo il tracker registra in un {@link LatencyHistogram} il tempo tra l'invio del
+ * comando e l'arrivo dell'ack, oltre al numero di ack con esito ERROR e di ack mancati alla scadenza;
+ * per i broadcast registra anche il tempo fino all'ultimo ack.
+ */
+public class CommandTracker implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommandTracker.class);
+    private static final int WHEEL_SIZE = 512;
+    private static final long DEFAULT_TICK_MS = 10;
+
+    /**
+     * Istantanea dei contatori del tracker.
+     *
+     * @param pending      Comandi (singoli o broadcast) in attesa di ack.
+     * @param acknowledged Ack abbinati a un comando in attesa.
+     * @param timedOut     Comandi scaduti con almeno un ack mancante.
+     * @param unmatched    Ack con un {@code msgId} sconosciuto, tipicamente arrivati dopo la scadenza.
+     * @param latency      Latenze comando→ack e contatori per tipo di dispositivo.
+     * @param broadcast    Tempo dall'invio di un broadcast all'ack dell'ultimo dispositivo, per i broadcast completati.
+     */
+    public record Stats(int pending, long acknowledged, long timedOut, long unmatched, Map<String, TypeStats> latency,
+                        LatencyHistogram.Snapshot broadcast) {
+    }
+
+    /**
+     * Contatori di un tipo di dispositivo.
+     *
+     * @param latency  Latenza comando→ack, in microsecondi.
+     * @param errors   Ack con esito ERROR.
+     * @param timeouts Ack mancati alla scadenza del comando.
+     */
+    public record TypeStats(LatencyHistogram.Snapshot latency, long errors, long timeouts) {
+    }
+
+    /**
+     * Esito aggregato di un comando broadcast.
+     *
+     * @param msgId        Identificativo del comando.
+     * @param targets      Dispositivi dell'ambito al momento dell'invio.
+     * @param acknowledged Dispositivi che hanno risposto, con qualsiasi esito.
+     * @param errors       Dispositivi che hanno risposto ERROR.
+     * @param missing      Dispositivi che non hanno risposto entro la scadenza.
+     * @param elapsedNanos Tempo dall'invio all'ultimo ack, o alla scadenza se mancano ack.
+     */
+    public record BroadcastResult(String msgId, int targets, int acknowledged, int errors, List<DeviceKey> missing,
+                                  long elapsedNanos) {
+
+        public boolean complete() {
+            return missing.isEmpty();
+        }
+    }
+
+    private final long tickMillis;
+    private final long timeoutTicks;
+    private final Map<String, Tracked<?>> pending = new ConcurrentHashMap<>();
+    private final Map<String, TypeCounters> types = new ConcurrentHashMap<>();
+    @SuppressWarnings("unchecked")
+    private final Queue<Tracked<?>>[] wheel = (Queue<Tracked<?>>[]) new Queue<?>[WHEEL_SIZE];
+    private final ScheduledExecutorService timer;
+    private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder unmatched = new LongAdder();
+    private volatile long tick;
+
+    /**
+     * @param timeoutMillis Attesa massima degli ack dopo la registrazione del comando.
+     */
+    public CommandTracker(long timeoutMillis) {
+        this(timeoutMillis, DEFAULT_TICK_MS);
+    }
+
+    /**
+     * @param timeoutMillis Attesa massima degli ack dopo la registrazione del comando.
+     * @param tickMillis    Durata di un tick della timer wheel, cioè la granularità delle scadenze.
+     */
+    public CommandTracker(long timeoutMillis, long tickMillis) {
+        if (timeoutMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("timeoutMillis and tickMillis must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.timeoutTicks = Math.max(1, (timeoutMillis + tickMillis - 1) / tickMillis);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "command-ack-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registra un comando in attesa di ack. Va chiamato prima della pubblicazione, perché l'ack può arrivare
+     * prima della conferma del broker.
+     *
+     * @param device  Dispositivo destinatario del comando.
+     * @param command Comando con {@code msgId} valorizzato.
+     * @return Il future completato con l'ack del dispositivo, oppure con {@link TimeoutException} alla scadenza.
+     */
+    public CompletableFuture<Ack> register(DeviceKey device, Command command) {
+        return track(new Single(msgIdOf(command), device));
+    }
+
+    /**
+     * Registra un comando broadcast in attesa dell'ack di ciascun dispositivo destinatario.
+     *
+     * @param targets Dispositivi raggiunti dal broadcast.
+     * @param command Comando con {@code msgId} valorizzato.
+     * @return Il future completato con l'esito aggregato quando tutti i dispositivi hanno risposto o alla scadenza.
+     */
+    public CompletableFuture<BroadcastResult> registerBroadcast(Collection<DeviceKey> targets, Command command) {
+        FanOut fanOut = new FanOut(msgIdOf(command), targets);
+        if (targets.isEmpty()) {
+            fanOut.future.complete(fanOut.result(List.of()));
+            return fanOut.future;
+        }
+        return track(fanOut);
+    }
+
+    /**
+     * Abbina l'ack ricevuto dal dispositivo al comando in attesa con lo stesso {@code msgId}.
+     *
+     * @return {@code true} se l'ack è stato abbinato a un comando in attesa.
+     */
+    public boolean acknowledge(DeviceKey device, Ack ack) {
+        String msgId = ack.getMsgId();
+        if (msgId == null) {
+            // Ack di comandi non tracciati, come il RESET automatico inviato dal collector
+            return false;
+        }
+        Tracked<?> entry = pending.get(msgId);
+        if (entry == null || !entry.acknowledge(device, ack)) {
+            unmatched.increment();
+            logger.debug("Ack {} from {} does not match any pending command", msgId, device);
+            return false;
+        }
+        acknowledged.increment();
+        return true;
+    }
+
+    /**
+     * Rimuove un comando che non è stato consegnato al broker, completandone il future con l'errore indicato.
+     */
+    public void cancel(String msgId, Throwable cause) {
+        Tracked<?> entry = pending.remove(msgId);
+        if (entry != null) {
+            entry.future.completeExceptionally(cause);
+        }
+    }
+
+    public Stats stats() {
+        Map<String, TypeStats> latency = new LinkedHashMap<>();
+        types.forEach((type, counters) -> latency.put(type, new TypeStats(counters.latency.snapshot(),
+                counters.errors.sum(), counters.timeouts.sum())));
+        return new Stats(pending.size(), acknowledged.sum(), timedOut.sum(), unmatched.sum(), latency,
+                broadcastLatency.snapshot());
+    }
+
+    private static String msgIdOf(Command command) {
+        String msgId = command.getMsgId();
+        if (msgId == null || msgId.isBlank()) {
+            throw new IllegalArgumentException("command msgId is required");
+        }
+        return msgId;
+    }
+
+    // Inserisce il comando nella tabella e nel bucket della sua scadenza; un msgId già in attesa è rifiutato
+    private <T> CompletableFuture<T> track(Tracked<T> entry) {
+        if (pending.putIfAbsent(entry.msgId, entry) != null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("msgId già in attesa: " + entry.msgId));
+        }
+        wheel[(int) (entry.deadline & (WHEEL_SIZE - 1))].add(entry);
+        return entry.future;
+    }
+
+    // Avanza di un tick e fa scadere i comandi del bucket corrente; quelli di un giro successivo restano nel bucket
+    private void advance() {
+        try {
+            long now = ++tick;
+            Iterator<Tracked<?>> it = wheel[(int) (now & (WHEEL_SIZE - 1))].iterator();
+            while (it.hasNext()) {
+                Tracked<?> entry = it.next();
+                if (entry.future.isDone()) {
+                    it.remove();
+                } else if (entry.deadline <= now) {
+                    it.remove();
+                    if (pending.remove(entry.msgId, entry)) {
+                        timedOut.increment();
+                        entry.expire();
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error advancing the command timer wheel", e);
+        }
+    }
+
+    // Registra latenza ed esito di un ack abbinato
+    private void record(DeviceKey device, Ack ack, long sentNanos) {
+        TypeCounters counters = counters(device.type());
+        counters.latency.recordNanos(System.nanoTime() - sentNanos);
+        if ("ERROR".equalsIgnoreCase(ack.getStatus())) {
+            counters.errors.increment();
+        }
+    }
+
+    private TypeCounters counters(String type) {
+        return types.computeIfAbsent(type, ignored -> new TypeCounters());
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        IllegalStateException closed = new IllegalStateException("CommandTracker chiuso");
+        pending.values().forEach(entry -> entry.future.completeExceptionally(closed));
+        pending.clear();
+    }
+
+    // Comando in attesa di ack; deadline è il tick a cui scade
+    private abstract class Tracked<T> {
+        final String msgId;
+        final long sentNanos = System.nanoTime();
+        final long deadline = tick + timeoutTicks;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Tracked(String msgId) {
+            this.msgId = msgId;
+        }
+
+        /** Applica l'ack del dispositivo; {@code false} se il dispositivo non è tra i destinatari in attesa. */
+        abstract boolean acknowledge(DeviceKey device, Ack ack);
+
+        /** Completa il comando alla scadenza, dopo che è stato rimosso dalla tabella. */
+        abstract void expire();
+    }
+
+    private final class Single extends Tracked<Ack> {
+        private final DeviceKey device;
+
+        Single(String msgId, DeviceKey device) {
+            super(msgId);
+            this.device = device;
+        }
+
+        @Override
+        boolean acknowledge(DeviceKey from, Ack ack) {
+            if (!device.equals(from) || !pending.remove(msgId, this)) {
+                return false;
+            }
+            record(from, ack, sentNanos);
+            future.complete(ack);
+            return true;
+        }
+
+        @Override
+        void expire() {
+            counters(device.type()).timeouts.increment();
+            future.completeExceptionally(new TimeoutException(
+                    "Nessun ack da " + device + " entro " + timeoutTicks * tickMillis + " ms"));
+        }
+    }
+
+    private final class FanOut extends Tracked<BroadcastResult> {
+        private final int targets;
+        private final Set<DeviceKey> remaining = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger errors = new AtomicInteger();
+
+        FanOut(String msgId, Collection<DeviceKey> targets) {
+            super(msgId);
+            this.remaining.addAll(targets);
+            this.targets = remaining.size();
+        }
+
+        @Override
+        boolean acknowledge(DeviceKey from, Ack ack) {
+            if (!remaining.remove(from)) {
+                return false;
+            }
+            record(from, ack, sentNanos);
+            if ("ERROR".equalsIgnoreCase(ack.getStatus())) {
+                errors.incrementAndGet();
+            }
+            if (remaining.isEmpty() && pending.remove(msgId, this)) {
+                BroadcastResult result = result(List.of());
+                broadcastLatency.recordNanos(result.elapsedNanos());
+                future.complete(result);
+            }
+            return true;
+        }
+
+        @Override
+        void expire() {
+            List<DeviceKey> missing = List.copyOf(remaining);
+            missing.forEach(device -> counters(device.type()).timeouts.increment());
+            future.complete(result(missing));
+        }
+
+        BroadcastResult result(List<DeviceKey> missing) {
+            return new BroadcastResult(msgId, targets, targets - missing.size(), errors.get(), missing,
+                    System.nanoTime() - sentNanos);
+        }
+    }
+
+    private static final class TypeCounters {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+    }
+}
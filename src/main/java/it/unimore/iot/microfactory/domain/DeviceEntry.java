@@ -0,0 +1,106 @@
+package it.unimore.iot.microfactory.domain;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Nodo foglia dell'indice dei dispositivi: associa la {@link DeviceKey} cache-ata
+ * all'ultimo stato ricevuto per quel dispositivo.
+ */
+public final class DeviceEntry {
+
+    private static final AtomicLong CREATED = new AtomicLong();
+
+    private final DeviceKey key;
+    private final long incarnation = CREATED.incrementAndGet();
+    private volatile Object state;
+    private volatile long version;
+    private volatile DeviceHistory history;
+    private final AtomicReference<Object> pendingNotification = new AtomicReference<>();
+
+    DeviceEntry(DeviceKey key) {
+        this.key = key;
+    }
+
+    public DeviceKey key() {
+        return key;
+    }
+
+    /**
+     * Restituisce l'ultimo stato registrato, oppure {@code null} se il dispositivo
+     * non ha ancora pubblicato telemetria.
+     */
+    public Object state() {
+        return state;
+    }
+
+    /**
+     * Numero di versione dello stato, incrementato a ogni aggiornamento.
+     * Va letto prima di {@link #state()}: in caso di aggiornamento concorrente lo stato letto
+     * è al più più recente della versione, mai più vecchio.
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Contatore di creazione dell'entry, unico nel processo: distingue un dispositivo
+     * rimosso e poi ricreato con la stessa chiave, la cui versione riparte da zero.
+     */
+    public long incarnation() {
+        return incarnation;
+    }
+
+    /**
+     * Restituisce lo storico del dispositivo, oppure {@code null} se non è ancora stato creato
+     * o se la storicizzazione è disabilitata.
+     */
+    public DeviceHistory history() {
+        return history;
+    }
+
+    // Aggiorna lo stato e poi la versione, nell'ordine atteso dai lettori di version()
+    synchronized void update(Object newState) {
+        this.state = newState;
+        this.version = version + 1;
+    }
+
+    // Legge versione e stato sotto lo stesso lock di update(), oppure null se non c'è ancora telemetria
+    synchronized CellSnapshot.Device snapshot() {
+        return state != null ? new CellSnapshot.Device(key, version, state) : null;
+    }
+
+    // Sostituisce lo stato in attesa di notifica restituendo il precedente (null se non c'era nulla in coda)
+    Object swapPendingNotification(Object state) {
+        return pendingNotification.getAndSet(state);
+    }
+
+    // Restituisce lo stato in attesa di notifica senza consumarlo
+    Object pendingNotification() {
+        return pendingNotification.get();
+    }
+
+    // Azzera lo stato in attesa solo se è ancora quello indicato
+    boolean clearPendingNotification(Object expected) {
+        return pendingNotification.compareAndSet(expected, null);
+    }
+
+    // Registra lo stato nello storico creando il buffer circolare al primo campione utile
+    void record(Object newState, int historyCapacity) {
+        DeviceHistory h = history;
+        if (h == null) {
+            DeviceHistory.Kind kind = DeviceHistory.Kind.of(newState);
+            if (kind == null || historyCapacity <= 0) {
+                return;
+            }
+            synchronized (this) {
+                h = history;
+                if (h == null) {
+                    h = new DeviceHistory(kind, historyCapacity);
+                    history = h;
+                }
+            }
+        }
+        h.record(newState);
+    }
+}
@@ -0,0 +1,238 @@
+package it.unimore.iot.microfactory.domain;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+
+import java.io.IOException;
+
+/**
+ * Buffer circolare a capacità fissa con lo storico della telemetria di un singolo dispositivo.
+ * I campioni sono memorizzati in array primitivi preallocati (timestamp in {@code long[]},
+ * grandezze continue in {@code double[]}, contatori e stati in {@code int[]}), per cui
+ * la registrazione di un nuovo campione non alloca e non effettua boxing.
+ */
+public final class DeviceHistory {
+
+    /**
+     * Layout dei campi memorizzati per ciascun tipo di telemetria.
+     */
+    public enum Kind {
+        /** processingTime come double, status (ordinale) come int. */
+        ROBOT(1, 1),
+        /** speed come double, active (0/1) come int. */
+        CONVEYOR(1, 1),
+        /** totalProcessed, goodCount e badCount come int. */
+        QUALITY(0, 3);
+
+        private final int doubles;
+        private final int ints;
+
+        Kind(int doubles, int ints) {
+            this.doubles = doubles;
+            this.ints = ints;
+        }
+
+        // Byte occupati da un singolo campione, timestamp incluso
+        int bytesPerSample() {
+            return Long.BYTES + doubles * Double.BYTES + ints * Integer.BYTES;
+        }
+
+        /**
+         * Determina il layout adatto allo stato ricevuto.
+         *
+         * @return Il layout oppure {@code null} se il tipo di stato non è storicizzabile.
+         */
+        public static Kind of(Object state) {
+            if (state instanceof RawTelemetry raw) {
+                return raw.kind();
+            } else if (state instanceof RobotCellStatus) {
+                return ROBOT;
+            } else if (state instanceof ConveyorBeltStatus) {
+                return CONVEYOR;
+            } else if (state instanceof QualitySensorData) {
+                return QUALITY;
+            }
+            return null;
+        }
+    }
+
+    private static final RobotCellStatusEnum[] ROBOT_STATUSES = RobotCellStatusEnum.values();
+
+    private final Kind kind;
+    private final int capacity;
+    private final long[] timestamps;
+    private final double[] doubles;
+    private final int[] ints;
+    private int head;
+    private int size;
+
+    DeviceHistory(Kind kind, int capacity) {
+        this.kind = kind;
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.doubles = new double[capacity * kind.doubles];
+        this.ints = new int[capacity * kind.ints];
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Restituisce il numero di campioni attualmente conservati.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Memoria occupata dagli array di questo buffer, utile per stimare il budget complessivo.
+     */
+    public long footprintBytes() {
+        return (long) capacity * kind.bytesPerSample();
+    }
+
+    /**
+     * Aggiunge un campione sovrascrivendo il più vecchio quando il buffer è pieno.
+     * Gli stati di tipo diverso dal layout del buffer vengono ignorati.
+     */
+    synchronized void record(Object state) {
+        if (state instanceof RawTelemetry raw) {
+            recordRaw(raw);
+            return;
+        }
+        int slot = head;
+        int d = slot * kind.doubles;
+        int i = slot * kind.ints;
+        switch (kind) {
+            case ROBOT -> {
+                if (!(state instanceof RobotCellStatus s)) {
+                    return;
+                }
+                timestamps[slot] = s.getTimestamp();
+                doubles[d] = s.getProcessingTime();
+                ints[i] = s.getStatus() != null ? s.getStatus().ordinal() : -1;
+            }
+            case CONVEYOR -> {
+                if (!(state instanceof ConveyorBeltStatus s)) {
+                    return;
+                }
+                timestamps[slot] = s.getTimestamp();
+                doubles[d] = s.getSpeed();
+                ints[i] = s.isActive() ? 1 : 0;
+            }
+            case QUALITY -> {
+                if (!(state instanceof QualitySensorData s)) {
+                    return;
+                }
+                timestamps[slot] = s.getTimestamp();
+                ints[i] = s.getTotalProcessed();
+                ints[i + 1] = s.getGoodCount();
+                ints[i + 2] = s.getBadCount();
+            }
+        }
+        advance();
+    }
+
+    // Registra i campi già estratti dal payload passthrough, senza decodificare l'oggetto del modello
+    private void recordRaw(RawTelemetry raw) {
+        if (raw.kind() != kind) {
+            return;
+        }
+        int slot = head;
+        int d = slot * kind.doubles;
+        int i = slot * kind.ints;
+        timestamps[slot] = raw.timestamp();
+        switch (kind) {
+            case ROBOT -> {
+                doubles[d] = raw.processingTime();
+                ints[i] = raw.status() != null ? raw.status().ordinal() : -1;
+            }
+            case CONVEYOR -> {
+                doubles[d] = raw.speed();
+                ints[i] = raw.active() ? 1 : 0;
+            }
+            case QUALITY -> {
+                ints[i] = raw.totalProcessed();
+                ints[i + 1] = raw.goodCount();
+                ints[i + 2] = raw.badCount();
+            }
+        }
+        advance();
+    }
+
+    // Avanza la testa del buffer dopo la scrittura di un campione
+    private void advance() {
+        head = (head + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    /**
+     * Scrive come array JSON i campioni con timestamp compreso in {@code [from, to]},
+     * limitandosi ai {@code limit} più recenti e mantenendo l'ordine cronologico.
+     *
+     * @return Il numero di campioni scritti.
+     */
+    public synchronized int writeSamples(JsonGenerator gen, long from, long to, int limit) throws IOException {
+        int oldest = (head - size + capacity) % capacity;
+
+        // Prima passata a ritroso: individua il primo campione da emettere rispettando il limite
+        int selected = 0;
+        int start = size;
+        for (int n = size - 1; n >= 0 && selected < limit; n--) {
+            long ts = timestamps[(oldest + n) % capacity];
+            if (ts >= from && ts <= to) {
+                selected++;
+                start = n;
+            }
+        }
+
+        gen.writeStartArray();
+        for (int n = start; n < size && selected > 0; n++) {
+            int slot = (oldest + n) % capacity;
+            long ts = timestamps[slot];
+            if (ts < from || ts > to) {
+                continue;
+            }
+            writeSample(gen, slot);
+        }
+        gen.writeEndArray();
+        return selected;
+    }
+
+    // Serializza un singolo campione leggendo i campi dal layout del buffer
+    private void writeSample(JsonGenerator gen, int slot) throws IOException {
+        int d = slot * kind.doubles;
+        int i = slot * kind.ints;
+        gen.writeStartObject();
+        gen.writeNumberField("timestamp", timestamps[slot]);
+        switch (kind) {
+            case ROBOT -> {
+                int ordinal = ints[i];
+                if (ordinal >= 0 && ordinal < ROBOT_STATUSES.length) {
+                    gen.writeStringField("status", ROBOT_STATUSES[ordinal].name());
+                }
+                gen.writeNumberField("processingTime", doubles[d]);
+            }
+            case CONVEYOR -> {
+                gen.writeBooleanField("active", ints[i] != 0);
+                gen.writeNumberField("speed", doubles[d]);
+            }
+            case QUALITY -> {
+                gen.writeNumberField("totalProcessed", ints[i]);
+                gen.writeNumberField("goodCount", ints[i + 1]);
+                gen.writeNumberField("badCount", ints[i + 2]);
+            }
+        }
+        gen.writeEndObject();
+    }
+}
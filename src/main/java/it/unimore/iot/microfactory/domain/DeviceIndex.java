@@ -0,0 +1,144 @@
+package it.unimore.iot.microfactory.domain;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Indice gerarchico dei dispositivi organizzato come cella → tipo → id.
+ * Le ricerche percorrono tre mappe concorrenti senza costruire chiavi intermedie,
+ * mentre le scansioni per cella o per tipo visitano solo i dispositivi interessati.
+ */
+public final class DeviceIndex {
+
+    private final Map<String, Map<String, Map<String, DeviceEntry>>> cells = new ConcurrentHashMap<>();
+    private final DeviceLifecycleListener lifecycle;
+
+    /**
+     * @param lifecycle Destinatario degli eventi di creazione e rimozione dei nodi.
+     */
+    public DeviceIndex(DeviceLifecycleListener lifecycle) {
+        this.lifecycle = lifecycle;
+    }
+
+    /**
+     * Cerca il nodo associato al dispositivo senza allocare oggetti.
+     *
+     * @return Il nodo del dispositivo oppure {@code null} se non è mai stato registrato.
+     */
+    public DeviceEntry find(String cell, String type, String id) {
+        Map<String, Map<String, DeviceEntry>> types = cells.get(cell);
+        if (types == null) {
+            return null;
+        }
+        Map<String, DeviceEntry> ids = types.get(type);
+        return ids != null ? ids.get(id) : null;
+    }
+
+    /**
+     * Restituisce il nodo del dispositivo creandolo (insieme ai livelli intermedi) al primo accesso.
+     * Sul percorso caldo, con dispositivo già noto, equivale a {@link #find(String, String, String)}.
+     */
+    public DeviceEntry getOrCreate(String cell, String type, String id) {
+        DeviceEntry entry = find(cell, type, id);
+        if (entry != null) {
+            return entry;
+        }
+        return create(cell, type, id);
+    }
+
+    // Percorso lento di creazione, serializzato con la rimozione per non perdere nodi in mappe orfane
+    private DeviceEntry create(String cell, String type, String id) {
+        DeviceEntry created;
+        synchronized (this) {
+            DeviceEntry existing = find(cell, type, id);
+            if (existing != null) {
+                return existing;
+            }
+            created = new DeviceEntry(DeviceKey.of(cell, type, id));
+            cells.computeIfAbsent(cell, c -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(type, t -> new ConcurrentHashMap<>())
+                    .put(id, created);
+        }
+        lifecycle.onDeviceAdded(created.key());
+        return created;
+    }
+
+    /**
+     * Rimuove il dispositivo dall'indice eliminando i livelli intermedi rimasti vuoti.
+     *
+     * @return Il nodo rimosso oppure {@code null} se il dispositivo non era presente.
+     */
+    public DeviceEntry remove(String cell, String type, String id) {
+        DeviceEntry removed;
+        synchronized (this) {
+            Map<String, Map<String, DeviceEntry>> types = cells.get(cell);
+            if (types == null) {
+                return null;
+            }
+            Map<String, DeviceEntry> ids = types.get(type);
+            if (ids == null) {
+                return null;
+            }
+            removed = ids.remove(id);
+            if (ids.isEmpty()) {
+                types.remove(type);
+            }
+            if (types.isEmpty()) {
+                cells.remove(cell);
+            }
+        }
+        if (removed != null) {
+            lifecycle.onDeviceRemoved(removed.key());
+        }
+        return removed;
+    }
+
+    /**
+     * Visita tutti i dispositivi di una cella.
+     */
+    public void forEachInCell(String cell, Consumer<DeviceEntry> action) {
+        Map<String, Map<String, DeviceEntry>> types = cells.get(cell);
+        if (types != null) {
+            types.values().forEach(ids -> ids.values().forEach(action));
+        }
+    }
+
+    /**
+     * Visita i dispositivi di un solo tipo all'interno di una cella.
+     */
+    public void forEachOfType(String cell, String type, Consumer<DeviceEntry> action) {
+        Map<String, Map<String, DeviceEntry>> types = cells.get(cell);
+        if (types == null) {
+            return;
+        }
+        Map<String, DeviceEntry> ids = types.get(type);
+        if (ids != null) {
+            ids.values().forEach(action);
+        }
+    }
+
+    /**
+     * Visita tutti i dispositivi registrati nell'indice.
+     */
+    public void forEach(Consumer<DeviceEntry> action) {
+        cells.values().forEach(types -> types.values().forEach(ids -> ids.values().forEach(action)));
+    }
+
+    /**
+     * Restituisce una vista non modificabile delle celle attualmente indicizzate.
+     */
+    public Set<String> cells() {
+        return Collections.unmodifiableSet(cells.keySet());
+    }
+
+    /**
+     * Restituisce una vista non modificabile dei tipi di dispositivo presenti in una cella.
+     */
+    public Set<String> types(String cell) {
+        Map<String, Map<String, DeviceEntry>> types = cells.get(cell);
+        return types != null ? Collections.unmodifiableSet(types.keySet()) : Set.of();
+    }
+}
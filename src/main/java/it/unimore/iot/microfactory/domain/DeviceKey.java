@@ -0,0 +1,76 @@
+package it.unimore.iot.microfactory.domain;
+
+import java.util.Objects;
+
+/**
+ * Identificativo immutabile di un dispositivo della microfactory (cella, tipo, id).
+ * Il percorso {@code cell/type/id} e l'hash vengono calcolati una sola volta alla creazione,
+ * così la chiave può essere riutilizzata come indice nelle mappe senza ulteriori allocazioni.
+ */
+public final class DeviceKey {
+
+    private final String cell;
+    private final String type;
+    private final String id;
+    private final String path;
+    private final int hash;
+
+    private DeviceKey(String cell, String type, String id) {
+        this.cell = Objects.requireNonNull(cell, "cell");
+        this.type = Objects.requireNonNull(type, "type");
+        this.id = Objects.requireNonNull(id, "id");
+        this.path = cell + "/" + type + "/" + id;
+        this.hash = path.hashCode();
+    }
+
+    /**
+     * Crea la chiave per il dispositivo indicato.
+     *
+     * @param cell Identificativo della cella produttiva.
+     * @param type Tipo di dispositivo (es. robot, conveyor, quality).
+     * @param id   Identificativo del dispositivo nella cella.
+     */
+    public static DeviceKey of(String cell, String type, String id) {
+        return new DeviceKey(cell, type, id);
+    }
+
+    public String cell() {
+        return cell;
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    /**
+     * Restituisce il percorso {@code cell/type/id} calcolato alla creazione della chiave.
+     */
+    public String path() {
+        return path;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DeviceKey other)) {
+            return false;
+        }
+        return hash == other.hash && cell.equals(other.cell) && type.equals(other.type) && id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,20 @@
+package it.unimore.iot.microfactory.domain;
+
+/**
+ * Riceve dallo {@link StateRepository} la comparsa e la rimozione dei dispositivi.
+ * Gli eventi sono emessi una sola volta per modifica dell'indice, fuori dai suoi lock: creazione e rimozione
+ * concorrenti dello stesso dispositivo possono quindi arrivare in ordine inverso, e chi mantiene una vista
+ * derivata deve riallinearsi allo stato corrente del repository invece di applicare l'evento alla cieca.
+ */
+public interface DeviceLifecycleListener {
+
+    /**
+     * Invocato quando il repository vede per la prima volta il dispositivo.
+     */
+    void onDeviceAdded(DeviceKey key);
+
+    /**
+     * Invocato quando il dispositivo viene rimosso dal repository.
+     */
+    void onDeviceRemoved(DeviceKey key);
+}
@@ -0,0 +1,69 @@
+package it.unimore.iot.microfactory.domain;
+
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+
+import java.util.Locale;
+
+/**
+ * Filtro sui dispositivi di una cella nella forma {@code type=conveyor,status=ACTIVE}; le chiavi omesse non filtrano.
+ * Lo stato di un robot è il valore di {@link RobotCellStatus#getStatus()}, quello di un nastro è {@code ACTIVE}
+ * o {@code INACTIVE}; i dispositivi senza uno stato operativo, come i sensori di qualità, non corrispondono
+ * mai a un filtro su {@code status}.
+ *
+ * @param type   Tipo di dispositivo, oppure {@code null} per tutti i tipi.
+ * @param status Stato operativo (senza distinzione tra maiuscole e minuscole), oppure {@code null} per tutti.
+ */
+public record DeviceSelector(String type, String status) {
+
+    /**
+     * Analizza un filtro {@code chiave=valore} separato da virgole con le chiavi {@code type} e {@code status}.
+     *
+     * @throws IllegalArgumentException se il filtro contiene chiavi sconosciute, ripetute o senza valore.
+     */
+    public static DeviceSelector parse(String text) {
+        String type = null;
+        String status = null;
+        for (String term : text.split(",")) {
+            int eq = term.indexOf('=');
+            String key = eq > 0 ? term.substring(0, eq).trim() : "";
+            String value = eq > 0 ? term.substring(eq + 1).trim() : "";
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("Filtro non valido: '" + term.trim() + "'");
+            }
+            switch (key) {
+                case "type" -> {
+                    if (type != null) {
+                        throw new IllegalArgumentException("Chiave 'type' ripetuta");
+                    }
+                    type = value;
+                }
+                case "status" -> {
+                    if (status != null) {
+                        throw new IllegalArgumentException("Chiave 'status' ripetuta");
+                    }
+                    status = value.toUpperCase(Locale.ROOT);
+                }
+                default -> throw new IllegalArgumentException("Chiave sconosciuta: '" + key + "' (ammesse type, status)");
+            }
+        }
+        return new DeviceSelector(type, status);
+    }
+
+    public boolean matches(DeviceKey key, Object state) {
+        if (type != null && !type.equals(key.type())) {
+            return false;
+        }
+        return status == null || status.equalsIgnoreCase(statusOf(state));
+    }
+
+    // Stato operativo del dispositivo confrontato con il filtro, oppure null se il tipo non ne ha uno
+    private static String statusOf(Object state) {
+        if (state instanceof RobotCellStatus robot) {
+            return robot.getStatus() != null ? robot.getStatus().name() : null;
+        } else if (state instanceof ConveyorBeltStatus conveyor) {
+            return conveyor.isActive() ? "ACTIVE" : "INACTIVE";
+        }
+        return null;
+    }
+}
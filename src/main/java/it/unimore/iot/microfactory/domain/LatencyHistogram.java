@@ -0,0 +1,99 @@
+package it.unimore.iot.microfactory.domain;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Istogramma di latenze a bucket log-lineari, registrabile da più thread senza lock.
+ * Ogni potenza di due è divisa in 16 bucket lineari, per cui un valore è riportato con un errore relativo
+ * inferiore al 6,25%; i valori sono in microsecondi e quelli oltre {@link #MAX_MICROS} finiscono nell'ultimo bucket.
+ * I percentili riportano il limite superiore del bucket, quindi non sottostimano mai la latenza.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 31;
+    /** Valore massimo distinto dall'istogramma, circa 71 minuti. */
+    public static final long MAX_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = bucketOf(MAX_MICROS) + 1;
+
+    /**
+     * Istantanea dell'istogramma; i tempi sono in microsecondi.
+     *
+     * @param count Campioni registrati.
+     * @param mean  Media esatta dei campioni.
+     * @param p50   Mediana.
+     * @param p90   Novantesimo percentile.
+     * @param p99   Novantanovesimo percentile.
+     * @param p999  Percentile 99,9.
+     * @param max   Valore massimo registrato.
+     */
+    public record Snapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    /**
+     * Registra una latenza espressa in nanosecondi.
+     */
+    public void recordNanos(long nanos) {
+        long micros = Math.min(Math.max(nanos / 1_000, 0), MAX_MICROS);
+        counts.incrementAndGet(bucketOf(micros));
+        total.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        if (count == 0) {
+            return new Snapshot(0, 0, 0, 0, 0, 0, 0);
+        }
+        long maxValue = max.get();
+        return new Snapshot(count, (double) sum.sum() / total.sum(),
+                percentile(copy, count, 0.50, maxValue), percentile(copy, count, 0.90, maxValue),
+                percentile(copy, count, 0.99, maxValue), percentile(copy, count, 0.999, maxValue), maxValue);
+    }
+
+    // Limite superiore del bucket che contiene il campione di rango richiesto, mai oltre il massimo osservato
+    private static long percentile(long[] counts, long count, double quantile, long maxValue) {
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    // Sotto SUB_BUCKETS ogni valore ha un bucket; oltre, i bit sotto i quattro più significativi sono scartati
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int) ((micros >> shift) - SUB_BUCKETS);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,131 @@
+package it.unimore.iot.microfactory.domain;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Consegna asincrona delle notifiche di stato ai listener registrati nello {@link StateRepository}.
+ * Le notifiche sono partizionate per dispositivo su un insieme fisso di worker: lo stesso dispositivo
+ * è sempre servito dallo stesso worker, per cui l'ordine per dispositivo è preservato.
+ * Ogni dispositivo occupa al più una posizione in coda: gli aggiornamenti che arrivano mentre
+ * la notifica precedente è ancora in attesa la sostituiscono (coalescing), così un listener
+ * lento riceve solo lo stato più recente e il costo di {@link #dispatch(DeviceEntry, Object)}
+ * resta costante indipendentemente dal numero di listener.
+ */
+public class ListenerDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(ListenerDispatcher.class);
+
+    /**
+     * Istantanea dei contatori del dispatcher.
+     *
+     * @param queueDepth Dispositivi attualmente in attesa di notifica.
+     * @param delivered  Notifiche consegnate ai listener.
+     * @param coalesced  Aggiornamenti sostituiti da uno più recente prima della consegna.
+     * @param dropped    Aggiornamenti scartati perché la coda del worker era piena.
+     */
+    public record Stats(int queueDepth, long delivered, long coalesced, long dropped) {
+    }
+
+    private final BlockingQueue<DeviceEntry>[] queues;
+    private final Thread[] workers;
+    private final BiConsumer<DeviceKey, Object> delivery;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * @param workerCount   Numero di worker che consegnano le notifiche.
+     * @param queueCapacity Capacità della coda di ciascun worker, espressa in dispositivi.
+     * @param delivery      Funzione che consegna lo stato ai listener del dispositivo.
+     */
+    @SuppressWarnings("unchecked")
+    public ListenerDispatcher(int workerCount, int queueCapacity, BiConsumer<DeviceKey, Object> delivery) {
+        if (workerCount <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("workerCount and queueCapacity must be positive");
+        }
+        this.delivery = delivery;
+        this.queues = (BlockingQueue<DeviceEntry>[]) new BlockingQueue<?>[workerCount];
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            BlockingQueue<DeviceEntry> queue = new ArrayBlockingQueue<>(queueCapacity);
+            queues[i] = queue;
+            workers[i] = new Thread(() -> runWorker(queue), "listener-dispatcher-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        logger.info("ListenerDispatcher started with {} worker(s), queue capacity {}", workerCount, queueCapacity);
+    }
+
+    /**
+     * Pianifica la notifica dello stato per il dispositivo senza attendere i listener.
+     * Se per lo stesso dispositivo c'è già una notifica in attesa, questa viene sostituita.
+     */
+    public void dispatch(DeviceEntry entry, Object state) {
+        if (entry.swapPendingNotification(state) != null) {
+            coalesced.increment();
+            return;
+        }
+        BlockingQueue<DeviceEntry> queue = queues[(entry.key().hashCode() & Integer.MAX_VALUE) % queues.length];
+        // Si scarta solo lo stato ancora in attesa: se nel frattempo un altro produttore lo ha
+        // sostituito (contandolo come coalesced), il nuovo stato riprova a entrare in coda
+        Object pending = state;
+        while (!queue.offer(entry)) {
+            if (entry.clearPendingNotification(pending)) {
+                dropped.increment();
+                logger.debug("Listener queue full, dropped notification for '{}'", entry.key());
+                return;
+            }
+            pending = entry.pendingNotification();
+            if (pending == null) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Restituisce i contatori correnti del dispatcher.
+     */
+    public Stats stats() {
+        int depth = 0;
+        for (BlockingQueue<DeviceEntry> queue : queues) {
+            depth += queue.size();
+        }
+        return new Stats(depth, delivered.sum(), coalesced.sum(), dropped.sum());
+    }
+
+    /**
+     * Arresta i worker; le notifiche ancora in coda vengono scartate.
+     */
+    public void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    // Ciclo del worker: estrae un dispositivo e consegna l'ultimo stato in attesa
+    private void runWorker(BlockingQueue<DeviceEntry> queue) {
+        while (running) {
+            try {
+                DeviceEntry entry = queue.take();
+                Object state = entry.swapPendingNotification(null);
+                if (state != null) {
+                    delivery.accept(entry.key(), state);
+                    delivered.increment();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error in listener dispatcher", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package it.unimore.iot.microfactory.domain;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Registro dei listener di stato per dispositivo basato su liste copy-on-write.
+ * La consegna itera uno snapshot immutabile della lista senza lock, mentre registrazioni e
+ * cancellazioni copiano la lista del solo dispositivo interessato. Le liste rimaste vuote
+ * vengono rimosse e il numero di listener per dispositivo è limitato, così il registro
+ * non può crescere senza controllo.
+ */
+public class ListenerRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(ListenerRegistry.class);
+
+    private final Map<DeviceKey, CopyOnWriteArrayList<Registration>> byKey = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxPerDevice;
+
+    /**
+     * @param maxPerDevice Numero massimo di listener attivi per singolo dispositivo.
+     */
+    public ListenerRegistry(int maxPerDevice) {
+        this.maxPerDevice = maxPerDevice;
+    }
+
+    /**
+     * Registra il listener restituendo l'handle per cancellarlo.
+     * Oltre il limite per dispositivo la registrazione viene rifiutata e l'handle risulta già inattivo.
+     */
+    public Subscription add(DeviceKey key, Consumer<Object> listener) {
+        Registration registration = new Registration(key, listener);
+        boolean[] accepted = {false};
+        byKey.compute(key, (k, current) -> {
+            CopyOnWriteArrayList<Registration> list = current != null ? current : new CopyOnWriteArrayList<>();
+            if (list.size() < maxPerDevice) {
+                list.add(registration);
+                accepted[0] = true;
+            }
+            return list.isEmpty() ? null : list;
+        });
+        if (!accepted[0]) {
+            registration.active = false;
+            logger.warn("Listener limit of {} reached for key '{}', registration rejected", maxPerDevice, key);
+            return registration;
+        }
+        size.incrementAndGet();
+        return registration;
+    }
+
+    /**
+     * Indica se il dispositivo ha almeno un listener attivo.
+     */
+    public boolean hasListeners(DeviceKey key) {
+        return byKey.containsKey(key);
+    }
+
+    /**
+     * Restituisce il numero complessivo di listener attivi.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Consegna lo stato a tutti i listener attivi del dispositivo isolando gli errori dei singoli listener.
+     */
+    public void deliver(DeviceKey key, Object state) {
+        List<Registration> registrations = byKey.get(key);
+        if (registrations == null) {
+            return;
+        }
+        logger.debug("Notifying {} listener(s) for key '{}'", registrations.size(), key);
+        for (Registration registration : registrations) {
+            if (!registration.active) {
+                continue;
+            }
+            try {
+                registration.listener.accept(state);
+            } catch (Exception e) {
+                logger.error("Error notifying listener for key '{}'", key, e);
+            }
+        }
+    }
+
+    // Rimuove la registrazione eliminando la lista del dispositivo quando resta vuota
+    private void remove(Registration registration) {
+        byKey.computeIfPresent(registration.key, (k, list) -> {
+            if (list.remove(registration)) {
+                size.decrementAndGet();
+            }
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    private final class Registration implements Subscription {
+        private final DeviceKey key;
+        private final Consumer<Object> listener;
+        private volatile boolean active = true;
+
+        private Registration(DeviceKey key, Consumer<Object> listener) {
+            this.key = key;
+            this.listener = listener;
+        }
+
+        @Override
+        public void cancel() {
+            if (active) {
+                active = false;
+                remove(this);
+            }
+        }
+
+        @Override
+        public boolean isActive() {
+            return active;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package it.unimore.iot.microfactory.domain;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.codec.TelemetryCodec;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Telemetria conservata nel formato JSON originale ricevuto via MQTT (modalità passthrough).
+ * All'ingest il payload viene percorso una sola volta con il parser in streaming di Jackson,
+ * estraendo in campi primitivi solo i valori usati sul percorso caldo (stato del robot per
+ * l'auto-reset, grandezze per lo storico); l'oggetto del modello viene costruito solo su
+ * richiesta con {@link #decode()} e poi riutilizzato. Le GET JSON restituiscono direttamente
+ * {@link #payload()}, evitando il ciclo decodifica/ricodifica.
+ */
+public final class RawTelemetry {
+
+    private static final JsonFactory FACTORY = Codecs.MAPPER.getFactory();
+
+    private final DeviceHistory.Kind kind;
+    private final byte[] payload;
+    private long timestamp;
+    private RobotCellStatusEnum status;
+    private double processingTime;
+    private boolean active;
+    private double speed;
+    private int totalProcessed;
+    private int goodCount;
+    private int badCount;
+    private volatile Object decoded;
+
+    private RawTelemetry(DeviceHistory.Kind kind, byte[] payload) {
+        this.kind = kind;
+        this.payload = payload;
+    }
+
+    /**
+     * Estrae i campi del percorso caldo dal payload senza copiarlo.
+     * Il buffer non deve essere modificato dopo la chiamata.
+     *
+     * @throws IOException Se il payload non è un oggetto JSON valido.
+     */
+    public static RawTelemetry parse(DeviceHistory.Kind kind, byte[] payload) throws IOException {
+        RawTelemetry raw = new RawTelemetry(kind, payload);
+        try (JsonParser parser = FACTORY.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Telemetry payload is not a JSON object");
+            }
+            String field;
+            while ((field = parser.nextFieldName()) != null) {
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "timestamp" -> raw.timestamp = parser.getValueAsLong();
+                    case "status" -> raw.status = parseStatus(parser, value);
+                    case "processingTime" -> raw.processingTime = parser.getValueAsDouble();
+                    case "active" -> raw.active = parser.getValueAsBoolean();
+                    case "speed" -> raw.speed = parser.getValueAsDouble();
+                    case "totalProcessed" -> raw.totalProcessed = parser.getValueAsInt();
+                    case "goodCount" -> raw.goodCount = parser.getValueAsInt();
+                    case "badCount" -> raw.badCount = parser.getValueAsInt();
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        return raw;
+    }
+
+    // Converte lo stato testuale del robot confrontandolo con i nomi dell'enum (null se assente o sconosciuto)
+    private static RobotCellStatusEnum parseStatus(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.VALUE_STRING) {
+            return null;
+        }
+        String text = parser.getText();
+        for (RobotCellStatusEnum candidate : RobotCellStatusEnum.values()) {
+            if (candidate.name().equals(text)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Restituisce l'oggetto del modello se lo stato è in formato passthrough, altrimenti lo stato stesso.
+     */
+    public static Object decoded(Object state) {
+        return state instanceof RawTelemetry raw ? raw.decode() : state;
+    }
+
+    public DeviceHistory.Kind kind() {
+        return kind;
+    }
+
+    /**
+     * Payload JSON originale, da non modificare.
+     */
+    public byte[] payload() {
+        return payload;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public RobotCellStatusEnum status() {
+        return status;
+    }
+
+    public double processingTime() {
+        return processingTime;
+    }
+
+    public boolean active() {
+        return active;
+    }
+
+    public double speed() {
+        return speed;
+    }
+
+    public int totalProcessed() {
+        return totalProcessed;
+    }
+
+    public int goodCount() {
+        return goodCount;
+    }
+
+    public int badCount() {
+        return badCount;
+    }
+
+    /**
+     * Decodifica il payload nell'oggetto del modello alla prima richiesta.
+     * In caso di corsa il payload può essere decodificato più volte, con risultati equivalenti.
+     *
+     * @throws UncheckedIOException Se il payload, pur essendo JSON valido, non rispetta il modello.
+     */
+    public Object decode() {
+        Object result = decoded;
+        if (result == null) {
+            try {
+                result = switch (kind) {
+                    case ROBOT -> TelemetryCodec.readRobotStatus(payload);
+                    case CONVEYOR -> TelemetryCodec.readConveyorStatus(payload);
+                    case QUALITY -> TelemetryCodec.readQualityData(payload);
+                };
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot decode " + kind + " telemetry", e);
+            }
+            decoded = result;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "RawTelemetry{" + kind + ", " + payload.length + " bytes}";
+    }
+}
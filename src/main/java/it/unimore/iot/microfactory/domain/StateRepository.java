@@ -1,33 +1,83 @@
 package it.unimore.iot.microfactory.domain;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonGenerator;
+import it.unimore.iot.microfactory.codec.BodyCursor;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.codec.PayloadEncoding;
+import it.unimore.iot.microfactory.codec.TelemetryCodec;
 import it.unimore.iot.microfactory.communication.mqtt.CommandPublisher;
+import it.unimore.iot.microfactory.model.Ack;
 import it.unimore.iot.microfactory.model.Command;
-import org.eclipse.paho.client.mqttv3.MqttException;
+import it.unimore.iot.microfactory.persistence.TelemetryJournal;
+import it.unimore.iot.microfactory.util.EnvSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 // Repository centralizzato che mantiene lo stato dei dispositivi e inoltra i comandi MQTT
 public class StateRepository {
 
     private static final Logger logger = LoggerFactory.getLogger(StateRepository.class);
 
+    // Campioni conservati per dispositivo: 300 corrispondono a 5 minuti di telemetria a 1 Hz
+    private static final int DEFAULT_HISTORY_CAPACITY = 300;
+    private static final int DEFAULT_LISTENER_QUEUE_CAPACITY = 65_536;
+    private static final int DEFAULT_LISTENERS_PER_DEVICE = 1_024;
+    private static final long DEFAULT_COMMAND_ACK_TIMEOUT_MS = 5_000;
+    // Tipi di dispositivo che sottoscrivono i comandi e ne pubblicano l'ack; i sensori di qualità non ne ricevono
+    private static final Set<String> COMMANDABLE_TYPES = Set.of("robot", "conveyor");
+    // Prefisso casuale per processo: i msgId generati non si ripetono tra un riavvio e l'altro
+    private static final String MSG_ID_PREFIX = Long.toString(ThreadLocalRandom.current().nextLong() >>> 16, 36) + "-";
+
     private static StateRepository instance;
-    private final Map<String, Object> states;
-    private final Map<String, List<Consumer<Object>>> listeners;
-    private final ObjectMapper objectMapper;
+    private final DeviceIndex index;
+    private final List<DeviceLifecycleListener> lifecycleListeners = new CopyOnWriteArrayList<>();
+    private final ListenerRegistry listeners;
+    private final Map<String, List<Consumer<DeviceKey>>> cellListeners = new ConcurrentHashMap<>();
+    private final int historyCapacity;
+    private final ListenerDispatcher dispatcher;
+    private final CommandTracker commandTracker;
+    private final AtomicLong msgIdSequence = new AtomicLong();
     private volatile CommandPublisher commandPublisher;
+    private volatile TelemetryJournal journal;
 
-    // Costruttore privato che inizializza le strutture dati concorrenti per stati e listener
+    // Costruttore privato che inizializza l'indice dei dispositivi, il registro dei listener e il dispatcher
     private StateRepository() {
-        this.states = new ConcurrentHashMap<>();
-        this.listeners = new ConcurrentHashMap<>();
-        this.objectMapper = new ObjectMapper();
+        this.index = new DeviceIndex(new DeviceLifecycleListener() {
+            @Override
+            public void onDeviceAdded(DeviceKey key) {
+                lifecycleListeners.forEach(listener -> listener.onDeviceAdded(key));
+            }
+
+            @Override
+            public void onDeviceRemoved(DeviceKey key) {
+                lifecycleListeners.forEach(listener -> listener.onDeviceRemoved(key));
+            }
+        });
+        this.listeners = new ListenerRegistry(EnvSettings.intValue("LISTENERS_PER_DEVICE", DEFAULT_LISTENERS_PER_DEVICE, 1));
+        this.historyCapacity = parseHistoryCapacity(System.getenv("HISTORY_CAPACITY"));
+        logger.info("Device history capacity: {} samples per device", historyCapacity);
+
+        int workers = EnvSettings.intValue("LISTENER_WORKERS", Math.min(4, Runtime.getRuntime().availableProcessors()), 1);
+        int queueCapacity = EnvSettings.intValue("LISTENER_QUEUE_CAPACITY", DEFAULT_LISTENER_QUEUE_CAPACITY, 1);
+        this.dispatcher = new ListenerDispatcher(workers, queueCapacity, listeners::deliver);
+        this.commandTracker = new CommandTracker(EnvSettings.longValue("COMMAND_ACK_TIMEOUT_MS", DEFAULT_COMMAND_ACK_TIMEOUT_MS, 1));
+    }
+
+    // Interpreta HISTORY_CAPACITY: 0 disabilita lo storico, valori negativi o non numerici usano il default
+    static int parseHistoryCapacity(String value) {
+        return EnvSettings.parseInt("HISTORY_CAPACITY", value, DEFAULT_HISTORY_CAPACITY, 0);
     }
 
     // Ritorna l'unica istanza condivisa del repository creando l'oggetto alla prima richiesta
@@ -38,92 +88,367 @@ public class StateRepository {
         return instance;
     }
 
+    // Crea un repository indipendente dall'istanza condivisa, ad esempio per misure che non devono vedere altri dispositivi
+    public static StateRepository newInstance() {
+        return new StateRepository();
+    }
+
     // Registra il publisher MQTT che verrà utilizzato per inoltrare i comandi verso il broker
     public void registerCommandPublisher(CommandPublisher commandPublisher) {
         this.commandPublisher = commandPublisher;
         logger.info("CommandPublisher registered in StateRepository");
     }
 
+    // Registra il journal su cui vengono accodati tutti gli aggiornamenti di stato successivi
+    public void registerJournal(TelemetryJournal journal) {
+        this.journal = journal;
+        logger.info("TelemetryJournal registered in StateRepository");
+    }
+
     // Inserisce o aggiorna lo stato di un dispositivo identificato da cella, tipo e id
     public void upsert(String cell, String type, String id, Object stateObj) {
-        String key = buildKey(cell, type, id);
-        this.states.put(key, stateObj);
-        logger.debug("State updated for key '{}': {}", key, stateObj);
-        notifyListeners(key, stateObj);
+        DeviceEntry entry = index.getOrCreate(cell, type, id);
+        entry.update(stateObj);
+        entry.record(stateObj, historyCapacity);
+        logger.debug("State updated for key '{}': {}", entry.key(), stateObj);
+        appendToJournal(entry.key(), stateObj);
+        notifyListeners(entry, stateObj);
+        notifyCellListeners(entry.key());
+    }
+
+    // Ripristina lo stato letto dal journal senza notificare i listener né riscriverlo nel journal (null = dispositivo rimosso)
+    public void restore(DeviceKey key, Object stateObj) {
+        if (stateObj == null) {
+            index.remove(key.cell(), key.type(), key.id());
+            return;
+        }
+        DeviceEntry entry = index.getOrCreate(key.cell(), key.type(), key.id());
+        entry.update(stateObj);
+        entry.record(stateObj, historyCapacity);
+    }
+
+    // Rimuove un dispositivo dismesso: i lifecycle listener ne ricevono notifica e la rimozione viene registrata nel journal
+    public boolean remove(String cell, String type, String id) {
+        DeviceEntry removed = index.remove(cell, type, id);
+        if (removed == null) {
+            return false;
+        }
+        logger.info("Device '{}' removed from repository", removed.key());
+        TelemetryJournal current = this.journal;
+        if (current != null) {
+            try {
+                current.appendRemoval(removed.key());
+            } catch (IOException e) {
+                logger.error("Error appending removal of '{}' to journal", removed.key(), e);
+            }
+        }
+        notifyCellListeners(removed.key());
+        return true;
+    }
+
+    /**
+     * Registra un listener sulla comparsa e rimozione dei dispositivi.
+     * Il listener riceve subito {@code onDeviceAdded} per tutti i dispositivi già presenti;
+     * un dispositivo creato in concorrenza con la registrazione può essere notificato due volte.
+     * @return L'handle da cancellare quando il listener non è più necessario.
+     */
+    public Subscription addDeviceLifecycleListener(DeviceLifecycleListener listener) {
+        lifecycleListeners.add(listener);
+        index.forEach(entry -> listener.onDeviceAdded(entry.key()));
+        return new Subscription() {
+            @Override
+            public void cancel() {
+                lifecycleListeners.remove(listener);
+            }
+
+            @Override
+            public boolean isActive() {
+                return lifecycleListeners.contains(listener);
+            }
+        };
+    }
+
+    // Visita lo stato corrente di tutti i dispositivi, ad esempio per produrre uno snapshot
+    public void forEachState(BiConsumer<DeviceKey, Object> action) {
+        index.forEach(entry -> {
+            Object state = entry.state();
+            if (state != null) {
+                action.accept(entry.key(), state);
+            }
+        });
+    }
+
+    // Accoda l'aggiornamento al journal se registrato, senza propagare eventuali errori di I/O all'ingest
+    private void appendToJournal(DeviceKey key, Object stateObj) {
+        TelemetryJournal current = this.journal;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.append(key, stateObj);
+        } catch (IOException e) {
+            logger.error("Error appending state for key '{}' to journal", key, e);
+        }
     }
 
     // Recupera lo stato corrente di un dispositivo se presente nel repository
     public Optional<Object> get(String cell, String type, String id) {
-        String key = buildKey(cell, type, id);
-        return Optional.ofNullable(this.states.get(key));
+        return Optional.ofNullable(find(cell, type, id));
+    }
+
+    // Variante di get che restituisce direttamente lo stato (o null) senza allocare un Optional; la telemetria passthrough viene decodificata
+    public Object find(String cell, String type, String id) {
+        DeviceEntry entry = index.find(cell, type, id);
+        return entry != null ? RawTelemetry.decoded(entry.state()) : null;
     }
 
-    // Restituisce tutti gli stati relativi a una cella produttiva specifica
+    // Restituisce il nodo del dispositivo (stato, versione, storico) oppure null se non è registrato
+    public DeviceEntry findEntry(String cell, String type, String id) {
+        return index.find(cell, type, id);
+    }
+
+    // Restituisce tutti gli stati relativi a una cella produttiva specifica indicizzati per cella/tipo/id
     public Map<String, Object> listByCell(String cell) {
         Map<String, Object> cellStates = new HashMap<>();
-        this.states.forEach((key, value) -> {
-            if (key.startsWith(cell + "/")) {
-                cellStates.put(key, value);
-            }
-        });
+        index.forEachInCell(cell, entry -> putState(cellStates, entry));
         return cellStates;
     }
 
-    // Associa un listener agli aggiornamenti di stato di un singolo dispositivo
-    public void addListener(String cell, String type, String id, Consumer<Object> listener) {
-        String key = buildKey(cell, type, id);
-        this.listeners.computeIfAbsent(key, k -> new ArrayList<>()).add(listener);
-        logger.info("Listener added for key '{}'", key);
+    // Restituisce gli stati dei soli dispositivi di un certo tipo all'interno della cella
+    public Map<String, Object> listByType(String cell, String type) {
+        Map<String, Object> typeStates = new HashMap<>();
+        index.forEachOfType(cell, type, entry -> putState(typeStates, entry));
+        return typeStates;
+    }
+
+    // Copia lo stato del nodo nella mappa risultato ignorando i dispositivi ancora privi di telemetria
+    private void putState(Map<String, Object> target, DeviceEntry entry) {
+        Object state = entry.state();
+        if (state != null) {
+            target.put(entry.key().path(), RawTelemetry.decoded(state));
+        }
+    }
+
+    /**
+     * Associa un listener agli aggiornamenti di stato di un singolo dispositivo.
+     * @return L'handle da cancellare quando il listener non è più necessario.
+     */
+    public Subscription addListener(String cell, String type, String id, Consumer<Object> listener) {
+        DeviceKey key = DeviceKey.of(cell, type, id);
+        Subscription subscription = listeners.add(key, listener);
+        logger.debug("Listener added for key '{}' ({} active)", key, listeners.size());
+        return subscription;
+    }
+
+    /**
+     * Associa un listener agli aggiornamenti e alle rimozioni di tutti i dispositivi di una cella.
+     * Il listener riceve solo la chiave del dispositivo e viene invocato in modo sincrono dal thread che esegue
+     * {@link #upsert} o {@link #remove}: deve limitarsi ad annotarla e leggere lo stato in seguito.
+     * @return L'handle da cancellare quando il listener non è più necessario.
+     */
+    public Subscription addCellListener(String cell, Consumer<DeviceKey> listener) {
+        cellListeners.compute(cell, (c, list) -> {
+            List<Consumer<DeviceKey>> current = list != null ? list : new CopyOnWriteArrayList<>();
+            current.add(listener);
+            return current;
+        });
+        return new Subscription() {
+            private volatile boolean active = true;
+
+            @Override
+            public void cancel() {
+                active = false;
+                cellListeners.computeIfPresent(cell, (c, list) -> {
+                    list.remove(listener);
+                    return list.isEmpty() ? null : list;
+                });
+            }
+
+            @Override
+            public boolean isActive() {
+                return active;
+            }
+        };
     }
 
-    // Notifica tutti i listener registrati per una determinata chiave di stato
-    private void notifyListeners(String key, Object stateObj) {
-        List<Consumer<Object>> keyListeners = this.listeners.get(key);
-        if (keyListeners != null && !keyListeners.isEmpty()) {
-            logger.info("Notifying {} listener(s) for key '{}'", keyListeners.size(), key);
-            keyListeners.forEach(listener -> {
-                try {
-                    listener.accept(stateObj);
-                } catch (Exception e) {
-                    logger.error("Error notifying listener for key '{}'", key, e);
-                }
-            });
+    // Restituisce il numero complessivo di listener attualmente registrati
+    public int listenerCount() {
+        return listeners.size();
+    }
+
+    // Restituisce i contatori del dispatcher asincrono dei listener (coda, consegne, coalescing, scarti)
+    public ListenerDispatcher.Stats listenerStats() {
+        return dispatcher.stats();
+    }
+
+    // Pianifica la notifica asincrona dei listener del dispositivo: il chiamante non attende la consegna
+    private void notifyListeners(DeviceEntry entry, Object stateObj) {
+        if (listeners.hasListeners(entry.key())) {
+            dispatcher.dispatch(entry, stateObj);
         }
     }
 
-    // Genera la chiave unica che rappresenta un dispositivo all'interno del repository
-    private String buildKey(String cell, String type, String id) {
-        return String.format("%s/%s/%s", cell, type, id);
+    // Segnala l'aggiornamento o la rimozione ai listener della cella isolando gli errori dei singoli listener
+    private void notifyCellListeners(DeviceKey key) {
+        List<Consumer<DeviceKey>> list = cellListeners.get(key.cell());
+        if (list == null) {
+            return;
+        }
+        for (Consumer<DeviceKey> listener : list) {
+            try {
+                listener.accept(key);
+            } catch (Exception e) {
+                logger.error("Error notifying cell listener for key '{}'", key, e);
+            }
+        }
     }
 
     // --- Metodi di supporto per l'esposizione tramite API CoAP ---
 
     // Restituisce in formato JSON l'elenco dei dispositivi registrati per una cella
     public String listDevicesJson(String cell) {
+        List<Map<String, String>> deviceList = new ArrayList<>();
+        index.forEachInCell(cell, entry -> addDevice(deviceList, entry));
+        return writeDeviceList(cell, null, deviceList);
+    }
+
+    // Restituisce in formato JSON l'elenco dei dispositivi di un solo tipo all'interno della cella
+    public String listDevicesJson(String cell, String type) {
+        List<Map<String, String>> deviceList = new ArrayList<>();
+        index.forEachOfType(cell, type, entry -> addDevice(deviceList, entry));
+        return writeDeviceList(cell, type, deviceList);
+    }
+
+    /**
+     * Fotografa lo stato corrente dei dispositivi della cella (o del solo tipo indicato), ordinati per percorso.
+     *
+     * @param type Tipo dei dispositivi, oppure {@code null} per l'intera cella.
+     */
+    public CellSnapshot snapshot(String cell, String type) {
+        List<CellSnapshot.Device> devices = new ArrayList<>();
+        Consumer<DeviceEntry> collector = entry -> {
+            CellSnapshot.Device device = entry.snapshot();
+            if (device != null) {
+                devices.add(device);
+            }
+        };
+        if (type == null) {
+            index.forEachInCell(cell, collector);
+        } else {
+            index.forEachOfType(cell, type, collector);
+        }
+        devices.sort(Comparator.comparing(device -> device.key().path()));
+        return new CellSnapshot(cell, type, devices);
+    }
+
+    /**
+     * Fotografa lo stato corrente dei soli dispositivi indicati, ordinati per percorso, per un lotto di variazioni.
+     * Un dispositivo non più presente compare come rimosso ({@link CellSnapshot.Device#isRemoved()}),
+     * uno ancora privo di telemetria non compare.
+     */
+    public CellSnapshot snapshot(String cell, Collection<DeviceKey> keys) {
+        List<CellSnapshot.Device> devices = new ArrayList<>(keys.size());
+        for (DeviceKey key : keys) {
+            DeviceEntry entry = index.find(key.cell(), key.type(), key.id());
+            if (entry == null) {
+                devices.add(CellSnapshot.Device.removed(key));
+                continue;
+            }
+            CellSnapshot.Device device = entry.snapshot();
+            if (device != null) {
+                devices.add(device);
+            }
+        }
+        devices.sort(Comparator.comparing(device -> device.key().path()));
+        return new CellSnapshot(cell, null, devices);
+    }
+
+    /**
+     * Apre un cursore sull'elenco dei dispositivi della fotografia nella codifica richiesta.
+     * In JSON e CBOR è la stessa struttura di {@link #listDevicesJson(String)}; in SenML (JSON o CBOR) è un
+     * unico pack con i record di telemetria di ciascun dispositivo, con nome base {@code {cell}/{type}/{id}/}.
+     * Il corpo viene generato un dispositivo alla volta man mano che il cursore viene letto.
+     */
+    public BodyCursor openDeviceList(CellSnapshot snapshot, PayloadEncoding encoding) {
+        return new CellSnapshotCursor(snapshot, encoding, CellSnapshotCursor.Layout.DEVICES);
+    }
+
+    /**
+     * Apre un cursore sullo stato di tutti i dispositivi della fotografia nella codifica richiesta.
+     * In JSON e CBOR è un oggetto {@code {"cell", "type"?, "states": [{"type", "id", "state"}]}}, dove la
+     * telemetria passthrough viene copiata in JSON senza ricodifica; in SenML è lo stesso pack di
+     * {@link #openDeviceList(CellSnapshot, PayloadEncoding)}.
+     */
+    public BodyCursor openStates(CellSnapshot snapshot, PayloadEncoding encoding) {
+        return new CellSnapshotCursor(snapshot, encoding, CellSnapshotCursor.Layout.STATES);
+    }
+
+    /**
+     * Apre un cursore su un lotto di variazioni della cella con il relativo numero di sequenza.
+     * In JSON e CBOR è {@code {"cell", "seq", "changes": [{"type", "id", "state"}]}}; in SenML è il pack di
+     * {@link #openStates(CellSnapshot, PayloadEncoding)} preceduto dal record {@code {cell}/seq}.
+     * Un dispositivo rimosso è {@code {"type", "id", "removed": true}} senza stato, in SenML il solo record
+     * booleano {@code {cell}/{type}/{id}/removed}.
+     */
+    public BodyCursor openChanges(CellSnapshot changes, long sequence, PayloadEncoding encoding) {
+        return new CellSnapshotCursor(changes, encoding, CellSnapshotCursor.Layout.CHANGES, sequence);
+    }
+
+    /**
+     * Seleziona i dispositivi della cella che hanno già pubblicato uno stato e corrispondono al filtro,
+     * ordinati per percorso.
+     */
+    public List<DeviceKey> select(String cell, DeviceSelector selector) {
+        List<DeviceKey> selected = new ArrayList<>();
+        Consumer<DeviceEntry> collector = entry -> {
+            // Il tipo è già filtrato dalla visita: la telemetria passthrough viene decodificata solo per filtrare sullo stato
+            Object state = entry.state();
+            if (state != null && (selector.status() == null || selector.matches(entry.key(), RawTelemetry.decoded(state)))) {
+                selected.add(entry.key());
+            }
+        };
+        if (selector.type() == null) {
+            index.forEachInCell(cell, collector);
+        } else {
+            index.forEachOfType(cell, selector.type(), collector);
+        }
+        selected.sort(Comparator.comparing(DeviceKey::path));
+        return selected;
+    }
+
+    // Aggiunge alla lista la coppia tipo/id del dispositivo se ha già pubblicato uno stato
+    private void addDevice(List<Map<String, String>> deviceList, DeviceEntry entry) {
+        if (entry.state() != null) {
+            deviceList.add(Map.of("type", entry.key().type(), "id", entry.key().id()));
+        }
+    }
+
+    // Serializza l'elenco dei dispositivi nel payload JSON esposto via CoAP
+    private String writeDeviceList(String cell, String type, List<Map<String, String>> deviceList) {
         try {
-            Map<String, Object> cellDevices = listByCell(cell);
-            List<Map<String, String>> deviceList = cellDevices.keySet().stream().map(key -> {
-                String[] parts = key.split("/");
-                return Map.of("type", parts[1], "id", parts[2]);
-            }).collect(Collectors.toList());
-
-            Map<String, Object> responsePayload = Map.of(
-                    "cell", cell,
-                    "devices", deviceList
-            );
-            return objectMapper.writeValueAsString(responsePayload);
+            return Codecs.MAPPER.writeValueAsString(deviceListPayload(cell, type, deviceList));
         } catch (Exception e) {
             logger.error("Error serializing device list for cell {}", cell, e);
             return "{\"error\":\"Internal Server Error\"}";
         }
     }
 
+    // Struttura dell'elenco dei dispositivi esposta in JSON
+    private static Map<String, Object> deviceListPayload(String cell, String type, List<Map<String, String>> deviceList) {
+        return type == null
+                ? Map.of("cell", cell, "devices", deviceList)
+                : Map.of("cell", cell, "type", type, "devices", deviceList);
+    }
+
     // Produce la rappresentazione JSON dello stato di un singolo dispositivo se disponibile
     public String getStateJson(String cell, String type, String id) {
         try {
-            Optional<Object> state = get(cell, type, id);
-            if (state.isPresent()) {
-                return objectMapper.writeValueAsString(state.get());
+            DeviceEntry entry = index.find(cell, type, id);
+            Object state = entry != null ? entry.state() : null;
+            if (state instanceof RawTelemetry raw) {
+                return new String(raw.payload(), StandardCharsets.UTF_8);
+            } else if (state != null) {
+                return new String(TelemetryCodec.write(state), StandardCharsets.UTF_8);
             } else {
                 return String.format("{\"error\":\"State for %s/%s/%s not found\"}", cell, type, id);
             }
@@ -135,51 +460,143 @@ public class StateRepository {
     }
 
     /**
-     * Pubblica un comando globale destinato a tutti i dispositivi della fabbrica.
+     * Produce la rappresentazione JSON dello storico di un dispositivo nell'intervallo richiesto.
+     * @param from Timestamp minimo (incluso) in millisecondi.
+     * @param to Timestamp massimo (incluso) in millisecondi.
+     * @param limit Numero massimo di campioni, scelti tra i più recenti.
+     * @return Il payload JSON oppure {@code null} se il dispositivo non è noto.
+     */
+    public String getHistoryJson(String cell, String type, String id, long from, long to, int limit) {
+        DeviceEntry entry = index.find(cell, type, id);
+        if (entry == null) {
+            return null;
+        }
+        DeviceHistory history = entry.history();
+        StringWriter out = new StringWriter();
+        try (JsonGenerator gen = Codecs.MAPPER.getFactory().createGenerator(out)) {
+            gen.writeStartObject();
+            gen.writeStringField("device", entry.key().path());
+            gen.writeNumberField("capacity", history != null ? history.capacity() : 0);
+            gen.writeFieldName("samples");
+            if (history != null) {
+                history.writeSamples(gen, from, to, limit);
+            } else {
+                gen.writeStartArray();
+                gen.writeEndArray();
+            }
+            gen.writeEndObject();
+        } catch (IOException e) {
+            logger.error("Error serializing history for {}", entry.key(), e);
+            return "{\"error\":\"Internal Server Error\"}";
+        }
+        return out.toString();
+    }
+
+    /**
+     * Pubblica un comando broadcast con un'unica pubblicazione sul topic dell'ambito e ne attende l'ack da
+     * ciascun dispositivo comandabile che l'ambito include al momento dell'invio, correlati tramite il
+     * {@code msgId} (generato se il client non lo indica).
+     * @param scope Fabbrica, cella o tipo di dispositivo in una cella.
      * @param command Oggetto comando contenente tipo e timestamp del messaggio.
+     * @return Le fasi del comando: conferma del broker ed esito aggregato degli ack dei dispositivi.
      */
-    public boolean publishGlobalCommand(Command command) {
-        String type = command != null ? command.getType() : null;
-        logger.info("Global factory command received: {}", type);
-        if (!ensurePublisherAvailable() || type == null || type.isBlank()) {
-            logger.error("Cannot publish global command: missing type");
-            return false;
+    public CommandReceipt<CommandTracker.BroadcastResult> publishBroadcastCommand(BroadcastScope scope, Command command) {
+        String cmdType = command != null ? command.getType() : null;
+        logger.info("Broadcast command '{}' received for scope {}", cmdType, scope);
+        if (!ensurePublisherAvailable() || cmdType == null || cmdType.isBlank()) {
+            logger.error("Cannot publish broadcast command to {}: missing type", scope);
+            return CommandReceipt.failed(command != null ? command.getMsgId() : null,
+                    new IllegalStateException("Comando broadcast non inoltrabile"));
         }
 
         Command normalized = normalizeCommand(command);
-        try {
-            commandPublisher.publishGlobalCommand(normalized);
-            return true;
-        } catch (MqttException e) {
-            logger.error("Error publishing global command {}", normalized.getType(), e);
-            return false;
+        List<DeviceKey> targets = broadcastTargets(scope);
+        CompletableFuture<CommandTracker.BroadcastResult> acknowledged = commandTracker.registerBroadcast(targets, normalized);
+        if (acknowledged.isCompletedExceptionally()) {
+            logger.warn("Broadcast command {} to {} duplicates pending msgId {}", normalized.getType(), scope, normalized.getMsgId());
+            return new CommandReceipt<>(normalized.getMsgId(), acknowledged.thenApply(result -> null), acknowledged);
+        }
+        CompletableFuture<Void> published = commandPublisher.publishBroadcastCommand(scope, normalized)
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        logger.error("Error publishing broadcast command {} to {}", normalized.getType(), scope, error);
+                        commandTracker.cancel(normalized.getMsgId(), error);
+                    }
+                });
+        return new CommandReceipt<>(normalized.getMsgId(), published, acknowledged);
+    }
+
+    // Dispositivi che ricevono il broadcast dell'ambito: solo quelli dei tipi che gestiscono comandi e hanno già uno stato
+    private List<DeviceKey> broadcastTargets(BroadcastScope scope) {
+        List<DeviceKey> targets = new ArrayList<>();
+        Consumer<DeviceEntry> collector = entry -> {
+            if (COMMANDABLE_TYPES.contains(entry.key().type()) && entry.state() != null) {
+                targets.add(entry.key());
+            }
+        };
+        if (scope.cell() == null) {
+            index.forEach(collector);
+        } else if (scope.type() == null) {
+            index.forEachInCell(scope.cell(), collector);
+        } else {
+            index.forEachOfType(scope.cell(), scope.type(), collector);
         }
+        return targets;
     }
 
     /**
-     * Pubblica un comando destinato a un singolo dispositivo identificato da cella, tipo e id.
+     * Pubblica un comando destinato a un singolo dispositivo identificato da cella, tipo e id
+     * e ne attende l'ack, correlato tramite il {@code msgId} (generato se il client non lo indica).
      * @param cell Identificativo della cella industriale destinataria.
      * @param type Tipo di dispositivo (es. robot, conveyor, quality).
      * @param id Identificativo univoco del dispositivo nella cella.
      * @param command Comando da eseguire con tipo e timestamp.
+     * @return Le fasi del comando: conferma del broker e ack del dispositivo.
      */
-    public boolean publishCommand(String cell, String type, String id, Command command) {
+    public CommandReceipt<Ack> publishCommand(String cell, String type, String id, Command command) {
         String cmdType = command != null ? command.getType() : null;
         logger.info("Publishing command '{}' to device {}/{}/{}", cmdType, cell, type, id);
 
         if (!ensurePublisherAvailable() || cmdType == null || cmdType.isBlank()) {
             logger.error("Cannot publish command to {}/{}/{}: missing type", cell, type, id);
-            return false;
+            return CommandReceipt.failed(command != null ? command.getMsgId() : null,
+                    new IllegalStateException("Comando non inoltrabile"));
         }
 
         Command normalized = normalizeCommand(command);
-        try {
-            commandPublisher.publishDeviceCommand(cell, type, id, normalized);
-            return true;
-        } catch (MqttException e) {
-            logger.error("Error publishing command {} to device {}/{}/{}", normalized.getType(), cell, type, id, e);
-            return false;
+        // La chiave del dispositivo registrato riusa il topic già in cache nel publisher
+        DeviceEntry entry = index.find(cell, type, id);
+        DeviceKey key = entry != null ? entry.key() : DeviceKey.of(cell, type, id);
+        // Registrato prima della pubblicazione: l'ack del dispositivo può precedere il PUBACK del broker
+        CompletableFuture<Ack> acknowledged = commandTracker.register(key, normalized);
+        if (acknowledged.isCompletedExceptionally()) {
+            // Un comando con lo stesso msgId è ancora in attesa: il duplicato non viene ripubblicato
+            logger.warn("Command {} to device {} duplicates pending msgId {}", normalized.getType(), key, normalized.getMsgId());
+            return new CommandReceipt<>(normalized.getMsgId(), acknowledged.thenApply(ack -> null), acknowledged);
         }
+        CompletableFuture<Void> published = commandPublisher.publishDeviceCommand(key, normalized)
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        logger.error("Error publishing command {} to device {}", normalized.getType(), key, error);
+                        commandTracker.cancel(normalized.getMsgId(), error);
+                    }
+                });
+        return new CommandReceipt<>(normalized.getMsgId(), published, acknowledged);
+    }
+
+    /**
+     * Consegna al tracker l'ack pubblicato da un dispositivo.
+     * @return {@code true} se l'ack corrisponde a un comando in attesa.
+     */
+    public boolean acknowledgeCommand(DeviceKey device, Ack ack) {
+        return commandTracker.acknowledge(device, ack);
+    }
+
+    /**
+     * Restituisce i contatori dei comandi in attesa di ack e le latenze comando→ack per tipo di dispositivo.
+     */
+    public CommandTracker.Stats commandStats() {
+        return commandTracker.stats();
     }
 
     // Verifica che il publisher MQTT sia stato registrato prima di inviare nuovi comandi
@@ -191,7 +608,7 @@ public class StateRepository {
         return true;
     }
 
-    // Normalizza il comando assicurando maiuscole e timestamp valorizzato
+    // Normalizza il comando assicurando maiuscole, timestamp e msgId valorizzati
     private Command normalizeCommand(Command command) {
         Command result = command != null ? command : new Command();
         if (result.getType() != null) {
@@ -200,6 +617,9 @@ public class StateRepository {
         if (result.getTs() <= 0) {
             result.setTs(System.currentTimeMillis());
         }
+        if (result.getMsgId() == null || result.getMsgId().isBlank()) {
+            result.setMsgId(MSG_ID_PREFIX + Long.toString(msgIdSequence.incrementAndGet(), 36));
+        }
         return result;
     }
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+package it.unimore.iot.microfactory.domain;
+
+/**
+ * Handle restituito alla registrazione di un listener nello {@link StateRepository}.
+ * La cancellazione rimuove il listener dal registro e ne consente la raccolta da parte del GC.
+ */
+public interface Subscription extends AutoCloseable {
+
+    /**
+     * Rimuove il listener; invocazioni successive non hanno effetto.
+     */
+    void cancel();
+
+    /**
+     * Indica se il listener è ancora registrato.
+     */
+    boolean isActive();
+
+    @Override
+    default void close() {
+        cancel();
+    }
+}
@@ -1,8 +1,16 @@
 package it.unimore.iot.microfactory.manager;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.codec.PayloadEncoding;
+import it.unimore.iot.microfactory.codec.TelemetryCodec;
+import it.unimore.iot.microfactory.communication.mqtt.TopicResolver;
+import it.unimore.iot.microfactory.domain.CommandTracker;
+import it.unimore.iot.microfactory.domain.DeviceHistory;
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import it.unimore.iot.microfactory.domain.ListenerDispatcher;
+import it.unimore.iot.microfactory.domain.RawTelemetry;
 import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.model.Ack;
 import it.unimore.iot.microfactory.model.Command;
 import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
 import it.unimore.iot.microfactory.model.QualitySensorData;
@@ -32,21 +40,49 @@ public class DataCollectorManager {
 
     private static final String CLIENT_ID = "data-collector-manager-" + UUID.randomUUID();
     private static final String TELEMETRY_TOPIC_WILDCARD = "mf/+/+/+/status";
+    private static final String ACK_TOPIC_WILDCARD = "mf/+/+/+/ack";
+    private static final int DEFAULT_INGEST_RING_CAPACITY = 8_192;
+    private static final int DEFAULT_TOPIC_CACHE_SIZE = 65_536;
+    private static final long INGEST_SHUTDOWN_TIMEOUT_MS = 5_000;
 
     private final String brokerUrl;
     private final IMqttClient mqttClient;
-    private final ObjectMapper objectMapper = new ObjectMapper();
     private final StateRepository stateRepository = StateRepository.getInstance();
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final IngestPipeline ingestPipeline;
+    private final TopicResolver topicResolver;
 
     // Abilita o disabilita l'invio automatico del comando RESET quando un robot entra in ALARM
     private final boolean autoResetOnAlarm =
             Boolean.parseBoolean(Optional.ofNullable(System.getenv("AUTO_RESET_ON_ALARM")).orElse("true"));
 
+    // Conserva i payload JSON ricevuti senza decodificarli nel modello (decodifica solo su richiesta)
+    private final boolean passthrough =
+            Boolean.parseBoolean(Optional.ofNullable(System.getenv("TELEMETRY_PASSTHROUGH")).orElse("false"));
+
     // Costruttore che inizializza il client MQTT leggendo le configurazioni dall'ambiente
     public DataCollectorManager() throws MqttException {
-        this.brokerUrl = Optional.ofNullable(System.getenv("MQTT_BROKER_URL")).orElse("tcp://localhost:1883");
+        this(Optional.ofNullable(System.getenv("MQTT_BROKER_URL")).orElse("tcp://localhost:1883"),
+                Optional.ofNullable(System.getenv("INGEST_WORKERS"))
+                        .map(Integer::parseInt)
+                        .orElse(Runtime.getRuntime().availableProcessors()),
+                Optional.ofNullable(System.getenv("INGEST_RING_CAPACITY"))
+                        .map(Integer::parseInt)
+                        .orElse(DEFAULT_INGEST_RING_CAPACITY),
+                Optional.ofNullable(System.getenv("INGEST_BACKPRESSURE"))
+                        .map(IngestPipeline.Backpressure::parse)
+                        .orElse(IngestPipeline.Backpressure.BLOCK));
+    }
+
+    // Costruttore con broker e pipeline di ingest espliciti, usato dai test
+    DataCollectorManager(String brokerUrl, int workers, int ringCapacity, IngestPipeline.Backpressure backpressure)
+            throws MqttException {
+        this.brokerUrl = brokerUrl;
         this.mqttClient = new MqttClient(brokerUrl, CLIENT_ID, new MemoryPersistence());
+        this.topicResolver = new TopicResolver(Optional.ofNullable(System.getenv("TOPIC_CACHE_SIZE"))
+                .map(Integer::parseInt)
+                .orElse(DEFAULT_TOPIC_CACHE_SIZE));
+        this.ingestPipeline = new IngestPipeline(workers, ringCapacity, backpressure, this::processMessage);
     }
 
     // Stabilisce la connessione al broker MQTT e registra il callback per elaborare la telemetria
@@ -77,13 +113,10 @@ public class DataCollectorManager {
                 logger.error("Connection lost", cause);
             }
 
+            // Il callback di Paho accoda soltanto: decodifica e aggiornamento avvengono sui worker della pipeline
             @Override
             public void messageArrived(String topic, MqttMessage message) {
-                try {
-                    processMessage(topic, message);
-                } catch (Exception e) {
-                    logger.error("Error processing message from topic {}", topic, e);
-                }
+                ingestPipeline.publish(topic, message.getPayload());
             }
 
             @Override
@@ -99,72 +132,115 @@ public class DataCollectorManager {
         scheduler.scheduleAtFixedRate(this::printStatistics, 10, 10, TimeUnit.SECONDS);
     }
 
-    // Sottoscrive il client MQTT al topic wildcard che raccoglie gli stati dei dispositivi
+    // Sottoscrive il client MQTT ai topic wildcard che raccolgono gli stati dei dispositivi e gli ack dei comandi
     private void subscribeToTopics() throws MqttException {
-        mqttClient.subscribe(TELEMETRY_TOPIC_WILDCARD, 1);
-        logger.info("Subscribed to topic: {}", TELEMETRY_TOPIC_WILDCARD);
-    }
-
-    private record TopicParts(String cell, String type, String id) {}
-
-    // Analizza il topic ricevuto per estrarre cella, tipo e identificativo del dispositivo
-    private Optional<TopicParts> parseTopic(String topic) {
-        String[] p = topic.split("/");
-        if (p.length == 5 && "mf".equals(p[0]) && "status".equals(p[4])) {
-            return Optional.of(new TopicParts(p[1], p[2], p[3]));
-        }
-        logger.warn("Received message on unexpected topic format: {}", topic);
-        return Optional.empty();
+        mqttClient.subscribe(new String[]{TELEMETRY_TOPIC_WILDCARD, ACK_TOPIC_WILDCARD}, new int[]{1, 1});
+        logger.info("Subscribed to topics: {}, {}", TELEMETRY_TOPIC_WILDCARD, ACK_TOPIC_WILDCARD);
     }
 
     // Decodifica la telemetria ricevuta, aggiorna il repository e gestisce eventuali allarmi dei robot
-    private void processMessage(String topic, MqttMessage message) throws IOException {
+    private void processMessage(String topic, byte[] payload) {
         logger.debug("Message arrived from topic '{}'", topic);
 
-        parseTopic(topic).ifPresent(parts -> {
-            try {
-                Object data = null;
-                switch (parts.type()) {
-                    case "robot" -> {
-                        RobotCellStatus status = objectMapper.readValue(message.getPayload(), RobotCellStatus.class);
-                        data = status;
-                        if (autoResetOnAlarm && status.getStatus() == RobotCellStatusEnum.ALARM) {
-                            logger.warn("ALARM for Robot {} in cell {}. Sending RESET.", parts.id(), parts.cell());
-                            sendResetCommand(parts.cell(), parts.id());
-                        }
+        TopicResolver.Topic resolved = topicResolver.resolve(topic);
+        if (resolved != null && resolved.suffix() == TopicResolver.Suffix.ACK) {
+            processAck(resolved.device(), payload);
+            return;
+        }
+        if (resolved == null || resolved.suffix() != TopicResolver.Suffix.STATUS) {
+            logger.warn("Received message on unexpected topic format: {}", topic);
+            return;
+        }
+        DeviceKey device = resolved.device();
+        try {
+            Object data = null;
+            switch (device.type()) {
+                case "robot" -> {
+                    data = decode(payload, DeviceHistory.Kind.ROBOT);
+                    RobotCellStatusEnum status = data instanceof RawTelemetry raw
+                            ? raw.status()
+                            : ((RobotCellStatus) data).getStatus();
+                    // Solo gli allarmi: un robot in EMERGENCY_STOP attende il RESET di un operatore
+                    if (autoResetOnAlarm && status == RobotCellStatusEnum.ALARM) {
+                        logger.warn("ALARM for Robot {} in cell {}. Sending RESET.", device.id(), device.cell());
+                        sendResetCommand(device.cell(), device.id());
                     }
-                    case "conveyor" -> data = objectMapper.readValue(message.getPayload(), ConveyorBeltStatus.class);
-                    case "quality"  -> data = objectMapper.readValue(message.getPayload(), QualitySensorData.class);
-                    default         -> logger.warn("Unknown device type in topic: {}", parts.type());
                 }
+                case "conveyor" -> data = decode(payload, DeviceHistory.Kind.CONVEYOR);
+                case "quality"  -> data = decode(payload, DeviceHistory.Kind.QUALITY);
+                default         -> logger.warn("Unknown device type in topic: {}", device.type());
+            }
 
-                if (data != null) {
-                    stateRepository.upsert(parts.cell(), parts.type(), parts.id(), data);
-                }
-            } catch (IOException e) {
-                logger.error("Error deserializing message payload for topic {}", topic, e);
+            if (data != null) {
+                stateRepository.upsert(device.cell(), device.type(), device.id(), data);
             }
-        });
+        } catch (IOException e) {
+            logger.error("Error deserializing message payload for topic {}", topic, e);
+        }
     }
 
-    // Invia un comando RESET al robot specificato quando è abilitato l'auto ripristino
-    private void sendResetCommand(String cellId, String deviceId) {
+    // Consegna l'ack del dispositivo al tracker dei comandi, che lo abbina al comando in attesa tramite il msgId
+    private void processAck(DeviceKey device, byte[] payload) {
         try {
-            String cmdTopic = String.format("mf/%s/robot/%s/cmd", cellId, deviceId);
-            Command cmd = new Command("RESET", System.currentTimeMillis());
-            byte[] payload = objectMapper.writeValueAsBytes(cmd);
-            mqttClient.publish(cmdTopic, payload, 1, false);
-            logger.info("Published RESET command to {}", cmdTopic);
-        } catch (JsonProcessingException e) {
-            logger.error("Error serializing RESET command", e);
-        } catch (MqttException e) {
-            logger.error("Error publishing RESET command", e);
+            Ack ack = Codecs.ACK_READER.readValue(payload);
+            if (!stateRepository.acknowledgeCommand(device, ack)) {
+                logger.debug("Uncorrelated ack {} from {} (msgId {})", ack.getStatus(), device, ack.getMsgId());
+            }
+        } catch (IOException e) {
+            logger.error("Error deserializing ack from {}", device, e);
         }
     }
 
-    // Stampa periodicamente un log utile a calcolare KPI o verificare la connettività
+    // Riconosce la codifica dal primo byte; in modalità passthrough conserva i payload JSON estraendo solo i campi del percorso caldo, altrimenti decodifica il modello
+    private Object decode(byte[] payload, DeviceHistory.Kind kind) throws IOException {
+        PayloadEncoding encoding = PayloadEncoding.detect(payload);
+        if (passthrough && encoding == PayloadEncoding.JSON) {
+            return RawTelemetry.parse(kind, payload);
+        }
+        Class<?> model = switch (kind) {
+            case ROBOT -> RobotCellStatus.class;
+            case CONVEYOR -> ConveyorBeltStatus.class;
+            case QUALITY -> QualitySensorData.class;
+        };
+        return TelemetryCodec.read(encoding, model, payload);
+    }
+
+    /**
+     * Invia un comando RESET al robot specificato quando è abilitato l'auto ripristino.
+     * Il comando passa dal {@code CommandPublisher} asincrono e non dal client di questo gestore: il worker di ingest
+     * non deve mai attendere un PUBACK, perché con {@link IngestPipeline.Backpressure#BLOCK} e il ring pieno il thread
+     * di ricezione di Paho che leggerebbe quel PUBACK è a sua volta fermo nel callback.
+     */
+    private void sendResetCommand(String cellId, String deviceId) {
+        stateRepository.publishCommand(cellId, "robot", deviceId, new Command("RESET", System.currentTimeMillis()))
+                .published()
+                .whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        logger.info("Published RESET command to robot {} in cell {}", deviceId, cellId);
+                    }
+                });
+    }
+
+    // Stampa periodicamente lo stato della pipeline di ingest e del dispatcher dei listener per verificare ritardi
     private void printStatistics() {
-        logger.info("Controllo periodico: calcolo KPI o verifiche possono essere aggiunti qui.");
+        IngestPipeline.Stats ingest = ingestPipeline.stats();
+        logger.info("Ingest pipeline: queueDepth={}, processed={}, dropped={}, failed={}",
+                ingest.queueDepth(), ingest.processed(), ingest.dropped(), ingest.failed());
+        ListenerDispatcher.Stats stats = stateRepository.listenerStats();
+        logger.info("Listener dispatch: queueDepth={}, delivered={}, coalesced={}, dropped={}",
+                stats.queueDepth(), stats.delivered(), stats.coalesced(), stats.dropped());
+        CommandTracker.Stats commands = stateRepository.commandStats();
+        logger.info("Command acks: pending={}, acknowledged={}, timedOut={}, unmatched={}",
+                commands.pending(), commands.acknowledged(), commands.timedOut(), commands.unmatched());
+        commands.latency().forEach((type, latency) -> logger.info(
+                "Command latency {}: count={}, p50={}ms, p99={}ms, max={}ms, errors={}, timeouts={}",
+                type, latency.latency().count(), latency.latency().p50() / 1000.0, latency.latency().p99() / 1000.0,
+                latency.latency().max() / 1000.0, latency.errors(), latency.timeouts()));
+        if (commands.broadcast().count() > 0) {
+            logger.info("Broadcast completion: count={}, p50={}ms, p99={}ms, max={}ms", commands.broadcast().count(),
+                    commands.broadcast().p50() / 1000.0, commands.broadcast().p99() / 1000.0,
+                    commands.broadcast().max() / 1000.0);
+        }
     }
 
     // Arresta le attività del gestore chiudendo il thread scheduler e la connessione MQTT
@@ -173,6 +249,7 @@ public class DataCollectorManager {
         if (mqttClient.isConnected()) {
             mqttClient.disconnect();
         }
+        ingestPipeline.shutdown(INGEST_SHUTDOWN_TIMEOUT_MS);
         logger.info("Data Collector Manager stopped.");
     }
 }
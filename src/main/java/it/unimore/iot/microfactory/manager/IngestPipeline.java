@@ -0,0 +1,258 @@
+package it.unimore.iot.microfactory.manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pipeline di ingest della telemetria MQTT che sposta decodifica e aggiornamento dello stato
+ * fuori dal thread di callback di Paho.
+ * Il callback si limita a copiare i riferimenti a topic e payload in uno slot di un ring buffer
+ * a capacità fissa e preallocato; N worker estraggono i messaggi e li elaborano.
+ * I ring sono uno per worker e il messaggio viene assegnato in base all'hash di cella/tipo/id
+ * (il topic senza l'ultimo livello), per cui i messaggi dello stesso dispositivo sono elaborati
+ * sempre dallo stesso worker e nell'ordine di arrivo.
+ * Quando il ring di destinazione è pieno si applica la {@link Backpressure} configurata.
+ */
+public class IngestPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestPipeline.class);
+
+    // Attesa massima del produttore bloccato o del worker inattivo prima di ricontrollare il ring
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * Comportamento del callback quando il ring del dispositivo è pieno.
+     */
+    public enum Backpressure {
+        /** Il callback attende che si liberi uno slot, rallentando la lettura dal broker. */
+        BLOCK,
+        /** Il messaggio viene scartato e conteggiato. */
+        DROP;
+
+        public static Backpressure parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Elaborazione di un singolo messaggio, eseguita sul thread del worker.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        void handle(String topic, byte[] payload) throws Exception;
+    }
+
+    /**
+     * Istantanea dei contatori della pipeline.
+     *
+     * @param queueDepth Messaggi in attesa di elaborazione in tutti i ring.
+     * @param processed  Messaggi elaborati dai worker.
+     * @param dropped    Messaggi scartati per ring pieno (solo con {@link Backpressure#DROP}).
+     * @param failed     Messaggi la cui elaborazione ha sollevato un'eccezione.
+     */
+    public record Stats(long queueDepth, long processed, long dropped, long failed) {
+    }
+
+    private final Ring[] rings;
+    private final Thread[] workers;
+    private final Handler handler;
+    private final Backpressure backpressure;
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * @param workerCount  Numero di worker, e quindi di ring.
+     * @param ringCapacity Capacità di ciascun ring, arrotondata alla potenza di due successiva.
+     * @param backpressure Politica da applicare quando un ring è pieno.
+     * @param handler      Elaborazione dei messaggi.
+     */
+    public IngestPipeline(int workerCount, int ringCapacity, Backpressure backpressure, Handler handler) {
+        if (workerCount <= 0 || ringCapacity <= 0) {
+            throw new IllegalArgumentException("workerCount and ringCapacity must be positive");
+        }
+        this.handler = handler;
+        this.backpressure = backpressure;
+        this.rings = new Ring[workerCount];
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            Ring ring = new Ring(ringCapacity);
+            rings[i] = ring;
+            workers[i] = new Thread(() -> runWorker(ring), "ingest-worker-" + i);
+            workers[i].setDaemon(true);
+            ring.consumer = workers[i];
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        logger.info("IngestPipeline started with {} worker(s), ring capacity {}, backpressure {}",
+                workerCount, rings[0].slots.length, backpressure);
+    }
+
+    /**
+     * Accoda il messaggio sul ring del dispositivo. Non alloca: topic e payload vengono
+     * solo referenziati e non devono essere modificati dal chiamante.
+     *
+     * @return {@code false} se il messaggio è stato scartato o la pipeline è arrestata.
+     */
+    public boolean publish(String topic, byte[] payload) {
+        if (!running) {
+            return false;
+        }
+        Ring ring = rings[(deviceHash(topic) & Integer.MAX_VALUE) % rings.length];
+        synchronized (ring) {
+            while (!ring.offer(topic, payload)) {
+                if (backpressure == Backpressure.DROP) {
+                    dropped.increment();
+                    return false;
+                }
+                if (!running) {
+                    return false;
+                }
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Restituisce i contatori correnti della pipeline.
+     */
+    public Stats stats() {
+        long depth = 0;
+        for (Ring ring : rings) {
+            depth += ring.size();
+        }
+        return new Stats(depth, processed.sum(), dropped.sum(), failed.sum());
+    }
+
+    /**
+     * Smette di accettare messaggi, attende che i worker svuotino i ring e li arresta.
+     *
+     * @param timeoutMillis Tempo massimo di attesa complessivo.
+     */
+    public void shutdown(long timeoutMillis) {
+        running = false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+            try {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        logger.info("IngestPipeline stopped after {} processed message(s)", processed.sum());
+    }
+
+    // Hash di cella/tipo/id calcolato sul topic escluso l'ultimo livello, senza creare sottostringhe
+    static int deviceHash(String topic) {
+        int end = topic.lastIndexOf('/');
+        if (end < 0) {
+            end = topic.length();
+        }
+        int h = 0;
+        for (int i = 0; i < end; i++) {
+            h = 31 * h + topic.charAt(i);
+        }
+        return h;
+    }
+
+    // Ciclo del worker: elabora i messaggi del proprio ring finché la pipeline è attiva o il ring non è vuoto
+    private void runWorker(Ring ring) {
+        while (true) {
+            if (!ring.poll(this)) {
+                if (!running) {
+                    return;
+                }
+                ring.awaitMessages();
+            }
+        }
+    }
+
+    // Consegna il messaggio all'handler isolando gli errori del singolo messaggio
+    private void handle(String topic, byte[] payload) {
+        try {
+            handler.handle(topic, payload);
+            processed.increment();
+        } catch (Exception e) {
+            failed.increment();
+            logger.error("Error processing message from topic {}", topic, e);
+        }
+    }
+
+    /**
+     * Ring buffer a capacità fissa con un solo consumatore. Gli slot sono due array paralleli
+     * preallocati; i produttori sono serializzati dal lock sul ring (in pratica il solo callback di Paho).
+     */
+    private static final class Ring {
+        private final String[] topics;
+        private final byte[][] slots;
+        private final int mask;
+        // Sequenze monotone: prossimo slot da scrivere e prossimo slot da leggere
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong head = new AtomicLong();
+        private volatile boolean consumerWaiting;
+        private Thread consumer;
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            this.topics = new String[size];
+            this.slots = new byte[size][];
+            this.mask = size - 1;
+        }
+
+        // Scrive il messaggio nel primo slot libero e sveglia il consumatore se in attesa
+        boolean offer(String topic, byte[] payload) {
+            long t = tail.get();
+            if (t - head.get() >= slots.length) {
+                return false;
+            }
+            int index = (int) (t & mask);
+            topics[index] = topic;
+            slots[index] = payload;
+            tail.set(t + 1);
+            if (consumerWaiting) {
+                LockSupport.unpark(consumer);
+            }
+            return true;
+        }
+
+        // Estrae ed elabora un messaggio; restituisce false se il ring è vuoto
+        boolean poll(IngestPipeline pipeline) {
+            long h = head.get();
+            if (h == tail.get()) {
+                return false;
+            }
+            int index = (int) (h & mask);
+            String topic = topics[index];
+            byte[] payload = slots[index];
+            topics[index] = null;
+            slots[index] = null;
+            head.lazySet(h + 1);
+            pipeline.handle(topic, payload);
+            return true;
+        }
+
+        // Sospende il consumatore finché non arriva un messaggio (con ricontrollo periodico per l'arresto)
+        void awaitMessages() {
+            consumerWaiting = true;
+            if (head.get() == tail.get()) {
+                LockSupport.parkNanos(this, PARK_NANOS * 20);
+            }
+            consumerWaiting = false;
+        }
+
+        long size() {
+            return tail.get() - head.get();
+        }
+    }
+}
@@ -15,5 +15,11 @@ public enum RobotCellStatusEnum {
     /**
      * Il robot si trova in uno stato di allarme o errore che richiede intervento.
      */
-    ALARM
+    ALARM,
+    /**
+     * Il robot è stato fermato da un comando EMERGENCY e resta fermo finché un operatore non invia RESET;
+     * a differenza di {@link #ALARM} non viene sbloccato dall'auto reset. Aggiunto in coda per non cambiare
+     * gli ordinali registrati nel journal e nello storico.
+     */
+    EMERGENCY_STOP
 }
\ No newline at end of file
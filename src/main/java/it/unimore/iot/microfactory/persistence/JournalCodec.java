@@ -0,0 +1,221 @@
+package it.unimore.iot.microfactory.persistence;
+
+import it.unimore.iot.microfactory.domain.DeviceHistory;
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import it.unimore.iot.microfactory.domain.RawTelemetry;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+/**
+ * Codifica binaria dei record di journal e snapshot.
+ * Layout di un record:
+ * <pre>
+ * int   lunghezza del corpo (scritta per ultima: 0 indica la fine dei dati validi)
+ * byte  tipo di record
+ * short+bytes cella, tipo e id del dispositivo (UTF-8)
+ * short+bytes deviceId del payload (-1 se coincide con l'id del topic)
+ * long  timestamp
+ * ...   campi specifici del tipo di telemetria (assenti per la rimozione del dispositivo)
+ * </pre>
+ * La telemetria passthrough ({@link RawTelemetry}) è salvata come layout del modello (byte)
+ * seguito dal payload JSON originale con prefisso di lunghezza (int).
+ * In replay la rimozione di un dispositivo viene consegnata con stato {@code null}.
+ */
+final class JournalCodec {
+
+    static final byte KIND_ROBOT = 1;
+    static final byte KIND_CONVEYOR = 2;
+    static final byte KIND_QUALITY = 3;
+    static final byte KIND_REMOVED = 4;
+    static final byte KIND_RAW = 5;
+
+    static final int LENGTH_PREFIX = Integer.BYTES;
+
+    // Dimensione del buffer di appoggio per la lettura delle stringhe (lunghezza massima di uno short)
+    static final int SCRATCH_SIZE = Short.MAX_VALUE;
+
+    private static final RobotCellStatusEnum[] ROBOT_STATUSES = RobotCellStatusEnum.values();
+    private static final DeviceHistory.Kind[] RAW_KINDS = DeviceHistory.Kind.values();
+
+    private JournalCodec() {
+    }
+
+    // Codifica cella, tipo e id come tre stringhe con prefisso di lunghezza, da riutilizzare a ogni append
+    static byte[] encodeKey(DeviceKey key) {
+        byte[] cell = key.cell().getBytes(StandardCharsets.UTF_8);
+        byte[] type = key.type().getBytes(StandardCharsets.UTF_8);
+        byte[] id = key.id().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(3 * Short.BYTES + cell.length + type.length + id.length);
+        buf.putShort((short) cell.length).put(cell);
+        buf.putShort((short) type.length).put(type);
+        buf.putShort((short) id.length).put(id);
+        return buf.array();
+    }
+
+    // Restituisce il tipo di record corrispondente allo stato, oppure 0 se lo stato non è persistibile
+    static byte kindOf(Object state) {
+        if (state instanceof RawTelemetry) {
+            return KIND_RAW;
+        } else if (state instanceof RobotCellStatus) {
+            return KIND_ROBOT;
+        } else if (state instanceof ConveyorBeltStatus) {
+            return KIND_CONVEYOR;
+        } else if (state instanceof QualitySensorData) {
+            return KIND_QUALITY;
+        }
+        return 0;
+    }
+
+    // Calcola la dimensione totale del record, prefisso di lunghezza incluso
+    static int recordSize(byte kind, byte[] keyBytes, byte[] deviceIdBytes, Object state) {
+        int body = 1 + keyBytes.length + Short.BYTES + (deviceIdBytes != null ? deviceIdBytes.length : 0) + Long.BYTES;
+        body += switch (kind) {
+            case KIND_ROBOT, KIND_CONVEYOR -> 1 + Double.BYTES;
+            case KIND_QUALITY -> 3 * Integer.BYTES;
+            case KIND_REMOVED -> 0;
+            case KIND_RAW -> 1 + Integer.BYTES + ((RawTelemetry) state).payload().length;
+            default -> throw new IllegalArgumentException("Unknown record kind " + kind);
+        };
+        return LENGTH_PREFIX + body;
+    }
+
+    // Restituisce i byte del deviceId del payload solo se differisce dall'id del topic
+    static byte[] deviceIdBytes(DeviceKey key, Object state) {
+        String deviceId = switch (kindOf(state)) {
+            case KIND_ROBOT -> ((RobotCellStatus) state).getDeviceId();
+            case KIND_CONVEYOR -> ((ConveyorBeltStatus) state).getDeviceId();
+            case KIND_QUALITY -> ((QualitySensorData) state).getDeviceId();
+            default -> null;
+        };
+        if (deviceId == null || deviceId.equals(key.id())) {
+            return null;
+        }
+        return deviceId.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Scrive il record a partire dalla posizione corrente del buffer.
+     * La lunghezza viene scritta per ultima così che un record incompleto venga ignorato in replay.
+     */
+    static void write(ByteBuffer buf, byte kind, byte[] keyBytes, byte[] deviceIdBytes, Object state) {
+        int start = buf.position();
+        buf.position(start + LENGTH_PREFIX);
+        buf.put(kind);
+        buf.put(keyBytes);
+        if (deviceIdBytes == null) {
+            buf.putShort((short) -1);
+        } else {
+            buf.putShort((short) deviceIdBytes.length).put(deviceIdBytes);
+        }
+        switch (kind) {
+            case KIND_ROBOT -> {
+                RobotCellStatus s = (RobotCellStatus) state;
+                buf.putLong(s.getTimestamp());
+                buf.put((byte) (s.getStatus() != null ? s.getStatus().ordinal() : -1));
+                buf.putDouble(s.getProcessingTime());
+            }
+            case KIND_CONVEYOR -> {
+                ConveyorBeltStatus s = (ConveyorBeltStatus) state;
+                buf.putLong(s.getTimestamp());
+                buf.put((byte) (s.isActive() ? 1 : 0));
+                buf.putDouble(s.getSpeed());
+            }
+            case KIND_QUALITY -> {
+                QualitySensorData s = (QualitySensorData) state;
+                buf.putLong(s.getTimestamp());
+                buf.putInt(s.getTotalProcessed());
+                buf.putInt(s.getGoodCount());
+                buf.putInt(s.getBadCount());
+            }
+            case KIND_REMOVED -> buf.putLong(System.currentTimeMillis());
+            case KIND_RAW -> {
+                RawTelemetry raw = (RawTelemetry) state;
+                buf.putLong(raw.timestamp());
+                buf.put((byte) raw.kind().ordinal());
+                buf.putInt(raw.payload().length);
+                buf.put(raw.payload());
+            }
+            default -> throw new IllegalArgumentException("Unknown record kind " + kind);
+        }
+        int end = buf.position();
+        buf.putInt(start, end - start - LENGTH_PREFIX);
+    }
+
+    /**
+     * Legge il record alla posizione corrente e lo consegna al consumer.
+     *
+     * @return {@code false} quando si raggiunge la fine dei dati validi.
+     */
+    static boolean read(ByteBuffer buf, byte[] scratch, BiConsumer<DeviceKey, Object> sink) {
+        if (buf.remaining() < LENGTH_PREFIX) {
+            return false;
+        }
+        int length = buf.getInt(buf.position());
+        if (length <= 0 || length > buf.remaining() - LENGTH_PREFIX) {
+            return false;
+        }
+        buf.position(buf.position() + LENGTH_PREFIX);
+        int end = buf.position() + length;
+
+        byte kind = buf.get();
+        DeviceKey key = DeviceKey.of(readString(buf, scratch), readString(buf, scratch), readString(buf, scratch));
+        String deviceId = readString(buf, scratch);
+        if (deviceId == null) {
+            deviceId = key.id();
+        }
+        long ts = buf.getLong();
+        if (kind == KIND_REMOVED) {
+            buf.position(end);
+            sink.accept(key, null);
+            return true;
+        }
+        Object state = switch (kind) {
+            case KIND_ROBOT -> {
+                int ordinal = buf.get();
+                RobotCellStatusEnum status = ordinal >= 0 && ordinal < ROBOT_STATUSES.length ? ROBOT_STATUSES[ordinal] : null;
+                yield new RobotCellStatus(deviceId, ts, status, buf.getDouble());
+            }
+            case KIND_CONVEYOR -> {
+                boolean active = buf.get() != 0;
+                yield new ConveyorBeltStatus(deviceId, ts, active, buf.getDouble());
+            }
+            case KIND_QUALITY -> new QualitySensorData(deviceId, ts, buf.getInt(), buf.getInt(), buf.getInt());
+            case KIND_RAW -> readRaw(buf);
+            default -> null;
+        };
+        buf.position(end);
+        if (state != null) {
+            sink.accept(key, state);
+        }
+        return true;
+    }
+
+    // Ricostruisce la telemetria passthrough dal payload originale; un payload non più leggibile viene scartato
+    private static RawTelemetry readRaw(ByteBuffer buf) {
+        DeviceHistory.Kind kind = RAW_KINDS[buf.get()];
+        byte[] payload = new byte[buf.getInt()];
+        buf.get(payload);
+        try {
+            return RawTelemetry.parse(kind, payload);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Legge una stringa UTF-8 con prefisso di lunghezza (-1 rappresenta null) usando un buffer di appoggio riutilizzato
+    private static String readString(ByteBuffer buf, byte[] scratch) {
+        short length = buf.getShort();
+        if (length < 0) {
+            return null;
+        }
+        buf.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,320 @@
+package it.unimore.iot.microfactory.persistence;
+
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Journal append-only della telemetria su segmenti di file mappati in memoria.
+ * Ogni aggiornamento di stato viene scritto come record binario nel segmento corrente,
+ * che viene sostituito da uno nuovo al raggiungimento della dimensione massima.
+ * Il journal non esegue fsync per singolo messaggio: i dati scritti nella mappatura
+ * sopravvivono al crash del processo e vengono forzati su disco a ogni rotazione,
+ * snapshot e chiusura.
+ * Periodicamente viene prodotto uno snapshot compatto con l'ultimo stato di ogni dispositivo,
+ * dopo il quale i segmenti precedenti vengono eliminati; al riavvio lo stato si ricostruisce
+ * leggendo l'ultimo snapshot seguito dai segmenti successivi.
+ */
+public class TelemetryJournal implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TelemetryJournal.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final int SNAPSHOT_BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Sorgente degli stati da includere negli snapshot, tipicamente lo {@code StateRepository}.
+     */
+    @FunctionalInterface
+    public interface StateSource {
+        void forEachState(BiConsumer<DeviceKey, Object> action);
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final Map<DeviceKey, byte[]> encodedKeys = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "journal-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private long segmentSeq;
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private long appended;
+    private long appendedAtSnapshot = -1;
+    private boolean closed;
+
+    /**
+     * Apre il journal nella directory indicata creandola se necessario.
+     * Le scritture avvengono sempre su un nuovo segmento, successivo a quelli già presenti.
+     *
+     * @param directory    Directory che contiene segmenti e snapshot.
+     * @param segmentBytes Dimensione massima di ciascun segmento in byte.
+     */
+    public TelemetryJournal(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        List<Long> segments = listSequences(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        this.segmentSeq = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Ricostruisce lo stato leggendo l'ultimo snapshot e poi i segmenti scritti dopo di esso.
+     * Va invocato prima del primo {@link #append(DeviceKey, Object)}.
+     *
+     * @param sink Destinatario dei record nell'ordine in cui sono stati scritti;
+     *             la rimozione di un dispositivo è consegnata con stato {@code null}.
+     * @return Il numero di record letti.
+     */
+    public synchronized long replay(BiConsumer<DeviceKey, Object> sink) throws IOException {
+        byte[] scratch = new byte[JournalCodec.SCRATCH_SIZE];
+        long records = 0;
+        long fromSegment = 0;
+
+        List<Long> snapshots = listSequences(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        if (!snapshots.isEmpty()) {
+            fromSegment = snapshots.get(snapshots.size() - 1);
+            records += readFile(path(SNAPSHOT_PREFIX, fromSegment, SNAPSHOT_SUFFIX), scratch, sink);
+        }
+        for (long seq : listSequences(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (seq >= fromSegment) {
+                records += readFile(path(SEGMENT_PREFIX, seq, SEGMENT_SUFFIX), scratch, sink);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Accoda lo stato del dispositivo al segmento corrente, ruotandolo se non c'è spazio sufficiente.
+     * Gli stati di tipo non riconosciuto vengono ignorati.
+     */
+    public synchronized void append(DeviceKey key, Object state) throws IOException {
+        byte kind = JournalCodec.kindOf(state);
+        if (kind == 0 || closed) {
+            return;
+        }
+        byte[] keyBytes = encodedKeys.computeIfAbsent(key, JournalCodec::encodeKey);
+        byte[] deviceIdBytes = JournalCodec.deviceIdBytes(key, state);
+        int size = JournalCodec.recordSize(kind, keyBytes, deviceIdBytes, state);
+        if (size + JournalCodec.LENGTH_PREFIX > segmentBytes) {
+            throw new IOException("Journal record of " + size + " bytes exceeds segment size " + segmentBytes);
+        }
+        // Lascia sempre spazio per il terminatore a zero che marca la fine del segmento
+        if (segment == null || segment.remaining() < size + JournalCodec.LENGTH_PREFIX) {
+            roll();
+        }
+        JournalCodec.write(segment, kind, keyBytes, deviceIdBytes, state);
+        appended++;
+    }
+
+    /**
+     * Accoda la rimozione del dispositivo, così che non ricompaia al successivo replay.
+     */
+    public synchronized void appendRemoval(DeviceKey key) throws IOException {
+        if (closed) {
+            return;
+        }
+        byte[] keyBytes = encodedKeys.computeIfAbsent(key, JournalCodec::encodeKey);
+        int size = JournalCodec.recordSize(JournalCodec.KIND_REMOVED, keyBytes, null, null);
+        if (segment == null || segment.remaining() < size + JournalCodec.LENGTH_PREFIX) {
+            roll();
+        }
+        JournalCodec.write(segment, JournalCodec.KIND_REMOVED, keyBytes, null, null);
+        encodedKeys.remove(key);
+        appended++;
+    }
+
+    /**
+     * Restituisce il numero di record accodati dall'apertura del journal.
+     */
+    public synchronized long appendedRecords() {
+        return appended;
+    }
+
+    /**
+     * Avvia la produzione periodica degli snapshot a partire dagli stati forniti dalla sorgente.
+     */
+    public void startSnapshots(StateSource source, long intervalSeconds) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot(source);
+            } catch (Exception e) {
+                logger.error("Error writing journal snapshot", e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        logger.info("Journal snapshots scheduled every {} s", intervalSeconds);
+    }
+
+    /**
+     * Scrive uno snapshot compatto dello stato corrente ed elimina i segmenti che esso rende superflui.
+     * Il journal viene ruotato prima di leggere la sorgente: ogni aggiornamento concorrente finisce
+     * nel nuovo segmento, che viene riletto dopo lo snapshot in fase di replay.
+     */
+    public void snapshot(StateSource source) throws IOException {
+        long fromSegment;
+        synchronized (this) {
+            // Nessun aggiornamento dall'ultimo snapshot: quello esistente è ancora valido
+            if (closed || appended == appendedAtSnapshot) {
+                return;
+            }
+            appendedAtSnapshot = appended;
+            roll();
+            fromSegment = segmentSeq;
+        }
+
+        Path target = path(SNAPSHOT_PREFIX, fromSegment, SNAPSHOT_SUFFIX);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        long[] written = {0};
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER_BYTES);
+            IOException[] failure = {null};
+            source.forEachState((key, state) -> {
+                byte kind = JournalCodec.kindOf(state);
+                if (kind == 0 || failure[0] != null) {
+                    return;
+                }
+                byte[] keyBytes = encodedKeys.computeIfAbsent(key, JournalCodec::encodeKey);
+                byte[] deviceIdBytes = JournalCodec.deviceIdBytes(key, state);
+                int size = JournalCodec.recordSize(kind, keyBytes, deviceIdBytes, state);
+                try {
+                    if (buf.remaining() < size) {
+                        drain(channel, buf);
+                    }
+                    JournalCodec.write(buf, kind, keyBytes, deviceIdBytes, state);
+                    written[0]++;
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            drain(channel, buf);
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        deleteBefore(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX, fromSegment);
+        deleteBefore(SEGMENT_PREFIX, SEGMENT_SUFFIX, fromSegment);
+        logger.info("Journal snapshot {} written with {} device state(s)", target.getFileName(), written[0]);
+    }
+
+    /**
+     * Forza su disco il segmento corrente e interrompe la produzione degli snapshot.
+     */
+    @Override
+    public synchronized void close() {
+        scheduler.shutdownNow();
+        closeSegment();
+        closed = true;
+        logger.info("Telemetry journal closed after {} appended record(s)", appended);
+    }
+
+    // Chiude il segmento corrente e ne apre uno nuovo con numero di sequenza successivo
+    private void roll() throws IOException {
+        closeSegment();
+        segmentSeq++;
+        Path file = path(SEGMENT_PREFIX, segmentSeq, SEGMENT_SUFFIX);
+        segmentChannel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        logger.debug("Journal rolled to segment {}", file.getFileName());
+    }
+
+    // Forza su disco e rilascia il segmento corrente, se presente
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.force();
+            segmentChannel.close();
+        } catch (IOException e) {
+            logger.error("Error closing journal segment {}", segmentSeq, e);
+        }
+        segment = null;
+        segmentChannel = null;
+    }
+
+    // Legge tutti i record validi di un file di segmento o di snapshot
+    private long readFile(Path file, byte[] scratch, BiConsumer<DeviceKey, Object> sink) throws IOException {
+        long records = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (JournalCodec.read(buf, scratch, sink)) {
+                records++;
+            }
+        } catch (RuntimeException e) {
+            // Record troncato o corrotto dopo un crash: si conserva quanto letto fino a quel punto
+            logger.warn("Stopped reading {} after {} record(s): {}", file.getFileName(), records, e.toString());
+        }
+        return records;
+    }
+
+    // Scrive sul canale il contenuto accumulato nel buffer e lo prepara per nuovi record
+    private static void drain(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    // Elimina i file con numero di sequenza inferiore a quello indicato
+    private void deleteBefore(String prefix, String suffix, long seq) throws IOException {
+        for (long existing : listSequences(prefix, suffix)) {
+            if (existing < seq) {
+                Files.deleteIfExists(path(prefix, existing, suffix));
+            }
+        }
+    }
+
+    // Elenca in ordine crescente i numeri di sequenza dei file con il prefisso indicato
+    private List<Long> listSequences(String prefix, String suffix) throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+                    continue;
+                }
+                try {
+                    sequences.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected journal file {}", name);
+                }
+            }
+        }
+        sequences.sort(null);
+        return sequences;
+    }
+
+    private Path path(String prefix, long seq, String suffix) {
+        return directory.resolve(String.format("%s%016d%s", prefix, seq, suffix));
+    }
+}
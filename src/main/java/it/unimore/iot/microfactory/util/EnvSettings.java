@@ -0,0 +1,66 @@
+package it.unimore.iot.microfactory.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lettura validata delle impostazioni numeriche passate come variabili d'ambiente.
+ * Un valore non numerico o sotto il minimo ammesso non interrompe l'avvio: viene segnalato
+ * con un warning e sostituito dal default, come se la variabile non fosse impostata.
+ */
+public final class EnvSettings {
+
+    private static final Logger logger = LoggerFactory.getLogger(EnvSettings.class);
+
+    private EnvSettings() {
+    }
+
+    /**
+     * Legge la variabile come intero non inferiore a {@code min}.
+     *
+     * @return Il valore della variabile, oppure {@code defaultValue} se è assente o non valida.
+     */
+    public static int intValue(String name, int defaultValue, int min) {
+        return parseInt(name, System.getenv(name), defaultValue, min);
+    }
+
+    /**
+     * Legge la variabile come long non inferiore a {@code min}.
+     *
+     * @return Il valore della variabile, oppure {@code defaultValue} se è assente o non valida.
+     */
+    public static long longValue(String name, long defaultValue, long min) {
+        return parseLong(name, System.getenv(name), defaultValue, min);
+    }
+
+    /**
+     * Interpreta il testo di una variabile come intero non inferiore a {@code min}.
+     */
+    public static int parseInt(String name, String value, int defaultValue, int min) {
+        return (int) parseLong(name, value, defaultValue, min, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Interpreta il testo di una variabile come long non inferiore a {@code min}.
+     */
+    public static long parseLong(String name, String value, long defaultValue, long min) {
+        return parseLong(name, value, defaultValue, min, Long.MAX_VALUE);
+    }
+
+    // Valore nell'intervallo [min, max]; se non numerico o fuori intervallo si usa il default con un warning
+    private static long parseLong(String name, String value, long defaultValue, long min, long max) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed >= min && parsed <= max) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // gestito sotto insieme ai valori fuori intervallo
+        }
+        logger.warn("Invalid {} '{}', falling back to {}", name, value, defaultValue);
+        return defaultValue;
+    }
+}
@@ -8,4 +8,6 @@ public class ContentFormat {
     public static final int TEXT_PLAIN = MediaTypeRegistry.TEXT_PLAIN;
     public static final int APPLICATION_JSON = MediaTypeRegistry.APPLICATION_JSON;
     public static final int APPLICATION_LINK_FORMAT = MediaTypeRegistry.APPLICATION_LINK_FORMAT;
+    public static final int APPLICATION_CBOR = MediaTypeRegistry.APPLICATION_CBOR;
+    public static final int APPLICATION_SENML_CBOR = MediaTypeRegistry.APPLICATION_SENML_CBOR;
 }
\ No newline at end of file
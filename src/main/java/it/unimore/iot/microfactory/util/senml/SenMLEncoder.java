@@ -0,0 +1,144 @@
+package it.unimore.iot.microfactory.util.senml;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+
+import java.io.IOException;
+
+/**
+ * Encoder SenML (RFC 8428) in streaming: scrive i record direttamente sul {@link JsonGenerator},
+ * senza oggetti record intermedi né valori boxed.
+ * Con un generatore CBOR usa le etichette intere di SenML-CBOR, altrimenti quelle testuali di SenML JSON.
+ * Il nome base viene scritto solo quando cambia e il tempo base (in secondi) solo sul primo record
+ * del pack; i record con un istante diverso portano il tempo relativo {@code t}, così un pack di
+ * più dispositivi ripete solo i campi che variano.
+ */
+public final class SenMLEncoder {
+
+    private static final SerializableString BASE_NAME = new SerializedString("bn");
+    private static final SerializableString BASE_TIME = new SerializedString("bt");
+    private static final SerializableString NAME = new SerializedString("n");
+    private static final SerializableString UNIT = new SerializedString("u");
+    private static final SerializableString VALUE = new SerializedString("v");
+    private static final SerializableString STRING_VALUE = new SerializedString("vs");
+    private static final SerializableString BOOLEAN_VALUE = new SerializedString("vb");
+    private static final SerializableString TIME = new SerializedString("t");
+
+    // Etichette CBOR (RFC 8428, tabella 4)
+    private static final int CBOR_BASE_NAME = -2;
+    private static final int CBOR_BASE_TIME = -3;
+    private static final int CBOR_NAME = 0;
+    private static final int CBOR_UNIT = 1;
+    private static final int CBOR_VALUE = 2;
+    private static final int CBOR_STRING_VALUE = 3;
+    private static final int CBOR_BOOLEAN_VALUE = 4;
+    private static final int CBOR_TIME = 6;
+
+    private final JsonGenerator gen;
+    private final boolean cbor;
+    private String baseName;
+    private String writtenBaseName;
+    private boolean baseTimeWritten;
+    private long baseTimeMillis;
+
+    public SenMLEncoder(JsonGenerator gen) {
+        this.gen = gen;
+        this.cbor = gen instanceof CBORGenerator;
+    }
+
+    /**
+     * Apre il pack con un array a lunghezza indefinita.
+     */
+    public void startPack() throws IOException {
+        gen.writeStartArray();
+    }
+
+    /**
+     * Apre il pack dichiarando il numero di record, che in CBOR evita il marcatore di chiusura.
+     */
+    public void startPack(int records) throws IOException {
+        gen.writeStartArray(null, records);
+    }
+
+    public void endPack() throws IOException {
+        gen.writeEndArray();
+    }
+
+    /**
+     * Imposta il nome base dei record successivi; viene scritto solo se diverso dall'ultimo emesso.
+     *
+     * @param baseName Nome base (di norma terminato da '/'), oppure {@code null} per non emetterlo.
+     */
+    public void baseName(String baseName) {
+        this.baseName = baseName;
+    }
+
+    public void numeric(String name, String unit, double value, long timestampMillis) throws IOException {
+        openRecord(name, unit, timestampMillis);
+        label(VALUE, CBOR_VALUE);
+        gen.writeNumber(value);
+        gen.writeEndObject();
+    }
+
+    public void numeric(String name, String unit, long value, long timestampMillis) throws IOException {
+        openRecord(name, unit, timestampMillis);
+        label(VALUE, CBOR_VALUE);
+        gen.writeNumber(value);
+        gen.writeEndObject();
+    }
+
+    public void bool(String name, boolean value, long timestampMillis) throws IOException {
+        openRecord(name, null, timestampMillis);
+        label(BOOLEAN_VALUE, CBOR_BOOLEAN_VALUE);
+        gen.writeBoolean(value);
+        gen.writeEndObject();
+    }
+
+    public void string(String name, String value, long timestampMillis) throws IOException {
+        openRecord(name, null, timestampMillis);
+        label(STRING_VALUE, CBOR_STRING_VALUE);
+        gen.writeString(value);
+        gen.writeEndObject();
+    }
+
+    // Apre il record scrivendo i campi base necessari, il nome, l'unità e il tempo relativo; il valore è a carico del chiamante
+    private void openRecord(String name, String unit, long timestampMillis) throws IOException {
+        boolean writeBaseName = baseName != null && !baseName.equals(writtenBaseName);
+        boolean writeBaseTime = !baseTimeWritten;
+        long offsetMillis = writeBaseTime ? 0 : timestampMillis - baseTimeMillis;
+        int fields = 2 + (writeBaseName ? 1 : 0) + (writeBaseTime ? 1 : 0)
+                + (unit != null ? 1 : 0) + (offsetMillis != 0 ? 1 : 0);
+        gen.writeStartObject(null, fields);
+        if (writeBaseName) {
+            label(BASE_NAME, CBOR_BASE_NAME);
+            gen.writeString(baseName);
+            writtenBaseName = baseName;
+        }
+        if (writeBaseTime) {
+            label(BASE_TIME, CBOR_BASE_TIME);
+            gen.writeNumber(timestampMillis / 1000.0);
+            baseTimeWritten = true;
+            baseTimeMillis = timestampMillis;
+        }
+        label(NAME, CBOR_NAME);
+        gen.writeString(name);
+        if (unit != null) {
+            label(UNIT, CBOR_UNIT);
+            gen.writeString(unit);
+        }
+        if (offsetMillis != 0) {
+            label(TIME, CBOR_TIME);
+            gen.writeNumber(offsetMillis / 1000.0);
+        }
+    }
+
+    private void label(SerializableString jsonLabel, int cborLabel) throws IOException {
+        if (cbor) {
+            gen.writeFieldId(cborLabel);
+        } else {
+            gen.writeFieldName(jsonLabel);
+        }
+    }
+}
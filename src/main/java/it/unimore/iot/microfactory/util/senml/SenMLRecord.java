@@ -1,79 +0,0 @@
-package it.unimore.iot.microfactory.util.senml;
-
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.annotation.JsonProperty;
-
-@JsonInclude(JsonInclude.Include.NON_NULL)
-// Modello di singolo record SenML che consente campi opzionali a seconda del tipo di misura
-public class SenMLRecord {
-
-    @JsonProperty("bn")
-    private String baseName;
-
-    @JsonProperty("n")
-    private String name;
-
-    @JsonProperty("u")
-    private String unit;
-
-    @JsonProperty("v")
-    private Double value;
-
-    @JsonProperty("vb")
-    private Boolean booleanValue;
-
-    @JsonProperty("t")
-    private long time;
-
-    // Costruttore vuoto richiesto dalla serializzazione Jackson
-    public SenMLRecord() {
-    }
-
-    public String getBaseName() {
-        return baseName;
-    }
-
-    public void setBaseName(String baseName) {
-        this.baseName = baseName;
-    }
-
-    public String getName() {
-        return name;
-    }
-
-    public void setName(String name) {
-        this.name = name;
-    }
-
-    public String getUnit() {
-        return unit;
-    }
-
-    public void setUnit(String unit) {
-        this.unit = unit;
-    }
-
-    public Double getValue() {
-        return value;
-    }
-
-    public void setValue(Double value) {
-        this.value = value;
-    }
-
-    public Boolean getBooleanValue() {
-        return booleanValue;
-    }
-
-    public void setBooleanValue(Boolean booleanValue) {
-        this.booleanValue = booleanValue;
-    }
-
-    public long getTime() {
-        return time;
-    }
-
-    public void setTime(long time) {
-        this.time = time;
-    }
-}
\ No newline at end of file
@@ -0,0 +1,85 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import it.unimore.iot.microfactory.codec.PayloadEncoding;
+import it.unimore.iot.microfactory.domain.CellSnapshot;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.elements.config.Configuration;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BlockwiseBodyResponderTest {
+
+    @Test
+    void abandonedTransfers_shouldBeForgottenAfterTheSessionTimeout() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        for (int i = 0; i < 50; i++) {
+            repo.upsert("purge-cell", "quality", "sensor-" + i, new QualitySensorData("sensor-" + i, 1700000000000L, i, i, 0));
+        }
+        BlockwiseBodyResponder responder = new BlockwiseBodyResponder(TimeUnit.SECONDS.toNanos(2));
+        CoapServer server = new CoapServer(Configuration.createStandardWithoutFile(), 0);
+        server.add(new CoapResource("states") {
+            @Override
+            public void handleGET(CoapExchange exchange) {
+                try {
+                    responder.respond(exchange, MediaTypeRegistry.APPLICATION_JSON, () -> {
+                        CellSnapshot snapshot = repo.snapshot("purge-cell", "quality");
+                        return new BlockwiseBodyResponder.Body(
+                                BlockwiseBodyResponder.etag(snapshot.fingerprint(), MediaTypeRegistry.APPLICATION_JSON),
+                                repo.openStates(snapshot, PayloadEncoding.JSON));
+                    });
+                } catch (Exception e) {
+                    exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
+                }
+            }
+        });
+        server.start();
+        String uri = "coap://localhost:" + server.getEndpoints().get(0).getAddress().getPort() + "/states";
+        try {
+            // Cinque client leggono un solo blocco e abbandonano il trasferimento
+            for (int i = 0; i < 5; i++) {
+                assertTrue(secondBlock(uri).getOptions().getBlock2().isM());
+            }
+            assertEquals(5, responder.sessionCount());
+
+            TimeUnit.MILLISECONDS.sleep(2_500);
+            secondBlock(uri);
+            assertEquals(1, responder.sessionCount(), "expired sessions should be purged by the next request");
+        } finally {
+            server.destroy();
+            for (int i = 0; i < 50; i++) {
+                repo.remove("purge-cell", "quality", "sensor-" + i);
+            }
+        }
+    }
+
+    // Secondo blocco da 64 byte letto da un endpoint nuovo, cioè da un client distinto: con il primo il client
+    // di Californium completerebbe da solo il trasferimento
+    private static CoapResponse secondBlock(String uri) throws Exception {
+        CoapClient client = new CoapClient(uri);
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+        try {
+            Request request = Request.newGet();
+            request.getOptions().setBlock2(BlockOption.size2Szx(64), false, 1);
+            CoapResponse response = client.advanced(request);
+            assertEquals(CoAP.ResponseCode.CONTENT, response.getCode());
+            return response;
+        } finally {
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import it.unimore.iot.microfactory.domain.ListenerDispatcher;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.domain.Subscription;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.elements.config.Configuration;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CoapListenerSoakTest {
+
+    private static final int GET_REQUESTS = 1_000_000;
+    private static final long MAX_HEAP_GROWTH_BYTES = 32L * 1024 * 1024;
+
+    @Test
+    void millionGetRequests_shouldNotLeakListeners() throws Exception {
+        // Repository dedicato: gli altri test della stessa JVM non aggiungono dispositivi né listener
+        StateRepository repo = StateRepository.newInstance();
+        repo.upsert("soak-cell", "robot", "robot-1", robot(RobotCellStatusEnum.IDLE));
+        CoapApiServer.FactoryResource factory = new CoapApiServer.FactoryResource(repo);
+        Subscription tree = repo.addDeviceLifecycleListener(factory);
+        try {
+            int listenersBefore = repo.listenerCount();
+            long notifyBefore = upsertCostNanos(repo);
+            long heapBefore = usedHeapAfterGc();
+
+            // Ogni GET segue il percorso del deliverer di Californium: catena di getChild, poi handleRequest
+            for (int i = 0; i < GET_REQUESTS; i++) {
+                Resource state = factory.getChild("soak-cell").getChild("robot").getChild("robot-1").getChild("state");
+                RecordingExchange exchange = new RecordingExchange();
+                state.handleRequest(exchange);
+                assertEquals(CoAP.ResponseCode.CONTENT, exchange.response.getCode());
+            }
+
+            long heapGrowth = usedHeapAfterGc() - heapBefore;
+            assertEquals(listenersBefore, repo.listenerCount(), "Listener registrati dalle sole GET");
+            assertTrue(heapGrowth < MAX_HEAP_GROWTH_BYTES, "Crescita dell'heap dopo " + GET_REQUESTS + " GET: " + heapGrowth);
+
+            // Nessun listener morto: il costo di un aggiornamento resta quello iniziale e nessuna notifica viene pianificata
+            long notifyAfter = upsertCostNanos(repo);
+            assertTrue(notifyAfter <= 2 * notifyBefore + 1_000,
+                    "Costo per upsert passato da " + notifyBefore + " ns a " + notifyAfter + " ns");
+            ListenerDispatcher.Stats stats = repo.listenerStats();
+            assertEquals(0, stats.delivered() + stats.coalesced() + stats.dropped() + stats.queueDepth());
+        } finally {
+            tree.cancel();
+        }
+    }
+
+    @Test
+    void cancelledObserveRelations_shouldReleaseTheirListener() throws Exception {
+        StateRepository repo = StateRepository.newInstance();
+        repo.upsert("soak-cell", "conveyor", "conveyor-1",
+                new ConveyorBeltStatus("conveyor-1", System.currentTimeMillis(), true, 10.0));
+        int listenersBefore = repo.listenerCount();
+
+        CoapApiServer server = new CoapApiServer(repo, 0);
+        server.start();
+        CoapClient client = new CoapClient("coap://localhost:" + server.getPort()
+                + "/factory/soak-cell/conveyor/conveyor-1/state");
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+        try {
+            for (int i = 0; i < 20; i++) {
+                CoapObserveRelation relation = client.observeAndWait(new CoapHandler() {
+                    @Override
+                    public void onLoad(CoapResponse response) {
+                    }
+
+                    @Override
+                    public void onError() {
+                    }
+                });
+                assertEquals(listenersBefore + 1, repo.listenerCount());
+                relation.proactiveCancel();
+                waitForListenerCount(repo, listenersBefore);
+            }
+            assertEquals(listenersBefore, repo.listenerCount());
+        } finally {
+            client.shutdown();
+            server.stop();
+        }
+    }
+
+    private static void waitForListenerCount(StateRepository repo, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (repo.listenerCount() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    // Costo medio di un upsert nel migliore di cinque giri, così da escludere pause del GC e del JIT;
+    // il log di debug del repository è sospeso perché la scrittura su console coprirebbe il costo delle notifiche
+    private static long upsertCostNanos(StateRepository repo) {
+        Logger logger = (Logger) LoggerFactory.getLogger(StateRepository.class);
+        Level level = logger.getLevel();
+        logger.setLevel(Level.INFO);
+        try {
+            int upserts = 20_000;
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < upserts; i++) {
+                    repo.upsert("soak-cell", "robot", "robot-1", robot(RobotCellStatusEnum.PROCESSING));
+                }
+                best = Math.min(best, (System.nanoTime() - start) / upserts);
+            }
+            return best;
+        } finally {
+            logger.setLevel(level);
+        }
+    }
+
+    private static RobotCellStatus robot(RobotCellStatusEnum status) {
+        return new RobotCellStatus("robot-1", System.currentTimeMillis(), status, 1.0);
+    }
+
+    // Scambio CoAP in memoria che conserva la risposta invece di inviarla su un endpoint
+    private static final class RecordingExchange extends Exchange {
+        private Response response;
+
+        RecordingExchange() {
+            super(Request.newGet(), null, Origin.REMOTE, null);
+        }
+
+        @Override
+        public void sendResponse(Response response) {
+            this.response = response;
+        }
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
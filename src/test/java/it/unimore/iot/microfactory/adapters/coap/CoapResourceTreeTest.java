@@ -0,0 +1,412 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.codec.PayloadEncoding;
+import it.unimore.iot.microfactory.codec.TelemetryCodec;
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.domain.Subscription;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import it.unimore.iot.microfactory.util.coap.ContentFormat;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.config.CoapConfig;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.elements.config.Configuration;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CoapResourceTreeTest {
+
+    @Test
+    void devicesSeenByRepository_shouldBeDiscoverableAndEvictedOnRemoval() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        // Dispositivo già noto prima dell'avvio del server, come dopo il replay del journal
+        repo.upsert("tree-cell", "quality", "sensor-1",
+                new QualitySensorData("sensor-1", System.currentTimeMillis(), 10, 9, 1));
+
+        CoapApiServer server = new CoapApiServer(repo, 0);
+        server.start();
+        String base = "coap://localhost:" + server.getPort();
+        CoapClient client = new CoapClient();
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+        try {
+            repo.upsert("tree-cell", "quality", "sensor-2",
+                    new QualitySensorData("sensor-2", System.currentTimeMillis(), 5, 5, 0));
+
+            // Filtro sulla cella: il repository è condiviso con gli altri test e l'elenco completo supera il buffer del client
+            client.setURI(base + "/.well-known/core?href=/factory/tree-cell*");
+            String links = client.get().getResponseText();
+            assertTrue(links.contains("</factory/tree-cell/quality/sensor-1/state>"), links);
+            assertTrue(links.contains("</factory/tree-cell/quality/cmd>"), links);
+            assertTrue(links.contains("</factory/tree-cell/quality/sensor-2/state>"), links);
+
+            client.setURI(base + "/factory/tree-cell/quality/sensor-2/state");
+            assertEquals(CoAP.ResponseCode.CONTENT, client.get().getCode());
+
+            client.setURI(base + "/factory/unknown-cell/quality/sensor-2/state");
+            assertEquals(CoAP.ResponseCode.NOT_FOUND, client.get().getCode());
+
+            client.setURI(base + "/factory/tree-cell/quality/sensor-2");
+            CoapResponse deleted = client.delete();
+            assertNotNull(deleted);
+            assertEquals(CoAP.ResponseCode.DELETED, deleted.getCode());
+            assertFalse(repo.get("tree-cell", "quality", "sensor-2").isPresent());
+
+            client.setURI(base + "/factory/tree-cell/quality/sensor-2/state");
+            assertEquals(CoAP.ResponseCode.NOT_FOUND, client.get().getCode());
+
+            repo.remove("tree-cell", "quality", "sensor-1");
+            client.setURI(base + "/factory/tree-cell/devices");
+            assertEquals(CoAP.ResponseCode.NOT_FOUND, client.get().getCode());
+        } finally {
+            client.shutdown();
+            server.stop();
+        }
+    }
+
+    @Test
+    void stateAndDeviceLists_shouldNegotiateCborFormats() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        QualitySensorData data = new QualitySensorData("sensor-1", 1700000000000L, 10, 9, 1);
+        repo.upsert("cbor-cell", "quality", "sensor-1", data);
+
+        CoapApiServer server = new CoapApiServer(repo, 0);
+        server.start();
+        String base = "coap://localhost:" + server.getPort() + "/factory/cbor-cell";
+        CoapClient client = new CoapClient();
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+        try {
+            client.setURI(base + "/quality/sensor-1/state");
+            CoapResponse cbor = client.get(ContentFormat.APPLICATION_CBOR);
+            assertEquals(ContentFormat.APPLICATION_CBOR, cbor.getOptions().getContentFormat());
+            QualitySensorData decoded = TelemetryCodec.read(PayloadEncoding.CBOR, QualitySensorData.class, cbor.getPayload());
+            assertEquals(9, decoded.getGoodCount());
+
+            CoapResponse senml = client.get(ContentFormat.APPLICATION_SENML_CBOR);
+            assertEquals(ContentFormat.APPLICATION_SENML_CBOR, senml.getOptions().getContentFormat());
+            JsonNode pack = Codecs.CBOR_MAPPER.readTree(senml.getPayload());
+            assertEquals("cbor-cell/quality/sensor-1/", pack.get(0).get("-2").asText());
+            assertEquals(3, pack.size());
+
+            client.setURI(base + "/devices");
+            JsonNode list = Codecs.CBOR_MAPPER.readTree(client.get(ContentFormat.APPLICATION_CBOR).getPayload());
+            assertEquals("sensor-1", list.get("devices").get(0).get("id").asText());
+
+            client.setURI(base + "/quality");
+            JsonNode typePack = Codecs.CBOR_MAPPER.readTree(client.get(ContentFormat.APPLICATION_SENML_CBOR).getPayload());
+            assertEquals("cbor-cell/quality/sensor-1/", typePack.get(0).get("-2").asText());
+            assertEquals(CoAP.ResponseCode.NOT_ACCEPTABLE, client.get(MediaTypeRegistry.APPLICATION_XML).getCode());
+        } finally {
+            client.shutdown();
+            server.stop();
+        }
+    }
+
+    @Test
+    void cellStates_shouldReturnEveryDeviceInOneBlockwiseResponse() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        int devices = 500;
+        for (int i = 0; i < devices; i++) {
+            repo.upsert("batch-cell", "quality", "sensor-" + i,
+                    new QualitySensorData("sensor-" + i, 1700000000000L, i, i, 0));
+        }
+        repo.upsert("batch-cell", "robot", "robot-1",
+                new RobotCellStatus("robot-1", 1700000000000L, RobotCellStatusEnum.IDLE, 0.0));
+
+        CoapApiServer server = new CoapApiServer(repo, 0);
+        server.start();
+        String base = "coap://localhost:" + server.getPort() + "/factory/batch-cell/states";
+        Configuration cfg = Configuration.createStandardWithoutFile();
+        cfg.set(CoapConfig.MAX_RESOURCE_BODY_SIZE, 1 << 20);
+        CoapClient client = new CoapClient();
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(cfg).build());
+        try {
+            client.setURI(base);
+            CoapResponse json = client.get();
+            assertEquals(CoAP.ResponseCode.CONTENT, json.getCode());
+            assertTrue(json.getPayload().length > cfg.get(CoapConfig.MAX_MESSAGE_SIZE), "payload should need Block2");
+            JsonNode body = Codecs.MAPPER.readTree(json.getPayload());
+            assertEquals(devices + 1, body.get("states").size());
+            assertEquals("quality", body.get("states").get(0).get("type").asText());
+
+            Request revalidate = Request.newGet();
+            revalidate.getOptions().addETag(json.getOptions().getETags().get(0));
+            assertEquals(CoAP.ResponseCode.VALID, client.advanced(revalidate).getCode());
+
+            client.setURI(base + "?type=robot");
+            JsonNode robots = Codecs.MAPPER.readTree(client.get().getPayload());
+            assertEquals("robot", robots.get("type").asText());
+            assertEquals(1, robots.get("states").size());
+            assertEquals("IDLE", robots.get("states").get(0).get("state").get("status").asText());
+
+            client.setURI(base + "?type=quality");
+            JsonNode pack = Codecs.CBOR_MAPPER.readTree(client.get(ContentFormat.APPLICATION_SENML_CBOR).getPayload());
+            assertEquals(devices * 3, pack.size());
+        } finally {
+            client.shutdown();
+            server.stop();
+            // Le celle grandi renderebbero /.well-known/core più grande del buffer del client negli altri test
+            for (int i = 0; i < devices; i++) {
+                repo.remove("batch-cell", "quality", "sensor-" + i);
+            }
+            repo.remove("batch-cell", "robot", "robot-1");
+        }
+    }
+
+    @Test
+    void cellStates_shouldGenerateRequestedBlocksOnDemand() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        for (int i = 0; i < 20; i++) {
+            repo.upsert("block-cell", "quality", "sensor-" + i,
+                    new QualitySensorData("sensor-" + i, 1700000000000L, i, i, 0));
+        }
+
+        CoapApiServer server = new CoapApiServer(repo, 0);
+        server.start();
+        CoapClient client = new CoapClient("coap://localhost:" + server.getPort() + "/factory/block-cell/states");
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+        try {
+            byte[] full = client.get().getPayload();
+
+            // Accesso diretto al quarto blocco da 64 byte, senza aver chiesto i precedenti
+            Request request = Request.newGet();
+            request.getOptions().setBlock2(BlockOption.size2Szx(64), false, 3);
+            CoapResponse block = client.advanced(request);
+            assertEquals(CoAP.ResponseCode.CONTENT, block.getCode());
+            BlockOption block2 = block.getOptions().getBlock2();
+            assertEquals(3, block2.getNum());
+            assertEquals(64, block2.getSize());
+            assertTrue(block2.isM());
+            assertArrayEquals(Arrays.copyOfRange(full, 192, 256), block.getPayload());
+        } finally {
+            client.shutdown();
+            server.stop();
+            for (int i = 0; i < 20; i++) {
+                repo.remove("block-cell", "quality", "sensor-" + i);
+            }
+        }
+    }
+
+    @Test
+    void cellChanges_shouldNotifyBatchedDeltasWithSequenceNumbers() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        for (int i = 0; i < 3; i++) {
+            repo.upsert("changes-cell", "quality", "sensor-" + i,
+                    new QualitySensorData("sensor-" + i, 1700000000000L, 0, 0, 0));
+        }
+
+        CoapApiServer server = new CoapApiServer(repo, 0);
+        server.start();
+        CoapClient client = new CoapClient("coap://localhost:" + server.getPort() + "/factory/changes-cell/changes");
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+        BlockingQueue<JsonNode> batches = new LinkedBlockingQueue<>();
+        try {
+            CoapObserveRelation relation = client.observeAndWait(new CoapHandler() {
+                @Override
+                public void onLoad(CoapResponse response) {
+                    try {
+                        batches.add(Codecs.MAPPER.readTree(response.getPayload()));
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+
+                @Override
+                public void onError() {
+                }
+            });
+            JsonNode registration = batches.poll(5, TimeUnit.SECONDS);
+            assertNotNull(registration);
+            assertEquals(0, registration.get("seq").asLong());
+            assertEquals(0, registration.get("changes").size());
+
+            // Più aggiornamenti dello stesso dispositivo nello stesso intervallo arrivano come una sola variazione
+            for (int round = 1; round <= 5; round++) {
+                for (int i = 0; i < 3; i++) {
+                    repo.upsert("changes-cell", "quality", "sensor-" + i,
+                            new QualitySensorData("sensor-" + i, 1700000000000L + round, round, round, 0));
+                }
+            }
+            Map<String, Integer> latest = new HashMap<>();
+            long expectedSeq = 1;
+            while (latest.size() < 3 || latest.values().stream().anyMatch(count -> count < 5)) {
+                JsonNode batch = batches.poll(5, TimeUnit.SECONDS);
+                assertNotNull(batch, "missing batch, latest " + latest);
+                assertEquals(expectedSeq++, batch.get("seq").asLong());
+                assertEquals("changes-cell", batch.get("cell").asText());
+                for (JsonNode change : batch.get("changes")) {
+                    latest.put(change.get("id").asText(), change.get("state").get("totalProcessed").asInt());
+                }
+            }
+            assertTrue(expectedSeq - 1 <= 5, "updates should be batched, got " + (expectedSeq - 1) + " batches");
+
+            JsonNode pack = Codecs.MAPPER.readTree(client.get(ContentFormat.APPLICATION_SENML_JSON).getPayload());
+            assertEquals("changes-cell/", pack.get(0).get("bn").asText());
+            assertEquals("seq", pack.get(0).get("n").asText());
+            assertEquals(expectedSeq - 1, pack.get(0).get("v").asLong());
+            relation.proactiveCancel();
+        } finally {
+            client.shutdown();
+            server.stop();
+            for (int i = 0; i < 3; i++) {
+                repo.remove("changes-cell", "quality", "sensor-" + i);
+            }
+        }
+    }
+
+    @Test
+    void cellChanges_shouldReportRemovedDevices() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        repo.upsert("removal-cell", "quality", "kept", new QualitySensorData("kept", 1700000000000L, 0, 0, 0));
+        repo.upsert("removal-cell", "quality", "dismissed", new QualitySensorData("dismissed", 1700000000000L, 0, 0, 0));
+
+        CoapApiServer server = new CoapApiServer(repo, 0);
+        server.start();
+        CoapClient client = new CoapClient("coap://localhost:" + server.getPort() + "/factory/removal-cell/changes");
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+        BlockingQueue<JsonNode> batches = new LinkedBlockingQueue<>();
+        try {
+            CoapObserveRelation relation = client.observeAndWait(new CoapHandler() {
+                @Override
+                public void onLoad(CoapResponse response) {
+                    try {
+                        batches.add(Codecs.MAPPER.readTree(response.getPayload()));
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+
+                @Override
+                public void onError() {
+                }
+            });
+            assertNotNull(batches.poll(5, TimeUnit.SECONDS));
+
+            repo.upsert("removal-cell", "quality", "kept", new QualitySensorData("kept", 1700000000001L, 1, 1, 0));
+            assertTrue(repo.remove("removal-cell", "quality", "dismissed"));
+            Map<String, JsonNode> changes = new HashMap<>();
+            while (changes.size() < 2) {
+                JsonNode batch = batches.poll(5, TimeUnit.SECONDS);
+                assertNotNull(batch, "missing batch, changes " + changes.keySet());
+                batch.get("changes").forEach(change -> changes.put(change.get("id").asText(), change));
+            }
+            assertEquals(1, changes.get("kept").get("state").get("totalProcessed").asInt());
+            assertTrue(changes.get("dismissed").get("removed").asBoolean());
+            assertNull(changes.get("dismissed").get("state"));
+
+            JsonNode pack = Codecs.MAPPER.readTree(client.get(ContentFormat.APPLICATION_SENML_JSON).getPayload());
+            boolean tombstone = false;
+            for (JsonNode record : pack) {
+                if (record.has("bn") && record.get("bn").asText().equals("removal-cell/quality/dismissed/")) {
+                    tombstone = "removed".equals(record.get("n").asText()) && record.get("vb").asBoolean();
+                }
+            }
+            assertTrue(tombstone, "SenML pack without removal record: " + pack);
+            relation.proactiveCancel();
+        } finally {
+            client.shutdown();
+            server.stop();
+            repo.remove("removal-cell", "quality", "kept");
+        }
+    }
+
+    @Test
+    void lifecycleEventsOutOfOrder_shouldLeaveTheTreeMatchingTheRepository() {
+        StateRepository repo = StateRepository.getInstance();
+        CoapApiServer.FactoryResource factory = new CoapApiServer.FactoryResource(repo);
+        DeviceKey key = DeviceKey.of("race-cell", "quality", "sensor-0");
+
+        // Rimozione consegnata dopo una ricreazione già avvenuta: il nodo resta
+        repo.upsert("race-cell", "quality", "sensor-0", quality("sensor-0"));
+        factory.onDeviceAdded(key);
+        factory.onDeviceRemoved(key);
+        assertTrue(exposed(factory, key));
+
+        // Creazione consegnata dopo una rimozione già avvenuta: il nodo non ricompare
+        repo.remove("race-cell", "quality", "sensor-0");
+        factory.onDeviceRemoved(key);
+        factory.onDeviceAdded(key);
+        assertFalse(exposed(factory, key));
+    }
+
+    @Test
+    void concurrentCreateAndRemove_shouldLeaveTheTreeMatchingTheRepository() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        CoapApiServer.FactoryResource factory = new CoapApiServer.FactoryResource(repo);
+        Subscription subscription = repo.addDeviceLifecycleListener(factory);
+        int devices = 8;
+        int rounds = 2_000;
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            // La telemetria ricrea i dispositivi mentre le DELETE li rimuovono
+            Future<?> creator = pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < rounds; i++) {
+                    String id = "sensor-" + (i % devices);
+                    repo.upsert("race-cell", "quality", id, quality(id));
+                }
+                return null;
+            });
+            Future<?> remover = pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < rounds; i++) {
+                    repo.remove("race-cell", "quality", "sensor-" + (i % devices));
+                }
+                return null;
+            });
+            start.countDown();
+            creator.get(30, TimeUnit.SECONDS);
+            remover.get(30, TimeUnit.SECONDS);
+
+            for (int d = 0; d < devices; d++) {
+                DeviceKey key = DeviceKey.of("race-cell", "quality", "sensor-" + d);
+                boolean indexed = repo.findEntry(key.cell(), key.type(), key.id()) != null;
+                assertEquals(indexed, exposed(factory, key), "tree out of sync with the repository for " + key);
+            }
+        } finally {
+            pool.shutdownNow();
+            subscription.cancel();
+            for (int d = 0; d < devices; d++) {
+                repo.remove("race-cell", "quality", "sensor-" + d);
+            }
+        }
+    }
+
+    private static boolean exposed(CoapApiServer.FactoryResource factory, DeviceKey key) {
+        return factory.getChild(key.cell()) instanceof CoapApiServer.CellResource cell
+                && cell.getChild(key.type()) instanceof CoapApiServer.DeviceTypeResource type
+                && type.getChild(key.id()) instanceof CoapApiServer.DeviceIdResource;
+    }
+
+    private static QualitySensorData quality(String id) {
+        return new QualitySensorData(id, System.currentTimeMillis(), 1, 1, 0);
+    }
+}
@@ -0,0 +1,58 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import it.unimore.iot.microfactory.domain.StateRepository;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.config.CoapConfig;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.elements.config.Configuration;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CoapServerSettingsTest {
+
+    @Test
+    void fromEnvironment_shouldApplyThePropertiesFile() {
+        CoapServerSettings settings = CoapServerSettings.fromEnvironment();
+
+        assertEquals(CoapServerSettings.HandlerExecution.POOL, settings.execution());
+        assertTrue(settings.handlerThreads() >= 64, "handler threads " + settings.handlerThreads());
+        assertEquals(5683, settings.configuration().get(CoapConfig.COAP_PORT));
+        assertEquals(4, settings.configuration().get(CoapConfig.MAX_RETRANSMIT));
+        assertEquals(247L, settings.configuration().get(CoapConfig.EXCHANGE_LIFETIME, TimeUnit.SECONDS));
+        assertEquals(2_097_152, settings.configuration().get(CoapConfig.MAX_RESOURCE_BODY_SIZE));
+    }
+
+    @Test
+    void handlerExecutor_shouldBeInheritedByTheWholeFactoryTree() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor(r -> new Thread(r, "test-handler"));
+        CoapApiServer.FactoryResource factory = new CoapApiServer.FactoryResource(StateRepository.getInstance(), 100, pool);
+        factory.add(new CoapResource("probe") {
+            @Override
+            public void handleGET(CoapExchange exchange) {
+                exchange.respond(Thread.currentThread().getName());
+            }
+        });
+        CoapServer server = new CoapServer(Configuration.createStandardWithoutFile(), 0);
+        server.add(factory);
+        server.start();
+        CoapClient client = new CoapClient("coap://localhost:" + server.getEndpoints().get(0).getAddress().getPort()
+                + "/factory/probe");
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+        try {
+            assertEquals("test-handler", client.get().getResponseText());
+        } finally {
+            client.shutdown();
+            server.destroy();
+            pool.shutdown();
+        }
+    }
+}
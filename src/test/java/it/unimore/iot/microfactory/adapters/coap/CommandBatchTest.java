@@ -0,0 +1,147 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.communication.mqtt.CommandPublisher;
+import it.unimore.iot.microfactory.communication.mqtt.FakeMqttBroker;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.config.CoapConfig;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.elements.config.Configuration;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CommandBatchTest {
+
+    private static final int CONVEYORS = 300;
+
+    @Test
+    void batch_shouldPublishEveryEntryAndReportPerDeviceOutcomes() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        for (int i = 0; i < CONVEYORS; i++) {
+            // Un nastro su tre è fermo
+            repo.upsert("cmd-batch-cell", "conveyor", "conveyor-" + i,
+                    new ConveyorBeltStatus("conveyor-" + i, System.currentTimeMillis(), i % 3 != 0, 10));
+        }
+
+        try (FakeMqttBroker broker = new FakeMqttBroker(1);
+             CommandPublisher publisher = new CommandPublisher(broker.url(), 64, 1_000, 5_000)) {
+            publisher.start();
+            repo.registerCommandPublisher(publisher);
+            CoapApiServer server = new CoapApiServer(repo, 0);
+            server.start();
+            // La risposta aggregata supera gli 8 KiB di default: il client deve poterla ricomporre
+            Configuration config = Configuration.createStandardWithoutFile();
+            config.set(CoapConfig.MAX_RESOURCE_BODY_SIZE, 262_144);
+            CoapClient client = new CoapClient("coap://localhost:" + server.getPort() + "/factory/cmd-batch-cell/cmd/batch");
+            client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(config).build());
+            client.setTimeout(30_000L);
+            try {
+                // Circa 20 KiB di voci: il client li invia con Block1
+                String entries = IntStream.range(0, CONVEYORS)
+                        .mapToObj(i -> "{\"type\":\"conveyor\",\"id\":\"conveyor-" + i + "\",\"command\":{\"type\":\"stop\"}}")
+                        .collect(Collectors.joining(",", "[", "]"));
+                assertTrue(entries.length() > 16_384);
+                CoapResponse response = client.post(entries, MediaTypeRegistry.APPLICATION_JSON);
+                assertNotNull(response);
+                assertEquals(CoAP.ResponseCode.CHANGED, response.getCode(), response.getResponseText());
+                JsonNode body = Codecs.MAPPER.readTree(response.getPayload());
+                assertEquals(CONVEYORS, body.get("requested").asInt());
+                assertEquals(CONVEYORS, body.get("succeeded").asInt());
+                Set<String> msgIds = new HashSet<>();
+                body.get("results").forEach(result -> {
+                    assertEquals("ACCEPTED", result.get("status").asText());
+                    assertEquals("STOP", result.get("cmdType").asText());
+                    msgIds.add(result.get("msgId").asText());
+                });
+                assertEquals(CONVEYORS, msgIds.size());
+                assertEquals(CONVEYORS, broker.published().size());
+
+                // Il filtro seleziona solo i nastri in funzione
+                response = client.post("{\"selector\":\"type=conveyor,status=ACTIVE\",\"command\":{\"type\":\"STOP\"}}",
+                        MediaTypeRegistry.APPLICATION_JSON);
+                assertEquals(CoAP.ResponseCode.CHANGED, response.getCode(), response.getResponseText());
+                assertEquals(CONVEYORS * 2 / 3, Codecs.MAPPER.readTree(response.getPayload()).get("requested").asInt());
+                assertEquals(CONVEYORS + CONVEYORS * 2 / 3, broker.published().size());
+
+                // Un dispositivo sconosciuto non blocca gli altri ma rende l'esito parziale
+                response = client.post("[{\"type\":\"conveyor\",\"id\":\"conveyor-1\",\"command\":{\"type\":\"START\"}},"
+                        + "{\"type\":\"conveyor\",\"id\":\"missing\",\"command\":{\"type\":\"START\"}}]", MediaTypeRegistry.APPLICATION_JSON);
+                assertEquals(CoAP.ResponseCode.CONFLICT, response.getCode());
+                JsonNode partial = Codecs.MAPPER.readTree(response.getPayload());
+                assertEquals(1, partial.get("succeeded").asInt());
+                assertEquals("NOT_FOUND", partial.get("results").get(1).get("status").asText());
+
+                // Le voci non valide rifiutano l'intera richiesta prima di pubblicare
+                int published = broker.published().size();
+                assertEquals(CoAP.ResponseCode.BAD_REQUEST, client.post(
+                        "{\"selector\":\"speed=10\",\"command\":{\"type\":\"STOP\"}}", MediaTypeRegistry.APPLICATION_JSON).getCode());
+                assertEquals(CoAP.ResponseCode.BAD_REQUEST, client.post(
+                        "[{\"type\":\"conveyor\",\"id\":\"conveyor-1\",\"command\":{\"type\":\"START\"}},"
+                                + "{\"type\":\"conveyor\",\"id\":\"conveyor-2\",\"command\":{\"type\":\"JUMP\"}}]",
+                        MediaTypeRegistry.APPLICATION_JSON).getCode());
+                assertEquals(published, broker.published().size());
+            } finally {
+                client.shutdown();
+                server.stop();
+                repo.registerCommandPublisher(null);
+            }
+        }
+    }
+
+    @Test
+    void batch_shouldAcceptTheAdvertisedMaximumNumberOfEntries() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        // La cella esiste con un solo sensore, che non riceve comandi
+        repo.upsert("limit-cell", "quality", "probe", new QualitySensorData("probe", System.currentTimeMillis(), 0, 0, 0));
+        CoapApiServer server = new CoapApiServer(repo, 0);
+        server.start();
+        Configuration config = Configuration.createStandardWithoutFile();
+        config.set(CoapConfig.MAX_RESOURCE_BODY_SIZE, 4 * 1024 * 1024);
+        CoapClient client = new CoapClient("coap://localhost:" + server.getPort() + "/factory/limit-cell/cmd/batch");
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(config).build());
+        client.setTimeout(60_000L);
+        try {
+            // Dispositivi inesistenti: la richiesta viene elaborata per intero senza pubblicare comandi
+            CoapResponse response = client.post(entries(CoapApiServer.CommandBatchResource.MAX_ENTRIES), MediaTypeRegistry.APPLICATION_JSON);
+            assertNotNull(response);
+            assertEquals(CoAP.ResponseCode.CONFLICT, response.getCode(), response.getResponseText());
+            // Il client non completa a blocchi le risposte di errore: basta il primo blocco con Size2
+            assertTrue(response.getResponseText().startsWith(
+                    "{\"cell\":\"limit-cell\",\"requested\":" + CoapApiServer.CommandBatchResource.MAX_ENTRIES),
+                    response.getResponseText());
+            Integer size2 = response.getOptions().getSize2();
+            assertNotNull(size2);
+            assertTrue(size2 <= 2 * 1024 * 1024, "risposta di " + size2 + " byte oltre MAX_RESOURCE_BODY_SIZE");
+
+            response = client.post(entries(CoapApiServer.CommandBatchResource.MAX_ENTRIES + 1), MediaTypeRegistry.APPLICATION_JSON);
+            assertEquals(CoAP.ResponseCode.REQUEST_ENTITY_TOO_LARGE, response.getCode());
+            assertTrue(response.getResponseText().contains(Integer.toString(CoapApiServer.CommandBatchResource.MAX_ENTRIES)),
+                    response.getResponseText());
+        } finally {
+            client.shutdown();
+            server.stop();
+            repo.remove("limit-cell", "quality", "probe");
+        }
+    }
+
+    private static String entries(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> String.format("{\"type\":\"conveyor\",\"id\":\"conveyor-%05d\",\"command\":{\"type\":\"STOP\"}}", i))
+                .collect(Collectors.joining(",", "[", "]"));
+    }
+}
@@ -0,0 +1,172 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import it.unimore.iot.microfactory.domain.DeviceHistory;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.elements.config.Configuration;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConditionalObserverTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void stepThreshold_shouldNotifyOnlyOnLargeChanges() {
+        ConditionalObserver observer = observer(List.of("st=5"), DeviceHistory.Kind.CONVEYOR);
+        observer.start(conveyor(10.0), 0);
+
+        assertFalse(observer.offer(conveyor(12.0), SECOND));
+        assertFalse(observer.offer(conveyor(14.9), 2 * SECOND));
+        assertTrue(observer.offer(conveyor(15.0), 3 * SECOND));
+        // Il riferimento è ora l'ultimo valore notificato
+        assertFalse(observer.offer(conveyor(11.0), 4 * SECOND));
+        assertTrue(observer.offer(conveyor(9.0), 5 * SECOND));
+        observer.cancel();
+    }
+
+    @Test
+    void thresholds_shouldNotifyWhenTheValueCrossesThem() {
+        ConditionalObserver observer = observer(List.of("gt=20", "lt=5"), DeviceHistory.Kind.CONVEYOR);
+        observer.start(conveyor(10.0), 0);
+
+        assertFalse(observer.offer(conveyor(19.0), SECOND));
+        assertTrue(observer.offer(conveyor(21.0), 2 * SECOND));
+        assertFalse(observer.offer(conveyor(30.0), 3 * SECOND));
+        assertTrue(observer.offer(conveyor(8.0), 4 * SECOND));
+        assertTrue(observer.offer(conveyor(4.0), 5 * SECOND));
+        observer.cancel();
+    }
+
+    @Test
+    void statusField_shouldNotifyOnlyOnStatusChanges() {
+        ConditionalObserver observer = observer(List.of("field=status"), DeviceHistory.Kind.ROBOT);
+        observer.start(robot(RobotCellStatusEnum.IDLE, 0.0), 0);
+
+        assertFalse(observer.offer(robot(RobotCellStatusEnum.IDLE, 3.0), SECOND));
+        assertTrue(observer.offer(robot(RobotCellStatusEnum.PROCESSING, 3.0), 2 * SECOND));
+        assertFalse(observer.offer(robot(RobotCellStatusEnum.PROCESSING, 4.0), 3 * SECOND));
+        observer.cancel();
+    }
+
+    @Test
+    void pmin_shouldDeferEarlyChangesAndPmaxShouldForcePeriodicNotifications() throws Exception {
+        CountDownLatch deferred = new CountDownLatch(1);
+        ConditionalObserver.Attributes attributes = ConditionalObserver.parse(List.of("pmin=0.05", "pmax=10"), DeviceHistory.Kind.CONVEYOR);
+        ConditionalObserver observer = new ConditionalObserver(attributes, (target, periodic) -> {
+            if (!periodic) {
+                deferred.countDown();
+            }
+        });
+        long start = System.nanoTime();
+        observer.start(conveyor(10.0), start);
+
+        assertFalse(observer.offer(conveyor(11.0), start + 1));
+        assertTrue(deferred.await(5, TimeUnit.SECONDS), "pmin expiry should trigger a deferred notification");
+        assertTrue(observer.offer(conveyor(11.0), start + SECOND));
+
+        assertFalse(observer.offerPeriodic(conveyor(11.0), start + 5 * SECOND));
+        assertTrue(observer.offerPeriodic(conveyor(11.0), start + 11 * SECOND));
+        observer.cancel();
+    }
+
+    @Test
+    void parse_shouldRejectInvalidAttributes() {
+        assertNull(ConditionalObserver.parse(List.of("other=1"), DeviceHistory.Kind.ROBOT));
+        assertThrows(IllegalArgumentException.class, () -> ConditionalObserver.parse(List.of("st=0"), DeviceHistory.Kind.CONVEYOR));
+        assertThrows(IllegalArgumentException.class, () -> ConditionalObserver.parse(List.of("pmin=5", "pmax=1"), DeviceHistory.Kind.CONVEYOR));
+        assertThrows(IllegalArgumentException.class, () -> ConditionalObserver.parse(List.of("gt=abc"), DeviceHistory.Kind.CONVEYOR));
+        assertThrows(IllegalArgumentException.class, () -> ConditionalObserver.parse(List.of("field=speed"), DeviceHistory.Kind.ROBOT));
+    }
+
+    @Test
+    void observeWithStepThreshold_shouldSkipSmallChangesOverCoap() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        repo.upsert("observe-cell", "conveyor", "conveyor-1",
+                new ConveyorBeltStatus("conveyor-1", System.currentTimeMillis(), true, 10.0));
+
+        CoapApiServer server = new CoapApiServer(repo, 0);
+        server.start();
+        String uri = "coap://localhost:" + server.getPort() + "/factory/observe-cell/conveyor/conveyor-1/state";
+        CoapClient client = new CoapClient(uri + "?st=5");
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+        BlockingQueue<String> notifications = new LinkedBlockingQueue<>();
+        try {
+            CoapObserveRelation relation = client.observeAndWait(new CoapHandler() {
+                @Override
+                public void onLoad(CoapResponse response) {
+                    notifications.add(response.getResponseText());
+                }
+
+                @Override
+                public void onError() {
+                }
+            });
+            assertNotNull(notifications.poll(5, TimeUnit.SECONDS), "registration response");
+
+            repo.upsert("observe-cell", "conveyor", "conveyor-1",
+                    new ConveyorBeltStatus("conveyor-1", System.currentTimeMillis(), true, 12.0));
+            repo.upsert("observe-cell", "conveyor", "conveyor-1",
+                    new ConveyorBeltStatus("conveyor-1", System.currentTimeMillis(), true, 17.0));
+            String notified = notifications.poll(5, TimeUnit.SECONDS);
+            assertNotNull(notified);
+            assertTrue(notified.contains("\"speed\":17.0"), notified);
+            assertNull(notifications.poll(200, TimeUnit.MILLISECONDS));
+            relation.proactiveCancel();
+
+            client.setURI(uri + "?st=-1");
+            Request invalid = Request.newGet();
+            invalid.setObserve();
+            assertEquals(CoAP.ResponseCode.BAD_REQUEST, client.advanced(invalid).getCode());
+        } finally {
+            client.shutdown();
+            server.stop();
+        }
+    }
+
+    @Test
+    void pmax_shouldNotLeaveCancelledTimersQueued() {
+        ConditionalObserver observer = observer(List.of("pmax=3600"), DeviceHistory.Kind.CONVEYOR);
+        observer.start(conveyor(10.0), 0);
+        // Ogni notifica riprogramma il timer di un'ora: quelli cancellati non devono restare in coda
+        for (int i = 1; i <= 10_000; i++) {
+            assertTrue(observer.offer(conveyor(i), i * SECOND));
+        }
+        assertTrue(ConditionalObserver.pendingTimers() < 100, "queued timers: " + ConditionalObserver.pendingTimers());
+        observer.cancel();
+    }
+
+    private static ConditionalObserver observer(List<String> query, DeviceHistory.Kind kind) {
+        return new ConditionalObserver(ConditionalObserver.parse(query, kind), (target, periodic) -> {
+        });
+    }
+
+    private static ConveyorBeltStatus conveyor(double speed) {
+        return new ConveyorBeltStatus("conveyor-1", 0, true, speed);
+    }
+
+    private static RobotCellStatus robot(RobotCellStatusEnum status, double processingTime) {
+        return new RobotCellStatus("robot-1", 0, status, processingTime);
+    }
+}
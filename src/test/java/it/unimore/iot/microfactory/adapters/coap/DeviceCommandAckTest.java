@@ -0,0 +1,186 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.communication.mqtt.CommandPublisher;
+import it.unimore.iot.microfactory.communication.mqtt.FakeMqttBroker;
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.model.Ack;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.elements.config.Configuration;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DeviceCommandAckTest {
+
+    private static final DeviceKey ROBOT = DeviceKey.of("ack-cell", "robot", "robot-1");
+
+    @Test
+    void postWithWaitForAck_shouldRespondWithTheDeviceAckAndRecordItsLatency() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        repo.upsert(ROBOT.cell(), ROBOT.type(), ROBOT.id(),
+                new RobotCellStatus(ROBOT.id(), System.currentTimeMillis(), RobotCellStatusEnum.IDLE, 0));
+
+        try (FakeMqttBroker broker = new FakeMqttBroker(0);
+             CommandPublisher publisher = new CommandPublisher(broker.url(), 16, 16, 5_000)) {
+            publisher.start();
+            repo.registerCommandPublisher(publisher);
+            CoapApiServer server = new CoapApiServer(repo, 0);
+            server.start();
+            CoapClient client = new CoapClient();
+            client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+            String cmd = "coap://localhost:" + server.getPort() + "/factory/ack-cell/robot/robot-1/cmd";
+            try {
+                BlockingQueue<CoapResponse> responses = post(client, cmd + "?wait=ack", "START");
+                String msgId = awaitPublishedMsgId(broker, 1);
+                // Senza ack il client attende: la risposta arriva solo con l'esito del dispositivo
+                assertNull(responses.poll(200, TimeUnit.MILLISECONDS));
+                assertTrue(repo.acknowledgeCommand(ROBOT, new Ack("START", "OK", "done", System.currentTimeMillis(), msgId)));
+                CoapResponse response = responses.poll(5, TimeUnit.SECONDS);
+                assertNotNull(response);
+                assertEquals(CoAP.ResponseCode.CHANGED, response.getCode());
+                JsonNode ack = Codecs.MAPPER.readTree(response.getPayload());
+                assertEquals("OK", ack.get("status").asText());
+                assertEquals(msgId, ack.get("msgId").asText());
+
+                responses = post(client, cmd + "?wait=ack", "RESET");
+                msgId = awaitPublishedMsgId(broker, 2);
+                repo.acknowledgeCommand(ROBOT, new Ack("RESET", "ERROR", "not in ALARM", System.currentTimeMillis(), msgId));
+                response = responses.poll(5, TimeUnit.SECONDS);
+                assertNotNull(response);
+                assertEquals(CoAP.ResponseCode.CONFLICT, response.getCode());
+
+                // Senza wait=ack la risposta arriva al PUBACK e riporta il msgId per la correlazione
+                response = post(client, cmd, "STOP").poll(5, TimeUnit.SECONDS);
+                assertNotNull(response);
+                assertEquals(CoAP.ResponseCode.CHANGED, response.getCode());
+                assertEquals("ACCEPTED", Codecs.MAPPER.readTree(response.getPayload()).get("status").asText());
+                assertEquals(awaitPublishedMsgId(broker, 3),
+                        Codecs.MAPPER.readTree(response.getPayload()).get("msgId").asText());
+
+                client.setURI("coap://localhost:" + server.getPort() + "/factory/cmd/latency");
+                CoapResponse latency = client.get();
+                assertEquals(CoAP.ResponseCode.CONTENT, latency.getCode());
+                JsonNode robot = Codecs.MAPPER.readTree(latency.getPayload()).get("types").get("robot");
+                assertNotNull(robot, latency.getResponseText());
+                assertTrue(robot.get("count").asLong() >= 2, latency.getResponseText());
+                assertTrue(robot.get("errors").asLong() >= 1, latency.getResponseText());
+                assertTrue(robot.get("p50Ms").asDouble() > 0, latency.getResponseText());
+            } finally {
+                client.shutdown();
+                server.stop();
+                repo.registerCommandPublisher(null);
+            }
+        }
+    }
+
+    @Test
+    void broadcastPostWithWaitForAck_shouldPublishOnceAndAggregateTheDeviceAcks() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        List<DeviceKey> robots = List.of(DeviceKey.of("bc-cell", "robot", "robot-1"), DeviceKey.of("bc-cell", "robot", "robot-2"));
+        for (DeviceKey robot : robots) {
+            repo.upsert(robot.cell(), robot.type(), robot.id(),
+                    new RobotCellStatus(robot.id(), System.currentTimeMillis(), RobotCellStatusEnum.IDLE, 0));
+        }
+        // I sensori di qualità non ricevono comandi e non sono attesi tra gli ack
+        repo.upsert("bc-cell", "quality", "quality-1", new QualitySensorData("quality-1", System.currentTimeMillis(), 0, 0, 0));
+
+        try (FakeMqttBroker broker = new FakeMqttBroker(0);
+             CommandPublisher publisher = new CommandPublisher(broker.url(), 16, 16, 5_000)) {
+            publisher.start();
+            repo.registerCommandPublisher(publisher);
+            CoapApiServer server = new CoapApiServer(repo, 0);
+            server.start();
+            CoapClient client = new CoapClient();
+            client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+            String base = "coap://localhost:" + server.getPort() + "/factory/bc-cell";
+            try {
+                BlockingQueue<CoapResponse> responses = post(client, base + "/cmd?wait=ack", "STOP");
+                String msgId = awaitPublishedMsgId(broker, 1);
+                assertEquals("mf/bc-cell/broadcast/cmd", broker.published().get(0).topic());
+                repo.acknowledgeCommand(robots.get(0), new Ack("STOP", "OK", "", System.currentTimeMillis(), msgId));
+                assertNull(responses.poll(200, TimeUnit.MILLISECONDS));
+                repo.acknowledgeCommand(robots.get(1), new Ack("STOP", "OK", "", System.currentTimeMillis(), msgId));
+
+                CoapResponse response = responses.poll(5, TimeUnit.SECONDS);
+                assertNotNull(response);
+                assertEquals(CoAP.ResponseCode.CHANGED, response.getCode());
+                JsonNode result = Codecs.MAPPER.readTree(response.getPayload());
+                assertEquals(msgId, result.get("msgId").asText());
+                assertEquals("bc-cell", result.get("scope").asText());
+                assertEquals(2, result.get("targets").asInt());
+                assertEquals(2, result.get("acknowledged").asInt());
+                assertTrue(result.get("complete").asBoolean());
+
+                // Ambito di tipo: un solo PUBLISH sul topic del tipo, 4.09 se un dispositivo rifiuta
+                responses = post(client, base + "/robot/cmd?wait=ack", "RESET");
+                msgId = awaitPublishedMsgId(broker, 2);
+                assertEquals("mf/bc-cell/robot/broadcast/cmd", broker.published().get(1).topic());
+                for (DeviceKey robot : robots) {
+                    repo.acknowledgeCommand(robot, new Ack("RESET", "ERROR", "not in ALARM", System.currentTimeMillis(), msgId));
+                }
+                response = responses.poll(5, TimeUnit.SECONDS);
+                assertNotNull(response);
+                assertEquals(CoAP.ResponseCode.CONFLICT, response.getCode());
+                assertEquals(2, Codecs.MAPPER.readTree(response.getPayload()).get("errors").asInt());
+                assertEquals(2, broker.published().size());
+            } finally {
+                client.shutdown();
+                server.stop();
+                repo.registerCommandPublisher(null);
+            }
+        }
+    }
+
+    private static BlockingQueue<CoapResponse> post(CoapClient client, String uri, String type) {
+        BlockingQueue<CoapResponse> responses = new LinkedBlockingQueue<>();
+        Request post = Request.newPost().setURI(uri);
+        post.setPayload(("{\"type\":\"" + type + "\"}").getBytes(StandardCharsets.UTF_8));
+        post.getOptions().setContentFormat(MediaTypeRegistry.APPLICATION_JSON);
+        client.advanced(new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                responses.add(response);
+            }
+
+            @Override
+            public void onError() {
+            }
+        }, post);
+        return responses;
+    }
+
+    // msgId generato dal server per il comando n-esimo ricevuto dal broker
+    private static String awaitPublishedMsgId(FakeMqttBroker broker, int count) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (broker.published().size() < count) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Comandi pubblicati " + broker.published().size() + " su " + count);
+            }
+            Thread.sleep(5);
+        }
+        String msgId = Codecs.MAPPER.readTree(broker.published().get(count - 1).payload()).get("msgId").asText();
+        assertNotNull(msgId);
+        return msgId;
+    }
+}
@@ -0,0 +1,111 @@
+package it.unimore.iot.microfactory.adapters.coap;
+
+import it.unimore.iot.microfactory.adapters.coap.StateRepresentationCache.Representation;
+import it.unimore.iot.microfactory.domain.DeviceEntry;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.elements.config.Configuration;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StateRepresentationCacheTest {
+
+    @Test
+    void encodedBytes_shouldBeReusedUntilTheStateVersionChanges() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        repo.upsert("cache-cell", "conveyor", "conveyor-1",
+                new ConveyorBeltStatus("conveyor-1", 1, true, 1.0));
+        DeviceEntry entry = repo.findEntry("cache-cell", "conveyor", "conveyor-1");
+
+        AtomicInteger encodings = new AtomicInteger();
+        StateRepresentationCache cache = new StateRepresentationCache((representation, state) -> {
+            encodings.incrementAndGet();
+            return state.toString().getBytes(StandardCharsets.UTF_8);
+        });
+
+        StateRepresentationCache.Encoded first = cache.get(entry, Representation.JSON);
+        for (int i = 0; i < 1_000; i++) {
+            assertSame(first, cache.get(entry, Representation.JSON));
+        }
+        StateRepresentationCache.Encoded text = cache.get(entry, Representation.TEXT_PLAIN);
+        assertEquals(2, encodings.get());
+        assertFalse(Arrays.equals(first.etag(), text.etag()), "ETag distinti per formato");
+
+        repo.upsert("cache-cell", "conveyor", "conveyor-1",
+                new ConveyorBeltStatus("conveyor-1", 2, false, 0.0));
+        StateRepresentationCache.Encoded updated = cache.get(entry, Representation.JSON);
+        assertEquals(3, encodings.get());
+        assertFalse(Arrays.equals(first.etag(), updated.etag()), "ETag invariato dopo l'upsert");
+    }
+
+    @Test
+    void recreatedDevice_shouldNotReuseTheETagsOfThePreviousEntry() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        ConveyorBeltStatus status = new ConveyorBeltStatus("conveyor-3", 1, true, 1.0);
+        repo.upsert("cache-cell", "conveyor", "conveyor-3", status);
+        DeviceEntry original = repo.findEntry("cache-cell", "conveyor", "conveyor-3");
+        StateRepresentationCache cache = new StateRepresentationCache(
+                (representation, state) -> state.toString().getBytes(StandardCharsets.UTF_8));
+        StateRepresentationCache.Encoded before = cache.get(original, Representation.JSON);
+
+        // Stessa chiave, stessa versione e stesso stato: cambia solo l'entry
+        assertTrue(repo.remove("cache-cell", "conveyor", "conveyor-3"));
+        repo.upsert("cache-cell", "conveyor", "conveyor-3", status);
+        DeviceEntry recreated = repo.findEntry("cache-cell", "conveyor", "conveyor-3");
+        assertEquals(original.version(), recreated.version());
+        StateRepresentationCache.Encoded after = cache.get(recreated, Representation.JSON);
+        assertFalse(Arrays.equals(before.etag(), after.etag()), "ETag ripetuto dopo la ricreazione");
+    }
+
+    @Test
+    void matchingETag_shouldBeAnsweredWithValid() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        repo.upsert("cache-cell", "conveyor", "conveyor-2",
+                new ConveyorBeltStatus("conveyor-2", 1, true, 1.0));
+
+        CoapApiServer server = new CoapApiServer(repo, 0);
+        server.start();
+        CoapClient client = new CoapClient("coap://localhost:" + server.getPort()
+                + "/factory/cache-cell/conveyor/conveyor-2/state");
+        client.setEndpoint(new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build());
+        try {
+            CoapResponse content = client.get();
+            assertEquals(CoAP.ResponseCode.CONTENT, content.getCode());
+            byte[] etag = content.getOptions().getETags().get(0);
+
+            CoapResponse valid = client.advanced(conditionalGet(client, etag));
+            assertEquals(CoAP.ResponseCode.VALID, valid.getCode());
+            assertEquals(0, valid.getPayloadSize());
+            assertArrayEquals(etag, valid.getOptions().getETags().get(0));
+
+            repo.upsert("cache-cell", "conveyor", "conveyor-2",
+                    new ConveyorBeltStatus("conveyor-2", 2, false, 0.0));
+            CoapResponse changed = client.advanced(conditionalGet(client, etag));
+            assertEquals(CoAP.ResponseCode.CONTENT, changed.getCode());
+            assertTrue(changed.getResponseText().contains("\"active\":false"), changed.getResponseText());
+        } finally {
+            client.shutdown();
+            server.stop();
+        }
+    }
+
+    private static Request conditionalGet(CoapClient client, byte[] etag) {
+        Request request = Request.newGet().setURI(client.getURI());
+        request.getOptions().addETag(etag);
+        return request;
+    }
+}
@@ -0,0 +1,171 @@
+package it.unimore.iot.microfactory.bench;
+
+import ch.qos.logback.classic.Logger;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.communication.mqtt.CommandPublisher;
+import it.unimore.iot.microfactory.communication.mqtt.CommandTopics;
+import it.unimore.iot.microfactory.communication.mqtt.FakeMqttBroker;
+import it.unimore.iot.microfactory.communication.mqtt.TopicResolver;
+import it.unimore.iot.microfactory.domain.BroadcastScope;
+import it.unimore.iot.microfactory.domain.CommandTracker;
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.model.Ack;
+import it.unimore.iot.microfactory.model.Command;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tempo per portare un comando a {@code devices} dispositivi di una cella e raccoglierne tutti gli ack.
+ * Con {@code delivery=BROADCAST} il server pubblica una sola volta sul topic della cella e attende l'esito aggregato;
+ * con {@code UNICAST} pubblica un comando per dispositivo e attende gli N ack singoli, come prima dei broadcast.
+ * Il broker simulato conferma ogni PUBLISH dopo 1 ms; un unico client "flotta" risponde per conto di tutti i
+ * dispositivi pubblicando un ack per ciascuno, raccolti da un client che li consegna al repository come il collector.
+ * {@code mvn -Pbench test-compile exec:exec -Dbench.args="BroadcastFanout"}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastFanoutBenchmark {
+
+    private static final String CELL = "fanout";
+    private static final String TYPE = "conveyor";
+    private static final long BROKER_RTT_MS = 1;
+
+    public enum Delivery {
+        BROADCAST,
+        UNICAST
+    }
+
+    @Param({"100", "1000", "10000"})
+    public int devices;
+
+    @Param({"BROADCAST", "UNICAST"})
+    public Delivery delivery;
+
+    private StateRepository repo;
+    private FakeMqttBroker broker;
+    private CommandPublisher publisher;
+    private MqttAsyncClient fleet;
+    private MqttAsyncClient collector;
+    private final List<DeviceKey> keys = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws Exception {
+        ((Logger) LoggerFactory.getLogger("it.unimore.iot.microfactory")).setLevel(ch.qos.logback.classic.Level.WARN);
+        repo = StateRepository.getInstance();
+        for (int i = 0; i < devices; i++) {
+            repo.upsert(CELL, TYPE, TYPE + "-" + i, new ConveyorBeltStatus(TYPE + "-" + i, System.currentTimeMillis(), true, i));
+            keys.add(DeviceKey.of(CELL, TYPE, TYPE + "-" + i));
+        }
+        broker = new FakeMqttBroker(BROKER_RTT_MS);
+        broker.stopRecording();
+        publisher = new CommandPublisher(broker.url(), 256, 2 * devices, 120_000);
+        publisher.start();
+        repo.registerCommandPublisher(publisher);
+
+        TopicResolver resolver = new TopicResolver(2 * devices);
+        collector = connect(new MqttCallbackAdapter() {
+            @Override
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+                TopicResolver.Topic resolved = resolver.resolve(topic);
+                repo.acknowledgeCommand(resolved.device(), Codecs.ACK_READER.readValue(message.getPayload()));
+            }
+        });
+        collector.subscribe("mf/" + CELL + "/+/+/ack", 0).waitForCompletion();
+
+        fleet = connect(new MqttCallbackAdapter() {
+            @Override
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+                Command command = Codecs.COMMAND_READER.readValue(message.getPayload());
+                byte[] ack = Codecs.ACK_WRITER.writeValueAsBytes(
+                        new Ack(command.getType(), "OK", "", System.currentTimeMillis(), command.getMsgId()));
+                if (topic.equals(CommandTopics.cellBroadcast(CELL))) {
+                    for (DeviceKey key : keys) {
+                        fleet.publish("mf/" + key.path() + "/ack", ack, 0, false);
+                    }
+                } else {
+                    fleet.publish(topic.substring(0, topic.length() - "cmd".length()) + "ack", ack, 0, false);
+                }
+            }
+        });
+        fleet.subscribe(new String[]{CommandTopics.cellBroadcast(CELL), "mf/" + CELL + "/+/+/cmd"},
+                new int[]{0, 0}).waitForCompletion();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fleet.disconnect().waitForCompletion();
+        collector.disconnect().waitForCompletion();
+        repo.registerCommandPublisher(null);
+        publisher.close();
+        broker.close();
+    }
+
+    @Benchmark
+    public Object fanOut() throws Exception {
+        Command command = new Command("STOP", System.currentTimeMillis());
+        if (delivery == Delivery.BROADCAST) {
+            CommandTracker.BroadcastResult result = repo.publishBroadcastCommand(BroadcastScope.cell(CELL), command)
+                    .acknowledged().get(60, TimeUnit.SECONDS);
+            if (!result.complete()) {
+                throw new IllegalStateException("Ack mancanti: " + result.missing().size());
+            }
+            return result;
+        }
+        CompletableFuture<?>[] acks = new CompletableFuture<?>[keys.size()];
+        for (int i = 0; i < acks.length; i++) {
+            DeviceKey key = keys.get(i);
+            acks[i] = repo.publishCommand(key.cell(), key.type(), key.id(),
+                    new Command(command.getType(), command.getTs())).acknowledged();
+        }
+        return CompletableFuture.allOf(acks).get(60, TimeUnit.SECONDS);
+    }
+
+    private MqttAsyncClient connect(MqttCallback callback) throws MqttException {
+        MqttAsyncClient client = new MqttAsyncClient(broker.url(), "bench-" + UUID.randomUUID(), new MemoryPersistence());
+        client.setCallback(callback);
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setMaxInflight(65_535);
+        client.connect(options).waitForCompletion();
+        return client;
+    }
+
+    private abstract static class MqttCallbackAdapter implements MqttCallback {
+        @Override
+        public void connectionLost(Throwable cause) {
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package it.unimore.iot.microfactory.bench;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import it.unimore.iot.microfactory.adapters.coap.CoapApiServer;
+import it.unimore.iot.microfactory.adapters.coap.CoapServerSettings;
+import it.unimore.iot.microfactory.communication.mqtt.CommandPublisher;
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.model.Command;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.elements.config.Configuration;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latenza di una raffica di 64 GET sullo stato mentre un client tiene in volo 32 comandi POST, confrontando
+ * i gestori eseguiti sui thread del protocollo di Californium con il pool dedicato.
+ * La pubblicazione MQTT è simulata da un publisher che conferma ogni comando dopo 1 ms, come un broker in rete locale;
+ * da quando la pubblicazione è asincrona i gestori dei comandi non si bloccano più in attesa del PUBACK.
+ * {@code mvn -Pbench test-compile exec:exec -Dbench.args="CoapHandlerExecution"}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CoapHandlerExecutionBenchmark {
+
+    private static final int DEVICES = 64;
+    private static final int COMMANDS_IN_FLIGHT = 32;
+    private static final byte[] START = "{\"type\":\"START\"}".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"PROTOCOL", "POOL"})
+    public CoapServerSettings.HandlerExecution execution;
+
+    private StateRepository repo;
+    private CoapApiServer server;
+    private CoapEndpoint endpoint;
+    private CoapClient client;
+    private String base;
+    private Thread commandLoad;
+    private volatile boolean running;
+
+    @Setup
+    public void setUp() throws Exception {
+        ((Logger) LoggerFactory.getLogger("it.unimore.iot.microfactory")).setLevel(Level.WARN);
+        repo = StateRepository.getInstance();
+        for (int i = 0; i < DEVICES; i++) {
+            repo.upsert("load-cell", "conveyor", "conveyor-" + i,
+                    new ConveyorBeltStatus("conveyor-" + i, System.currentTimeMillis(), true, i));
+        }
+        repo.registerCommandPublisher(new SlowPublisher());
+        server = new CoapApiServer(repo, 0, CoapServerSettings.defaults(execution));
+        server.start();
+        endpoint = new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build();
+        endpoint.start();
+        client = new CoapClient();
+        client.setEndpoint(endpoint);
+        base = "coap://localhost:" + server.getPort() + "/factory/load-cell/conveyor/conveyor-";
+
+        running = true;
+        commandLoad = new Thread(this::sendCommands, "bench-command-load");
+        commandLoad.setDaemon(true);
+        commandLoad.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        running = false;
+        commandLoad.join(5_000);
+        endpoint.destroy();
+        server.stop();
+        repo.registerCommandPublisher(null);
+    }
+
+    @Benchmark
+    public void stateReadsUnderCommandLoad() throws Exception {
+        CountDownLatch done = new CountDownLatch(DEVICES);
+        CoapHandler handler = handler(done::countDown);
+        for (int i = 0; i < DEVICES; i++) {
+            client.advanced(handler, Request.newGet().setURI(base + i + "/state"));
+        }
+        if (!done.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("GET senza risposta: " + done.getCount());
+        }
+    }
+
+    // Mantiene COMMANDS_IN_FLIGHT comandi in volo finché il benchmark è attivo
+    private void sendCommands() {
+        Semaphore inFlight = new Semaphore(COMMANDS_IN_FLIGHT);
+        CoapHandler handler = handler(inFlight::release);
+        int next = 0;
+        while (running) {
+            try {
+                if (!inFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            Request post = Request.newPost().setURI(base + (next++ % DEVICES) + "/cmd");
+            post.setPayload(START);
+            post.getOptions().setContentFormat(MediaTypeRegistry.APPLICATION_JSON);
+            client.advanced(handler, post);
+        }
+    }
+
+    private static CoapHandler handler(Runnable onResponse) {
+        return new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                onResponse.run();
+            }
+
+            @Override
+            public void onError() {
+                onResponse.run();
+            }
+        };
+    }
+
+    // Publisher che simula una conferma QoS 1 dopo 1 ms senza broker
+    private static final class SlowPublisher extends CommandPublisher {
+        private static final Executor BROKER = CompletableFuture.delayedExecutor(1, TimeUnit.MILLISECONDS);
+
+        SlowPublisher() throws MqttException {
+        }
+
+        @Override
+        public CompletableFuture<Void> publishDeviceCommand(DeviceKey device, Command command) {
+            return CompletableFuture.runAsync(() -> { }, BROKER);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package it.unimore.iot.microfactory.bench;
+
+import ch.qos.logback.classic.Logger;
+import it.unimore.iot.microfactory.adapters.coap.CoapApiServer;
+import it.unimore.iot.microfactory.adapters.coap.CoapServerSettings;
+import it.unimore.iot.microfactory.communication.mqtt.CommandPublisher;
+import it.unimore.iot.microfactory.communication.mqtt.FakeMqttBroker;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.elements.config.Configuration;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Comandi al secondo attraverso l'API CoAP con {@code concurrency} POST contemporanee verso un broker MQTT
+ * simulato che conferma ogni PUBLISH dopo 1 ms. Con {@code maxInFlight=1} un solo comando attende il PUBACK
+ * alla volta, come con il vecchio client sincrono; con una finestra più ampia i comandi viaggiano in pipeline.
+ * Il contatore {@code commands} riporta i comandi confermati al secondo.
+ * {@code mvn -Pbench test-compile exec:exec -Dbench.args="CommandThroughput"}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandThroughputBenchmark {
+
+    private static final int DEVICES = 100;
+    private static final long BROKER_RTT_MS = 1;
+    private static final byte[] START = "{\"type\":\"START\"}".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"1", "100", "10000"})
+    public int concurrency;
+
+    @Param({"1", "256"})
+    public int maxInFlight;
+
+    private StateRepository repo;
+    private FakeMqttBroker broker;
+    private CommandPublisher publisher;
+    private CoapApiServer server;
+    private CoapEndpoint endpoint;
+    private CoapClient client;
+    private String base;
+
+    @Setup
+    public void setUp() throws Exception {
+        ((Logger) LoggerFactory.getLogger("it.unimore.iot.microfactory")).setLevel(ch.qos.logback.classic.Level.WARN);
+        ((Logger) LoggerFactory.getLogger("org.eclipse.californium")).setLevel(ch.qos.logback.classic.Level.WARN);
+        repo = StateRepository.getInstance();
+        for (int i = 0; i < DEVICES; i++) {
+            repo.upsert("cmd-cell", "conveyor", "conveyor-" + i,
+                    new ConveyorBeltStatus("conveyor-" + i, System.currentTimeMillis(), true, i));
+        }
+        broker = new FakeMqttBroker(BROKER_RTT_MS);
+        publisher = new CommandPublisher(broker.url(), maxInFlight, 2 * concurrency, 120_000);
+        publisher.start();
+        repo.registerCommandPublisher(publisher);
+        server = new CoapApiServer(repo, 0, CoapServerSettings.defaults(CoapServerSettings.HandlerExecution.POOL));
+        server.start();
+        endpoint = new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build();
+        endpoint.start();
+        client = new CoapClient();
+        client.setEndpoint(endpoint);
+        client.setTimeout(120_000L);
+        base = "coap://localhost:" + server.getPort() + "/factory/cmd-cell/conveyor/conveyor-";
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        endpoint.destroy();
+        server.stop();
+        repo.registerCommandPublisher(null);
+        publisher.close();
+        broker.close();
+    }
+
+    /**
+     * Comandi confermati, riportati da JMH come tasso al secondo.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long commands;
+        public long failures;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            commands = 0;
+            failures = 0;
+        }
+    }
+
+    @Benchmark
+    public void postCommands(Counters counters) throws Exception {
+        CountDownLatch done = new CountDownLatch(concurrency);
+        AtomicInteger changed = new AtomicInteger();
+        CoapHandler handler = new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                if (response.getCode() == CoAP.ResponseCode.CHANGED) {
+                    changed.incrementAndGet();
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void onError() {
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < concurrency; i++) {
+            Request post = Request.newPost().setURI(base + (i % DEVICES) + "/cmd");
+            post.setPayload(START);
+            post.getOptions().setContentFormat(MediaTypeRegistry.APPLICATION_JSON);
+            client.advanced(handler, post);
+        }
+        if (!done.await(120, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("POST senza risposta: " + done.getCount());
+        }
+        counters.commands += changed.get();
+        counters.failures += concurrency - changed.get();
+    }
+}
@@ -0,0 +1,83 @@
+package it.unimore.iot.microfactory.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unimore.iot.microfactory.manager.IngestPipeline;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput della pipeline di ingest (messaggi/s) al variare del numero di worker.
+ * Ogni messaggio viene decodificato con Jackson nel modello, come nel DataCollectorManager;
+ * la scalabilità attesa è circa lineare fino al numero di core disponibili.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IngestPipelineBenchmark {
+
+    private static final int BATCH = 10_000;
+    private static final int DEVICES = 1_000;
+
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final LongAdder handled = new LongAdder();
+    private String[] topics;
+    private byte[][] payloads;
+    private IngestPipeline pipeline;
+    private long expected;
+
+    @Setup
+    public void setUp() throws Exception {
+        topics = new String[BATCH];
+        payloads = new byte[BATCH][];
+        for (int i = 0; i < BATCH; i++) {
+            int device = i % DEVICES;
+            topics[i] = "mf/cell-" + (device % 10) + "/robot/robot-" + device + "/status";
+            payloads[i] = mapper.writeValueAsBytes(new RobotCellStatus("robot-" + device, i,
+                    RobotCellStatusEnum.PROCESSING, i / 10.0));
+        }
+        pipeline = new IngestPipeline(workers, BATCH, IngestPipeline.Backpressure.BLOCK, (topic, payload) -> {
+            mapper.readValue(payload, RobotCellStatus.class);
+            handled.increment();
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.shutdown(5_000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long ingest() {
+        for (int i = 0; i < BATCH; i++) {
+            pipeline.publish(topics[i], payloads[i]);
+        }
+        expected += BATCH;
+        while (handled.sum() < expected) {
+            Thread.onSpinWait();
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,126 @@
+package it.unimore.iot.microfactory.bench;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import it.unimore.iot.microfactory.adapters.coap.CoapApiServer;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.elements.config.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latenza di notifica con molti osservatori: 10.000 relazioni Observe distribuite su 1.000 risorse di stato,
+ * 10 per dispositivo, tutte sullo stesso endpoint client in loopback.
+ * Ogni operazione aggiorna un dispositivo e attende che i suoi 10 osservatori ricevano la notifica; lo stato
+ * viene codificato una sola volta per versione e formato e gli stessi byte sono inviati a tutti.
+ * Per le allocazioni per cambiamento usare {@code -prof gc} (gc.alloc.rate.norm, client in-process incluso):
+ * {@code mvn -Pbench test-compile exec:exec -Dbench.args="ObserveFanout -prof gc"}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ObserveFanoutBenchmark {
+
+    private static final int RESOURCES = 1_000;
+    private static final int OBSERVERS_PER_RESOURCE = 10;
+
+    private final LongAdder notifications = new LongAdder();
+    private final List<CoapObserveRelation> relations = new ArrayList<>();
+    private final List<CoapClient> clients = new ArrayList<>();
+    private StateRepository repo;
+    private CoapApiServer server;
+    private CoapEndpoint endpoint;
+    private long expected;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Il log DEBUG di ogni upsert su console e file dominerebbe la misura
+        ((Logger) LoggerFactory.getLogger("it.unimore.iot.microfactory")).setLevel(Level.INFO);
+        repo = StateRepository.getInstance();
+        for (int i = 0; i < RESOURCES; i++) {
+            repo.upsert("fanout-cell", "conveyor", "conveyor-" + i,
+                    new ConveyorBeltStatus("conveyor-" + i, System.currentTimeMillis(), true, 0));
+        }
+        server = new CoapApiServer(repo, 0);
+        server.start();
+        endpoint = new CoapEndpoint.Builder().setConfiguration(Configuration.createStandardWithoutFile()).build();
+        endpoint.start();
+
+        CoapHandler handler = new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                notifications.increment();
+            }
+
+            @Override
+            public void onError() {
+            }
+        };
+        for (int i = 0; i < RESOURCES; i++) {
+            CoapClient client = new CoapClient("coap://localhost:" + server.getPort()
+                    + "/factory/fanout-cell/conveyor/conveyor-" + i + "/state");
+            client.setEndpoint(endpoint);
+            clients.add(client);
+            for (int j = 0; j < OBSERVERS_PER_RESOURCE; j++) {
+                relations.add(client.observe(handler));
+            }
+        }
+        // Le risposte di registrazione contano come prima notifica di ogni relazione
+        expected = (long) RESOURCES * OBSERVERS_PER_RESOURCE;
+        awaitNotifications(TimeUnit.SECONDS.toNanos(60));
+    }
+
+    @TearDown
+    public void tearDown() {
+        relations.forEach(CoapObserveRelation::proactiveCancel);
+        clients.forEach(CoapClient::shutdown);
+        endpoint.destroy();
+        server.stop();
+    }
+
+    @Benchmark
+    public long notifyObservers() {
+        int device = next;
+        next = (next + 1) % RESOURCES;
+        repo.upsert("fanout-cell", "conveyor", "conveyor-" + device,
+                new ConveyorBeltStatus("conveyor-" + device, System.currentTimeMillis(), true, expected));
+        expected += OBSERVERS_PER_RESOURCE;
+        awaitNotifications(TimeUnit.SECONDS.toNanos(10));
+        return expected;
+    }
+
+    private void awaitNotifications(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (notifications.sum() < expected) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Notifiche ricevute " + notifications.sum() + " su " + expected);
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package it.unimore.iot.microfactory.bench;
+
+import it.unimore.iot.microfactory.codec.PayloadEncoding;
+import it.unimore.iot.microfactory.codec.TelemetryCodec;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodifica della telemetria sul percorso di ingest nelle tre {@link PayloadEncoding},
+ * incluso il riconoscimento della codifica dal primo byte.
+ * La dimensione dei payload (byte sul filo) viene stampata all'avvio di ogni fork.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PayloadEncodingBenchmark {
+
+    @Param({"JSON", "CBOR", "SENML_JSON", "SENML_CBOR"})
+    public PayloadEncoding encoding;
+
+    private byte[] robotPayload;
+    private byte[] qualityPayload;
+
+    @Setup
+    public void setUp() throws Exception {
+        robotPayload = TelemetryCodec.write(encoding,
+                new RobotCellStatus("robot-42", 1700000000123L, RobotCellStatusEnum.PROCESSING, 3.75));
+        qualityPayload = TelemetryCodec.write(encoding,
+                new QualitySensorData("quality-7", 1700000000123L, 1500, 1480, 20));
+        System.out.printf("%n%s bytes on wire: robot=%d, quality=%d%n",
+                encoding, robotPayload.length, qualityPayload.length);
+    }
+
+    @Benchmark
+    public RobotCellStatus decodeRobot() throws Exception {
+        return TelemetryCodec.read(PayloadEncoding.detect(robotPayload), RobotCellStatus.class, robotPayload);
+    }
+
+    @Benchmark
+    public QualitySensorData decodeQuality() throws Exception {
+        return TelemetryCodec.read(PayloadEncoding.detect(qualityPayload), QualitySensorData.class, qualityPayload);
+    }
+}
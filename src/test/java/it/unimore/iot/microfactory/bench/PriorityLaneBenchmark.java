@@ -0,0 +1,96 @@
+package it.unimore.iot.microfactory.bench;
+
+import ch.qos.logback.classic.Logger;
+import it.unimore.iot.microfactory.communication.mqtt.CommandPublisher;
+import it.unimore.iot.microfactory.communication.mqtt.FakeMqttBroker;
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import it.unimore.iot.microfactory.model.Command;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latenza di un EMERGENCY broadcast, dalla pubblicazione al PUBACK, mentre {@value #ROUTINE_BURST} comandi
+ * ordinari sono in coda o in volo. Prima di ogni invocazione il burst viene accodato senza attenderlo e dopo
+ * si attende che finisca, per cui ogni misura parte dalla stessa coda piena.
+ * Con {@code lane=PRIORITY} l'emergenza usa la propria connessione, con {@code SHARED} accoda dietro al burst.
+ * Il broker simulato conferma ogni PUBLISH dopo 1 ms.
+ * {@code mvn -Pbench test-compile exec:exec -Dbench.args="PriorityLane"}.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PriorityLaneBenchmark {
+
+    private static final int ROUTINE_BURST = 10_000;
+    private static final long BROKER_RTT_MS = 1;
+
+    public enum Lane {
+        PRIORITY,
+        SHARED
+    }
+
+    @Param({"PRIORITY", "SHARED"})
+    public Lane lane;
+
+    private FakeMqttBroker broker;
+    private CommandPublisher publisher;
+    private final DeviceKey[] devices = new DeviceKey[ROUTINE_BURST];
+    private CompletableFuture<?>[] burst;
+
+    @Setup
+    public void setUp() throws Exception {
+        ((Logger) LoggerFactory.getLogger("it.unimore.iot.microfactory")).setLevel(ch.qos.logback.classic.Level.WARN);
+        for (int i = 0; i < ROUTINE_BURST; i++) {
+            devices[i] = DeviceKey.of("burst-cell", "conveyor", "conveyor-" + i);
+        }
+        broker = new FakeMqttBroker(BROKER_RTT_MS);
+        broker.stopRecording();
+        publisher = new CommandPublisher(broker.url(), 256, 2 * ROUTINE_BURST, 120_000,
+                lane == Lane.PRIORITY ? CommandPublisher.DEFAULT_PRIORITY_COMMANDS : Set.of());
+        publisher.start();
+    }
+
+    @Setup(Level.Invocation)
+    public void startBurst() {
+        burst = new CompletableFuture<?>[ROUTINE_BURST];
+        long ts = System.currentTimeMillis();
+        for (int i = 0; i < ROUTINE_BURST; i++) {
+            burst[i] = publisher.publishDeviceCommand(devices[i], new Command("STOP", ts));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void awaitBurst() throws Exception {
+        CompletableFuture.allOf(burst).get(60, TimeUnit.SECONDS);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        publisher.close();
+        broker.close();
+    }
+
+    @Benchmark
+    public Object emergency() throws Exception {
+        return publisher.publishGlobalCommand(new Command("EMERGENCY", System.currentTimeMillis())).get(60, TimeUnit.SECONDS);
+    }
+}
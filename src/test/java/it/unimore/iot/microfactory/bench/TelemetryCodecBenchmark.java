@@ -0,0 +1,85 @@
+package it.unimore.iot.microfactory.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.codec.TelemetryCodec;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Confronto tra le modalità di codifica della telemetria del robot: un {@link ObjectMapper}
+ * creato per chiamata (come facevano alcune risorse CoAP), il mapper condiviso con
+ * {@code readValue}/{@code writeValueAsBytes}, i reader/writer precompilati di {@link Codecs}
+ * e i percorsi scritti a mano di {@link TelemetryCodec}.
+ * Per il confronto delle allocazioni eseguire con {@code -prof gc}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TelemetryCodecBenchmark {
+
+    private final ObjectMapper sharedMapper = new ObjectMapper();
+    private RobotCellStatus status;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws Exception {
+        status = new RobotCellStatus("robot-42", 1700000000000L, RobotCellStatusEnum.PROCESSING, 3.75);
+        payload = sharedMapper.writeValueAsBytes(status);
+    }
+
+    @Benchmark
+    public RobotCellStatus decodeNewMapper() throws Exception {
+        return new ObjectMapper().readValue(payload, RobotCellStatus.class);
+    }
+
+    @Benchmark
+    public RobotCellStatus decodeSharedMapper() throws Exception {
+        return sharedMapper.readValue(payload, RobotCellStatus.class);
+    }
+
+    @Benchmark
+    public RobotCellStatus decodeReader() throws Exception {
+        return Codecs.ROBOT_STATUS_READER.readValue(payload);
+    }
+
+    @Benchmark
+    public RobotCellStatus decodeStreaming() throws Exception {
+        return TelemetryCodec.readRobotStatus(payload);
+    }
+
+    @Benchmark
+    public byte[] encodeNewMapper() throws Exception {
+        return new ObjectMapper().writeValueAsBytes(status);
+    }
+
+    @Benchmark
+    public byte[] encodeSharedMapper() throws Exception {
+        return sharedMapper.writeValueAsBytes(status);
+    }
+
+    @Benchmark
+    public byte[] encodeWriter() throws Exception {
+        return Codecs.ROBOT_STATUS_WRITER.writeValueAsBytes(status);
+    }
+
+    @Benchmark
+    public byte[] encodeStreaming() throws Exception {
+        return TelemetryCodec.writeRobotStatus(status);
+    }
+}
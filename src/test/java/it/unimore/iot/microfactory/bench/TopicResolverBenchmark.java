@@ -0,0 +1,74 @@
+package it.unimore.iot.microfactory.bench;
+
+import it.unimore.iot.microfactory.communication.mqtt.TopicResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Confronto tra il parsing dei topic con {@code String.split} usato in precedenza nel
+ * DataCollectorManager e il {@link TopicResolver} (cache calda e scanner su topic nuovi).
+ * Ogni invocazione usa una nuova istanza di String, come avviene per i topic consegnati da Paho.
+ * Per il confronto delle allocazioni eseguire con {@code -prof gc}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TopicResolverBenchmark {
+
+    private static final int TOPICS = 2_000;
+
+    private record TopicParts(String cell, String type, String id) {
+    }
+
+    private final char[][] topics = new char[TOPICS][];
+    private final TopicResolver resolver = new TopicResolver(TOPICS * 2);
+    // Capacità 1 con topic a rotazione: ogni chiamata è un miss che passa dallo scanner e dall'eviction
+    private final TopicResolver missingResolver = new TopicResolver(1);
+    private int next;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < TOPICS; i++) {
+            topics[i] = ("mf/cell-" + (i % 20) + "/robot/robot-" + i + "/status").toCharArray();
+            resolver.resolve(new String(topics[i]));
+        }
+    }
+
+    private String nextTopic() {
+        next = (next + 1) % TOPICS;
+        return new String(topics[next]);
+    }
+
+    @Benchmark
+    public Optional<TopicParts> split() {
+        String[] p = nextTopic().split("/");
+        if (p.length == 5 && "mf".equals(p[0]) && "status".equals(p[4])) {
+            return Optional.of(new TopicParts(p[1], p[2], p[3]));
+        }
+        return Optional.empty();
+    }
+
+    @Benchmark
+    public TopicResolver.Topic resolverCached() {
+        return resolver.resolve(nextTopic());
+    }
+
+    @Benchmark
+    public TopicResolver.Topic resolverUncached() {
+        return missingResolver.resolve(nextTopic());
+    }
+}
@@ -0,0 +1,116 @@
+package it.unimore.iot.microfactory.codec;
+
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TelemetryCodecTest {
+
+    @Test
+    void write_shouldMatchSharedMapperOutput() throws Exception {
+        RobotCellStatus robot = new RobotCellStatus("robot-1", 1700000000000L, RobotCellStatusEnum.ALARM, 2.5);
+        ConveyorBeltStatus conveyor = new ConveyorBeltStatus("conv-\"1\"", 1700000000001L, true, 9.75);
+        QualitySensorData quality = new QualitySensorData(null, 1700000000002L, 100, 97, 3);
+
+        assertArrayEquals(Codecs.ROBOT_STATUS_WRITER.writeValueAsBytes(robot), TelemetryCodec.write(robot));
+        assertArrayEquals(Codecs.CONVEYOR_STATUS_WRITER.writeValueAsBytes(conveyor), TelemetryCodec.write(conveyor));
+        assertArrayEquals(Codecs.QUALITY_DATA_WRITER.writeValueAsBytes(quality), TelemetryCodec.write(quality));
+        // Il buffer riutilizzato non deve trattenere dati della scrittura precedente
+        assertArrayEquals(Codecs.ROBOT_STATUS_WRITER.writeValueAsBytes(robot), TelemetryCodec.write(robot));
+    }
+
+    @Test
+    void read_shouldRoundTripAndSkipUnknownFields() throws Exception {
+        RobotCellStatus robot = TelemetryCodec.readRobotStatus(TelemetryCodec.write(
+                new RobotCellStatus("robot-1", 42L, RobotCellStatusEnum.PROCESSING, 1.25)));
+        assertEquals("robot-1", robot.getDeviceId());
+        assertEquals(42L, robot.getTimestamp());
+        assertEquals(RobotCellStatusEnum.PROCESSING, robot.getStatus());
+        assertEquals(1.25, robot.getProcessingTime());
+
+        QualitySensorData quality = TelemetryCodec.readQualityData(bytes(
+                "{\"extra\":{\"nested\":[1,2]},\"deviceId\":null,\"timestamp\":7,\"totalProcessed\":10,\"goodCount\":8,\"badCount\":2}"));
+        assertNull(quality.getDeviceId());
+        assertEquals(7L, quality.getTimestamp());
+        assertEquals(8, quality.getGoodCount());
+        assertEquals(2, quality.getBadCount());
+
+        ConveyorBeltStatus conveyor = TelemetryCodec.readConveyorStatus(bytes("{\"active\":true,\"speed\":11.5}"));
+        assertEquals(true, conveyor.isActive());
+        assertEquals(11.5, conveyor.getSpeed());
+    }
+
+    @Test
+    void read_shouldRejectInvalidPayloads() {
+        assertThrows(IOException.class, () -> TelemetryCodec.readRobotStatus(bytes("[1,2]")));
+        assertThrows(IOException.class, () -> TelemetryCodec.readRobotStatus(bytes("{\"status\":\"EXPLODED\"}")));
+    }
+
+    @Test
+    void binaryEncodings_shouldRoundTripAndBeDetectedFromFirstByte() throws Exception {
+        RobotCellStatus robot = new RobotCellStatus("robot-1", 1700000000123L, RobotCellStatusEnum.ALARM, 2.5);
+        ConveyorBeltStatus conveyor = new ConveyorBeltStatus("conv-1", 1700000000456L, true, 9.75);
+        QualitySensorData quality = new QualitySensorData("qs-1", 1700000000789L, 100, 97, 3);
+        byte[] json = TelemetryCodec.write(robot);
+
+        for (PayloadEncoding encoding : PayloadEncoding.values()) {
+            byte[] robotBytes = TelemetryCodec.write(encoding, robot);
+            assertEquals(encoding, PayloadEncoding.detect(robotBytes));
+            assertArrayEquals(json, TelemetryCodec.write(TelemetryCodec.read(encoding, RobotCellStatus.class, robotBytes)));
+
+            assertArrayEquals(TelemetryCodec.write(conveyor), TelemetryCodec.write(TelemetryCodec.read(
+                    encoding, ConveyorBeltStatus.class, TelemetryCodec.write(encoding, conveyor))));
+            assertArrayEquals(TelemetryCodec.write(quality), TelemetryCodec.write(TelemetryCodec.read(
+                    encoding, QualitySensorData.class, TelemetryCodec.write(encoding, quality))));
+            if (encoding.isCbor()) {
+                assertTrue(robotBytes.length < json.length, encoding + ": " + robotBytes.length + " bytes");
+            }
+        }
+
+        // Il CBOR prodotto è leggibile anche da un mapper Jackson generico
+        ObjectMapper cborMapper = new ObjectMapper(Codecs.CBOR_FACTORY);
+        RobotCellStatus viaMapper = cborMapper.readValue(
+                TelemetryCodec.write(PayloadEncoding.CBOR, robot), RobotCellStatus.class);
+        assertArrayEquals(json, TelemetryCodec.write(viaMapper));
+        assertThrows(IOException.class, () -> PayloadEncoding.detect(bytes("robot-1")));
+    }
+
+    @Test
+    void senmlPack_shouldCompressBaseNameAndTimeAcrossDevices() throws Exception {
+        Map<String, Object> cell = new LinkedHashMap<>();
+        cell.put("c/robot/r1/", new RobotCellStatus("r1", 1700000000000L, RobotCellStatusEnum.ALARM, 2.5));
+        cell.put("c/conveyor/k1/", new ConveyorBeltStatus("k1", 1700000000500L, true, 9.75));
+
+        String json = new String(TelemetryCodec.writeSenMLPack(PayloadEncoding.SENML_JSON, cell), StandardCharsets.UTF_8);
+        assertEquals("[{\"bn\":\"c/robot/r1/\",\"bt\":1.7E9,\"n\":\"status\",\"vs\":\"ALARM\"},"
+                + "{\"n\":\"processingTime\",\"u\":\"s\",\"v\":2.5},"
+                + "{\"bn\":\"c/conveyor/k1/\",\"n\":\"active\",\"t\":0.5,\"vb\":true},"
+                + "{\"n\":\"speed\",\"u\":\"1/min\",\"t\":0.5,\"v\":9.75}]", json);
+
+        // I record di un dispositivo letti da un pack SenML-CBOR ricostruiscono istante e valori
+        Map<String, Object> single = Map.of("c/conveyor/k1/", cell.get("c/conveyor/k1/"));
+        ConveyorBeltStatus conveyor = TelemetryCodec.read(PayloadEncoding.SENML_CBOR, ConveyorBeltStatus.class,
+                TelemetryCodec.writeSenMLPack(PayloadEncoding.SENML_CBOR, single));
+        assertEquals("c/conveyor/k1", conveyor.getDeviceId());
+        assertEquals(1700000000500L, conveyor.getTimestamp());
+        assertEquals(9.75, conveyor.getSpeed());
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,152 @@
+package it.unimore.iot.microfactory.communication.mqtt;
+
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import it.unimore.iot.microfactory.model.Command;
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CommandPublisherTest {
+
+    private static final int ROUTINE_BURST = 10_000;
+    // Limite di latenza di un EMERGENCY pubblicato dietro a un burst ordinario: circa 50 round trip del broker simulato
+    private static final long EMERGENCY_LATENCY_BOUND_MS = 250;
+
+    @Test
+    void publish_shouldPipelineCommandsWithinTheWindow() throws Exception {
+        try (FakeMqttBroker broker = new FakeMqttBroker(50);
+             CommandPublisher publisher = new CommandPublisher(broker.url(), 100, 1_000, 10_000)) {
+            publisher.start();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                futures.add(publisher.publishDeviceCommand(DeviceKey.of("cell-1", "robot", "robot-" + i), command("START")));
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            // In serie servirebbero 100 round trip da 50 ms: in pipeline ne basta circa uno
+            assertTrue(elapsedMillis < 1_500, "elapsed " + elapsedMillis + " ms");
+            assertEquals(100, broker.published().size());
+            assertEquals("mf/cell-1/robot/robot-0/cmd", broker.published().get(0).topic());
+            assertTrue(broker.published().get(0).text().contains("\"type\":\"START\""));
+            assertEquals(1, broker.published().get(0).qos());
+        }
+    }
+
+    @Test
+    void publish_shouldQueueBeyondTheWindowAndRejectWhenTheQueueIsFull() throws Exception {
+        try (FakeMqttBroker broker = new FakeMqttBroker(300);
+             CommandPublisher publisher = new CommandPublisher(broker.url(), 2, 3, 10_000)) {
+            publisher.start();
+            List<CompletableFuture<Void>> accepted = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                accepted.add(publisher.publishGlobalCommand(command("STOP")));
+            }
+            CompletableFuture<Void> rejected = publisher.publishGlobalCommand(command("STOP"));
+
+            assertEquals(2, publisher.inFlight());
+            ExecutionException error = assertThrows(ExecutionException.class, () -> rejected.get(1, TimeUnit.SECONDS));
+            assertInstanceOf(RejectedExecutionException.class, error.getCause());
+            CompletableFuture.allOf(accepted.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+            assertEquals(5, broker.published().size());
+            assertEquals("mf/broadcast/cmd", broker.published().get(0).topic());
+        }
+    }
+
+    @Test
+    void publish_shouldFailWhenTheBrokerDoesNotAcknowledgeOrIsUnreachable() throws Exception {
+        try (FakeMqttBroker broker = new FakeMqttBroker(0);
+             CommandPublisher publisher = new CommandPublisher(broker.url(), 10, 10, 200)) {
+            publisher.start();
+            broker.stopAcknowledging();
+            CompletableFuture<Void> future = publisher.publishGlobalCommand(command("EMERGENCY"));
+            ExecutionException error = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(TimeoutException.class, error.getCause());
+        }
+
+        int unusedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            unusedPort = socket.getLocalPort();
+        }
+        try (CommandPublisher publisher = new CommandPublisher("tcp://127.0.0.1:" + unusedPort, 10, 10, 5_000)) {
+            CompletableFuture<Void> future = publisher.publishGlobalCommand(command("STOP"));
+            ExecutionException error = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertTrue(!(error.getCause() instanceof TimeoutException), "connection failure should not wait for the timeout");
+        }
+    }
+
+    @Test
+    void emergency_shouldBypassARoutineBurstOnThePriorityLane() throws Exception {
+        try (FakeMqttBroker broker = new FakeMqttBroker(5);
+             CommandPublisher publisher = new CommandPublisher(broker.url(), 64, 2 * ROUTINE_BURST, 30_000)) {
+            publisher.start();
+            List<CompletableFuture<Void>> burst = routineBurst(publisher);
+
+            long latencyMillis = emergencyLatency(publisher);
+
+            assertTrue(latencyMillis < EMERGENCY_LATENCY_BOUND_MS, "EMERGENCY latency " + latencyMillis + " ms");
+            assertFalse(burst.stream().allMatch(CompletableFuture::isDone), "the routine burst should still be in progress");
+            CompletableFuture.allOf(burst.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+            List<FakeMqttBroker.Published> published = broker.published();
+            assertEquals(ROUTINE_BURST + 1, published.size());
+            int emergency = published.indexOf(published.stream()
+                    .filter(p -> p.text().contains("EMERGENCY")).findFirst().orElseThrow());
+            assertTrue(emergency < ROUTINE_BURST / 2, "EMERGENCY reached the broker after " + emergency + " routine commands");
+        }
+    }
+
+    @Test
+    void emergency_shouldQueueBehindTheBurstWithoutThePriorityLane() throws Exception {
+        try (FakeMqttBroker broker = new FakeMqttBroker(5);
+             CommandPublisher publisher = new CommandPublisher(broker.url(), 64, 2 * ROUTINE_BURST, 30_000, Set.of())) {
+            publisher.start();
+            List<CompletableFuture<Void>> burst = routineBurst(publisher);
+
+            // 10000 comandi in finestre da 64 con 5 ms di round trip richiedono almeno 780 ms
+            long latencyMillis = emergencyLatency(publisher);
+
+            assertTrue(latencyMillis >= EMERGENCY_LATENCY_BOUND_MS, "EMERGENCY latency " + latencyMillis + " ms");
+            CompletableFuture.allOf(burst.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void parseCommandTypes_shouldNormalizeTheList() {
+        assertEquals(Set.of("EMERGENCY", "STOP"), CommandPublisher.parseCommandTypes(" emergency, STOP ,,"));
+        assertEquals(Set.of(), CommandPublisher.parseCommandTypes(""));
+    }
+
+    private static List<CompletableFuture<Void>> routineBurst(CommandPublisher publisher) {
+        List<CompletableFuture<Void>> burst = new ArrayList<>(ROUTINE_BURST);
+        for (int i = 0; i < ROUTINE_BURST; i++) {
+            burst.add(publisher.publishDeviceCommand(DeviceKey.of("burst-cell", "conveyor", "conveyor-" + i), command("STOP")));
+        }
+        return burst;
+    }
+
+    // Tempo tra la pubblicazione di un EMERGENCY broadcast e il suo PUBACK
+    private static long emergencyLatency(CommandPublisher publisher) throws Exception {
+        long start = System.nanoTime();
+        publisher.publishGlobalCommand(command("EMERGENCY")).get(30, TimeUnit.SECONDS);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static Command command(String type) {
+        return new Command(type, System.currentTimeMillis());
+    }
+}
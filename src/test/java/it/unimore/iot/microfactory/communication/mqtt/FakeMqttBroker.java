@@ -0,0 +1,259 @@
+package it.unimore.iot.microfactory.communication.mqtt;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broker MQTT 3.1.1 minimo in memoria per test e benchmark: accetta CONNECT, PUBLISH, SUBSCRIBE, PINGREQ e
+ * DISCONNECT e conferma le pubblicazioni QoS 1 con un PUBACK dopo un ritardo configurabile, per simulare il
+ * round trip verso un broker reale. Le pubblicazioni ricevute sono registrate in ordine di arrivo e inoltrate
+ * con QoS 0 alle connessioni con una sottoscrizione corrispondente (filtri con {@code +} e {@code #}).
+ */
+public final class FakeMqttBroker implements AutoCloseable {
+
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int SUBSCRIBE = 8;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    private final long pubackDelayMillis;
+    private final ServerSocket server;
+    private final ScheduledExecutorService acks = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "fake-mqtt-acks");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final List<Published> published = new CopyOnWriteArrayList<>();
+    private final Map<OutputStream, List<String>> subscriptions = new ConcurrentHashMap<>();
+    private volatile boolean acknowledging = true;
+    private volatile boolean recording = true;
+
+    /**
+     * @param pubackDelayMillis Ritardo tra la ricezione di un PUBLISH QoS 1 e il relativo PUBACK.
+     */
+    public FakeMqttBroker(long pubackDelayMillis) throws IOException {
+        this.pubackDelayMillis = pubackDelayMillis;
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "fake-mqtt-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String url() {
+        return "tcp://127.0.0.1:" + server.getLocalPort();
+    }
+
+    public List<Published> published() {
+        return published;
+    }
+
+    /**
+     * Smette di inviare PUBACK, per simulare un broker che non conferma più le pubblicazioni.
+     */
+    public void stopAcknowledging() {
+        acknowledging = false;
+    }
+
+    /**
+     * Smette di registrare le pubblicazioni, per i benchmark che ne inoltrano milioni.
+     */
+    public void stopRecording() {
+        recording = false;
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                Thread reader = new Thread(() -> serve(socket), "fake-mqtt-conn");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        OutputStream out = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = socket.getOutputStream();
+            while (true) {
+                int header = in.readUnsignedByte();
+                byte[] body = new byte[readRemainingLength(in)];
+                in.readFully(body);
+                switch (header >> 4) {
+                    case CONNECT -> write(out, new byte[]{0x20, 0x02, 0x00, 0x00});
+                    case PUBLISH -> onPublish(out, (header >> 1) & 0x03, body);
+                    case SUBSCRIBE -> onSubscribe(out, body);
+                    case PINGREQ -> write(out, new byte[]{(byte) 0xD0, 0x00});
+                    case DISCONNECT -> {
+                        return;
+                    }
+                    default -> {
+                    }
+                }
+            }
+        } catch (EOFException ignored) {
+            // Il client ha chiuso la connessione
+        } catch (IOException ignored) {
+            // Connessione chiusa durante la chiusura del broker
+        } finally {
+            connections.remove(socket);
+            if (out != null) {
+                subscriptions.remove(out);
+            }
+        }
+    }
+
+    // Registra i filtri richiesti e risponde con un SUBACK che concede QoS 0 a ciascuno
+    private void onSubscribe(OutputStream out, byte[] body) {
+        List<String> filters = subscriptions.computeIfAbsent(out, ignored -> new CopyOnWriteArrayList<>());
+        int offset = 2;
+        int granted = 0;
+        while (offset < body.length) {
+            int length = ((body[offset] & 0xFF) << 8) | (body[offset + 1] & 0xFF);
+            filters.add(new String(body, offset + 2, length, StandardCharsets.UTF_8));
+            offset += 2 + length + 1;
+            granted++;
+        }
+        byte[] suback = new byte[4 + granted];
+        suback[0] = (byte) 0x90;
+        suback[1] = (byte) (2 + granted);
+        suback[2] = body[0];
+        suback[3] = body[1];
+        write(out, suback);
+    }
+
+    // Inoltra la pubblicazione con QoS 0 a ogni connessione con almeno un filtro corrispondente
+    private void route(String topic, byte[] payload) {
+        byte[] packet = null;
+        for (Map.Entry<OutputStream, List<String>> entry : subscriptions.entrySet()) {
+            if (entry.getValue().stream().anyMatch(filter -> matches(filter, topic))) {
+                if (packet == null) {
+                    packet = publishPacket(topic, payload);
+                }
+                write(entry.getKey(), packet);
+            }
+        }
+    }
+
+    static boolean matches(String filter, String topic) {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+        for (int i = 0; i < filterLevels.length; i++) {
+            if (filterLevels[i].equals("#")) {
+                return true;
+            }
+            if (i >= topicLevels.length || (!filterLevels[i].equals("+") && !filterLevels[i].equals(topicLevels[i]))) {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    private static byte[] publishPacket(String topic, byte[] payload) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int remaining = 2 + topicBytes.length + payload.length;
+        ByteArrayOutputStream packet = new ByteArrayOutputStream(5 + remaining);
+        packet.write(0x30);
+        do {
+            int digit = remaining % 128;
+            remaining /= 128;
+            packet.write(remaining > 0 ? digit | 0x80 : digit);
+        } while (remaining > 0);
+        packet.write(topicBytes.length >> 8);
+        packet.write(topicBytes.length);
+        packet.writeBytes(topicBytes);
+        packet.writeBytes(payload);
+        return packet.toByteArray();
+    }
+
+    private void onPublish(OutputStream out, int qos, byte[] body) {
+        int topicLength = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+        String topic = new String(body, 2, topicLength, StandardCharsets.UTF_8);
+        int offset = 2 + topicLength;
+        int packetId = -1;
+        if (qos > 0) {
+            packetId = ((body[offset] & 0xFF) << 8) | (body[offset + 1] & 0xFF);
+            offset += 2;
+        }
+        byte[] payload = new byte[body.length - offset];
+        System.arraycopy(body, offset, payload, 0, payload.length);
+        if (recording) {
+            published.add(new Published(topic, payload, qos));
+        }
+        route(topic, payload);
+
+        if (qos == 1 && acknowledging) {
+            byte[] puback = {0x40, 0x02, (byte) (packetId >> 8), (byte) packetId};
+            if (pubackDelayMillis <= 0) {
+                write(out, puback);
+            } else {
+                acks.schedule(() -> write(out, puback), pubackDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static void write(OutputStream out, byte[] packet) {
+        synchronized (out) {
+            try {
+                out.write(packet);
+                out.flush();
+            } catch (IOException ignored) {
+                // Il client si è disconnesso prima della risposta
+            }
+        }
+    }
+
+    private static int readRemainingLength(DataInputStream in) throws IOException {
+        int value = 0;
+        int multiplier = 1;
+        int digit;
+        do {
+            digit = in.readUnsignedByte();
+            value += (digit & 0x7F) * multiplier;
+            multiplier *= 128;
+        } while ((digit & 0x80) != 0);
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket socket : connections) {
+            socket.close();
+        }
+        acks.shutdownNow();
+    }
+
+    /**
+     * Pubblicazione ricevuta dal broker.
+     */
+    public record Published(String topic, byte[] payload, int qos) {
+
+        public String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package it.unimore.iot.microfactory.communication.mqtt;
+
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class TopicResolverTest {
+
+    @Test
+    void resolve_shouldRecognizeAllDeviceSuffixes() {
+        TopicResolver resolver = new TopicResolver(16);
+        for (TopicResolver.Suffix suffix : TopicResolver.Suffix.values()) {
+            TopicResolver.Topic topic = resolver.resolve("mf/cell-01/robot/robot-001/" + suffix.level());
+            assertEquals(DeviceKey.of("cell-01", "robot", "robot-001"), topic.device());
+            assertEquals(suffix, topic.suffix());
+        }
+    }
+
+    @Test
+    void resolve_shouldRejectMalformedTopics() {
+        TopicResolver resolver = new TopicResolver(16);
+        assertNull(resolver.resolve("mf/cell-01/robot/robot-001"));
+        assertNull(resolver.resolve("mf/cell-01/robot/robot-001/unknown"));
+        assertNull(resolver.resolve("mf/cell-01/robot/robot-001/status/extra"));
+        assertNull(resolver.resolve("mf//robot/robot-001/status"));
+        assertNull(resolver.resolve("xx/cell-01/robot/robot-001/status"));
+        assertNull(resolver.resolve("mf/cell-01/robot//status"));
+        assertEquals(0, resolver.size());
+    }
+
+    @Test
+    void resolve_shouldServeRepeatedTopicsFromABoundedCache() {
+        TopicResolver resolver = new TopicResolver(100);
+        TopicResolver.Topic first = resolver.resolve("mf/cell-01/conveyor/conveyor-1/status");
+        assertSame(first, resolver.resolve(new String("mf/cell-01/conveyor/conveyor-1/status")));
+
+        for (int i = 0; i < 1_000; i++) {
+            resolver.resolve("mf/cell-01/quality/sensor-" + i + "/status");
+        }
+        assertEquals(100, resolver.size());
+    }
+}
@@ -0,0 +1,96 @@
+package it.unimore.iot.microfactory.domain;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.JsonNode;
+import it.unimore.iot.microfactory.codec.BodyCursor;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.codec.PayloadEncoding;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CellSnapshotCursorTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    @Test
+    void blocks_shouldConcatenateToTheFullBody() throws Exception {
+        CellSnapshot snapshot = snapshot(50);
+        byte[] full = new CellSnapshotCursor(snapshot, PayloadEncoding.JSON, CellSnapshotCursor.Layout.STATES).readAllBytes();
+        JsonNode body = Codecs.MAPPER.readTree(full);
+        assertEquals(50, body.get("states").size());
+        assertEquals(7, body.get("states").get(7).get("state").get("goodCount").asInt());
+
+        BodyCursor cursor = new CellSnapshotCursor(snapshot, PayloadEncoding.JSON, CellSnapshotCursor.Layout.STATES);
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        byte[] block = new byte[BLOCK_SIZE];
+        int n;
+        while ((n = cursor.read(block, 0, block.length)) >= 0) {
+            blocks.write(block, 0, n);
+        }
+        assertArrayEquals(full, blocks.toByteArray());
+
+        BodyCursor resumed = new CellSnapshotCursor(snapshot, PayloadEncoding.JSON, CellSnapshotCursor.Layout.STATES);
+        assertEquals(3L * BLOCK_SIZE, resumed.skip(3L * BLOCK_SIZE));
+        n = resumed.read(block, 0, block.length);
+        assertArrayEquals(Arrays.copyOfRange(full, 3 * BLOCK_SIZE, 3 * BLOCK_SIZE + n),
+                Arrays.copyOf(block, n));
+    }
+
+    @Test
+    void fiftyThousandDeviceCell_shouldStreamWithBoundedHeap() throws Exception {
+        int devices = 50_000;
+        CellSnapshot snapshot = snapshot(devices);
+        BodyCursor cursor = new CellSnapshotCursor(snapshot, PayloadEncoding.JSON, CellSnapshotCursor.Layout.STATES);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        // Il corpo viene verificato con un parser non bloccante alimentato blocco per blocco, senza ricomporlo
+        try (JsonParser parser = Codecs.MAPPER.getFactory().createNonBlockingByteArrayParser()) {
+            ByteArrayFeeder feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+            byte[] block = new byte[BLOCK_SIZE];
+            long total = 0;
+            int states = 0;
+            int n;
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            while ((n = cursor.read(block, 0, block.length)) >= 0) {
+                total += n;
+                feeder.feedInput(block, 0, n);
+                JsonToken token;
+                while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                    if (token == JsonToken.START_OBJECT && parser.getParsingContext().getParent().inArray()) {
+                        states++;
+                    }
+                }
+            }
+            long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            feeder.endOfInput();
+
+            assertEquals(devices, states);
+            assertTrue(total > 5_000_000, "body size " + total);
+            assertTrue(cursor.highWaterMark() < 4 * BLOCK_SIZE, "buffered high-water mark " + cursor.highWaterMark());
+            // Materializzare il corpo allocherebbe almeno 'total' byte
+            assertTrue(allocated < total / 4, "allocated " + allocated + " bytes for a " + total + " byte body");
+        }
+    }
+
+    private static CellSnapshot snapshot(int devices) {
+        List<CellSnapshot.Device> list = new ArrayList<>(devices);
+        for (int i = 0; i < devices; i++) {
+            String id = String.format("sensor-%05d", i);
+            list.add(new CellSnapshot.Device(DeviceKey.of("big-cell", "quality", id), 1,
+                    new QualitySensorData(id, 1700000000000L, i, i, 0)));
+        }
+        return new CellSnapshot("big-cell", null, list);
+    }
+}
@@ -0,0 +1,151 @@
+package it.unimore.iot.microfactory.domain;
+
+import it.unimore.iot.microfactory.model.Ack;
+import it.unimore.iot.microfactory.model.Command;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CommandTrackerTest {
+
+    private static final DeviceKey ROBOT = DeviceKey.of("cell-1", "robot", "robot-1");
+    private static final DeviceKey CONVEYOR = DeviceKey.of("cell-1", "conveyor", "conveyor-1");
+
+    @Test
+    void acknowledge_shouldCompleteTheMatchingCommandAndRecordItsLatency() throws Exception {
+        try (CommandTracker tracker = new CommandTracker(5_000)) {
+            CompletableFuture<Ack> robot = tracker.register(ROBOT, command("START", "m-1"));
+            CompletableFuture<Ack> conveyor = tracker.register(CONVEYOR, command("STOP", "m-2"));
+
+            // Stesso msgId ma dispositivo diverso: non deve completare il comando
+            assertFalse(tracker.acknowledge(CONVEYOR, ack("OK", "m-1")));
+            Ack ok = ack("OK", "m-1");
+            assertTrue(tracker.acknowledge(ROBOT, ok));
+            assertSame(ok, robot.get(1, TimeUnit.SECONDS));
+            assertTrue(tracker.acknowledge(CONVEYOR, ack("ERROR", "m-2")));
+            assertEquals("ERROR", conveyor.get(1, TimeUnit.SECONDS).getStatus());
+            // Ack ripetuto o non tracciato
+            assertFalse(tracker.acknowledge(ROBOT, ok));
+            assertFalse(tracker.acknowledge(ROBOT, ack("OK", null)));
+
+            CommandTracker.Stats stats = tracker.stats();
+            assertEquals(0, stats.pending());
+            assertEquals(2, stats.acknowledged());
+            assertEquals(2, stats.unmatched());
+            assertEquals(1, stats.latency().get("robot").latency().count());
+            assertEquals(0, stats.latency().get("robot").errors());
+            assertEquals(1, stats.latency().get("conveyor").errors());
+        }
+    }
+
+    @Test
+    void pendingCommands_shouldTimeOutOnTheTimerWheel() throws Exception {
+        try (CommandTracker tracker = new CommandTracker(50, 5)) {
+            CompletableFuture<Ack> expiring = tracker.register(ROBOT, command("RESET", "m-1"));
+            long start = System.nanoTime();
+            ExecutionException error = assertThrows(ExecutionException.class, () -> expiring.get(5, TimeUnit.SECONDS));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertInstanceOf(TimeoutException.class, error.getCause());
+            assertTrue(elapsedMillis >= 40, "expired after " + elapsedMillis + " ms");
+            assertFalse(tracker.acknowledge(ROBOT, ack("OK", "m-1")));
+            assertEquals(1, tracker.stats().timedOut());
+            assertEquals(1, tracker.stats().latency().get("robot").timeouts());
+
+            // Un msgId in attesa non può essere registrato due volte
+            tracker.register(ROBOT, command("START", "m-2"));
+            assertTrue(tracker.register(ROBOT, command("START", "m-2")).isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    void broadcast_shouldAggregateTheAcksOfEveryTarget() throws Exception {
+        DeviceKey otherRobot = DeviceKey.of("cell-1", "robot", "robot-2");
+        try (CommandTracker tracker = new CommandTracker(5_000)) {
+            CompletableFuture<CommandTracker.BroadcastResult> broadcast =
+                    tracker.registerBroadcast(List.of(ROBOT, otherRobot, CONVEYOR), command("STOP", "b-1"));
+
+            assertTrue(tracker.acknowledge(ROBOT, ack("OK", "b-1")));
+            assertTrue(tracker.acknowledge(CONVEYOR, ack("ERROR", "b-1")));
+            // Un dispositivo risponde una sola volta, uno estraneo all'ambito non conta
+            assertFalse(tracker.acknowledge(ROBOT, ack("OK", "b-1")));
+            assertFalse(tracker.acknowledge(DeviceKey.of("cell-2", "robot", "robot-1"), ack("OK", "b-1")));
+            assertFalse(broadcast.isDone());
+            assertTrue(tracker.acknowledge(otherRobot, ack("OK", "b-1")));
+
+            CommandTracker.BroadcastResult result = broadcast.get(1, TimeUnit.SECONDS);
+            assertTrue(result.complete());
+            assertEquals(3, result.targets());
+            assertEquals(3, result.acknowledged());
+            assertEquals(1, result.errors());
+            CommandTracker.Stats stats = tracker.stats();
+            assertEquals(0, stats.pending());
+            assertEquals(2, stats.latency().get("robot").latency().count());
+            assertEquals(1, stats.broadcast().count());
+
+            // Un ambito senza dispositivi si completa subito
+            assertTrue(tracker.registerBroadcast(List.of(), command("STOP", "b-2")).get().complete());
+        }
+    }
+
+    @Test
+    void broadcast_shouldReportTheMissingDevicesWhenItExpires() throws Exception {
+        try (CommandTracker tracker = new CommandTracker(50, 5)) {
+            CompletableFuture<CommandTracker.BroadcastResult> broadcast =
+                    tracker.registerBroadcast(List.of(ROBOT, CONVEYOR), command("RESET", "b-1"));
+            tracker.acknowledge(ROBOT, ack("OK", "b-1"));
+
+            CommandTracker.BroadcastResult result = broadcast.get(5, TimeUnit.SECONDS);
+            assertFalse(result.complete());
+            assertEquals(1, result.acknowledged());
+            assertEquals(List.of(CONVEYOR), result.missing());
+            assertEquals(1, tracker.stats().timedOut());
+            assertEquals(1, tracker.stats().latency().get("conveyor").timeouts());
+            assertEquals(0, tracker.stats().broadcast().count());
+        }
+    }
+
+    @Test
+    void histogram_shouldReportPercentilesWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1_000; i++) {
+            histogram.recordNanos(i * 1_000_000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1_000, snapshot.count());
+        assertEquals(500_500, snapshot.mean(), 1);
+        assertBetween(500_000, snapshot.p50());
+        assertBetween(990_000, snapshot.p99());
+        assertEquals(1_000_000, snapshot.max());
+        for (long micros = 0; micros < 1_000_000; micros += 997) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(LatencyHistogram.upperBound(bucket) >= micros);
+            assertTrue(bucket == 0 || LatencyHistogram.upperBound(bucket - 1) < micros);
+        }
+    }
+
+    // Il percentile è il limite superiore del bucket: mai sotto il valore esatto, al più del 6,25% sopra
+    private static void assertBetween(long exact, long reported) {
+        assertTrue(reported >= exact && reported <= exact * 1.0625, "reported " + reported + " for " + exact);
+    }
+
+    private static Command command(String type, String msgId) {
+        return new Command(type, System.currentTimeMillis(), msgId);
+    }
+
+    private static Ack ack(String status, String msgId) {
+        return new Ack("START", status, "", System.currentTimeMillis(), msgId);
+    }
+}
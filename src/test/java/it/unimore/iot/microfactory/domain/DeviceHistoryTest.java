@@ -0,0 +1,84 @@
+package it.unimore.iot.microfactory.domain;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DeviceHistoryTest {
+
+    @Test
+    void record_shouldOverwriteTheOldestSamplesOnceFull() throws Exception {
+        DeviceHistory history = new DeviceHistory(DeviceHistory.Kind.CONVEYOR, 4);
+        for (int t = 1; t <= 6; t++) {
+            history.record(new ConveyorBeltStatus("conveyor-1", t, t % 2 == 0, t * 0.5));
+        }
+        assertEquals(4, history.size());
+
+        JsonNode samples = samples(history, 0, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(List.of(3L, 4L, 5L, 6L), timestamps(samples));
+        assertEquals(true, samples.get(1).get("active").asBoolean());
+        assertEquals(3.0, samples.get(3).get("speed").asDouble());
+    }
+
+    @Test
+    void writeSamples_shouldApplyTheIntervalAndKeepTheMostRecentWithinTheLimit() throws Exception {
+        DeviceHistory history = new DeviceHistory(DeviceHistory.Kind.ROBOT, 8);
+        RobotCellStatusEnum[] statuses = RobotCellStatusEnum.values();
+        // Dieci campioni a passi di 10 ms: restano gli ultimi otto (30..100) dopo il giro del buffer
+        for (int n = 1; n <= 10; n++) {
+            history.record(new RobotCellStatus("robot-1", n * 10L, statuses[n % statuses.length], n));
+        }
+
+        assertEquals(List.of(50L, 60L, 70L), timestamps(samples(history, 50, 70, Integer.MAX_VALUE)));
+        // Il limite tiene i campioni più recenti dell'intervallo, in ordine cronologico
+        assertEquals(List.of(80L, 90L, 100L), timestamps(samples(history, 0, Long.MAX_VALUE, 3)));
+        assertEquals(List.of(60L, 70L), timestamps(samples(history, 35, 75, 2)));
+        assertEquals(List.of(), timestamps(samples(history, 101, 200, 10)));
+
+        JsonNode last = samples(history, 100, 100, 1).get(0);
+        assertEquals(statuses[10 % statuses.length].name(), last.get("status").asText());
+        assertEquals(10.0, last.get("processingTime").asDouble());
+    }
+
+    @Test
+    void record_shouldIgnoreStatesOfAnotherKind() throws Exception {
+        DeviceHistory history = new DeviceHistory(DeviceHistory.Kind.ROBOT, 2);
+        history.record(new ConveyorBeltStatus("conveyor-1", 1, true, 1.0));
+        assertEquals(0, history.size());
+        assertEquals(0, samples(history, 0, Long.MAX_VALUE, 10).size());
+    }
+
+    @Test
+    void historyCapacity_shouldFallBackToTheDefaultOnInvalidValues() {
+        int fallback = StateRepository.parseHistoryCapacity(null);
+        assertEquals(300, fallback);
+        assertEquals(50, StateRepository.parseHistoryCapacity(" 50 "));
+        assertEquals(0, StateRepository.parseHistoryCapacity("0"));
+        assertEquals(fallback, StateRepository.parseHistoryCapacity("-1"));
+        assertEquals(fallback, StateRepository.parseHistoryCapacity("many"));
+    }
+
+    private static JsonNode samples(DeviceHistory history, long from, long to, int limit) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = Codecs.MAPPER.getFactory().createGenerator(out)) {
+            history.writeSamples(gen, from, to, limit);
+        }
+        return Codecs.MAPPER.readTree(out.toByteArray());
+    }
+
+    private static List<Long> timestamps(JsonNode samples) {
+        List<Long> timestamps = new ArrayList<>();
+        samples.forEach(sample -> timestamps.add(sample.get("timestamp").asLong()));
+        return timestamps;
+    }
+}
@@ -0,0 +1,41 @@
+package it.unimore.iot.microfactory.domain;
+
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DeviceSelectorTest {
+
+    private static final DeviceKey CONVEYOR = DeviceKey.of("cell-1", "conveyor", "conveyor-1");
+    private static final DeviceKey ROBOT = DeviceKey.of("cell-1", "robot", "robot-1");
+
+    @Test
+    void parse_shouldMatchOnTypeAndOperationalStatus() {
+        DeviceSelector selector = DeviceSelector.parse("type=conveyor, status=active");
+        assertEquals(new DeviceSelector("conveyor", "ACTIVE"), selector);
+
+        assertTrue(selector.matches(CONVEYOR, new ConveyorBeltStatus("conveyor-1", 0, true, 10)));
+        assertFalse(selector.matches(CONVEYOR, new ConveyorBeltStatus("conveyor-1", 0, false, 0)));
+        assertFalse(selector.matches(ROBOT, new RobotCellStatus("robot-1", 0, RobotCellStatusEnum.IDLE, 0)));
+
+        DeviceSelector alarms = DeviceSelector.parse("status=ALARM");
+        assertTrue(alarms.matches(ROBOT, new RobotCellStatus("robot-1", 0, RobotCellStatusEnum.ALARM, 0)));
+        assertFalse(alarms.matches(DeviceKey.of("cell-1", "quality", "q-1"), new QualitySensorData("q-1", 0, 1, 1, 0)));
+        assertTrue(DeviceSelector.parse("type=robot").matches(ROBOT, null));
+    }
+
+    @Test
+    void parse_shouldRejectUnknownRepeatedOrEmptyTerms() {
+        assertThrows(IllegalArgumentException.class, () -> DeviceSelector.parse("speed=10"));
+        assertThrows(IllegalArgumentException.class, () -> DeviceSelector.parse("type=robot,type=conveyor"));
+        assertThrows(IllegalArgumentException.class, () -> DeviceSelector.parse("type="));
+        assertThrows(IllegalArgumentException.class, () -> DeviceSelector.parse("conveyor"));
+    }
+}
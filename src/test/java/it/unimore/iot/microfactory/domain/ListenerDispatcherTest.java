@@ -0,0 +1,140 @@
+package it.unimore.iot.microfactory.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ListenerDispatcherTest {
+
+    @Test
+    void dispatch_shouldPreserveOrderAndDeliverTheLatestStatePerDevice() throws Exception {
+        int devices = 32;
+        int updates = 2_000;
+        Map<DeviceKey, List<Integer>> received = new ConcurrentHashMap<>();
+        ListenerDispatcher dispatcher = new ListenerDispatcher(4, devices,
+                (key, state) -> received.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>())).add((Integer) state));
+        try {
+            List<DeviceEntry> entries = new ArrayList<>();
+            for (int d = 0; d < devices; d++) {
+                entries.add(new DeviceEntry(DeviceKey.of("cell-1", "robot", "robot-" + d)));
+            }
+            for (int i = 1; i <= updates; i++) {
+                for (DeviceEntry entry : entries) {
+                    dispatcher.dispatch(entry, i);
+                }
+            }
+            awaitTrue(() -> entries.stream().allMatch(e -> {
+                List<Integer> states = received.get(e.key());
+                return states != null && !states.isEmpty() && states.get(states.size() - 1) == updates;
+            }));
+
+            // Ogni dispositivo è servito da un solo worker: gli stati arrivano in ordine crescente
+            for (DeviceEntry entry : entries) {
+                List<Integer> states = received.get(entry.key());
+                for (int i = 1; i < states.size(); i++) {
+                    assertTrue(states.get(i - 1) < states.get(i), entry.key() + " out of order: " + states);
+                }
+            }
+            ListenerDispatcher.Stats stats = dispatcher.stats();
+            assertEquals(0, stats.dropped());
+            assertEquals((long) devices * updates, stats.delivered() + stats.coalesced());
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    void dispatch_shouldCoalesceUpdatesWhileTheListenerIsBusy() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Object> received = new ArrayList<>();
+        ListenerDispatcher dispatcher = new ListenerDispatcher(1, 4, (key, state) -> {
+            entered.countDown();
+            await(release);
+            synchronized (received) {
+                received.add(state);
+            }
+        });
+        try {
+            DeviceEntry entry = new DeviceEntry(DeviceKey.of("cell-1", "robot", "robot-1"));
+            dispatcher.dispatch(entry, "s1");
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            // s2 entra in coda, s3 e s4 lo sostituiscono prima della consegna
+            dispatcher.dispatch(entry, "s2");
+            dispatcher.dispatch(entry, "s3");
+            dispatcher.dispatch(entry, "s4");
+            assertEquals(2, dispatcher.stats().coalesced());
+            release.countDown();
+
+            awaitTrue(() -> dispatcher.stats().delivered() == 2);
+            synchronized (received) {
+                assertEquals(List.of("s1", "s4"), received);
+            }
+            assertEquals(0, dispatcher.stats().dropped());
+        } finally {
+            release.countDown();
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    void dispatch_shouldCountDropsAndAcceptTheDeviceAgainOnceTheQueueDrains() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Map<DeviceKey, Object> received = new ConcurrentHashMap<>();
+        ListenerDispatcher dispatcher = new ListenerDispatcher(1, 1, (key, state) -> {
+            entered.countDown();
+            await(release);
+            received.put(key, state);
+        });
+        try {
+            DeviceEntry busy = new DeviceEntry(DeviceKey.of("cell-1", "robot", "robot-1"));
+            DeviceEntry queued = new DeviceEntry(DeviceKey.of("cell-1", "robot", "robot-2"));
+            DeviceEntry rejected = new DeviceEntry(DeviceKey.of("cell-1", "robot", "robot-3"));
+            dispatcher.dispatch(busy, "b1");
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            dispatcher.dispatch(queued, "q1");
+            // La coda da un posto è occupata: l'aggiornamento viene scartato
+            dispatcher.dispatch(rejected, "r1");
+            assertEquals(1, dispatcher.stats().dropped());
+            assertEquals(0, dispatcher.stats().coalesced());
+            release.countDown();
+            awaitTrue(() -> dispatcher.stats().delivered() == 2);
+
+            // Lo scarto non lascia uno stato pendente orfano: il dispositivo torna a essere notificato
+            dispatcher.dispatch(rejected, "r2");
+            awaitTrue(() -> dispatcher.stats().delivered() == 3);
+            assertEquals("r2", received.get(rejected.key()));
+            assertEquals(new ListenerDispatcher.Stats(0, 3, 0, 1), dispatcher.stats());
+        } finally {
+            release.countDown();
+            dispatcher.shutdown();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met within 5 s");
+            Thread.sleep(10);
+        }
+    }
+}
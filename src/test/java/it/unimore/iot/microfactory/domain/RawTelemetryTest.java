@@ -0,0 +1,47 @@
+package it.unimore.iot.microfactory.domain;
+
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RawTelemetryTest {
+
+    private static final String ROBOT_JSON =
+            "{\"deviceId\":\"robot-7\",\"timestamp\":1700000000000,\"status\":\"ALARM\",\"processingTime\":2.5}";
+
+    @Test
+    void parse_shouldExtractHotFieldsAndDecodeOnlyOnDemand() throws Exception {
+        byte[] payload = ROBOT_JSON.getBytes(StandardCharsets.UTF_8);
+        RawTelemetry raw = RawTelemetry.parse(DeviceHistory.Kind.ROBOT, payload);
+
+        assertSame(payload, raw.payload());
+        assertEquals(RobotCellStatusEnum.ALARM, raw.status());
+        assertEquals(1700000000000L, raw.timestamp());
+        assertEquals(2.5, raw.processingTime());
+
+        RobotCellStatus decoded = assertInstanceOf(RobotCellStatus.class, raw.decode());
+        assertEquals("robot-7", decoded.getDeviceId());
+        assertSame(decoded, raw.decode());
+    }
+
+    @Test
+    void repository_shouldServeOriginalBytesAndRecordHistoryWithoutDecoding() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        repo.upsert("raw-cell", "robot", "robot-7",
+                RawTelemetry.parse(DeviceHistory.Kind.ROBOT, ROBOT_JSON.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(ROBOT_JSON, repo.getStateJson("raw-cell", "robot", "robot-7"));
+        assertInstanceOf(RobotCellStatus.class, repo.find("raw-cell", "robot", "robot-7"));
+
+        String history = repo.getHistoryJson("raw-cell", "robot", "robot-7", 0, Long.MAX_VALUE, 10);
+        assertTrue(history.contains("\"status\":\"ALARM\""), history);
+        assertTrue(history.contains("\"processingTime\":2.5"), history);
+    }
+}
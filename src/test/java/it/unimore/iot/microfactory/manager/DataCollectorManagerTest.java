@@ -0,0 +1,111 @@
+package it.unimore.iot.microfactory.manager;
+
+import it.unimore.iot.microfactory.codec.Codecs;
+import it.unimore.iot.microfactory.communication.mqtt.CommandPublisher;
+import it.unimore.iot.microfactory.communication.mqtt.FakeMqttBroker;
+import it.unimore.iot.microfactory.domain.StateRepository;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DataCollectorManagerTest {
+
+    private static final String CELL = "reset-cell";
+    private static final int ROBOTS = 200;
+
+    @Test
+    void autoReset_shouldNotStallIngestWhenTheRingIsFull() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        // PUBACK lenti: ogni RESET resta in volo mentre il ring da due posti si riempie di allarmi
+        try (FakeMqttBroker broker = new FakeMqttBroker(50);
+             CommandPublisher publisher = new CommandPublisher(broker.url(), 16, 1_000, 10_000)) {
+            publisher.start();
+            repo.registerCommandPublisher(publisher);
+            DataCollectorManager manager = new DataCollectorManager(broker.url(), 1, 2, IngestPipeline.Backpressure.BLOCK);
+            manager.start();
+            MqttAsyncClient devices = new MqttAsyncClient(broker.url(), "devices-" + UUID.randomUUID(), new MemoryPersistence());
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setMaxInflight(65_535);
+            devices.connect(options).waitForCompletion();
+            try {
+                for (int i = 0; i < ROBOTS; i++) {
+                    byte[] alarm = Codecs.MAPPER.writeValueAsBytes(
+                            new RobotCellStatus("robot-" + i, System.currentTimeMillis(), RobotCellStatusEnum.ALARM, 1.0));
+                    devices.publish("mf/" + CELL + "/robot/robot-" + i + "/status", alarm, 0, false);
+                }
+
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (System.currentTimeMillis() < deadline && countResets(broker) < ROBOTS) {
+                    TimeUnit.MILLISECONDS.sleep(20);
+                }
+                assertEquals(ROBOTS, countResets(broker), "RESET published while the ingest ring was full");
+                assertTrue(IntStream.range(0, ROBOTS).allMatch(i -> repo.find(CELL, "robot", "robot-" + i) != null),
+                        "every ALARM should have been ingested");
+            } finally {
+                devices.disconnect().waitForCompletion();
+                devices.close();
+                manager.stop();
+                repo.registerCommandPublisher(null);
+            }
+        }
+    }
+
+    @Test
+    void autoReset_shouldLeaveRobotsHaltedByEmergencyStopped() throws Exception {
+        StateRepository repo = StateRepository.getInstance();
+        try (FakeMqttBroker broker = new FakeMqttBroker(1);
+             CommandPublisher publisher = new CommandPublisher(broker.url(), 16, 1_000, 10_000)) {
+            publisher.start();
+            repo.registerCommandPublisher(publisher);
+            DataCollectorManager manager = new DataCollectorManager(broker.url(), 1, 64, IngestPipeline.Backpressure.BLOCK);
+            manager.start();
+            MqttAsyncClient devices = new MqttAsyncClient(broker.url(), "devices-" + UUID.randomUUID(), new MemoryPersistence());
+            devices.connect().waitForCompletion();
+            try {
+                for (int tick = 0; tick < 3; tick++) {
+                    devices.publish("mf/estop-cell/robot/halted/status", Codecs.MAPPER.writeValueAsBytes(new RobotCellStatus(
+                            "halted", System.currentTimeMillis(), RobotCellStatusEnum.EMERGENCY_STOP, 0)), 0, false);
+                }
+                // Il robot in allarme, pubblicato dopo, fa da riferimento: il suo RESET arriva dopo l'elaborazione degli altri
+                devices.publish("mf/estop-cell/robot/faulty/status", Codecs.MAPPER.writeValueAsBytes(new RobotCellStatus(
+                        "faulty", System.currentTimeMillis(), RobotCellStatusEnum.ALARM, 0)), 0, false);
+
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (System.currentTimeMillis() < deadline && countResets(broker, "estop-cell") == 0) {
+                    TimeUnit.MILLISECONDS.sleep(20);
+                }
+                assertEquals(1, countResets(broker, "estop-cell"));
+                assertTrue(broker.published().stream().noneMatch(p -> p.topic().equals("mf/estop-cell/robot/halted/cmd")),
+                        "a robot halted by EMERGENCY must not be auto-reset");
+                assertEquals(RobotCellStatusEnum.EMERGENCY_STOP,
+                        ((RobotCellStatus) repo.find("estop-cell", "robot", "halted")).getStatus());
+            } finally {
+                devices.disconnect().waitForCompletion();
+                devices.close();
+                manager.stop();
+                repo.registerCommandPublisher(null);
+            }
+        }
+    }
+
+    private static long countResets(FakeMqttBroker broker) {
+        return countResets(broker, CELL);
+    }
+
+    private static long countResets(FakeMqttBroker broker, String cell) {
+        return broker.published().stream()
+                .filter(p -> p.topic().startsWith("mf/" + cell + "/robot/") && p.topic().endsWith("/cmd"))
+                .filter(p -> p.text().contains("\"RESET\""))
+                .count();
+    }
+}
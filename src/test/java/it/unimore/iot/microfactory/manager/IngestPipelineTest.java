@@ -0,0 +1,67 @@
+package it.unimore.iot.microfactory.manager;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IngestPipelineTest {
+
+    private static final int DEVICES = 50;
+    private static final int MESSAGES_PER_DEVICE = 2_000;
+
+    @Test
+    void messagesOfTheSameDevice_shouldBeProcessedInArrivalOrder() throws Exception {
+        Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        IngestPipeline pipeline = new IngestPipeline(4, 64, IngestPipeline.Backpressure.BLOCK, (topic, payload) ->
+                received.computeIfAbsent(topic.substring(0, topic.lastIndexOf('/')), t -> new CopyOnWriteArrayList<>())
+                        .add(Integer.parseInt(new String(payload))));
+
+        for (int n = 0; n < MESSAGES_PER_DEVICE; n++) {
+            for (int d = 0; d < DEVICES; d++) {
+                // I suffissi diversi dello stesso dispositivo condividono la partizione
+                String suffix = n % 2 == 0 ? "status" : "info";
+                assertTrue(pipeline.publish("mf/cell-01/robot/robot-" + d + "/" + suffix, Integer.toString(n).getBytes()));
+            }
+        }
+        pipeline.shutdown(10_000);
+
+        assertEquals(DEVICES, received.size());
+        for (List<Integer> sequence : received.values()) {
+            assertEquals(MESSAGES_PER_DEVICE, sequence.size());
+            for (int n = 0; n < MESSAGES_PER_DEVICE; n++) {
+                assertEquals(n, sequence.get(n));
+            }
+        }
+        assertEquals(DEVICES * MESSAGES_PER_DEVICE, pipeline.stats().processed());
+    }
+
+    @Test
+    void dropPolicy_shouldDiscardMessagesWhenTheRingIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        IngestPipeline pipeline = new IngestPipeline(1, 4, IngestPipeline.Backpressure.DROP, (topic, payload) ->
+                release.await(5, TimeUnit.SECONDS));
+
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (pipeline.publish("mf/cell-01/robot/robot-1/status", new byte[0])) {
+                accepted++;
+            }
+        }
+        release.countDown();
+        pipeline.shutdown(5_000);
+
+        assertTrue(accepted < 100);
+        assertEquals(100 - accepted, pipeline.stats().dropped());
+        assertEquals(accepted, pipeline.stats().processed());
+        assertFalse(pipeline.publish("mf/cell-01/robot/robot-1/status", new byte[0]), "Pipeline arrestata");
+    }
+}
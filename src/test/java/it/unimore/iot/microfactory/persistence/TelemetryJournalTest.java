@@ -0,0 +1,119 @@
+package it.unimore.iot.microfactory.persistence;
+
+import it.unimore.iot.microfactory.domain.DeviceHistory;
+import it.unimore.iot.microfactory.domain.DeviceKey;
+import it.unimore.iot.microfactory.domain.RawTelemetry;
+import it.unimore.iot.microfactory.model.ConveyorBeltStatus;
+import it.unimore.iot.microfactory.model.QualitySensorData;
+import it.unimore.iot.microfactory.model.RobotCellStatus;
+import it.unimore.iot.microfactory.model.RobotCellStatusEnum;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TelemetryJournalTest {
+
+    private static final int DEVICES = 100_000;
+    private static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void snapshotPlusTail_shouldRestoreLatestStateOfEveryDevice() throws Exception {
+        Map<DeviceKey, Object> expected = new HashMap<>();
+        try (TelemetryJournal journal = new TelemetryJournal(dir, SEGMENT_BYTES)) {
+            for (int i = 0; i < DEVICES; i++) {
+                DeviceKey key = DeviceKey.of("cell-" + (i % 10), "conveyor", "conveyor-" + i);
+                Object state = new ConveyorBeltStatus(key.id(), i, true, i / 100.0);
+                journal.append(key, state);
+                expected.put(key, state);
+            }
+            // Lo snapshot compatta i segmenti scritti finora, gli aggiornamenti successivi restano in coda
+            journal.snapshot(action -> expected.forEach(action));
+            for (int i = 0; i < 1_000; i++) {
+                DeviceKey key = DeviceKey.of("cell-" + (i % 10), "conveyor", "conveyor-" + i);
+                Object state = new ConveyorBeltStatus(key.id(), DEVICES + i, false, 0.0);
+                journal.append(key, state);
+                expected.put(key, state);
+            }
+            DeviceKey robot = DeviceKey.of("cell-01", "robot", "robot-001");
+            journal.append(robot, new RobotCellStatus("robot-001", 42, RobotCellStatusEnum.ALARM, 1.5));
+            expected.put(robot, null);
+            DeviceKey sensor = DeviceKey.of("cell-01", "quality", "sensor-qs-001");
+            journal.append(sensor, new QualitySensorData("renamed", 43, 10, 9, 1));
+            expected.put(sensor, null);
+        }
+
+        Map<DeviceKey, Object> restored = new HashMap<>();
+        long start = System.nanoTime();
+        long records;
+        try (TelemetryJournal journal = new TelemetryJournal(dir, SEGMENT_BYTES)) {
+            records = journal.replay(restored::put);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(DEVICES + 1_000 + 2, records);
+        assertEquals(expected.size(), restored.size());
+        ConveyorBeltStatus stopped = (ConveyorBeltStatus) restored.get(DeviceKey.of("cell-0", "conveyor", "conveyor-0"));
+        assertEquals(DEVICES, stopped.getTimestamp());
+        assertEquals(false, stopped.isActive());
+        ConveyorBeltStatus untouched = (ConveyorBeltStatus) restored.get(DeviceKey.of("cell-5", "conveyor", "conveyor-5005"));
+        assertEquals(50.05, untouched.getSpeed());
+
+        RobotCellStatus robot = assertInstanceOf(RobotCellStatus.class,
+                restored.get(DeviceKey.of("cell-01", "robot", "robot-001")));
+        assertEquals(RobotCellStatusEnum.ALARM, robot.getStatus());
+        QualitySensorData sensor = assertInstanceOf(QualitySensorData.class,
+                restored.get(DeviceKey.of("cell-01", "quality", "sensor-qs-001")));
+        assertEquals("renamed", sensor.getDeviceId());
+        assertEquals(9, sensor.getGoodCount());
+
+        assertTrue(elapsedMs < 1_000, "Replay di " + records + " record troppo lento: " + elapsedMs + " ms");
+    }
+
+    @Test
+    void removal_shouldBeReplayedAsNullState() throws Exception {
+        DeviceKey key = DeviceKey.of("cell-01", "conveyor", "conveyor-1");
+        try (TelemetryJournal journal = new TelemetryJournal(dir, SEGMENT_BYTES)) {
+            journal.append(key, new ConveyorBeltStatus("conveyor-1", 1, true, 1.0));
+            journal.appendRemoval(key);
+        }
+
+        Map<DeviceKey, Object> restored = new HashMap<>();
+        try (TelemetryJournal journal = new TelemetryJournal(dir, SEGMENT_BYTES)) {
+            assertEquals(2, journal.replay(restored::put));
+        }
+        assertTrue(restored.containsKey(key));
+        assertNull(restored.get(key));
+    }
+
+    @Test
+    void passthroughTelemetry_shouldBeReplayedWithItsOriginalPayload() throws Exception {
+        DeviceKey key = DeviceKey.of("cell-01", "quality", "sensor-1");
+        byte[] payload = "{\"deviceId\":\"sensor-1\",\"timestamp\":7,\"totalProcessed\":3,\"goodCount\":2,\"badCount\":1}"
+                .getBytes(StandardCharsets.UTF_8);
+        try (TelemetryJournal journal = new TelemetryJournal(dir, SEGMENT_BYTES)) {
+            journal.append(key, RawTelemetry.parse(DeviceHistory.Kind.QUALITY, payload));
+        }
+
+        Map<DeviceKey, Object> restored = new HashMap<>();
+        try (TelemetryJournal journal = new TelemetryJournal(dir, SEGMENT_BYTES)) {
+            journal.replay(restored::put);
+        }
+        RawTelemetry raw = assertInstanceOf(RawTelemetry.class, restored.get(key));
+        assertArrayEquals(payload, raw.payload());
+        assertEquals(2, raw.goodCount());
+    }
+}
@@ -0,0 +1,29 @@
+package it.unimore.iot.microfactory.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class EnvSettingsTest {
+
+    @Test
+    void parseInt_shouldFallBackToTheDefaultOnInvalidValues() {
+        assertEquals(4, EnvSettings.parseInt("WORKERS", null, 4, 1));
+        assertEquals(8, EnvSettings.parseInt("WORKERS", " 8 ", 4, 1));
+        assertEquals(1, EnvSettings.parseInt("WORKERS", "1", 4, 1));
+        assertEquals(4, EnvSettings.parseInt("WORKERS", "0", 4, 1));
+        assertEquals(4, EnvSettings.parseInt("WORKERS", "-3", 4, 1));
+        assertEquals(4, EnvSettings.parseInt("WORKERS", "eight", 4, 1));
+        // Oltre il massimo di un int non viene troncato
+        assertEquals(4, EnvSettings.parseInt("WORKERS", "4294967297", 4, 1));
+    }
+
+    @Test
+    void parseLong_shouldFallBackToTheDefaultOnInvalidValues() {
+        assertEquals(5_000L, EnvSettings.parseLong("TIMEOUT_MS", null, 5_000L, 1));
+        assertEquals(4_294_967_297L, EnvSettings.parseLong("TIMEOUT_MS", "4294967297", 5_000L, 1));
+        assertEquals(5_000L, EnvSettings.parseLong("TIMEOUT_MS", "", 5_000L, 1));
+        assertEquals(5_000L, EnvSettings.parseLong("TIMEOUT_MS", "-1", 5_000L, 1));
+        assertEquals(5_000L, EnvSettings.parseLong("TIMEOUT_MS", "5s", 5_000L, 1));
+    }
+}